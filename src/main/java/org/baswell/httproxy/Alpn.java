@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.Method;
+
+/**
+ * ALPN (Java 9+, backported to 8u252) looked up by reflection so the library still builds and runs on older JVMs.
+ */
+class Alpn
+{
+  private static final Method SET_APPLICATION_PROTOCOLS = method(SSLParameters.class, "setApplicationProtocols", String[].class);
+
+  private static final Method GET_APPLICATION_PROTOCOL = method(SSLEngine.class, "getApplicationProtocol");
+
+  static boolean isSupported()
+  {
+    return (SET_APPLICATION_PROTOCOLS != null) && (GET_APPLICATION_PROTOCOL != null);
+  }
+
+  /**
+   * Has the given (server mode) engine pick the first of the given protocols the client also offers.
+   *
+   * @return False if the protocols couldn't be set.
+   */
+  static boolean offer(SSLEngine sslEngine, String... protocols)
+  {
+    if (!isSupported())
+    {
+      return false;
+    }
+
+    try
+    {
+      SSLParameters sslParameters = sslEngine.getSSLParameters();
+      SET_APPLICATION_PROTOCOLS.invoke(sslParameters, (Object)protocols);
+      sslEngine.setSSLParameters(sslParameters);
+      return true;
+    }
+    catch (Exception e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * @return The protocol picked in the handshake, the empty string if none was or null if the handshake isn't done.
+   */
+  static String negotiated(SSLEngine sslEngine)
+  {
+    if (GET_APPLICATION_PROTOCOL == null)
+    {
+      return "";
+    }
+
+    try
+    {
+      return (String)GET_APPLICATION_PROTOCOL.invoke(sslEngine);
+    }
+    catch (Exception e)
+    {
+      return "";
+    }
+  }
+
+  private static Method method(Class<?> type, String name, Class<?>... parameterTypes)
+  {
+    try
+    {
+      return type.getMethod(name, parameterTypes);
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+}
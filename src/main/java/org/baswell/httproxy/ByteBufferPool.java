@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Direct buffers shared by every exchange that uses the same buffer size ({@link ProxyDirector#getBufferSize()}, or the
+ * SSL packet and application sizes). Connections only hold a buffer while they have bytes in flight and give it back as
+ * soon as it drains, so idle keep-alive connections cost no buffer memory.
+ * </p>
+ *
+ * <p>
+ * Buffers are sliced out of large direct slabs that are allocated on demand and kept for the life of the JVM, so the pool
+ * grows to the peak number of buffers in flight at once.
+ * </p>
+ */
+public class ByteBufferPool
+{
+  private static final Map<Integer, ByteBufferPool> POOLS = new ConcurrentHashMap<Integer, ByteBufferPool>();
+
+  private static final int SLAB_SIZE = 1024 * 1024;
+
+  /**
+   * @param bufferSize The size of the buffers in the pool.
+   * @return The pool shared by everything using buffers of the given size.
+   */
+  public static ByteBufferPool forSize(int bufferSize)
+  {
+    ByteBufferPool pool = POOLS.get(bufferSize);
+    if (pool == null)
+    {
+      synchronized (POOLS)
+      {
+        pool = POOLS.get(bufferSize);
+        if (pool == null)
+        {
+          pool = new ByteBufferPool(bufferSize);
+          POOLS.put(bufferSize, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * @return Every pool that has been created.
+   */
+  public static List<ByteBufferPool> getPools()
+  {
+    return new ArrayList<ByteBufferPool>(POOLS.values());
+  }
+
+  /**
+   * The size in bytes of each buffer in this pool.
+   */
+  public final int bufferSize;
+
+  private final int buffersPerSlab;
+
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+  /*
+   * The same buffers as freeBuffers, by identity (ByteBuffer.equals compares contents), to catch a buffer given back twice.
+   */
+  private final Set<ByteBuffer> freeSet = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong outstanding = new AtomicLong();
+
+  private final AtomicLong slabs = new AtomicLong();
+
+  private ByteBufferPool(int bufferSize)
+  {
+    this.bufferSize = bufferSize;
+    buffersPerSlab = Math.max(1, SLAB_SIZE / bufferSize);
+  }
+
+  /**
+   * @return The number of times a buffer was taken from the free buffers.
+   */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of times no free buffer was available and a new slab had to be allocated.
+   */
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of buffers currently borrowed.
+   */
+  public long getOutstanding()
+  {
+    return outstanding.get();
+  }
+
+  /**
+   * @return The total bytes of direct memory allocated by this pool.
+   */
+  public long getAllocatedBytes()
+  {
+    return slabs.get() * buffersPerSlab * bufferSize;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ByteBufferPool(" + bufferSize + ") hits: " + getHits() + " misses: " + getMisses() + " outstanding: " + getOutstanding() + " allocated bytes: " + getAllocatedBytes();
+  }
+
+  /**
+   * @return A cleared buffer of {@link #bufferSize} bytes. Must be given back with {@link #give(ByteBuffer)}.
+   */
+  ByteBuffer take()
+  {
+    ByteBuffer buffer;
+    synchronized (freeBuffers)
+    {
+      buffer = freeBuffers.pollFirst();
+      if (buffer == null)
+      {
+        misses.incrementAndGet();
+        buffer = allocateSlab();
+      }
+      else
+      {
+        freeSet.remove(buffer);
+        hits.incrementAndGet();
+      }
+    }
+
+    outstanding.incrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * @throws IllegalArgumentException If the buffer isn't the size of this pool's buffers.
+   * @throws IllegalStateException If the buffer has already been given back (and not taken again since).
+   */
+  void give(ByteBuffer buffer)
+  {
+    if (buffer.capacity() != bufferSize)
+    {
+      throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes given to the pool of " + bufferSize + " byte buffers.");
+    }
+
+    synchronized (freeBuffers)
+    {
+      if (!freeSet.add(buffer))
+      {
+        throw new IllegalStateException("Buffer given back to the pool of " + bufferSize + " byte buffers twice.");
+      }
+
+      /*
+       * Most recently used first so the buffers that are hot in the CPU cache get reused.
+       */
+      freeBuffers.addFirst(buffer);
+    }
+    outstanding.decrementAndGet();
+  }
+
+  /*
+   * Must hold the freeBuffers lock. Returns one buffer from the new slab and frees the rest.
+   */
+  private ByteBuffer allocateSlab()
+  {
+    ByteBuffer slab = ByteBuffer.allocateDirect(buffersPerSlab * bufferSize);
+    slabs.incrementAndGet();
+
+    ByteBuffer first = null;
+    for (int i = 0; i < buffersPerSlab; i++)
+    {
+      slab.limit((i + 1) * bufferSize);
+      slab.position(i * bufferSize);
+      ByteBuffer buffer = slab.slice();
+      if (first == null)
+      {
+        first = buffer;
+      }
+      else
+      {
+        freeBuffers.addLast(buffer);
+        freeSet.add(buffer);
+      }
+    }
+    return first;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+/**
+ * The Cache-Control directives of a request or response (RFC 7234 5.2) the response cache acts on. Directives it doesn't
+ * know are ignored.
+ */
+class CacheControl
+{
+  boolean noStore;
+
+  boolean noCache;
+
+  boolean isPrivate;
+
+  boolean isPublic;
+
+  boolean mustRevalidate;
+
+  /*
+   * In seconds, -1 if not given.
+   */
+  long maxAge = -1;
+
+  long sMaxAge = -1;
+
+  long minFresh = -1;
+
+  /*
+   * How long past its freshness a response can be used while it's revalidated or when revalidating it fails (RFC 5861).
+   */
+  long staleWhileRevalidate = -1;
+
+  long staleIfError = -1;
+
+  /**
+   * Parses every Cache-Control header of the given message. A message without one that has <i>Pragma: no-cache</i> is
+   * taken as <i>no-cache</i> (RFC 7234 5.4).
+   */
+  static CacheControl parse(HttpMessage message)
+  {
+    CacheControl cacheControl = new CacheControl();
+    boolean present = false;
+    for (HttpHeader header : message.getHeaders("Cache-Control"))
+    {
+      present = true;
+      cacheControl.parseDirectives(header.value);
+    }
+
+    if (!present && "no-cache".equalsIgnoreCase(trim(message.getHeaderValue("Pragma"))))
+    {
+      cacheControl.noCache = true;
+    }
+    return cacheControl;
+  }
+
+  private void parseDirectives(String value)
+  {
+    if (value == null)
+    {
+      return;
+    }
+
+    int length = value.length();
+    int position = 0;
+    while (position < length)
+    {
+      int nameStart = position;
+      while ((position < length) && (value.charAt(position) != ',') && (value.charAt(position) != '='))
+      {
+        position++;
+      }
+      String name = value.substring(nameStart, position).trim();
+
+      String argument = null;
+      if ((position < length) && (value.charAt(position) == '='))
+      {
+        position++;
+        while ((position < length) && (value.charAt(position) == ' '))
+        {
+          position++;
+        }
+
+        if ((position < length) && (value.charAt(position) == '"'))
+        {
+          int argumentStart = ++position;
+          while ((position < length) && (value.charAt(position) != '"'))
+          {
+            position++;
+          }
+          argument = value.substring(argumentStart, position);
+          while ((position < length) && (value.charAt(position) != ','))
+          {
+            position++;
+          }
+        }
+        else
+        {
+          int argumentStart = position;
+          while ((position < length) && (value.charAt(position) != ','))
+          {
+            position++;
+          }
+          argument = value.substring(argumentStart, position).trim();
+        }
+      }
+      position++;
+
+      onDirective(name, argument);
+    }
+  }
+
+  /*
+   * no-cache and private with field names (no-cache="Set-Cookie") only apply to those fields. They're treated as applying
+   * to the whole response, the safe reading for a shared cache.
+   */
+  private void onDirective(String name, String argument)
+  {
+    if (name.equalsIgnoreCase("no-store"))
+    {
+      noStore = true;
+    }
+    else if (name.equalsIgnoreCase("no-cache"))
+    {
+      noCache = true;
+    }
+    else if (name.equalsIgnoreCase("private"))
+    {
+      isPrivate = true;
+    }
+    else if (name.equalsIgnoreCase("public"))
+    {
+      isPublic = true;
+    }
+    else if (name.equalsIgnoreCase("must-revalidate") || name.equalsIgnoreCase("proxy-revalidate"))
+    {
+      mustRevalidate = true;
+    }
+    else if (name.equalsIgnoreCase("max-age"))
+    {
+      maxAge = seconds(argument);
+    }
+    else if (name.equalsIgnoreCase("s-maxage"))
+    {
+      sMaxAge = seconds(argument);
+    }
+    else if (name.equalsIgnoreCase("min-fresh"))
+    {
+      minFresh = seconds(argument);
+    }
+    else if (name.equalsIgnoreCase("stale-while-revalidate"))
+    {
+      staleWhileRevalidate = seconds(argument);
+    }
+    else if (name.equalsIgnoreCase("stale-if-error"))
+    {
+      staleIfError = seconds(argument);
+    }
+  }
+
+  /*
+   * A delta-seconds argument (RFC 7234 1.2.1). An invalid one is taken as 0 so the response is treated as stale, never
+   * as fresh forever.
+   */
+  static long seconds(String argument)
+  {
+    if ((argument == null) || argument.isEmpty())
+    {
+      return 0;
+    }
+
+    long seconds = 0;
+    for (int i = 0; i < argument.length(); i++)
+    {
+      char c = argument.charAt(i);
+      if ((c < '0') || (c > '9'))
+      {
+        return 0;
+      }
+
+      seconds = seconds * 10 + (c - '0');
+      if (seconds > Integer.MAX_VALUE)
+      {
+        return Integer.MAX_VALUE;
+      }
+    }
+    return seconds;
+  }
+
+  private static String trim(String value)
+  {
+    return (value == null) ? null : value.trim();
+  }
+}
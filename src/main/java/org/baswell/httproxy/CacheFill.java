@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the body of a response being proxied that the {@link ResponseCache} can store. The exchange hands it the
+ * body bytes (dechunked) as they go by and completes it when the response is done. A fill that gets bigger than the
+ * cache stores is dropped along the way.
+ */
+class CacheFill
+{
+  final ResponseCache cache;
+
+  final HttpResponse response;
+
+  final String url;
+
+  final String key;
+
+  final String[] varyNames;
+
+  final long responseTime;
+
+  final long initialAge;
+
+  final long freshnessLifetime;
+
+  private final int maxBytes;
+
+  private byte[] body;
+
+  private int size;
+
+  private boolean abandoned;
+
+  CacheFill(ResponseCache cache, HttpResponse response, String url, String key, String[] varyNames, long responseTime, long initialAge, long freshnessLifetime, int maxBytes)
+  {
+    this.cache = cache;
+    this.response = response;
+    this.url = url;
+    this.key = key;
+    this.varyNames = varyNames;
+    this.responseTime = responseTime;
+    this.initialAge = initialAge;
+    this.freshnessLifetime = freshnessLifetime;
+    this.maxBytes = maxBytes;
+
+    body = new byte[1024];
+  }
+
+  void append(byte[] bytes, int start, int length)
+  {
+    if (ensureCapacity(length))
+    {
+      System.arraycopy(bytes, start, body, size, length);
+      size += length;
+    }
+  }
+
+  void append(ByteBuffer buffer, int start, int length)
+  {
+    if (ensureCapacity(length))
+    {
+      ByteBuffer content = buffer.duplicate();
+      content.limit(start + length);
+      content.position(start);
+      content.get(body, size, length);
+      size += length;
+    }
+  }
+
+  /**
+   * Stores the response if its whole body was collected (the body matches its Content-Length if it has one).
+   *
+   * @return True if the response was stored.
+   */
+  boolean complete()
+  {
+    if (abandoned)
+    {
+      return false;
+    }
+
+    abandoned = true;
+    String contentLength = response.getHeaderValue("Content-Length");
+    if ((contentLength != null) && !contentLength.trim().equals(String.valueOf(size)))
+    {
+      return false;
+    }
+
+    return cache.put(this, (size == body.length) ? body : Arrays.copyOf(body, size));
+  }
+
+  private boolean ensureCapacity(int length)
+  {
+    if (abandoned)
+    {
+      return false;
+    }
+    else if ((long)size + length > maxBytes)
+    {
+      abandoned = true;
+      body = null;
+      return false;
+    }
+    else if (size + length > body.length)
+    {
+      body = Arrays.copyOf(body, (int)Math.min(maxBytes, Math.max((long)body.length * 2, size + length)));
+    }
+    return true;
+  }
+}
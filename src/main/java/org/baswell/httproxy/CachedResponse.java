@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * A response stored in the {@link ResponseCache}. The status line and headers are kept encoded, ready to be sent as is
+ * (without the blank line that ends them, the Age header is added for each hit), along with the whole body. Both are
+ * never changed once stored so hits are written straight from them by any number of exchanges at once.
+ * <p>
+ * A response in the disk tier has no body in memory, it's written to clients from its segment. The segment is retained
+ * for a hit and has to be released (once the body is written or the exchange is closed).
+ * <p>
+ * What's needed to revalidate the response once it's stale (its validators and how long past its freshness it can still
+ * be used) is read from the stored header.
+ */
+class CachedResponse
+{
+  final String key;
+
+  final String url;
+
+  final int statusCode;
+
+  /*
+   * The status line and headers, each line ending with CRLF, without the blank line.
+   */
+  final byte[] header;
+
+  /*
+   * Null for a response in the disk tier.
+   */
+  final byte[] body;
+
+  final int bodyLength;
+
+  /*
+   * When the response was received and how old it already was then (RFC 7234 4.2.3), in milliseconds.
+   */
+  final long responseTime;
+
+  final long initialAge;
+
+  final long freshnessLifetime;
+
+  /*
+   * The request header names the response varies on (lowercase, sorted) or null. An entry in memory is only used while
+   * the cache's current names for its URL are this same instance.
+   */
+  final String[] varyNames;
+
+  final int weight;
+
+  /*
+   * Where the response is in the disk tier: its record and its body within the record.
+   */
+  final DiskStore.Segment segment;
+
+  final int recordPosition;
+
+  final int recordBytes;
+
+  final int bodyPosition;
+
+  /*
+   * The ETag and Last-Modified values or null.
+   */
+  final String etag;
+
+  final String lastModified;
+
+  /*
+   * must-revalidate (or no-cache), the response is never used stale.
+   */
+  final boolean mustRevalidate;
+
+  /*
+   * In milliseconds past the freshness lifetime, 0 if not allowed.
+   */
+  final long staleWhileRevalidate;
+
+  final long staleIfError;
+
+  /*
+   * The surrogate keys the response is tagged with, from its Surrogate-Key (separated by spaces) and Cache-Tag
+   * (separated by commas) headers.
+   */
+  final String[] tags;
+
+  /*
+   * When the response was purged softly, it's stale from then on.
+   */
+  volatile long purgedAt = Long.MAX_VALUE;
+
+  /*
+   * The rest is only touched holding the cache's lock.
+   */
+  CachedResponse previous;
+
+  CachedResponse next;
+
+  int queue;
+
+  CachedResponse(String key, String url, int statusCode, byte[] header, byte[] body, long responseTime, long initialAge, long freshnessLifetime, String[] varyNames)
+  {
+    this(key, url, statusCode, header, body, body.length, responseTime, initialAge, freshnessLifetime, varyNames, null, 0, 0, 0);
+  }
+
+  CachedResponse(String key, String url, int statusCode, byte[] header, byte[] body, int bodyLength, long responseTime, long initialAge, long freshnessLifetime, String[] varyNames,
+                 DiskStore.Segment segment, int recordPosition, int recordBytes, int bodyPosition)
+  {
+    this.key = key;
+    this.url = url;
+    this.statusCode = statusCode;
+    this.header = header;
+    this.body = body;
+    this.bodyLength = bodyLength;
+    this.responseTime = responseTime;
+    this.initialAge = initialAge;
+    this.freshnessLifetime = freshnessLifetime;
+    this.varyNames = varyNames;
+    this.segment = segment;
+    this.recordPosition = recordPosition;
+    this.recordBytes = recordBytes;
+    this.bodyPosition = bodyPosition;
+
+    weight = header.length + bodyLength + (key.length() * 2) + OVERHEAD;
+
+    HttpResponse response = toHttpResponse(false, null);
+    etag = response.getHeaderValue("ETag");
+    lastModified = response.getHeaderValue("Last-Modified");
+    CacheControl cacheControl = CacheControl.parse(response);
+    mustRevalidate = cacheControl.mustRevalidate || cacheControl.noCache;
+    staleWhileRevalidate = Math.max(0, cacheControl.staleWhileRevalidate) * 1000;
+    staleIfError = Math.max(0, cacheControl.staleIfError) * 1000;
+    tags = tags(response);
+  }
+
+  long currentAge(long now)
+  {
+    return initialAge + Math.max(0, now - responseTime);
+  }
+
+  boolean isFresh(long now)
+  {
+    return staleness(now) < 0;
+  }
+
+  /*
+   * How long the response has been stale (past its freshness lifetime or since it was purged), negative while it's
+   * fresh.
+   */
+  long staleness(long now)
+  {
+    return Math.max(currentAge(now) - freshnessLifetime, now - purgedAt);
+  }
+
+  /**
+   * Makes the response stale from now on (a soft purge), it's revalidated before it's used again.
+   */
+  void purge(long now)
+  {
+    if (now < purgedAt)
+    {
+      purgedAt = now;
+    }
+  }
+
+  /**
+   * @return True if the response can be sent while it's revalidated in the background.
+   */
+  boolean canServeWhileRevalidating(long now)
+  {
+    return !mustRevalidate && (staleness(now) < staleWhileRevalidate);
+  }
+
+  /**
+   * @return True if the response can be sent when revalidating it fails (the server can't be reached or answers with a
+   * server error).
+   */
+  boolean canServeOnError(long now)
+  {
+    return !mustRevalidate && (staleness(now) < staleIfError);
+  }
+
+  /**
+   * @return The Age header (in seconds) and the blank line that ends the header.
+   */
+  byte[] ageLine(long now)
+  {
+    return ("Age: " + (currentAge(now) / 1000) + CRLF + CRLF).getBytes(LineReader.ISO_8859_1);
+  }
+
+  /**
+   * Writes what the channel will take of the body of a response in the disk tier, starting at the given offset.
+   *
+   * @return The number of bytes written.
+   */
+  long writeBody(WritableByteChannel channel, long offset) throws IOException
+  {
+    return segment.write(channel, bodyPosition + offset, bodyLength - offset);
+  }
+
+  /**
+   * Writes the whole body of a response in the disk tier through the given buffer.
+   */
+  void writeBody(OutputStream outputStream, byte[] buffer) throws IOException
+  {
+    segment.write(outputStream, buffer, bodyPosition, bodyLength);
+  }
+
+  /**
+   * @return The whole body, read from the segment for a response in the disk tier (which has to be retained).
+   */
+  byte[] readBody() throws IOException
+  {
+    if (body != null)
+    {
+      return body;
+    }
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bodyLength);
+    writeBody(outputStream, new byte[8192]);
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Another use of a response from the disk tier, released like a hit.
+   *
+   * @return False if the response's segment has been dropped from the disk tier.
+   */
+  boolean retain()
+  {
+    return (segment == null) || segment.retain();
+  }
+
+  /**
+   * Done with a hit from the disk tier.
+   */
+  void release()
+  {
+    if (segment != null)
+    {
+      segment.release();
+    }
+  }
+
+  /**
+   * @return The stored status line and headers parsed.
+   */
+  HttpResponse toHttpResponse(boolean overSSL, ConnectionParameters connectionParameters)
+  {
+    HttpResponse response = null;
+    int lineStart = 0;
+    for (int i = 0; i < header.length - 1; i++)
+    {
+      if ((header[i] == CR) && (header[i + 1] == LF))
+      {
+        if (response == null)
+        {
+          response = new HttpResponse(false, overSSL, connectionParameters, new String(header, 0, i, LineReader.ISO_8859_1));
+        }
+        else
+        {
+          HttpMessage.parseHeader(header, lineStart, i, response.headers);
+        }
+        lineStart = i + 2;
+        i++;
+      }
+    }
+    return response;
+  }
+
+  private static String[] tags(HttpResponse response)
+  {
+    List<String> tags = new ArrayList<String>();
+    for (HttpHeader header : response.getHeaders("Surrogate-Key"))
+    {
+      addTags(tags, header.value.split("\\s+"));
+    }
+    for (HttpHeader header : response.getHeaders("Cache-Tag"))
+    {
+      addTags(tags, header.value.split(","));
+    }
+    return tags.isEmpty() ? NO_TAGS : tags.toArray(new String[tags.size()]);
+  }
+
+  private static void addTags(List<String> tags, String[] values)
+  {
+    for (String value : values)
+    {
+      String tag = value.trim();
+      if (!tag.isEmpty() && !tags.contains(tag))
+      {
+        tags.add(tag);
+      }
+    }
+  }
+
+  private static final String[] NO_TAGS = new String[0];
+
+  /*
+   * Roughly what an entry costs beyond its bytes: the entry, its map node and the byte array headers.
+   */
+  private static final int OVERHEAD = 160;
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.ByteBuffer;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * <p>
+ * Incremental decoder for the chunked transfer coding. Bytes are decoded in place as they arrive, in whatever pieces
+ * they arrive, without copying or allocating. The chunk size is parsed hex digit by hex digit and chunk extensions
+ * ({@code ;name=value}) are skipped. Trailer fields after the last chunk are added to the message's
+ * {@link HttpMessage#trailers}.
+ * </p>
+ *
+ * <pre>
+ * chunked-body = *chunk last-chunk trailer-section CRLF
+ * chunk        = chunk-size [ chunk-ext ] CRLF chunk-data CRLF
+ * last-chunk   = 1*("0") [ chunk-ext ] CRLF
+ * </pre>
+ *
+ * <p>
+ * Bare LF line endings and whitespace around the chunk size are accepted. Anything else that isn't valid chunked coding
+ * is a protocol error.
+ * </p>
+ */
+class ChunkedDecoder
+{
+  private static final int MAX_EXTENSION_LENGTH = 4096;
+
+  private static final int MAX_TRAILER_SECTION_LENGTH = 64 * 1024;
+
+  private static final byte[] HEX_VALUES = new byte[256];
+
+  static
+  {
+    for (int i = 0; i < HEX_VALUES.length; i++)
+    {
+      HEX_VALUES[i] = -1;
+    }
+    for (int i = 0; i < 10; i++)
+    {
+      HEX_VALUES['0' + i] = (byte)i;
+    }
+    for (int i = 0; i < 6; i++)
+    {
+      HEX_VALUES['a' + i] = HEX_VALUES['A' + i] = (byte)(10 + i);
+    }
+  }
+
+  private final boolean parseTrailers;
+
+  private final LineReader trailerReader = new LineReader();
+
+  private State state = State.SIZE_START;
+
+  private long chunkRemaining;
+
+  private int extensionLength;
+
+  private int trailerSectionLength;
+
+  /**
+   * @param parseTrailers Add the trailer fields to the message ({@link HttpMessage#trailers}). If false trailers are skipped.
+   */
+  ChunkedDecoder(boolean parseTrailers)
+  {
+    this.parseTrailers = parseTrailers;
+  }
+
+  /**
+   * @return True once the last chunk and the trailer section have been decoded.
+   */
+  boolean isDone()
+  {
+    return state == State.DONE;
+  }
+
+  void reset()
+  {
+    state = State.SIZE_START;
+    chunkRemaining = 0;
+    extensionLength = 0;
+    trailerSectionLength = 0;
+    trailerReader.clear();
+  }
+
+  /**
+   * Decodes from the buffer's position up to the end of the next run of chunk data (or the end of the buffer or the
+   * chunked body) and moves the position past the decoded bytes. Call again while the buffer has bytes remaining and
+   * the decoder isn't done.
+   *
+   * @param message The message the chunked body belongs to.
+   * @return The number of chunk data bytes directly before the buffer's new position. 0 if only chunk framing was decoded.
+   * @throws HttpProtocolException If the bytes aren't valid chunked coding.
+   */
+  int decode(ByteBuffer buffer, HttpMessage message) throws HttpProtocolException
+  {
+    int position = buffer.position();
+    int limit = buffer.limit();
+
+    while (position < limit)
+    {
+      switch (state)
+      {
+        case DATA:
+          int data = (int)Math.min(limit - position, chunkRemaining);
+          chunkRemaining -= data;
+          if (chunkRemaining == 0)
+          {
+            state = State.DATA_CR;
+          }
+          buffer.position(position + data);
+          return data;
+
+        case TRAILER:
+          buffer.position(position);
+          readTrailers(buffer, message);
+          return 0;
+
+        case DONE:
+          buffer.position(position);
+          return 0;
+
+        default:
+          decodeFraming(buffer.get(position++), message);
+      }
+    }
+
+    buffer.position(position);
+    return 0;
+  }
+
+  private void decodeFraming(byte b, HttpMessage message) throws HttpProtocolException
+  {
+    switch (state)
+    {
+      case SIZE_START:
+        if ((b == ' ') || (b == '\t'))
+        {
+          return;
+        }
+        else if (HEX_VALUES[b & 0xff] < 0)
+        {
+          throw invalid(message, "chunk size", b);
+        }
+        chunkRemaining = HEX_VALUES[b & 0xff];
+        state = State.SIZE;
+        return;
+
+      case SIZE:
+        int value = HEX_VALUES[b & 0xff];
+        if (value >= 0)
+        {
+          if (chunkRemaining > (Long.MAX_VALUE >>> 4))
+          {
+            throw new HttpProtocolException(message, "Chunk size too large.");
+          }
+          chunkRemaining = (chunkRemaining << 4) | value;
+          return;
+        }
+        decodeSizeEnd(b, message);
+        return;
+
+      case SIZE_END:
+        decodeSizeEnd(b, message);
+        return;
+
+      case EXTENSION:
+        if (b == LF)
+        {
+          onSizeLineEnd();
+        }
+        else if (++extensionLength > MAX_EXTENSION_LENGTH)
+        {
+          throw new HttpProtocolException(message, "Chunk extension longer than " + MAX_EXTENSION_LENGTH + " bytes.");
+        }
+        return;
+
+      case SIZE_LF:
+        if (b != LF)
+        {
+          throw invalid(message, "chunk size line terminator", b);
+        }
+        onSizeLineEnd();
+        return;
+
+      case DATA_CR:
+        if (b == CR)
+        {
+          state = State.DATA_LF;
+        }
+        else if (b == LF)
+        {
+          state = State.SIZE_START;
+        }
+        else
+        {
+          throw invalid(message, "chunk data terminator", b);
+        }
+        return;
+
+      case DATA_LF:
+        if (b != LF)
+        {
+          throw invalid(message, "chunk data terminator", b);
+        }
+        state = State.SIZE_START;
+        return;
+
+      default:
+        throw new IllegalStateException("Not a framing state: " + state);
+    }
+  }
+
+  /*
+   * The first byte past the chunk size's hex digits and any whitespace after them.
+   */
+  private void decodeSizeEnd(byte b, HttpMessage message) throws HttpProtocolException
+  {
+    if ((b == ' ') || (b == '\t'))
+    {
+      state = State.SIZE_END;
+    }
+    else if (b == ';')
+    {
+      extensionLength = 0;
+      state = State.EXTENSION;
+    }
+    else if (b == CR)
+    {
+      state = State.SIZE_LF;
+    }
+    else if (b == LF)
+    {
+      onSizeLineEnd();
+    }
+    else
+    {
+      throw invalid(message, "chunk size", b);
+    }
+  }
+
+  private void onSizeLineEnd()
+  {
+    state = (chunkRemaining == 0) ? State.TRAILER : State.DATA;
+  }
+
+  /*
+   * The limit is checked on the partial line held between reads too, so a trailer line without an end can't grow without
+   * bound.
+   */
+  private void readTrailers(ByteBuffer buffer, HttpMessage message) throws HttpProtocolException
+  {
+    while (trailerReader.readLine(buffer))
+    {
+      int length = trailerReader.lineEnd - trailerReader.lineStart;
+      if (length == 0)
+      {
+        state = State.DONE;
+        return;
+      }
+
+      trailerSectionLength += length;
+      checkTrailerSectionLength(trailerSectionLength, message);
+
+      if (parseTrailers)
+      {
+        HttpMessage.parseHeader(trailerReader.lineBytes, trailerReader.lineStart, trailerReader.lineEnd, message.trailers);
+      }
+    }
+    checkTrailerSectionLength(trailerSectionLength + trailerReader.partialLength(), message);
+  }
+
+  private static void checkTrailerSectionLength(int length, HttpMessage message) throws HttpProtocolException
+  {
+    if (length > MAX_TRAILER_SECTION_LENGTH)
+    {
+      throw new HttpProtocolException(message, "Trailer section longer than " + MAX_TRAILER_SECTION_LENGTH + " bytes.");
+    }
+  }
+
+  private static HttpProtocolException invalid(HttpMessage message, String what, byte b)
+  {
+    return new HttpProtocolException(message, "Invalid " + what + " character: 0x" + Integer.toHexString(b & 0xff));
+  }
+
+  enum State
+  {
+    SIZE_START,
+    SIZE,
+    SIZE_END,
+    EXTENSION,
+    SIZE_LF,
+    DATA,
+    DATA_CR,
+    DATA_LF,
+    TRAILER,
+    DONE;
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A request sent to a server that identical requests wait on instead of being sent too (collapsed forwarding). The
+ * exchange that sent it (the leader) passes along the response's bytes as it reads them and each waiting exchange writes
+ * them to its own client. The bytes are copied once out of the leader's read buffer, every waiter queues the same arrays.
+ * </p>
+ *
+ * <p>
+ * The response is only shared if the {@link ResponseCache} could store it. Otherwise, if the response varies on a
+ * request header a waiter has a different value for, or if the leader fails before a waiter gets anything, the waiter
+ * sends its request on its own. Waiters that join after the response has started get the bytes read so far first, as
+ * long as they fit in the largest entry the cache stores.
+ * </p>
+ *
+ * @see ResponseCache#attach(HttpRequest, Waiter)
+ * @see ResponseCache#lead(HttpRequest)
+ */
+class CollapsedRequest
+{
+  /**
+   * An exchange waiting on a collapsed request.
+   */
+  interface Waiter
+  {
+    /**
+     * There's something new for the waiter to take ({@link Attachment#take(List)}). Called on the leader's thread, the
+     * waiter takes it on its own.
+     */
+    void onCollapsedResponse();
+  }
+
+  /**
+   * The response hasn't started.
+   */
+  static final int WAITING = 0;
+
+  static final int STREAMING = 1;
+
+  /**
+   * The whole response has been taken.
+   */
+  static final int COMPLETE = 2;
+
+  /**
+   * The response isn't coming (or isn't for the waiter) and nothing has been taken, send the request on its own.
+   */
+  static final int FALLBACK = 3;
+
+  /**
+   * The leader failed after part of the response was taken.
+   */
+  static final int FAILED = 4;
+
+  final ResponseCache cache;
+
+  /*
+   * Where the request is registered in the cache.
+   */
+  final String key;
+
+  final HttpRequest request;
+
+  private final int maxReplayBytes;
+
+  /*
+   * The rest is guarded by this.
+   */
+  private int state = WAITING;
+
+  private String leaderKey;
+
+  private String[] varyNames;
+
+  /*
+   * The response's bytes so far for waiters that join late, null once they're more than the max.
+   */
+  private List<byte[]> replay = new ArrayList<byte[]>();
+
+  private long replayBytes;
+
+  private final List<Attachment> attachments = new ArrayList<Attachment>();
+
+  CollapsedRequest(ResponseCache cache, String key, HttpRequest request, int maxReplayBytes)
+  {
+    this.cache = cache;
+    this.key = key;
+    this.request = request;
+    this.maxReplayBytes = maxReplayBytes;
+  }
+
+  /**
+   * @return The waiter's place on this request or null if it can't wait on it (it's done or started too long ago).
+   */
+  synchronized Attachment attach(HttpRequest request, Waiter waiter)
+  {
+    if ((replay == null) || (state > STREAMING))
+    {
+      return null;
+    }
+
+    Attachment attachment = new Attachment(request, waiter);
+    if (state == STREAMING)
+    {
+      if (!sharesResponse(request))
+      {
+        return null;
+      }
+
+      attachment.pending.add(replay.get(0));
+      if (attachment.headerOnly)
+      {
+        attachment.complete = true;
+      }
+      else
+      {
+        attachment.pending.addAll(replay.subList(1, replay.size()));
+      }
+      waiter.onCollapsedResponse();
+    }
+    attachments.add(attachment);
+    return attachment;
+  }
+
+  /**
+   * The leader has the response's header (status line and headers, as its client gets it).
+   *
+   * @param varyNames The request header names the response varies on.
+   */
+  synchronized void start(byte[] header, String[] varyNames)
+  {
+    state = STREAMING;
+    this.varyNames = varyNames;
+    leaderKey = ResponseCache.key(request.getURL(), varyNames, request);
+    replay.add(header);
+    replayBytes = header.length;
+
+    for (int i = attachments.size() - 1; i >= 0; i--)
+    {
+      Attachment attachment = attachments.get(i);
+      if (sharesResponse(attachment.request))
+      {
+        attachment.pending.add(header);
+        attachment.complete = attachment.headerOnly;
+      }
+      else
+      {
+        attachment.rejected = true;
+        attachments.remove(i);
+      }
+      attachment.waiter.onCollapsedResponse();
+    }
+  }
+
+  /**
+   * The leader read more of the response's body (as it came from the server, chunked or not).
+   */
+  synchronized void publish(byte[] bytes)
+  {
+    if (replay != null)
+    {
+      replayBytes += bytes.length;
+      if (replayBytes > maxReplayBytes)
+      {
+        replay = null;
+        cache.collapsed(this);
+      }
+      else
+      {
+        replay.add(bytes);
+      }
+    }
+
+    for (Attachment attachment : attachments)
+    {
+      if (!attachment.headerOnly)
+      {
+        attachment.pending.add(bytes);
+        attachment.waiter.onCollapsedResponse();
+      }
+    }
+  }
+
+  /**
+   * The whole response has been published.
+   */
+  void complete()
+  {
+    end(COMPLETE);
+  }
+
+  /**
+   * The response won't be (fully) published.
+   */
+  void abandon()
+  {
+    end(FAILED);
+  }
+
+  private synchronized void end(int endState)
+  {
+    if (state > STREAMING)
+    {
+      return;
+    }
+
+    state = endState;
+    replay = null;
+    cache.collapsed(this);
+    for (Attachment attachment : attachments)
+    {
+      attachment.waiter.onCollapsedResponse();
+    }
+    attachments.clear();
+  }
+
+  /*
+   * Does the response the leader is getting answer the given request too, it has the same values for the request headers
+   * the response varies on.
+   */
+  private boolean sharesResponse(HttpRequest request)
+  {
+    return leaderKey.equals(ResponseCache.key(request.getURL(), varyNames, request));
+  }
+
+  /**
+   * A waiter's place on the request. Only the waiter calls its methods.
+   */
+  class Attachment
+  {
+    final HttpRequest request;
+
+    final Waiter waiter;
+
+    /*
+     * A HEAD request only gets the header.
+     */
+    final boolean headerOnly;
+
+    /*
+     * The rest is guarded by the collapsed request.
+     */
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+
+    private boolean complete;
+
+    private boolean rejected;
+
+    private boolean detached;
+
+    private boolean taken;
+
+    Attachment(HttpRequest request, Waiter waiter)
+    {
+      this.request = request;
+      this.waiter = waiter;
+      headerOnly = "HEAD".equalsIgnoreCase(request.method);
+    }
+
+    /**
+     * Moves the bytes published since the last take to the given list.
+     *
+     * @return {@link #WAITING}, {@link #STREAMING}, {@link #COMPLETE}, {@link #FALLBACK} or {@link #FAILED}.
+     */
+    int take(List<byte[]> bytes)
+    {
+      synchronized (CollapsedRequest.this)
+      {
+        if (rejected || detached || ((state == FAILED) && !taken))
+        {
+          pending.clear();
+          return FALLBACK;
+        }
+
+        if (!pending.isEmpty())
+        {
+          bytes.addAll(pending);
+          pending.clear();
+          taken = true;
+        }
+
+        if (complete)
+        {
+          detach();
+          return COMPLETE;
+        }
+
+        switch (state)
+        {
+          case WAITING:
+            return WAITING;
+
+          case STREAMING:
+            return STREAMING;
+
+          case COMPLETE:
+            return COMPLETE;
+
+          default:
+            return taken ? FAILED : FALLBACK;
+        }
+      }
+    }
+
+    /**
+     * Stops waiting if the response hasn't started for this waiter.
+     *
+     * @return False if some of the response is waiting to be taken.
+     */
+    boolean timeout()
+    {
+      synchronized (CollapsedRequest.this)
+      {
+        if (taken || !pending.isEmpty() || complete)
+        {
+          return false;
+        }
+
+        detach();
+        return true;
+      }
+    }
+
+    /**
+     * The waiter is gone (its exchange closed).
+     */
+    void detach()
+    {
+      synchronized (CollapsedRequest.this)
+      {
+        detached = true;
+        attachments.remove(this);
+        pending.clear();
+      }
+    }
+  }
+}
@@ -25,9 +25,12 @@ import java.util.Map;
  * Describes the connection parameters to a proxied server.
  *
  * @see ProxyDirector#onRequestStart(HttpRequest)
+ * @see ProxyDirector#onConnectRequest(HttpRequest)
  */
 public class ConnectionParameters implements Serializable
 {
+  private static final long serialVersionUID = 6459766178592386446L;
+
   /**
    * Is this connection over SSL.
    */
@@ -43,6 +46,13 @@ public class ConnectionParameters implements Serializable
    */
   public final int port;
 
+  /**
+   * Are requests to this server sent over HTTP/2 (h2c with prior knowledge). One connection to the server is shared by
+   * the exchanges of a selector thread, each request a stream on it. Only used by the NIO proxy and only for non-SSL
+   * connections, otherwise HTTP/1.1 is used.
+   */
+  public final boolean http2;
+
   /**
    * if this connection is over SSL, the SSLContext used for the SSL exchanges.
    */
@@ -74,6 +84,17 @@ public class ConnectionParameters implements Serializable
     this(ipOrHost, port, ssl ? defaultSSLContext() : null);
   }
 
+  /**
+   *
+   * @param ipOrHost The IP address or hostname of the server.
+   * @param port The HTTP port to connect on.
+   * @param http2 Send requests to the server over HTTP/2 (the server must accept h2c with prior knowledge).
+   */
+  public ConnectionParameters(String ipOrHost, int port, boolean http2)
+  {
+    this(false, ipOrHost, port, null, http2);
+  }
+
   /**
    *
    * @param ipOrHost The IP address or hostname of the server.
@@ -87,8 +108,60 @@ public class ConnectionParameters implements Serializable
     this.sslContext = sslContext;
 
     ssl = sslContext != null;
+    http2 = false;
+  }
+
+  /*
+   * For decoded parameters. The SSLContext isn't encoded so decoded SSL parameters don't have one (the same as after Java
+   * deserialization).
+   */
+  ConnectionParameters(boolean ssl, String ipOrHost, int port, SSLContext sslContext, boolean http2)
+  {
+    this.ssl = ssl;
+    this.ipOrHost = ipOrHost;
+    this.port = port;
+    this.sslContext = sslContext;
+    this.http2 = http2;
   }
 
+  /**
+   * The server a CONNECT request asks for a tunnel to. The request's path is the host and port (<i>example.com:443</i> or
+   * <i>[::1]:8443</i>).
+   *
+   * @param httpRequest A CONNECT request.
+   * @return The parameters of a plain connection to the host and port or <code>null</code> if the path isn't a host and
+   * port.
+   */
+  public static ConnectionParameters forConnect(HttpRequest httpRequest)
+  {
+    String authority = httpRequest.path;
+    int colon = (authority == null) ? -1 : authority.lastIndexOf(':');
+    if ((colon <= 0) || (colon == authority.length() - 1))
+    {
+      return null;
+    }
+
+    String host = authority.substring(0, colon);
+    if (host.startsWith("[") && host.endsWith("]"))
+    {
+      host = host.substring(1, host.length() - 1);
+    }
+
+    try
+    {
+      int port = Integer.parseInt(authority.substring(colon + 1));
+      return ((port > 0) && (port <= 65535) && !host.isEmpty()) ? new ConnectionParameters(host, port) : null;
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  /*
+   * The SSL context is compared by identity. Connections made with different contexts (another client certificate or
+   * trust store) can't stand in for each other.
+   */
   @Override
   public boolean equals(Object o)
   {
@@ -98,7 +171,9 @@ public class ConnectionParameters implements Serializable
     ConnectionParameters that = (ConnectionParameters) o;
 
     if (ssl != that.ssl) return false;
+    if (http2 != that.http2) return false;
     if (port != that.port) return false;
+    if (sslContext != that.sslContext) return false;
     return !(ipOrHost != null ? !ipOrHost.equals(that.ipOrHost) : that.ipOrHost != null);
   }
 
@@ -108,6 +183,8 @@ public class ConnectionParameters implements Serializable
     int result = (ssl ? 1 : 0);
     result = 31 * result + (ipOrHost != null ? ipOrHost.hashCode() : 0);
     result = 31 * result + port;
+    result = 31 * result + (http2 ? 1 : 0);
+    result = 31 * result + System.identityHashCode(sslContext);
     return result;
   }
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server connections shared by every exchange of a proxy. Connections are checked out when a request starts and released
+ * once its response has been read so the next request to the same server, from any client, can reuse them. The most
+ * recently released connection is handed out first. Idle connections are closed once they've been idle for the idle
+ * timeout and are checked with {@link #isHealthy(Object)} before being handed out again.
+ */
+abstract class ConnectionPool<Connection>
+{
+  /**
+   * @return False if the idle connection has been closed by the server (or has sent something unexpected) and can't be reused.
+   */
+  abstract boolean isHealthy(Connection connection);
+
+  abstract void closeQuitely(Connection connection);
+
+  private final int maxConnectionsPerServer;
+
+  private final long idleTimeoutMillis;
+
+  private final Map<ConnectionParameters, ServerConnections> servers = new ConcurrentHashMap<ConnectionParameters, ServerConnections>();
+
+  private volatile long lastEvictionAt = System.currentTimeMillis();
+
+  ConnectionPool(ProxyDirector proxyDirector)
+  {
+    maxConnectionsPerServer = proxyDirector.getMaxConnectionsPerServer();
+    idleTimeoutMillis = proxyDirector.getServerConnectionIdleTimeoutSeconds() * 1000l;
+  }
+
+  /**
+   * @return An idle connection to the given server or null if there are none.
+   */
+  Connection checkoutIdle(ConnectionParameters connectionParameters)
+  {
+    ServerConnections serverConnections = serverConnections(connectionParameters);
+    long now = System.currentTimeMillis();
+
+    while (true)
+    {
+      IdleConnection<Connection> idleConnection;
+      synchronized (serverConnections)
+      {
+        idleConnection = serverConnections.idle.pollFirst();
+      }
+
+      if (idleConnection == null)
+      {
+        return null;
+      }
+      else if (((now - idleConnection.idleSince) < idleTimeoutMillis) && isHealthy(idleConnection.connection))
+      {
+        return idleConnection.connection;
+      }
+      else
+      {
+        close(serverConnections, idleConnection.connection);
+      }
+    }
+  }
+
+  /**
+   * Counts a new connection about to be made to the given server. If the connection can't be made the reservation must be
+   * given back with {@link #cancelReservation(ConnectionParameters)}.
+   *
+   * @throws IOException If the server already has the max number of connections open.
+   */
+  void reserve(ConnectionParameters connectionParameters) throws IOException
+  {
+    while (true)
+    {
+      ServerConnections serverConnections = serverConnections(connectionParameters);
+      synchronized (serverConnections)
+      {
+        /*
+         * Dropped by evictIdle since it was looked up. Once counted here it stays in the map until the connection is closed.
+         */
+        if (serverConnections.removed)
+        {
+          continue;
+        }
+
+        if ((maxConnectionsPerServer > 0) && (serverConnections.open >= maxConnectionsPerServer))
+        {
+          throw new IOException("Max connections (" + maxConnectionsPerServer + ") open to " + connectionParameters.ipOrHost + ":" + connectionParameters.port + ".");
+        }
+        serverConnections.open++;
+        return;
+      }
+    }
+  }
+
+  void cancelReservation(ConnectionParameters connectionParameters)
+  {
+    ServerConnections serverConnections = serverConnections(connectionParameters);
+    synchronized (serverConnections)
+    {
+      serverConnections.open--;
+    }
+  }
+
+  /**
+   * Gives back a connection that was checked out or made under a reservation.
+   *
+   * @param reusable False if the connection can't be used for another request (the response asked for it to be closed or
+   *                 the exchange ended part way through). The connection will be closed.
+   */
+  void release(ConnectionParameters connectionParameters, Connection connection, boolean reusable)
+  {
+    ServerConnections serverConnections = serverConnections(connectionParameters);
+    if (reusable)
+    {
+      synchronized (serverConnections)
+      {
+        serverConnections.idle.addFirst(new IdleConnection<Connection>(connection, System.currentTimeMillis()));
+      }
+    }
+    else
+    {
+      close(serverConnections, connection);
+    }
+
+    long now = System.currentTimeMillis();
+    if ((now - lastEvictionAt) >= idleTimeoutMillis)
+    {
+      lastEvictionAt = now;
+      evictIdle(now);
+    }
+  }
+
+  /**
+   * Closes every idle connection.
+   */
+  void closeIdle()
+  {
+    evictIdle(Long.MAX_VALUE);
+  }
+
+  /*
+   * Idle connections are ordered most recently released first so the expired ones are at the end. Servers left with no
+   * connections are dropped from the map.
+   */
+  private void evictIdle(long now)
+  {
+    for (Map.Entry<ConnectionParameters, ServerConnections> server : servers.entrySet())
+    {
+      ServerConnections serverConnections = server.getValue();
+      while (true)
+      {
+        IdleConnection<Connection> idleConnection;
+        synchronized (serverConnections)
+        {
+          idleConnection = serverConnections.idle.peekLast();
+          if ((idleConnection == null) || ((now - idleConnection.idleSince) < idleTimeoutMillis))
+          {
+            break;
+          }
+          serverConnections.idle.pollLast();
+        }
+        close(serverConnections, idleConnection.connection);
+      }
+
+      synchronized (servers)
+      {
+        synchronized (serverConnections)
+        {
+          if ((serverConnections.open == 0) && serverConnections.idle.isEmpty())
+          {
+            serverConnections.removed = true;
+            servers.remove(server.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  private void close(ServerConnections serverConnections, Connection connection)
+  {
+    synchronized (serverConnections)
+    {
+      serverConnections.open--;
+    }
+    closeQuitely(connection);
+  }
+
+  int getServerCount()
+  {
+    return servers.size();
+  }
+
+  private ServerConnections serverConnections(ConnectionParameters connectionParameters)
+  {
+    ServerConnections serverConnections = servers.get(connectionParameters);
+    if (serverConnections == null)
+    {
+      synchronized (servers)
+      {
+        serverConnections = servers.get(connectionParameters);
+        if (serverConnections == null)
+        {
+          serverConnections = new ServerConnections();
+          servers.put(connectionParameters, serverConnections);
+        }
+      }
+    }
+    return serverConnections;
+  }
+
+  private class ServerConnections
+  {
+    final ArrayDeque<IdleConnection<Connection>> idle = new ArrayDeque<IdleConnection<Connection>>();
+
+    /**
+     * Checked out and idle.
+     */
+    int open;
+
+    /**
+     * No longer in the map, nothing can be counted on it.
+     */
+    boolean removed;
+  }
+
+  private static class IdleConnection<Connection>
+  {
+    final Connection connection;
+
+    final long idleSince;
+
+    IdleConnection(Connection connection, long idleSince)
+    {
+      this.connection = connection;
+      this.idleSince = idleSince;
+    }
+  }
+}
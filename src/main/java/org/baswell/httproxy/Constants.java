@@ -27,4 +27,6 @@ class Constants
 
   static final int AVERAGE_HEADER_LENGTH = 50;
 
+  static final byte[] CONNECTION_ESTABLISHED = ("HTTP/1.1 200 Connection Established" + CRLF + CRLF).getBytes(LineReader.ISO_8859_1);
+
 }
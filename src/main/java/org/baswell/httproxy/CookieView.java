@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cookies of a request's <i>Cookie</i> headers split once into name and value bounds. Names and values are only
+ * turned into strings when looked up. A view is only good for the headers it was built from, {@link #isCurrent(int)}
+ * tells if the headers have changed since (a header was added, removed, replaced or renamed, or a Cookie header's value
+ * set).
+ */
+class CookieView
+{
+  private final int headersVersion;
+
+  private final HttpHeader[] sources;
+
+  private final String[] sourceNames;
+
+  private final String[] sourceValues;
+
+  /*
+   * The header value each cookie is in.
+   */
+  private String[] cookieSources;
+
+  /*
+   * nameStart, nameEnd, valueStart, valueEnd of each cookie (trimmed).
+   */
+  private int[] bounds;
+
+  private String[] values;
+
+  private int size;
+
+  /**
+   * @param headersVersion The version of the request's headers (see {@link HttpMessage#headersVersion()}).
+   */
+  CookieView(int headersVersion, List<HttpHeader> cookieHeaders)
+  {
+    this.headersVersion = headersVersion;
+    sources = cookieHeaders.toArray(new HttpHeader[cookieHeaders.size()]);
+    sourceNames = new String[sources.length];
+    sourceValues = new String[sources.length];
+    cookieSources = new String[4];
+    bounds = new int[16];
+
+    for (int i = 0; i < sources.length; i++)
+    {
+      sourceNames[i] = sources[i].name;
+      String value = sourceValues[i] = sources[i].value;
+      if (value != null)
+      {
+        split(value);
+      }
+    }
+    values = new String[size];
+  }
+
+  /**
+   * @return Are the headers this view was built from (now at the given version) unchanged since this view was built.
+   */
+  boolean isCurrent(int headersVersion)
+  {
+    if (headersVersion != this.headersVersion)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < sources.length; i++)
+    {
+      if ((sources[i].name != sourceNames[i]) || (sources[i].value != sourceValues[i]))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return The position of the first cookie with the given name (case-sensitive) or -1 if there isn't one.
+   */
+  int indexOf(String name)
+  {
+    int nameLength = name.length();
+    for (int i = 0; i < size; i++)
+    {
+      int nameStart = bounds[i * 4];
+      if (((bounds[(i * 4) + 1] - nameStart) == nameLength) && cookieSources[i].regionMatches(nameStart, name, 0, nameLength))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  String name(int position)
+  {
+    return cookieSources[position].substring(bounds[position * 4], bounds[(position * 4) + 1]);
+  }
+
+  String value(int position)
+  {
+    String value = values[position];
+    if (value == null)
+    {
+      value = values[position] = cookieSources[position].substring(bounds[(position * 4) + 2], bounds[(position * 4) + 3]);
+    }
+    return value;
+  }
+
+  List<HttpCookie> toList()
+  {
+    List<HttpCookie> cookies = new ArrayList<HttpCookie>(size);
+    for (int i = 0; i < size; i++)
+    {
+      cookies.add(new HttpCookie(name(i), value(i)));
+    }
+    return cookies;
+  }
+
+  /*
+   * Same rules as HttpCookie.decodeHeaderValue: name=value pairs separated by semicolons, pairs without an equals or a name
+   * are skipped.
+   */
+  private void split(String value)
+  {
+    int length = value.length();
+    for (int start = 0; start < length;)
+    {
+      int end = HttpCookie.indexOf(value, ';', start, length);
+      int equals = HttpCookie.indexOf(value, '=', start, end);
+      if (equals < end)
+      {
+        int nameStart = skipWhitespace(value, start, equals);
+        int nameEnd = trimWhitespace(value, nameStart, equals);
+        if (nameEnd > nameStart)
+        {
+          int valueStart = skipWhitespace(value, equals + 1, end);
+          add(value, nameStart, nameEnd, valueStart, trimWhitespace(value, valueStart, end));
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private void add(String source, int nameStart, int nameEnd, int valueStart, int valueEnd)
+  {
+    if (size == cookieSources.length)
+    {
+      String[] newCookieSources = new String[size * 2];
+      System.arraycopy(cookieSources, 0, newCookieSources, 0, size);
+      cookieSources = newCookieSources;
+
+      int[] newBounds = new int[size * 8];
+      System.arraycopy(bounds, 0, newBounds, 0, size * 4);
+      bounds = newBounds;
+    }
+
+    cookieSources[size] = source;
+    int offset = size * 4;
+    bounds[offset] = nameStart;
+    bounds[offset + 1] = nameEnd;
+    bounds[offset + 2] = valueStart;
+    bounds[offset + 3] = valueEnd;
+    size++;
+  }
+
+  private static int skipWhitespace(String value, int start, int end)
+  {
+    while ((start < end) && (value.charAt(start) <= ' '))
+    {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimWhitespace(String value, int start, int end)
+  {
+    while ((end > start) && (value.charAt(end - 1) <= ' '))
+    {
+      end--;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,959 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * The disk tier of the {@link ResponseCache}. Responses are appended to segment files of a fixed size, each one memory
+ * mapped, and found through an index in memory from URL to the variants stored for it (their headers are kept in the
+ * index, their bodies stay on disk). Bodies go to clients straight from the segments, with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} or out of the mapped buffer for channels that have to
+ * encrypt them first, never through the heap.
+ * </p>
+ *
+ * <p>
+ * Everything that changes the store runs on one background thread in the order it was asked for: appending responses,
+ * recording invalidations, dropping the oldest segment once the store is full and compacting segments that are mostly
+ * dead records (the live records are copied to the segment being appended to and the old segment is deleted). Lookups
+ * don't wait on it.
+ * </p>
+ *
+ * <p>
+ * Each record starts with a magic number, written last, so a record torn by a crash is where a segment ends. On startup
+ * the segments in the directory are scanned in the order they were written, reading record headers only, to rebuild the
+ * index.
+ * </p>
+ *
+ * <p>
+ * A dropped segment's file is deleted once no hit is reading from it. Its disk space is only given back once it's
+ * unmapped too, which is done right away where the JVM allows it (see {@link Segment#unmap(MappedByteBuffer)}). Where it
+ * doesn't, the mapping stays until the buffer is garbage collected and the disk used can go past the store's bytes.
+ * </p>
+ */
+class DiskStore implements Runnable
+{
+  static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+  static final int MAX_SEGMENT_BYTES = 256 * 1024 * 1024;
+
+  private static final int MAGIC = 0x48505243;
+
+  private static final byte RESPONSE = 1;
+
+  private static final byte INVALIDATION = 2;
+
+  /*
+   * The magic number, the record type and the record length.
+   */
+  private static final int RECORD_HEADER_BYTES = 9;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  final File directory;
+
+  final long maxBytes;
+
+  final int segmentBytes;
+
+  private final long maxPendingBytes;
+
+  private final PurgeIndex purgeIndex;
+
+  /*
+   * Written only by the writer thread.
+   */
+  private final ConcurrentHashMap<String, CachedResponse[]> index = new ConcurrentHashMap<String, CachedResponse[]>();
+
+  /*
+   * URLs with an invalidation waiting on the writer thread. Their variants aren't used meanwhile.
+   */
+  private final ConcurrentHashMap<String, AtomicInteger> invalidating = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /*
+   * Oldest first, the last one is appended to. Only touched by the writer thread.
+   */
+  private final List<Segment> segments = new ArrayList<Segment>();
+
+  private long nextSegmentNumber;
+
+  private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  private volatile long usedBytes;
+
+  private volatile int entryCount;
+
+  private volatile Thread thread;
+
+  /**
+   * Opens the segments already in the directory (creating the directory if it doesn't exist) and starts the writer
+   * thread.
+   *
+   * @param maxBytes The most bytes the segment files can take.
+   * @param purgeIndex Where the responses indexed are added (and removed from).
+   */
+  DiskStore(File directory, long maxBytes, PurgeIndex purgeIndex) throws IOException
+  {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.purgeIndex = purgeIndex;
+    segmentBytes = (int)Math.min(MAX_SEGMENT_BYTES, Math.max(MIN_SEGMENT_BYTES, maxBytes / 16));
+    maxPendingBytes = Math.max(segmentBytes, 64 * 1024 * 1024);
+
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Unable to create directory " + directory + ".");
+    }
+
+    rebuild();
+    roll();
+    updateStats();
+
+    thread = new Thread(this, DiskStore.class.getSimpleName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  long getUsedBytes()
+  {
+    return usedBytes;
+  }
+
+  int getEntryCount()
+  {
+    return entryCount;
+  }
+
+  /**
+   * @return The variants stored for the given URL or null.
+   */
+  CachedResponse[] get(String url)
+  {
+    return invalidating.containsKey(url) ? null : index.get(url);
+  }
+
+  /**
+   * Queues the given response to be appended. It's dropped if too many bytes are already waiting to be written.
+   */
+  void append(final CacheFill fill, final byte[] header, final byte[] body)
+  {
+    final int recordBytes = responseRecordBytes(fill.key, fill.url, fill.varyNames, header, body.length);
+    if ((thread == null) || (recordBytes > segmentBytes))
+    {
+      return;
+    }
+    else if (pendingBytes.addAndGet(recordBytes) > maxPendingBytes)
+    {
+      pendingBytes.addAndGet(-recordBytes);
+      return;
+    }
+
+    tasks.add(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          appendResponse(fill, header, body, recordBytes);
+        }
+        finally
+        {
+          pendingBytes.addAndGet(-recordBytes);
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes the variants stored for the given URL. They aren't used from now on, the invalidation is recorded on disk
+   * after whatever was queued before it.
+   */
+  void invalidate(final String url)
+  {
+    if ((thread == null) || (!index.containsKey(url) && (pendingBytes.get() == 0)))
+    {
+      return;
+    }
+
+    AtomicInteger count = invalidating.get(url);
+    if (count == null)
+    {
+      AtomicInteger newCount = new AtomicInteger();
+      count = invalidating.putIfAbsent(url, newCount);
+      if (count == null)
+      {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+
+    tasks.add(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          if (unindex(url))
+          {
+            appendInvalidation(url);
+          }
+        }
+        finally
+        {
+          AtomicInteger count = invalidating.get(url);
+          if (count.decrementAndGet() == 0)
+          {
+            invalidating.remove(url, count);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Marks the variants stored for the given URL stale (a soft purge). The purge is recorded on disk after whatever was
+   * queued before it, like an invalidation, so they don't come back fresh after a restart.
+   */
+  void purge(final String url, final long now)
+  {
+    if (thread == null)
+    {
+      return;
+    }
+
+    markPurged(url, now);
+    tasks.add(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        /*
+         * Again on the writer thread, for variants copied forward by a compaction meanwhile.
+         */
+        if (markPurged(url, now))
+        {
+          appendInvalidation(url);
+        }
+      }
+    });
+  }
+
+  /**
+   * Drops every stored response.
+   */
+  void clear()
+  {
+    tasks.add(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (CachedResponse[] variants : index.values())
+        {
+          for (CachedResponse variant : variants)
+          {
+            purgeIndex.remove(variant);
+          }
+        }
+        index.clear();
+        while (!segments.isEmpty())
+        {
+          segments.remove(0).retire();
+        }
+        roll();
+      }
+    });
+  }
+
+  /**
+   * Stops the writer thread once what's queued has been written and flushes the segments. The files are kept for the
+   * next start.
+   */
+  void close()
+  {
+    Thread thread = this.thread;
+    if (thread == null)
+    {
+      return;
+    }
+
+    this.thread = null;
+    tasks.add(new Runnable()
+    {
+      @Override
+      public void run()
+      {}
+    });
+
+    try
+    {
+      thread.join();
+    }
+    catch (InterruptedException e)
+    {}
+
+    for (Segment segment : segments)
+    {
+      segment.mapped.force();
+      segment.close();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    while (thread == Thread.currentThread())
+    {
+      try
+      {
+        tasks.take().run();
+        maintain();
+      }
+      catch (InterruptedException e)
+      {}
+      catch (RuntimeException e)
+      {
+        /*
+         * A segment that couldn't be created. Whatever the task was is lost, it's only a cache.
+         */
+      }
+    }
+
+    Runnable task;
+    while ((task = tasks.poll()) != null)
+    {
+      task.run();
+      maintain();
+    }
+  }
+
+  private void appendResponse(CacheFill fill, byte[] header, byte[] body, int recordBytes)
+  {
+    Segment segment = segmentFor(recordBytes);
+    int recordPosition = segment.size;
+    ByteBuffer record = segment.mapped.duplicate();
+    record.position(recordPosition + 4);
+    record.put(RESPONSE);
+    record.putInt(recordBytes);
+    record.putLong(fill.responseTime);
+    record.putLong(fill.initialAge);
+    record.putLong(fill.freshnessLifetime);
+    record.putInt(fill.response.statusCode);
+    putString(record, fill.key);
+    putString(record, fill.url);
+    putString(record, (fill.varyNames == null) ? null : join(fill.varyNames));
+    record.putInt(header.length);
+    record.put(header);
+    record.putInt(body.length);
+    int bodyPosition = record.position();
+    record.put(body);
+    segment.mapped.putInt(recordPosition, MAGIC);
+    segment.size += recordBytes;
+
+    index(new CachedResponse(fill.key, fill.url, fill.response.statusCode, header, null, body.length, fill.responseTime, fill.initialAge, fill.freshnessLifetime, fill.varyNames,
+        segment, recordPosition, recordBytes, bodyPosition));
+  }
+
+  private void appendInvalidation(String url)
+  {
+    byte[] urlBytes = url.getBytes(UTF_8);
+    int recordBytes = RECORD_HEADER_BYTES + 4 + urlBytes.length;
+    Segment segment = segmentFor(recordBytes);
+    int recordPosition = segment.size;
+    ByteBuffer record = segment.mapped.duplicate();
+    record.position(recordPosition + 4);
+    record.put(INVALIDATION);
+    record.putInt(recordBytes);
+    record.putInt(urlBytes.length);
+    record.put(urlBytes);
+    segment.mapped.putInt(recordPosition, MAGIC);
+    segment.size += recordBytes;
+    segment.invalidations.add(url);
+  }
+
+  /*
+   * The segment being appended to if the record fits, otherwise a new one.
+   */
+  private Segment segmentFor(int recordBytes)
+  {
+    Segment segment = segments.get(segments.size() - 1);
+    if (segment.size + recordBytes > segment.mapped.capacity())
+    {
+      segment.mapped.force();
+      segment = roll();
+    }
+    return segment;
+  }
+
+  private Segment roll()
+  {
+    try
+    {
+      Segment segment = new Segment(new File(directory, SEGMENT_PREFIX + nextSegmentNumber++), segmentBytes);
+      segments.add(segment);
+      return segment;
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+   * Drops the oldest segments while the store is over its bytes, then compacts the oldest segment (not the one being
+   * appended to) that's more than half dead records.
+   */
+  private void maintain()
+  {
+    while ((segments.size() > 1) && ((long)segments.size() * segmentBytes > maxBytes))
+    {
+      drop(segments.get(0));
+    }
+
+    for (int i = 0; i < segments.size() - 1; i++)
+    {
+      Segment segment = segments.get(i);
+      if (segment.liveBytes * 2 < segment.size)
+      {
+        compact(segment, i > 0);
+        break;
+      }
+    }
+
+    updateStats();
+  }
+
+  private void drop(Segment segment)
+  {
+    for (CachedResponse response : segment.responses)
+    {
+      unindex(response);
+    }
+    segments.remove(segment);
+    segment.retire();
+  }
+
+  /*
+   * Live responses that are still fresh are copied forward, mapped buffer to mapped buffer. Invalidations only need to be
+   * kept if there are older segments they could apply to.
+   */
+  private void compact(Segment segment, boolean olderSegments)
+  {
+    long now = System.currentTimeMillis();
+    for (CachedResponse response : segment.responses)
+    {
+      if (isIndexed(response) && response.isFresh(now))
+      {
+        Segment target = segmentFor(response.recordBytes);
+        int recordPosition = target.size;
+        /*
+         * Everything but the magic number first, it's written last like for an appended record.
+         */
+        ByteBuffer record = segment.mapped.duplicate();
+        record.limit(response.recordPosition + response.recordBytes);
+        record.position(response.recordPosition + 4);
+        ByteBuffer copy = target.mapped.duplicate();
+        copy.position(recordPosition + 4);
+        copy.put(record);
+        target.mapped.putInt(recordPosition, MAGIC);
+        target.size += response.recordBytes;
+
+        index(new CachedResponse(response.key, response.url, response.statusCode, response.header, null, response.bodyLength, response.responseTime, response.initialAge,
+            response.freshnessLifetime, response.varyNames, target, recordPosition, response.recordBytes, recordPosition + (response.bodyPosition - response.recordPosition)));
+      }
+    }
+
+    if (olderSegments)
+    {
+      for (String url : segment.invalidations)
+      {
+        appendInvalidation(url);
+      }
+    }
+
+    drop(segment);
+  }
+
+  /*
+   * The response replaces the stored variant with the same key. Variants stored with other Vary names are dropped, the
+   * URL doesn't vary on them anymore.
+   */
+  private void index(CachedResponse response)
+  {
+    CachedResponse[] variants = index.get(response.url);
+    List<CachedResponse> kept = new ArrayList<CachedResponse>();
+    if (variants != null)
+    {
+      for (CachedResponse variant : variants)
+      {
+        if (!variant.key.equals(response.key) && Arrays.equals(variant.varyNames, response.varyNames))
+        {
+          kept.add(variant);
+        }
+        else
+        {
+          variant.segment.liveBytes -= variant.recordBytes;
+          purgeIndex.remove(variant);
+        }
+      }
+    }
+    kept.add(response);
+    index.put(response.url, kept.toArray(new CachedResponse[kept.size()]));
+    purgeIndex.add(response);
+
+    response.segment.responses.add(response);
+    response.segment.liveBytes += response.recordBytes;
+  }
+
+  /*
+   * True if there were variants stored for the URL.
+   */
+  private boolean unindex(String url)
+  {
+    CachedResponse[] variants = index.remove(url);
+    if (variants == null)
+    {
+      return false;
+    }
+
+    for (CachedResponse variant : variants)
+    {
+      variant.segment.liveBytes -= variant.recordBytes;
+      purgeIndex.remove(variant);
+    }
+    return true;
+  }
+
+  private void unindex(CachedResponse response)
+  {
+    CachedResponse[] variants = index.get(response.url);
+    if ((variants == null) || !Arrays.asList(variants).contains(response))
+    {
+      return;
+    }
+
+    response.segment.liveBytes -= response.recordBytes;
+    purgeIndex.remove(response);
+    if (variants.length == 1)
+    {
+      index.remove(response.url);
+    }
+    else
+    {
+      List<CachedResponse> kept = new ArrayList<CachedResponse>(Arrays.asList(variants));
+      kept.remove(response);
+      index.put(response.url, kept.toArray(new CachedResponse[kept.size()]));
+    }
+  }
+
+  /*
+   * True if there are variants stored for the URL.
+   */
+  private boolean markPurged(String url, long now)
+  {
+    CachedResponse[] variants = index.get(url);
+    if (variants == null)
+    {
+      return false;
+    }
+
+    for (CachedResponse variant : variants)
+    {
+      variant.purge(now);
+    }
+    return true;
+  }
+
+  private boolean isIndexed(CachedResponse response)
+  {
+    CachedResponse[] variants = index.get(response.url);
+    return (variants != null) && Arrays.asList(variants).contains(response);
+  }
+
+  private void updateStats()
+  {
+    long used = 0;
+    for (Segment segment : segments)
+    {
+      used += segment.size;
+    }
+    usedBytes = used;
+
+    int entries = 0;
+    for (CachedResponse[] variants : index.values())
+    {
+      entries += variants.length;
+    }
+    entryCount = entries;
+  }
+
+  /*
+   * Scans the segments left in the directory, oldest first. A segment ends at its first record without the magic number
+   * (or that doesn't fit in it).
+   */
+  private void rebuild() throws IOException
+  {
+    File[] files = directory.listFiles();
+    List<File> segmentFiles = new ArrayList<File>();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        if (file.getName().startsWith(SEGMENT_PREFIX) && (segmentNumber(file) >= 0))
+        {
+          segmentFiles.add(file);
+        }
+      }
+    }
+
+    Collections.sort(segmentFiles, new Comparator<File>()
+    {
+      @Override
+      public int compare(File file1, File file2)
+      {
+        return Long.compare(segmentNumber(file1), segmentNumber(file2));
+      }
+    });
+
+    for (File file : segmentFiles)
+    {
+      Segment segment = new Segment(file, 0);
+      nextSegmentNumber = segmentNumber(file) + 1;
+      segments.add(segment);
+
+      ByteBuffer records = segment.mapped.duplicate();
+      int position = 0;
+      try
+      {
+        while ((position + RECORD_HEADER_BYTES <= records.capacity()) && (records.getInt(position) == MAGIC))
+        {
+          byte type = records.get(position + 4);
+          int recordBytes = records.getInt(position + 5);
+          if ((recordBytes < RECORD_HEADER_BYTES) || (recordBytes > records.capacity() - position))
+          {
+            break;
+          }
+
+          records.limit(position + recordBytes);
+          records.position(position + RECORD_HEADER_BYTES);
+          if (type == RESPONSE)
+          {
+            long responseTime = records.getLong();
+            long initialAge = records.getLong();
+            long freshnessLifetime = records.getLong();
+            int statusCode = records.getInt();
+            String key = getString(records);
+            String url = getString(records);
+            String vary = getString(records);
+            byte[] header = new byte[records.getInt()];
+            records.get(header);
+            int bodyLength = records.getInt();
+            int bodyPosition = records.position();
+            if (bodyPosition + bodyLength != position + recordBytes)
+            {
+              break;
+            }
+
+            index(new CachedResponse(key, url, statusCode, header, null, bodyLength, responseTime, initialAge, freshnessLifetime, (vary == null) ? null : vary.split("\n"),
+                segment, position, recordBytes, bodyPosition));
+          }
+          else if (type == INVALIDATION)
+          {
+            String url = getString(records);
+            unindex(url);
+            segment.invalidations.add(url);
+          }
+          records.limit(records.capacity());
+          position += recordBytes;
+        }
+      }
+      catch (RuntimeException e)
+      {
+        /*
+         * A corrupt record, the segment ends before it.
+         */
+      }
+      segment.size = position;
+    }
+  }
+
+  private static long segmentNumber(File file)
+  {
+    try
+    {
+      return Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length()));
+    }
+    catch (NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
+  private static int responseRecordBytes(String key, String url, String[] varyNames, byte[] header, int bodyLength)
+  {
+    return RECORD_HEADER_BYTES + 28 + stringBytes(key) + stringBytes(url) + ((varyNames == null) ? 4 : stringBytes(join(varyNames))) + 4 + header.length + 4 + bodyLength;
+  }
+
+  private static int stringBytes(String value)
+  {
+    return 4 + value.getBytes(UTF_8).length;
+  }
+
+  private static void putString(ByteBuffer buffer, String value)
+  {
+    if (value == null)
+    {
+      buffer.putInt(-1);
+    }
+    else
+    {
+      byte[] bytes = value.getBytes(UTF_8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  private static String getString(ByteBuffer buffer)
+  {
+    int length = buffer.getInt();
+    if (length < 0)
+    {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static String join(String[] names)
+  {
+    StringBuilder joined = new StringBuilder();
+    for (String name : names)
+    {
+      if (joined.length() > 0)
+      {
+        joined.append('\n');
+      }
+      joined.append(name);
+    }
+    return joined.toString();
+  }
+
+  /**
+   * A segment file, mapped whole. Readers retain it while they write a body from it, once it's retired (dropped from the
+   * store) the file is closed and deleted when the last reader releases it.
+   */
+  static class Segment
+  {
+    final File file;
+
+    final FileChannel channel;
+
+    final MappedByteBuffer mapped;
+
+    /*
+     * The rest is only touched by the writer thread.
+     */
+    int size;
+
+    long liveBytes;
+
+    final List<CachedResponse> responses = new ArrayList<CachedResponse>();
+
+    final List<String> invalidations = new ArrayList<String>();
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param bytes The size of a new segment file, 0 to open an existing file at its size.
+     */
+    Segment(File file, int bytes) throws IOException
+    {
+      this.file = file;
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      if (bytes > 0)
+      {
+        randomAccessFile.setLength(bytes);
+      }
+      channel = randomAccessFile.getChannel();
+      mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+    }
+
+    /**
+     * @return False if the segment has been retired and its file may be gone.
+     */
+    boolean retain()
+    {
+      while (true)
+      {
+        int count = references.get();
+        if (count == 0)
+        {
+          return false;
+        }
+        else if (references.compareAndSet(count, count + 1))
+        {
+          return true;
+        }
+      }
+    }
+
+    void release()
+    {
+      if (references.decrementAndGet() == 0)
+      {
+        close();
+        unmap(mapped);
+        file.delete();
+      }
+    }
+
+    void retire()
+    {
+      release();
+    }
+
+    void close()
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e)
+      {}
+    }
+
+    /**
+     * Unmaps the buffer now instead of when it's garbage collected, through sun.misc.Unsafe.invokeCleaner (Java 9+) or
+     * the buffer's cleaner (Java 7 and 8). Nothing can touch the buffer after, a retired segment is only unmapped once
+     * the last reader has released it. Does nothing if neither is available.
+     */
+    static void unmap(MappedByteBuffer buffer)
+    {
+      try
+      {
+        if (UNSAFE_INVOKE_CLEANER != null)
+        {
+          UNSAFE_INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        }
+        else if (BUFFER_CLEANER != null)
+        {
+          Object cleaner = BUFFER_CLEANER.invoke(buffer);
+          if (cleaner != null)
+          {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+          }
+        }
+      }
+      catch (Exception e)
+      {}
+    }
+
+    private static final Object UNSAFE;
+
+    private static final Method UNSAFE_INVOKE_CLEANER;
+
+    private static final Method BUFFER_CLEANER;
+
+    static
+    {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      Method bufferCleaner = null;
+      try
+      {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+      }
+      catch (Exception e)
+      {
+        invokeCleaner = null;
+        try
+        {
+          bufferCleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+          bufferCleaner.setAccessible(true);
+        }
+        catch (Exception ce)
+        {}
+      }
+      UNSAFE = unsafe;
+      UNSAFE_INVOKE_CLEANER = invokeCleaner;
+      BUFFER_CLEANER = bufferCleaner;
+    }
+
+    /*
+     * Channels that encrypt (SSL) are written from the mapped buffer, the JDK would copy the file through a heap buffer
+     * for them. The others get the file's pages straight from the kernel.
+     */
+    long write(WritableByteChannel target, long position, long length) throws IOException
+    {
+      if (target instanceof WrappedSocketChannel)
+      {
+        ByteBuffer body = mapped.duplicate();
+        body.limit((int)(position + length));
+        body.position((int)position);
+        return target.write(body);
+      }
+      else
+      {
+        return channel.transferTo(position, length, target);
+      }
+    }
+
+    void write(OutputStream outputStream, byte[] buffer, int position, int length) throws IOException
+    {
+      ByteBuffer body = mapped.duplicate();
+      body.limit(position + length);
+      body.position(position);
+      while (body.hasRemaining())
+      {
+        int read = Math.min(buffer.length, body.remaining());
+        body.get(buffer, 0, read);
+        outputStream.write(buffer, 0, read);
+      }
+    }
+  }
+}
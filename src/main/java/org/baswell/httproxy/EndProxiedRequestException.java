@@ -22,7 +22,8 @@ import static org.baswell.httproxy.Constants.*;
 
 /**
  * <p>
- * When thrown from {@link ProxyDirector#onRequestStart(HttpRequest)} methods the response code will be returned to the client and the connection closed.
+ * When thrown from {@link ProxyDirector#onRequestStart(HttpRequest)} or {@link ProxyDirector#onConnectRequest(HttpRequest)}
+ * methods the response code will be returned to the client and the connection closed.
  * </p>
  */
 public class EndProxiedRequestException extends Exception
@@ -83,6 +84,17 @@ public class EndProxiedRequestException extends Exception
    */
   public static EndProxiedRequestException INTERNAL_SERVER_ERROR = new EndProxiedRequestException(500, "Internal Server Error");
 
+  /**
+   * <p>
+   * Shortcut for returning 502.
+   * </p>
+   *
+   * <pre>
+   * throw ReturnHttpResponseStatus.BAD_GATEWAY;
+   * </pre>
+   */
+  public static EndProxiedRequestException BAD_GATEWAY = new EndProxiedRequestException(502, "Bad Gateway");
+
   /**
    * <p>Shortcut for returning redirect 301 to the given uri.</p>
    *
@@ -25,18 +25,27 @@ class ExchangeStreamDispatcher
 
   private final KeepAliveTimeoutReaper keepAliveTimeoutReaper;
 
-  ExchangeStreamDispatcher(IOProxyDirector proxyDirector)
+  private final SocketPool socketPool;
+
+  /*
+   * Runs the request and response loops instead of the director's IO thread pool when not null.
+   */
+  private final ExecutorService virtualThreadExecutor;
+
+  ExchangeStreamDispatcher(IOProxyDirector proxyDirector, boolean virtualThreads)
   {
     this.proxyDirector = proxyDirector;
+    virtualThreadExecutor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor() : null;
     keepAliveTimeoutReaper = new KeepAliveTimeoutReaper(proxyDirector);
+    socketPool = new SocketPool(proxyDirector);
   }
 
   void dispatch(Socket socket)
   {
-    ExecutorService executorService = proxyDirector.getIOThreadPool();
+    ExecutorService executorService = (virtualThreadExecutor == null) ? proxyDirector.getIOThreadPool() : virtualThreadExecutor;
     try
     {
-      final PipedExchangeStream exchangeStream = new PipedExchangeStream(socket, proxyDirector);
+      final PipedExchangeStream exchangeStream = new PipedExchangeStream(socket, proxyDirector, socketPool);
 
       executorService.execute(new Runnable()
       {
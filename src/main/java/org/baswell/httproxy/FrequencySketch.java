@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+/**
+ * A count-min sketch of how often keys have been seen lately, the frequency filter of W-TinyLFU. Each long in the table
+ * holds sixteen 4-bit counters. A key's four counters are in four different longs, chosen by four hashes, in the same
+ * group of four counters within each long. The estimate is the smallest of the four (at most 15).
+ * <p>
+ * Once as many increments as ten times the table length have been counted every counter is halved, so the sketch follows
+ * recent popularity and keys that were hot long ago fade out.
+ * <p>
+ * Not thread-safe.
+ */
+class FrequencySketch
+{
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private static final int MAX_TABLE_LENGTH = 1 << 22;
+
+  private long[] table;
+
+  private int tableMask;
+
+  private int sampleSize;
+
+  private int size;
+
+  FrequencySketch(int expectedKeys)
+  {
+    ensureCapacity(expectedKeys);
+  }
+
+  /**
+   * Grows the table (forgetting what's been counted) if it's too small for the given number of keys.
+   */
+  void ensureCapacity(int expectedKeys)
+  {
+    int length = tableLength(expectedKeys);
+    if ((table == null) || (table.length < length))
+    {
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = 10 * length;
+      size = 0;
+    }
+  }
+
+  int tableLength()
+  {
+    return table.length;
+  }
+
+  /**
+   * @return The estimated number of times the key with the given hash has been seen lately (0 to 15).
+   */
+  int frequency(int keyHash)
+  {
+    int hash = spread(keyHash);
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++)
+    {
+      int offset = (start + i) << 2;
+      int count = (int)((table[indexOf(hash, i)] >>> offset) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts a sighting of the key with the given hash.
+   */
+  void increment(int keyHash)
+  {
+    int hash = spread(keyHash);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++)
+    {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+
+    if (added && (++size == sampleSize))
+    {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter)
+  {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask)
+    {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Halves every counter. The counters that were odd lose their low bit, which is taken out of the size too.
+   */
+  private void reset()
+  {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++)
+    {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size - (odd >>> 2)) >>> 1;
+  }
+
+  private int indexOf(int hash, int i)
+  {
+    long index = (hash + SEEDS[i]) * SEEDS[i];
+    index += index >>> 32;
+    return ((int)index) & tableMask;
+  }
+
+  /*
+   * String hash codes cluster, this spreads them over all the bits.
+   */
+  private static int spread(int x)
+  {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+  private static int tableLength(int expectedKeys)
+  {
+    int length = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, MAX_TABLE_LENGTH)) - 1) << 1;
+    return Math.min(length, MAX_TABLE_LENGTH);
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Case-insensitive index of a message's headers by name. Open addressing over the lowercase hash of each distinct name,
+ * with the headers that share a name chained in list order.
+ * </p>
+ *
+ * <p>
+ * The index is brought up to date on each lookup. Headers appended to the list since the last lookup are added to the
+ * index, any other change to the list, or a rename through {@link HttpHeader#setName(String)}, rebuilds it. Both are
+ * counters so the check doesn't depend on the number of headers. A name assigned directly to {@link HttpHeader#name}
+ * isn't counted, so the position a lookup finds is also checked to still hold the header and name instance it was
+ * indexed with and the index is rebuilt if it doesn't.
+ * </p>
+ */
+class HeaderIndex
+{
+  private final HeaderList list;
+
+  /*
+   * Per slot: the list position + 1 of the first header with the slot's name, 0 if empty.
+   */
+  private int[] slots = new int[0];
+
+  private int[] slotHashes = new int[0];
+
+  /*
+   * Per slot: the list position of the last header with the slot's name (the tail of its chain).
+   */
+  private int[] slotTails = new int[0];
+
+  private int usedSlots;
+
+  /*
+   * Per list position: the position + 1 of the next header with the same name, 0 if it's the last one.
+   */
+  private int[] next = new int[0];
+
+  /*
+   * Per list position: the header and its name when indexed.
+   */
+  private HttpHeader[] headers = new HttpHeader[0];
+
+  private String[] names = new String[0];
+
+  private int size;
+
+  private int indexedModifications = -1;
+
+  private int indexedAppends;
+
+  private int indexedRenames;
+
+  /*
+   * Changes each time the index does.
+   */
+  private int version;
+
+  HeaderIndex(HeaderList list)
+  {
+    this.list = list;
+  }
+
+  /**
+   * @return The list position of the first header with the given name or -1 if there isn't one.
+   */
+  int first(String name)
+  {
+    update();
+    int hash = WellKnownHeaders.caseInsensitiveHash(name);
+    int position = find(name, hash);
+    if ((position >= 0) && !isCurrent(position))
+    {
+      rebuild();
+      position = find(name, hash);
+    }
+    return position;
+  }
+
+  /**
+   * @return A number that changes whenever the headers might have (a header was added, removed, replaced or renamed with
+   * {@link HttpHeader#setName(String)}).
+   */
+  int version()
+  {
+    update();
+    return version;
+  }
+
+  /**
+   * @param position A position returned from {@link #first(String)} or this method.
+   * @return The list position of the next header with the same name or -1 if there isn't one.
+   */
+  int next(int position)
+  {
+    return next[position] - 1;
+  }
+
+  private int find(String name, int hash)
+  {
+    if (usedSlots == 0)
+    {
+      return -1;
+    }
+
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+    {
+      if (slotHashes[slot] == hash)
+      {
+        int position = slots[slot] - 1;
+        String indexedName = names[position];
+        if ((indexedName == name) || ((indexedName != null) && indexedName.equalsIgnoreCase(name)))
+        {
+          return position;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * True if the position still holds the header and the name it was indexed with.
+   */
+  private boolean isCurrent(int position)
+  {
+    HttpHeader header = headers[position];
+    return (list.get(position) == header) && (header.name == names[position]);
+  }
+
+  private void update()
+  {
+    int modifications = list.modifications();
+    int renames = HttpHeader.renames;
+    int appended = list.size() - size;
+    if ((modifications == indexedModifications) && (renames == indexedRenames))
+    {
+      return;
+    }
+    else if ((indexedModifications >= 0) && (renames == indexedRenames) && (appended > 0) && ((modifications - indexedModifications) == appended)
+        && ((list.appends() - indexedAppends) == appended))
+    {
+      for (int position = size; position < list.size(); position++)
+      {
+        append(list.get(position));
+      }
+      version++;
+      indexedModifications = modifications;
+      indexedAppends = list.appends();
+    }
+    else
+    {
+      rebuild();
+    }
+  }
+
+  private void rebuild()
+  {
+    int listSize = list.size();
+    int capacity = 8;
+    while (capacity < (listSize * 2))
+    {
+      capacity <<= 1;
+    }
+
+    if (slots.length == capacity)
+    {
+      Arrays.fill(slots, 0);
+    }
+    else
+    {
+      slots = new int[capacity];
+      slotHashes = new int[capacity];
+      slotTails = new int[capacity];
+    }
+
+    if (headers.length < listSize)
+    {
+      headers = new HttpHeader[capacity];
+      names = new String[capacity];
+      next = new int[capacity];
+    }
+
+    usedSlots = 0;
+    size = 0;
+    version++;
+    indexedModifications = list.modifications();
+    indexedAppends = list.appends();
+    indexedRenames = HttpHeader.renames;
+    for (int position = 0; position < listSize; position++)
+    {
+      append(list.get(position));
+    }
+  }
+
+  private void append(HttpHeader header)
+  {
+    if ((size == headers.length) || ((usedSlots + 1) * 2 > slots.length))
+    {
+      grow();
+    }
+
+    int position = size++;
+    String name = header.name;
+    headers[position] = header;
+    names[position] = name;
+    next[position] = 0;
+
+    int hash = WellKnownHeaders.caseInsensitiveHash(name);
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    for (; slots[slot] != 0; slot = (slot + 1) & mask)
+    {
+      if (slotHashes[slot] == hash)
+      {
+        String firstName = names[slots[slot] - 1];
+        if ((firstName == name) || ((firstName != null) && firstName.equalsIgnoreCase(name)))
+        {
+          next[slotTails[slot]] = position + 1;
+          slotTails[slot] = position;
+          return;
+        }
+      }
+    }
+
+    slots[slot] = position + 1;
+    slotHashes[slot] = hash;
+    slotTails[slot] = position;
+    usedSlots++;
+  }
+
+  /*
+   * Doubles the table and the per position arrays then re-adds the headers already indexed.
+   */
+  private void grow()
+  {
+    int indexed = size;
+    HttpHeader[] indexedHeaders = headers;
+
+    int capacity = Math.max(8, slots.length * 2);
+    slots = new int[capacity];
+    slotHashes = new int[capacity];
+    slotTails = new int[capacity];
+    headers = new HttpHeader[capacity];
+    names = new String[capacity];
+    next = new int[capacity];
+    usedSlots = 0;
+    size = 0;
+
+    for (int position = 0; position < indexed; position++)
+    {
+      append(indexedHeaders[position]);
+    }
+  }
+}
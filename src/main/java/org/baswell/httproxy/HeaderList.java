@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list behind {@link HttpMessage#headers}. Exposes the list's modification count so {@link HeaderIndex} can tell
+ * when the list has been changed, and whether every change since it last looked was an append.
+ */
+class HeaderList extends ArrayList<HttpHeader>
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Incremented (along with the modification count) by each {@link #add(HttpHeader)}.
+   */
+  private int appends;
+
+  int modifications()
+  {
+    return modCount;
+  }
+
+  int appends()
+  {
+    return appends;
+  }
+
+  @Override
+  public boolean add(HttpHeader header)
+  {
+    boolean added = super.add(header);
+    appends++;
+    return added;
+  }
+
+  /*
+   * ArrayList doesn't count replacing an element as a modification.
+   */
+  @Override
+  public HttpHeader set(int index, HttpHeader header)
+  {
+    HttpHeader replaced = super.set(index, header);
+    modCount++;
+    return replaced;
+  }
+
+  /*
+   * ArrayList's sub lists change its array directly, so replacing an element through one isn't counted either. This view
+   * goes through the methods of this list instead.
+   */
+  @Override
+  public List<HttpHeader> subList(int fromIndex, int toIndex)
+  {
+    return new AbstractList<HttpHeader>()
+    {
+      @Override
+      public HttpHeader get(int index)
+      {
+        return HeaderList.this.get(index);
+      }
+
+      @Override
+      public int size()
+      {
+        return HeaderList.this.size();
+      }
+
+      @Override
+      public HttpHeader set(int index, HttpHeader header)
+      {
+        return HeaderList.this.set(index, header);
+      }
+
+      @Override
+      public void add(int index, HttpHeader header)
+      {
+        HeaderList.this.add(index, header);
+      }
+
+      @Override
+      public HttpHeader remove(int index)
+      {
+        return HeaderList.this.remove(index);
+      }
+    }.subList(fromIndex, toIndex);
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.List;
+
+import static org.baswell.httproxy.Hpack.*;
+
+/**
+ * Decodes the header blocks (RFC 7541) received on one HTTP/2 connection. The dynamic table is shared by every header
+ * block on the connection so every block must be decoded, in the order received, even for streams that are no longer
+ * wanted.
+ */
+class HpackDecoder
+{
+  /*
+   * The limit the table size updates from the server can't go past (our SETTINGS_HEADER_TABLE_SIZE).
+   */
+  private final int maxTableSize;
+
+  private int tableSize;
+
+  private int size;
+
+  /*
+   * The dynamic table as a ring, newest entry at first + count - 1.
+   */
+  private String[] names = new String[16];
+
+  private String[] values = new String[16];
+
+  private int first;
+
+  private int count;
+
+  private byte[] block;
+
+  private int position;
+
+  private int end;
+
+  HpackDecoder(int maxTableSize)
+  {
+    this.maxTableSize = tableSize = maxTableSize;
+  }
+
+  /**
+   * Adds the header fields of the given block to the list. Names are as sent (lowercase), pseudo-header fields included.
+   */
+  void decode(byte[] block, int offset, int length, List<HttpHeader> headers) throws Http2Exception
+  {
+    this.block = block;
+    position = offset;
+    end = offset + length;
+    boolean fieldDecoded = false;
+
+    try
+    {
+      while (position < end)
+      {
+        int b = block[position] & 0xff;
+        if ((b & 0x80) != 0)
+        {
+          int index = readInteger(7);
+          headers.add(new HttpHeader(name(index), value(index)));
+          fieldDecoded = true;
+        }
+        else if ((b & 0x40) != 0)
+        {
+          int index = readInteger(6);
+          String name = (index == 0) ? readString() : name(index);
+          String value = readString();
+          headers.add(new HttpHeader(name, value));
+          insert(name, value);
+          fieldDecoded = true;
+        }
+        else if ((b & 0x20) != 0)
+        {
+          if (fieldDecoded)
+          {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Dynamic table size update after a header field.");
+          }
+
+          int newSize = readInteger(5);
+          if (newSize > maxTableSize)
+          {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Dynamic table size update of " + newSize + " over the limit of " + maxTableSize + ".");
+          }
+          tableSize = newSize;
+          evict(0);
+        }
+        else
+        {
+          /*
+           * Literal without indexing (0000) or never indexed (0001). Forwarded the same either way.
+           */
+          int index = readInteger(4);
+          String name = (index == 0) ? readString() : name(index);
+          headers.add(new HttpHeader(name, readString()));
+          fieldDecoded = true;
+        }
+      }
+    }
+    finally
+    {
+      this.block = null;
+    }
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  private int readInteger(int prefixBits) throws Http2Exception
+  {
+    int maxPrefix = (1 << prefixBits) - 1;
+    int value = block[position++] & maxPrefix;
+    if (value < maxPrefix)
+    {
+      return value;
+    }
+
+    for (int shift = 0; ; shift += 7)
+    {
+      if (position == end)
+      {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated integer.");
+      }
+
+      int b = block[position++] & 0xff;
+      long next = value + ((long)(b & 0x7f) << shift);
+      if ((shift > 28) || (next > Integer.MAX_VALUE))
+      {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow.");
+      }
+      value = (int)next;
+
+      if ((b & 0x80) == 0)
+      {
+        return value;
+      }
+    }
+  }
+
+  private String readString() throws Http2Exception
+  {
+    if (position == end)
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string literal.");
+    }
+
+    boolean huffman = (block[position] & 0x80) != 0;
+    int length = readInteger(7);
+    if (length > (end - position))
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String literal past the end of the header block.");
+    }
+
+    String value = huffman ? huffmanDecode(block, position, length) : new String(block, position, length, LineReader.ISO_8859_1);
+    position += length;
+    return value;
+  }
+
+  private String name(int index) throws Http2Exception
+  {
+    if ((index > 0) && (index <= STATIC_NAMES.length))
+    {
+      return STATIC_NAMES[index - 1];
+    }
+    return names[dynamicPosition(index)];
+  }
+
+  private String value(int index) throws Http2Exception
+  {
+    if ((index > 0) && (index <= STATIC_VALUES.length))
+    {
+      return STATIC_VALUES[index - 1];
+    }
+    return values[dynamicPosition(index)];
+  }
+
+  private int dynamicPosition(int index) throws Http2Exception
+  {
+    int dynamicIndex = index - STATIC_NAMES.length - 1;
+    if ((index == 0) || (dynamicIndex >= count))
+    {
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index " + index + ".");
+    }
+    return (first + count - 1 - dynamicIndex) & (names.length - 1);
+  }
+
+  private void insert(String name, String value)
+  {
+    int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+    evict(entrySize);
+    if (entrySize > tableSize)
+    {
+      /*
+       * An entry larger than the table empties it and isn't added (RFC 7541 4.4).
+       */
+      return;
+    }
+
+    if (count == names.length)
+    {
+      String[] newNames = new String[names.length * 2];
+      String[] newValues = new String[values.length * 2];
+      for (int i = 0; i < count; i++)
+      {
+        newNames[i] = names[(first + i) & (names.length - 1)];
+        newValues[i] = values[(first + i) & (values.length - 1)];
+      }
+      names = newNames;
+      values = newValues;
+      first = 0;
+    }
+
+    int last = (first + count) & (names.length - 1);
+    names[last] = name;
+    values[last] = value;
+    count++;
+    size += entrySize;
+  }
+
+  /*
+   * Evicts the oldest entries until there's room for an entry of the given size.
+   */
+  private void evict(int room)
+  {
+    while ((count > 0) && ((size + room) > tableSize))
+    {
+      size -= names[first].length() + values[first].length() + ENTRY_OVERHEAD;
+      names[first] = values[first] = null;
+      first = (first + 1) & (names.length - 1);
+      count--;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.baswell.httproxy.Hpack.*;
+
+/**
+ * Encodes the header blocks (RFC 7541) sent on one HTTP/2 connection. Fields that repeat from request to request (the
+ * user agent, accept headers, the authority) go into the dynamic table so after the first request on a connection they
+ * cost a byte or two each. Fields that are different on every request ({@code :path}, {@code content-length}) or too big
+ * for the table are sent as literals without indexing, and credentials are never indexed (RFC 7541 7.1.3).
+ */
+class HpackEncoder
+{
+  private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+  private static final Map<String, Integer> STATIC_NAME_INDEXES = new HashMap<String, Integer>();
+
+  static
+  {
+    for (int i = STATIC_NAMES.length - 1; i >= 0; i--)
+    {
+      STATIC_FIELDS.put(STATIC_NAMES[i] + '\u0000' + STATIC_VALUES[i], i + 1);
+      STATIC_NAME_INDEXES.put(STATIC_NAMES[i], i + 1);
+    }
+  }
+
+  /*
+   * The size the table is kept to: the server's SETTINGS_HEADER_TABLE_SIZE up to the default 4096 bytes.
+   */
+  private int tableSize = DEFAULT_TABLE_SIZE;
+
+  /*
+   * The smallest table size since the last header block, -1 if it hasn't changed. Must be sent at the start of the next
+   * block (RFC 7541 4.2).
+   */
+  private int smallestSizeUpdate = -1;
+
+  private int size;
+
+  /*
+   * The dynamic table entries as a ring, oldest first. Each entry's insertion number is inserted - count + its position
+   * from first. The maps give the insertion number of the newest entry with a field or name.
+   */
+  private String[] names = new String[16];
+
+  private String[] values = new String[16];
+
+  private int first;
+
+  private int count;
+
+  private int inserted;
+
+  private final Map<String, Integer> fields = new HashMap<String, Integer>();
+
+  private final Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+
+  /**
+   * Called with the server's SETTINGS_HEADER_TABLE_SIZE.
+   */
+  void setMaxTableSize(int maxTableSize)
+  {
+    int newSize = Math.min(maxTableSize, DEFAULT_TABLE_SIZE);
+    if (newSize != tableSize)
+    {
+      tableSize = newSize;
+      smallestSizeUpdate = (smallestSizeUpdate == -1) ? newSize : Math.min(smallestSizeUpdate, newSize);
+      evict(0);
+    }
+  }
+
+  /**
+   * Must be called before the first field of each header block.
+   */
+  void beginBlock(TByteArrayList out)
+  {
+    if (smallestSizeUpdate != -1)
+    {
+      writeInteger(smallestSizeUpdate, 5, 0x20, out);
+      if (smallestSizeUpdate != tableSize)
+      {
+        writeInteger(tableSize, 5, 0x20, out);
+      }
+      smallestSizeUpdate = -1;
+    }
+  }
+
+  /**
+   * @param name The lowercase field name.
+   */
+  void encode(String name, String value, TByteArrayList out)
+  {
+    String field = name + '\u0000' + value;
+    Integer staticIndex = STATIC_FIELDS.get(field);
+    if (staticIndex != null)
+    {
+      writeInteger(staticIndex, 7, 0x80, out);
+      return;
+    }
+
+    Integer insertion = fields.get(field);
+    if (insertion != null)
+    {
+      writeInteger(dynamicIndex(insertion), 7, 0x80, out);
+      return;
+    }
+
+    int nameIndex = 0;
+    Integer staticNameIndex = STATIC_NAME_INDEXES.get(name);
+    if (staticNameIndex != null)
+    {
+      nameIndex = staticNameIndex;
+    }
+    else if ((insertion = nameIndexes.get(name)) != null)
+    {
+      nameIndex = dynamicIndex(insertion);
+    }
+
+    int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+    if (name.equals("authorization") || name.equals("proxy-authorization") || (name.equals("cookie") && (value.length() < 20)))
+    {
+      writeInteger(nameIndex, 4, 0x10, out);
+    }
+    else if (name.equals(":path") || name.equals("content-length") || (entrySize > (tableSize / 2)))
+    {
+      writeInteger(nameIndex, 4, 0x00, out);
+    }
+    else
+    {
+      writeInteger(nameIndex, 6, 0x40, out);
+      insert(name, value, field, entrySize);
+    }
+
+    if (nameIndex == 0)
+    {
+      writeString(name, out);
+    }
+    writeString(value, out);
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  private int dynamicIndex(int insertion)
+  {
+    return STATIC_NAMES.length + 1 + inserted - insertion;
+  }
+
+  private void insert(String name, String value, String field, int entrySize)
+  {
+    evict(entrySize);
+
+    if (count == names.length)
+    {
+      String[] newNames = new String[names.length * 2];
+      String[] newValues = new String[values.length * 2];
+      for (int i = 0; i < count; i++)
+      {
+        newNames[i] = names[(first + i) & (names.length - 1)];
+        newValues[i] = values[(first + i) & (values.length - 1)];
+      }
+      names = newNames;
+      values = newValues;
+      first = 0;
+    }
+
+    int last = (first + count) & (names.length - 1);
+    names[last] = name;
+    values[last] = value;
+    count++;
+    size += entrySize;
+
+    inserted++;
+    fields.put(field, inserted);
+    nameIndexes.put(name, inserted);
+  }
+
+  private void evict(int room)
+  {
+    while ((count > 0) && ((size + room) > tableSize))
+    {
+      String name = names[first];
+      String value = values[first];
+      int insertion = inserted - count + 1;
+      size -= name.length() + value.length() + ENTRY_OVERHEAD;
+
+      String field = name + '\u0000' + value;
+      Integer newest = fields.get(field);
+      if ((newest != null) && (newest == insertion))
+      {
+        fields.remove(field);
+      }
+      newest = nameIndexes.get(name);
+      if ((newest != null) && (newest == insertion))
+      {
+        nameIndexes.remove(name);
+      }
+
+      names[first] = values[first] = null;
+      first = (first + 1) & (names.length - 1);
+      count--;
+    }
+  }
+}
@@ -0,0 +1,1254 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.baswell.httproxy.Constants.*;
+import static org.baswell.httproxy.Http2Connection.*;
+
+/**
+ * <p>
+ * An HTTP/2 (RFC 7540) connection with a client that picked h2 through ALPN. Each stream the client opens is proxied by
+ * its own {@link PipedExchangeChannel} reading the request from an {@link Http2ClientStream}, so the director sees the
+ * same callbacks it does for HTTP/1.1 clients and the requests go to the servers the same way (HTTP/1.1 or HTTP/2).
+ * </p>
+ *
+ * <p>
+ * Everything happens on the selector thread the client connection was accepted on.
+ * </p>
+ */
+class Http2ClientConnection implements SelectorHandler
+{
+  /**
+   * The streams a client can have open at once. More are refused.
+   */
+  static final int MAX_CONCURRENT_STREAMS = 100;
+
+  /*
+   * Connection specific response headers that aren't sent over HTTP/2 (RFC 7540 8.1.2.2).
+   */
+  private static final Set<String> NOT_FORWARDED = new HashSet<String>();
+
+  /*
+   * Connection specific request headers. An HTTP/2 client shouldn't send them, they're dropped if it does.
+   */
+  private static final Set<String> NOT_ACCEPTED = new HashSet<String>();
+
+  static
+  {
+    Collections.addAll(NOT_FORWARDED, "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    Collections.addAll(NOT_ACCEPTED, "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings");
+  }
+
+  final SelectorLoop selectorLoop;
+
+  final SocketChannel socketChannel;
+
+  private final SelectionKey selectionKey;
+
+  private final NIOProxyDirector proxyDirector;
+
+  private final SocketChannelPool socketChannelPool;
+
+  private final ProxyLogger log;
+
+  private final int maxWriteAttempts;
+
+  private final WriteQueue writeQueue;
+
+  private final ByteBuffer readBuffer;
+
+  private final HpackEncoder encoder = new HpackEncoder();
+
+  private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+
+  private final TIntObjectHashMap<Http2ClientStream> streams = new TIntObjectHashMap<Http2ClientStream>();
+
+  private boolean prefaceReceived;
+
+  private boolean settingsReceived;
+
+  private boolean closed;
+
+  /*
+   * No new streams once the client sends GOAWAY.
+   */
+  private boolean goingAway;
+
+  private int lastStreamId;
+
+  private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+  private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+  private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+  private int connectionReceiveWindow = CONNECTION_WINDOW_SIZE;
+
+  private int connectionReceivedSinceUpdate;
+
+  private int continuationStreamId;
+
+  private boolean continuationEndStream;
+
+  private final TByteArrayList continuationBlock = new TByteArrayList();
+
+  private boolean flushRequested;
+
+  private final Runnable flushTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flushRequested = false;
+      flush();
+    }
+  };
+
+  private final Runnable readTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      onReadReady(selectionKey);
+    }
+  };
+
+  /**
+   * Takes over the client connection from the exchange that found the client picked HTTP/2.
+   *
+   * @param read The bytes already read from the client (the start of its connection preface).
+   */
+  Http2ClientConnection(SelectorLoop selectorLoop, SocketChannel socketChannel, SelectionKey selectionKey, NIOProxyDirector proxyDirector, SocketChannelPool socketChannelPool, ByteBuffer read)
+  {
+    this.selectorLoop = selectorLoop;
+    this.socketChannel = socketChannel;
+    this.selectionKey = selectionKey;
+    this.proxyDirector = proxyDirector;
+    this.socketChannelPool = socketChannelPool;
+
+    log = new WrappedLogger(proxyDirector.getLogger());
+    maxWriteAttempts = proxyDirector.getMaxWriteAttempts();
+    writeQueue = new WriteQueue(ByteBufferPool.forSize(proxyDirector.getBufferSize()));
+    writeQueue.highWaterMark = proxyDirector.getWriteQueueHighWaterMark();
+    readBuffer = ByteBuffer.allocate(Math.max(4 * (FRAME_HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE), read.remaining()));
+
+    selectionKey.attach(this);
+
+    /*
+     * The server connection preface is our SETTINGS, sent without waiting for the client's.
+     */
+    byte[] settings = frame(12, SETTINGS, 0, 0);
+    putSetting(settings, FRAME_HEADER_LENGTH, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+    putSetting(settings, FRAME_HEADER_LENGTH + 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+    queue(settings);
+    writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+
+    readBuffer.put(read);
+    onRead();
+    flush();
+  }
+
+  boolean isBackedUp()
+  {
+    return writeQueue.isBackedUp();
+  }
+
+  @Override
+  public void onConnectReady(SelectionKey selectionKey)
+  {}
+
+  @Override
+  public void onWriteReady(SelectionKey selectionKey)
+  {
+    flush();
+  }
+
+  @Override
+  public void onReadReady(SelectionKey selectionKey)
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    try
+    {
+      for (int i = 0; i < MAX_READS; i++)
+      {
+        int read = socketChannel.read(readBuffer);
+        if (read < 0)
+        {
+          throw new IOException("Connection closed.");
+        }
+        else if (read == 0)
+        {
+          break;
+        }
+
+        onRead();
+        if (closed)
+        {
+          return;
+        }
+      }
+      flush();
+    }
+    catch (IOException e)
+    {
+      close();
+    }
+  }
+
+  /*
+   * Handles the frames read into the read buffer (from its start to its position).
+   */
+  private void onRead()
+  {
+    readBuffer.flip();
+    try
+    {
+      readFrames();
+    }
+    catch (Http2Exception e)
+    {
+      log.error("HTTP/2 connection error with client. " + e.getMessage());
+      writeGoAway(e.errorCode);
+      flush();
+      close();
+    }
+    finally
+    {
+      readBuffer.compact();
+    }
+  }
+
+  private void readFrames() throws Http2Exception
+  {
+    byte[] bytes = readBuffer.array();
+    if (!prefaceReceived)
+    {
+      int position = readBuffer.position();
+      for (int i = 0; (i < PREFACE.length) && (i < readBuffer.remaining()); i++)
+      {
+        if (bytes[position + i] != PREFACE[i])
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface.");
+        }
+      }
+
+      if (readBuffer.remaining() < PREFACE.length)
+      {
+        return;
+      }
+      readBuffer.position(position + PREFACE.length);
+      prefaceReceived = true;
+    }
+
+    while (readBuffer.remaining() >= FRAME_HEADER_LENGTH)
+    {
+      int position = readBuffer.position();
+      int length = ((bytes[position] & 0xff) << 16) | ((bytes[position + 1] & 0xff) << 8) | (bytes[position + 2] & 0xff);
+      if (length > DEFAULT_MAX_FRAME_SIZE)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes is over the max frame size.");
+      }
+      else if (readBuffer.remaining() < (FRAME_HEADER_LENGTH + length))
+      {
+        return;
+      }
+
+      int type = bytes[position + 3] & 0xff;
+      int flags = bytes[position + 4] & 0xff;
+      int streamId = getInt(bytes, position + 5) & 0x7fffffff;
+      readBuffer.position(position + FRAME_HEADER_LENGTH + length);
+
+      if (!settingsReceived && (type != SETTINGS))
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "The connection preface must be followed by SETTINGS.");
+      }
+
+      try
+      {
+        onFrame(type, flags, streamId, bytes, position + FRAME_HEADER_LENGTH, length);
+      }
+      catch (Http2Exception e)
+      {
+        if (e.streamId == 0)
+        {
+          throw e;
+        }
+        resetStream(e.streamId, e.errorCode);
+      }
+
+      if (closed)
+      {
+        return;
+      }
+    }
+  }
+
+  private void onFrame(int type, int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if ((continuationStreamId != 0) && (type != CONTINUATION))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected a CONTINUATION frame.");
+    }
+
+    switch (type)
+    {
+      case DATA:
+        onData(flags, streamId, bytes, offset, length);
+        break;
+
+      case HEADERS:
+        onHeaders(flags, streamId, bytes, offset, length);
+        break;
+
+      case PRIORITY:
+        break;
+
+      case RST_STREAM:
+        if (length != 4)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM frame of " + length + " bytes.");
+        }
+        onRstStream(requireStream(streamId));
+        break;
+
+      case SETTINGS:
+        onSettings(flags, streamId, bytes, offset, length);
+        break;
+
+      case PUSH_PROMISE:
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client.");
+
+      case PING:
+        if ((streamId != 0) || (length != 8))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid PING frame.");
+        }
+        if ((flags & FLAG_ACK) == 0)
+        {
+          byte[] ping = frame(8, PING, FLAG_ACK, 0);
+          System.arraycopy(bytes, offset, ping, FRAME_HEADER_LENGTH, 8);
+          queue(ping);
+        }
+        break;
+
+      case GOAWAY:
+        if ((streamId != 0) || (length < 8))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid GOAWAY frame.");
+        }
+        goingAway = true;
+        if (streams.isEmpty())
+        {
+          close();
+        }
+        break;
+
+      case WINDOW_UPDATE:
+        if (length != 4)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + length + " bytes.");
+        }
+        onWindowUpdate(streamId, getInt(bytes, offset) & 0x7fffffff);
+        break;
+
+      case CONTINUATION:
+        if ((continuationStreamId == 0) || (streamId != continuationStreamId))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+        }
+        continuationBlock.add(bytes, offset, length);
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+          continuationStreamId = 0;
+          byte[] block = continuationBlock.toArray();
+          continuationBlock.resetQuick();
+          onHeaderBlock(streamId, continuationEndStream, block, 0, block.length);
+        }
+        else if (continuationBlock.size() > MAX_HEADER_BLOCK_SIZE)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block over " + MAX_HEADER_BLOCK_SIZE + " bytes.");
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  /*
+   * The connection window is given back as DATA comes in, the stream's as its exchange reads the data.
+   */
+  private void onData(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    Http2ClientStream stream = requireStream(streamId);
+
+    if (length > connectionReceiveWindow)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "DATA past the connection window.");
+    }
+    connectionReceiveWindow -= length;
+    connectionReceivedSinceUpdate += length;
+    if (connectionReceivedSinceUpdate >= (CONNECTION_WINDOW_SIZE / 2))
+    {
+      writeWindowUpdate(0, connectionReceivedSinceUpdate);
+      connectionReceiveWindow += connectionReceivedSinceUpdate;
+      connectionReceivedSinceUpdate = 0;
+    }
+
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0)
+    {
+      padding = (length > 0) ? (bytes[offset] & 0xff) + 1 : 1;
+      if (padding > length)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA padding past the end of the frame.");
+      }
+    }
+
+    if (stream == null)
+    {
+      return;
+    }
+    else if (stream.requestEnded)
+    {
+      throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after END_STREAM.");
+    }
+    else if (length > stream.receiveWindow)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "DATA past the stream window.");
+    }
+    stream.receiveWindow -= length;
+
+    int dataOffset = offset + (((flags & FLAG_PADDED) != 0) ? 1 : 0);
+    int dataLength = length - padding;
+    boolean endStream = (flags & FLAG_END_STREAM) != 0;
+    if ((dataLength > 0) || (length > 0))
+    {
+      addInput(stream, bytes, dataOffset, dataLength, length);
+    }
+    if (endStream)
+    {
+      endRequest(stream, Collections.<HttpHeader>emptyList());
+    }
+    stream.onInput();
+  }
+
+  private void onHeaders(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0.");
+    }
+
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0)
+    {
+      padding = (length > 0) ? (bytes[offset] & 0xff) : 0;
+      offset++;
+      length--;
+    }
+    if ((flags & FLAG_PRIORITY) != 0)
+    {
+      offset += 5;
+      length -= 5;
+    }
+    length -= padding;
+    if (length < 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS padding past the end of the frame.");
+    }
+
+    if ((flags & FLAG_END_HEADERS) != 0)
+    {
+      onHeaderBlock(streamId, (flags & FLAG_END_STREAM) != 0, bytes, offset, length);
+    }
+    else
+    {
+      continuationStreamId = streamId;
+      continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+      continuationBlock.resetQuick();
+      continuationBlock.add(bytes, offset, length);
+    }
+  }
+
+  /*
+   * A block on a new stream is a request, on an open one trailers. Every block is decoded (the HPACK table depends on
+   * it) even when its stream is gone.
+   */
+  private void onHeaderBlock(int streamId, boolean endStream, byte[] block, int offset, int length) throws Http2Exception
+  {
+    List<HttpHeader> fields = new ArrayList<HttpHeader>();
+    decoder.decode(block, offset, length, fields);
+
+    if (streamId <= lastStreamId)
+    {
+      Http2ClientStream stream = streams.get(streamId);
+      if (stream == null)
+      {
+        return;
+      }
+      else if (stream.requestEnded)
+      {
+        throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS after END_STREAM.");
+      }
+      else if (!endStream)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM.");
+      }
+
+      List<HttpHeader> trailers = new ArrayList<HttpHeader>(fields.size());
+      for (HttpHeader field : fields)
+      {
+        if (field.name.startsWith(":"))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Pseudo-header field " + field.name + " in trailers.");
+        }
+        field.name = WellKnownHeaders.forLowercase(field.name);
+        trailers.add(field);
+      }
+      endRequest(stream, trailers);
+      stream.onInput();
+      return;
+    }
+    else if ((streamId & 1) == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client stream " + streamId + " has an even id.");
+    }
+
+    lastStreamId = streamId;
+    if (goingAway)
+    {
+      return;
+    }
+    else if (streams.size() >= MAX_CONCURRENT_STREAMS)
+    {
+      throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Over " + MAX_CONCURRENT_STREAMS + " concurrent streams.");
+    }
+
+    Http2ClientStream stream = new Http2ClientStream(this, streamId, peerInitialWindowSize, STREAM_WINDOW_SIZE);
+    byte[] head = requestHead(stream, fields, endStream);
+    stream.input.add(ByteBuffer.wrap(head));
+    stream.inputCredits.add(0);
+    stream.requestEnded = endStream;
+    streams.put(streamId, stream);
+
+    try
+    {
+      new PipedExchangeChannel(selectorLoop, stream, proxyDirector, socketChannelPool);
+    }
+    catch (IOException e)
+    {
+      log.error("Unable to create proxied exchange channel.", e);
+      throw new Http2Exception(Http2Exception.INTERNAL_ERROR, streamId, e.getMessage());
+    }
+    stream.onInput();
+  }
+
+  /*
+   * The request line and header of the HTTP/1.1 request the exchange reads: the pseudo-header fields make up the request
+   * line (RFC 7540 8.1.2.3), :authority becomes Host and the cookie fields are put back together (8.1.2.5). Without a
+   * Content-Length a request with a body is sent chunked.
+   */
+  private static byte[] requestHead(Http2ClientStream stream, List<HttpHeader> fields, boolean endStream) throws Http2Exception
+  {
+    String method = null;
+    String scheme = null;
+    String authority = null;
+    String path = null;
+    boolean regularFields = false;
+    boolean hasHost = false;
+    boolean hasContentLength = false;
+    StringBuilder cookie = null;
+
+    StringBuilder headers = new StringBuilder(512);
+    for (HttpHeader field : fields)
+    {
+      String name = field.name;
+      String value = (field.value == null) ? "" : field.value;
+      if (name.startsWith(":"))
+      {
+        if (regularFields)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Pseudo-header field " + name + " after a regular field.");
+        }
+        else if (name.equals(":method") && (method == null))
+        {
+          method = value;
+        }
+        else if (name.equals(":scheme") && (scheme == null))
+        {
+          scheme = value;
+        }
+        else if (name.equals(":authority") && (authority == null))
+        {
+          authority = value;
+        }
+        else if (name.equals(":path") && (path == null))
+        {
+          path = value;
+        }
+        else
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Unexpected pseudo-header field " + name + ".");
+        }
+        continue;
+      }
+
+      regularFields = true;
+      if (NOT_ACCEPTED.contains(name) || (name.equals("te") && !value.equalsIgnoreCase("trailers")))
+      {
+        continue;
+      }
+      else if (name.equals("cookie"))
+      {
+        cookie = (cookie == null) ? new StringBuilder(value) : cookie.append("; ").append(value);
+        continue;
+      }
+
+      hasHost |= name.equals("host");
+      hasContentLength |= name.equals("content-length");
+      headers.append(WellKnownHeaders.forLowercase(name)).append(": ").append(value).append(CRLF);
+    }
+
+    if ((method == null) || (scheme == null) || (path == null) || path.isEmpty())
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Request without :method, :scheme or :path.");
+    }
+
+    StringBuilder head = new StringBuilder(headers.length() + 128);
+    head.append(method).append(' ').append(path).append(" HTTP/1.1").append(CRLF);
+    if (!hasHost && (authority != null))
+    {
+      head.append("Host: ").append(authority).append(CRLF);
+    }
+    head.append(headers);
+    if (cookie != null)
+    {
+      head.append("Cookie: ").append(cookie).append(CRLF);
+    }
+    if (!endStream && !hasContentLength)
+    {
+      head.append("Transfer-Encoding: chunked").append(CRLF);
+      stream.chunkedRequest = true;
+    }
+    head.append(CRLF);
+    return head.toString().getBytes(LineReader.ISO_8859_1);
+  }
+
+  private static void addInput(Http2ClientStream stream, byte[] bytes, int offset, int length, int credit)
+  {
+    byte[] input;
+    if (stream.chunkedRequest && (length > 0))
+    {
+      byte[] size = (Integer.toHexString(length) + CRLF).getBytes(LineReader.ISO_8859_1);
+      input = new byte[size.length + length + 2];
+      System.arraycopy(size, 0, input, 0, size.length);
+      System.arraycopy(bytes, offset, input, size.length, length);
+      input[input.length - 2] = CR;
+      input[input.length - 1] = LF;
+    }
+    else
+    {
+      input = new byte[length];
+      System.arraycopy(bytes, offset, input, 0, length);
+    }
+    stream.input.add(ByteBuffer.wrap(input));
+    stream.inputCredits.add(credit);
+  }
+
+  /*
+   * A chunked request ends with the last chunk and the trailers. A request with a Content-Length ends with its body (and
+   * can't carry trailers).
+   */
+  private static void endRequest(Http2ClientStream stream, List<HttpHeader> trailers)
+  {
+    stream.requestEnded = true;
+    if (stream.chunkedRequest)
+    {
+      StringBuilder lastChunk = new StringBuilder("0").append(CRLF);
+      for (HttpHeader trailer : trailers)
+      {
+        lastChunk.append(trailer.name).append(": ").append(trailer.value).append(CRLF);
+      }
+      stream.input.add(ByteBuffer.wrap(lastChunk.append(CRLF).toString().getBytes(LineReader.ISO_8859_1)));
+      stream.inputCredits.add(0);
+    }
+  }
+
+  private void onRstStream(Http2ClientStream stream)
+  {
+    if (stream != null)
+    {
+      removeStream(stream);
+      if (stream.exchange != null)
+      {
+        stream.exchange.onClientStreamReset();
+      }
+    }
+  }
+
+  private void onSettings(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if (streamId != 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId + ".");
+    }
+    else if ((flags & FLAG_ACK) != 0)
+    {
+      if (length != 0)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload.");
+      }
+      return;
+    }
+    else if ((length % 6) != 0)
+    {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS frame of " + length + " bytes.");
+    }
+    settingsReceived = true;
+
+    boolean windowsOpened = false;
+    for (int i = offset; i < offset + length; i += 6)
+    {
+      int identifier = ((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff);
+      int value = getInt(bytes, i + 2);
+      switch (identifier)
+      {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxTableSize((value < 0) ? Integer.MAX_VALUE : value);
+          break;
+
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0)
+          {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + (value & 0xffffffffl) + ".");
+          }
+
+          int delta = value - peerInitialWindowSize;
+          peerInitialWindowSize = value;
+          for (Http2ClientStream stream : streams.valueCollection())
+          {
+            long window = (long)stream.sendWindow + delta;
+            if (window > Integer.MAX_VALUE)
+            {
+              throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window past 2^31-1.");
+            }
+            stream.sendWindow = (int)window;
+          }
+          windowsOpened |= delta > 0;
+          break;
+
+        case SETTINGS_MAX_FRAME_SIZE:
+          if ((value < DEFAULT_MAX_FRAME_SIZE) || (value > 0xffffff))
+          {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value + ".");
+          }
+          peerMaxFrameSize = value;
+          break;
+
+        default:
+          break;
+      }
+    }
+
+    queue(frame(0, SETTINGS, FLAG_ACK, 0));
+    if (windowsOpened)
+    {
+      sendAllPendingData();
+    }
+  }
+
+  private void onWindowUpdate(int streamId, int increment) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      if (increment == 0)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+      }
+      else if (((long)connectionSendWindow + increment) > Integer.MAX_VALUE)
+      {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window past 2^31-1.");
+      }
+      connectionSendWindow += increment;
+      sendAllPendingData();
+    }
+    else
+    {
+      Http2ClientStream stream = requireStream(streamId);
+      if (stream == null)
+      {
+        return;
+      }
+      else if (increment == 0)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0.");
+      }
+      else if (((long)stream.sendWindow + increment) > Integer.MAX_VALUE)
+      {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window past 2^31-1.");
+      }
+      stream.sendWindow += increment;
+      sendPendingData(stream);
+      notifyIfWritable(stream);
+    }
+  }
+
+  /*
+   * @return The open stream with the given id or null if it's already closed.
+   */
+  private Http2ClientStream requireStream(int streamId) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Stream frame on stream 0.");
+    }
+    else if (streamId > lastStreamId)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame on idle stream " + streamId + ".");
+    }
+    return streams.get(streamId);
+  }
+
+  /**
+   * Gives the client back the window for the request bytes the stream's exchange has read.
+   */
+  void updateReceiveWindow(Http2ClientStream stream)
+  {
+    if (!stream.done && !stream.requestEnded && (stream.readSinceUpdate >= (STREAM_WINDOW_SIZE / 2)))
+    {
+      writeWindowUpdate(stream.id, stream.readSinceUpdate);
+      stream.receiveWindow += stream.readSinceUpdate;
+      stream.readSinceUpdate = 0;
+      requestFlush();
+    }
+  }
+
+  void sendResponse(Http2ClientStream stream, int statusCode, List<HttpHeader> headers, boolean endStream)
+  {
+    if (stream.done || stream.responseEnded)
+    {
+      return;
+    }
+
+    boolean interim = statusCode < 200;
+    endStream &= !interim;
+
+    Set<String> connectionTokens = null;
+    if (headers != null)
+    {
+      for (HttpHeader header : headers)
+      {
+        if ((header.name != null) && (header.value != null) && header.name.equalsIgnoreCase("Connection"))
+        {
+          for (String token : header.value.split(","))
+          {
+            if (connectionTokens == null)
+            {
+              connectionTokens = new HashSet<String>();
+            }
+            connectionTokens.add(token.trim().toLowerCase());
+          }
+        }
+      }
+    }
+
+    TByteArrayList block = new TByteArrayList(512);
+    encoder.beginBlock(block);
+    encoder.encode(":status", String.valueOf(statusCode), block);
+    if (headers != null)
+    {
+      for (HttpHeader header : headers)
+      {
+        if (header.name == null)
+        {
+          continue;
+        }
+
+        String name = header.name.toLowerCase();
+        if (!NOT_FORWARDED.contains(name) && ((connectionTokens == null) || !connectionTokens.contains(name)))
+        {
+          encoder.encode(name, (header.value == null) ? "" : header.value, block);
+        }
+      }
+    }
+    writeHeaders(stream.id, block, endStream);
+
+    if (endStream)
+    {
+      stream.responseEnded = true;
+      onEndStreamSent(stream);
+    }
+    requestFlush();
+  }
+
+  void sendData(Http2ClientStream stream, ByteBuffer buffer, int start, int length)
+  {
+    if (stream.done || stream.responseEnded)
+    {
+      return;
+    }
+
+    if (stream.pendingData.isEmpty())
+    {
+      int sent = writeData(stream, buffer, start, length);
+      start += sent;
+      length -= sent;
+    }
+
+    if (length > 0)
+    {
+      byte[] copy = new byte[length];
+      ByteBuffer source = buffer.duplicate();
+      source.limit(start + length);
+      source.position(start);
+      source.get(copy);
+      stream.pendingData.add(ByteBuffer.wrap(copy));
+      stream.pendingBytes += length;
+    }
+    requestFlush();
+  }
+
+  void endResponse(Http2ClientStream stream, List<HttpHeader> trailers)
+  {
+    if (stream.done || stream.responseEnded)
+    {
+      return;
+    }
+
+    stream.responseEnded = true;
+    stream.responseTrailers = trailers.isEmpty() ? null : trailers;
+    if (stream.pendingData.isEmpty())
+    {
+      sendEndStream(stream);
+      requestFlush();
+    }
+  }
+
+  /**
+   * The stream's exchange is closed. If the response wasn't ended the client is told the stream failed.
+   */
+  void onExchangeClosed(Http2ClientStream stream)
+  {
+    stream.exchange = null;
+    stream.input.clear();
+    stream.inputCredits.clear();
+    if (!stream.done && !stream.responseEnded)
+    {
+      resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+      requestFlush();
+    }
+  }
+
+  private void resetStream(int streamId, int errorCode)
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    writeRstStream(streamId, errorCode);
+    Http2ClientStream stream = streams.get(streamId);
+    if (stream != null)
+    {
+      removeStream(stream);
+      if (stream.exchange != null)
+      {
+        stream.exchange.onClientStreamReset();
+      }
+    }
+  }
+
+  /*
+   * The response is all sent. A request body still coming isn't wanted anymore (RFC 7540 8.1).
+   */
+  private void onEndStreamSent(Http2ClientStream stream)
+  {
+    stream.endStreamSent = true;
+    if (!stream.requestEnded)
+    {
+      writeRstStream(stream.id, Http2Exception.NO_ERROR);
+    }
+    removeStream(stream);
+  }
+
+  private void removeStream(Http2ClientStream stream)
+  {
+    stream.done = true;
+    stream.pendingData.clear();
+    stream.pendingBytes = 0;
+    if ((streams.remove(stream.id) != null) && goingAway && streams.isEmpty())
+    {
+      flush();
+      close();
+    }
+  }
+
+  private void sendAllPendingData()
+  {
+    for (Http2ClientStream stream : new ArrayList<Http2ClientStream>(streams.valueCollection()))
+    {
+      if (connectionSendWindow <= 0)
+      {
+        break;
+      }
+      else if (!stream.pendingData.isEmpty())
+      {
+        sendPendingData(stream);
+        notifyIfWritable(stream);
+      }
+    }
+  }
+
+  private void sendPendingData(Http2ClientStream stream)
+  {
+    while (!stream.pendingData.isEmpty())
+    {
+      ByteBuffer data = stream.pendingData.peek();
+      int sent = writeData(stream, data, data.position(), data.remaining());
+      if (sent == 0)
+      {
+        return;
+      }
+
+      stream.pendingBytes -= sent;
+      data.position(data.position() + sent);
+      if (!data.hasRemaining())
+      {
+        stream.pendingData.poll();
+      }
+    }
+
+    if (stream.responseEnded && !stream.endStreamSent)
+    {
+      sendEndStream(stream);
+    }
+    requestFlush();
+  }
+
+  /*
+   * @return The number of bytes sent, as many as the windows allow.
+   */
+  private int writeData(Http2ClientStream stream, ByteBuffer buffer, int start, int length)
+  {
+    int sent = 0;
+    while (sent < length)
+    {
+      int size = Math.min(Math.min(length - sent, peerMaxFrameSize), Math.min(stream.sendWindow, connectionSendWindow));
+      if (size <= 0)
+      {
+        break;
+      }
+
+      ByteBuffer data = buffer.duplicate();
+      data.limit(start + sent + size);
+      data.position(start + sent);
+      queue(frame(size, DATA, 0, stream.id, FRAME_HEADER_LENGTH));
+      writeQueue.add(data);
+
+      stream.sendWindow -= size;
+      connectionSendWindow -= size;
+      sent += size;
+    }
+    return sent;
+  }
+
+  private void sendEndStream(Http2ClientStream stream)
+  {
+    if (stream.responseTrailers != null)
+    {
+      TByteArrayList block = new TByteArrayList();
+      encoder.beginBlock(block);
+      for (HttpHeader trailer : stream.responseTrailers)
+      {
+        encoder.encode(trailer.name.toLowerCase(), (trailer.value == null) ? "" : trailer.value, block);
+      }
+      writeHeaders(stream.id, block, true);
+    }
+    else
+    {
+      queue(frame(0, DATA, FLAG_END_STREAM, stream.id));
+    }
+    onEndStreamSent(stream);
+  }
+
+  private void notifyIfWritable(Http2ClientStream stream)
+  {
+    if (stream.wasBackedUp && (stream.exchange != null) && (stream.pendingBytes == 0) && !writeQueue.isBackedUp())
+    {
+      stream.wasBackedUp = false;
+      stream.exchange.onClientStreamWritable();
+    }
+  }
+
+  private void writeHeaders(int streamId, TByteArrayList block, boolean endStream)
+  {
+    int length = block.size();
+    int offset = 0;
+    boolean first = true;
+    do
+    {
+      int size = Math.min(length - offset, peerMaxFrameSize);
+      boolean last = (offset + size) == length;
+      int flags = (last ? FLAG_END_HEADERS : 0) | ((first && endStream) ? FLAG_END_STREAM : 0);
+      byte[] frame = frame(size, first ? HEADERS : CONTINUATION, flags, streamId);
+      block.toArray(frame, offset, FRAME_HEADER_LENGTH, size);
+      queue(frame);
+      offset += size;
+      first = false;
+    }
+    while (offset < length);
+  }
+
+  private void writeWindowUpdate(int streamId, int increment)
+  {
+    byte[] frame = frame(4, WINDOW_UPDATE, 0, streamId);
+    putInt(frame, FRAME_HEADER_LENGTH, increment);
+    queue(frame);
+  }
+
+  private void writeRstStream(int streamId, int errorCode)
+  {
+    byte[] frame = frame(4, RST_STREAM, 0, streamId);
+    putInt(frame, FRAME_HEADER_LENGTH, errorCode);
+    queue(frame);
+  }
+
+  private void writeGoAway(int errorCode)
+  {
+    byte[] frame = frame(8, GOAWAY, 0, 0);
+    putInt(frame, FRAME_HEADER_LENGTH, lastStreamId);
+    putInt(frame, FRAME_HEADER_LENGTH + 4, errorCode);
+    queue(frame);
+  }
+
+  /*
+   * Frames are copied into the write queue's pooled buffers (not queued as is like the server connection's) so small
+   * frames and the DATA after them share buffers. Every buffer written to an SSL channel is wrapped in its own TLS record.
+   */
+  private void queue(byte[] frame)
+  {
+    writeQueue.add(ByteBuffer.wrap(frame));
+  }
+
+  private void requestFlush()
+  {
+    if (!flushRequested && !closed)
+    {
+      flushRequested = true;
+      selectorLoop.execute(flushTask);
+    }
+  }
+
+  private void flush()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    boolean wasBackedUp = writeQueue.isBackedUp();
+    try
+    {
+      for (int remainingWriteAttempts = maxWriteAttempts; remainingWriteAttempts > 0; remainingWriteAttempts--)
+      {
+        long written = writeQueue.write(socketChannel, null);
+        if (written < 0)
+        {
+          throw new IOException("Connection closed.");
+        }
+        else if ((written == 0) || writeQueue.isEmpty())
+        {
+          break;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      close();
+      return;
+    }
+
+    int interestOps = SelectionKey.OP_READ | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    if (selectionKey.isValid() && (selectionKey.interestOps() != interestOps))
+    {
+      selectionKey.interestOps(interestOps);
+    }
+
+    /*
+     * Writing to an SSL channel can take what the client sent off the socket, it won't be selected for it.
+     */
+    if ((socketChannel instanceof SSLSocketChannel) && ((SSLSocketChannel)socketChannel).hasBufferedInput())
+    {
+      selectorLoop.execute(readTask);
+    }
+
+    if (wasBackedUp && !writeQueue.isBackedUp())
+    {
+      for (Http2ClientStream stream : new ArrayList<Http2ClientStream>(streams.valueCollection()))
+      {
+        notifyIfWritable(stream);
+      }
+    }
+  }
+
+  private void close()
+  {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+
+    try
+    {
+      socketChannel.close();
+    }
+    catch (IOException e)
+    {}
+    writeQueue.clear();
+
+    List<Http2ClientStream> open = new ArrayList<Http2ClientStream>(streams.valueCollection());
+    streams.clear();
+    for (Http2ClientStream stream : open)
+    {
+      stream.done = true;
+      if (stream.exchange != null)
+      {
+        stream.exchange.onClientStreamReset();
+      }
+    }
+  }
+
+  private static final int MAX_READS = 16;
+}
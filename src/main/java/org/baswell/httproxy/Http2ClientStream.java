@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A stream of an {@link Http2ClientConnection} seen as a socket channel by the {@link PipedExchangeChannel} proxying it.
+ * Reads give the exchange the request as HTTP/1.1, rebuilt from the HEADERS, DATA and trailers the client sent, so it's
+ * parsed and forwarded like any other. The response doesn't go through write, the exchange hands it to the stream as it's
+ * read and it goes out as HEADERS and DATA frames.
+ *
+ * Only used from the selector thread.
+ */
+class Http2ClientStream extends SocketChannel
+{
+  final Http2ClientConnection connection;
+
+  final int id;
+
+  PipedExchangeChannel exchange;
+
+  /*
+   * The request bytes the exchange hasn't read yet and the number of flow controlled bytes each stands for. The stream
+   * window is given back as they're read.
+   */
+  final ArrayDeque<ByteBuffer> input = new ArrayDeque<ByteBuffer>();
+
+  final ArrayDeque<Integer> inputCredits = new ArrayDeque<Integer>();
+
+  int readSinceUpdate;
+
+  int receiveWindow;
+
+  /*
+   * The request has no Content-Length so its DATA goes to the exchange with the chunked transfer coding.
+   */
+  boolean chunkedRequest;
+
+  boolean requestEnded;
+
+  int sendWindow;
+
+  final ArrayDeque<ByteBuffer> pendingData = new ArrayDeque<ByteBuffer>();
+
+  int pendingBytes;
+
+  /*
+   * Set once the exchange has ended the response. END_STREAM goes out (with the trailers) after the pending data.
+   */
+  boolean responseEnded;
+
+  List<HttpHeader> responseTrailers;
+
+  boolean endStreamSent;
+
+  /*
+   * No more frames for this stream, it's been reset or fully sent.
+   */
+  boolean done;
+
+  boolean wasBackedUp;
+
+  private boolean readInterest = true;
+
+  private boolean readScheduled;
+
+  private final Runnable readTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      readScheduled = false;
+      if (readInterest && !input.isEmpty() && (exchange != null))
+      {
+        exchange.onClientStreamReadable();
+      }
+    }
+  };
+
+  Http2ClientStream(Http2ClientConnection connection, int id, int sendWindow, int receiveWindow)
+  {
+    super(connection.socketChannel.provider());
+    this.connection = connection;
+    this.id = id;
+    this.sendWindow = sendWindow;
+    this.receiveWindow = receiveWindow;
+  }
+
+  /**
+   * Stands in for the read interest op of a selection key. While it's set the exchange is told when there's request
+   * input to read.
+   */
+  void interestOps(boolean read)
+  {
+    readInterest = read;
+    onInput();
+  }
+
+  void onInput()
+  {
+    if (readInterest && !readScheduled && !input.isEmpty())
+    {
+      readScheduled = true;
+      connection.selectorLoop.execute(readTask);
+    }
+  }
+
+  /**
+   * @param endStream True if the response has no body. Ignored for interim (1xx) responses.
+   */
+  void sendResponse(HttpResponse response, boolean endStream)
+  {
+    connection.sendResponse(this, response.statusCode, response.headers, endStream);
+  }
+
+  void sendData(ByteBuffer buffer, int start, int length)
+  {
+    connection.sendData(this, buffer, start, length);
+  }
+
+  void endResponse(List<HttpHeader> trailers)
+  {
+    connection.endResponse(this, trailers);
+  }
+
+  /**
+   * The response to a request the director ended.
+   */
+  void sendEndResponse(EndProxiedRequestException e)
+  {
+    connection.sendResponse(this, e.code, e.headers, true);
+  }
+
+  /**
+   * @return True if the response data given to the stream can't all go out yet. Reading the response should stop until
+   * the exchange is told the stream is writable again.
+   */
+  boolean isBackedUp()
+  {
+    if ((pendingBytes > 0) || connection.isBackedUp())
+    {
+      wasBackedUp = true;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException
+  {
+    if (!isOpen())
+    {
+      throw new ClosedChannelException();
+    }
+
+    int read = 0;
+    while (buffer.hasRemaining() && !input.isEmpty())
+    {
+      ByteBuffer next = input.peek();
+      if (next.remaining() <= buffer.remaining())
+      {
+        read += next.remaining();
+        buffer.put(next);
+        input.poll();
+        readSinceUpdate += inputCredits.poll();
+      }
+      else
+      {
+        int length = buffer.remaining();
+        ByteBuffer part = next.duplicate();
+        part.limit(part.position() + length);
+        buffer.put(part);
+        next.position(next.position() + length);
+        read += length;
+      }
+    }
+
+    if (readSinceUpdate > 0)
+    {
+      connection.updateReceiveWindow(this);
+    }
+    return read;
+  }
+
+  @Override
+  public long read(ByteBuffer[] buffers, int offset, int length) throws IOException
+  {
+    long read = 0;
+    for (int i = offset; i < offset + length; i++)
+    {
+      read += read(buffers[i]);
+    }
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer buffer) throws IOException
+  {
+    throw new IOException("The response goes to an HTTP/2 stream through sendResponse and sendData.");
+  }
+
+  @Override
+  public long write(ByteBuffer[] buffers, int offset, int length) throws IOException
+  {
+    throw new IOException("The response goes to an HTTP/2 stream through sendResponse and sendData.");
+  }
+
+  @Override
+  public Socket socket()
+  {
+    return connection.socketChannel.socket();
+  }
+
+  @Override
+  public boolean isConnected()
+  {
+    return isOpen();
+  }
+
+  @Override
+  public boolean isConnectionPending()
+  {
+    return false;
+  }
+
+  @Override
+  public boolean connect(SocketAddress socketAddress) throws IOException
+  {
+    throw new IOException("Already connected.");
+  }
+
+  @Override
+  public boolean finishConnect() throws IOException
+  {
+    return true;
+  }
+
+  @Override
+  public SocketChannel bind(SocketAddress local) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public SocketAddress getLocalAddress() throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public SocketAddress getRemoteAddress() throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public <T> T getOption(SocketOption<T> name) throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public Set<SocketOption<?>> supportedOptions()
+  {
+    return null;
+  }
+
+  @Override
+  public SocketChannel shutdownInput() throws IOException
+  {
+    return null;
+  }
+
+  @Override
+  public SocketChannel shutdownOutput() throws IOException
+  {
+    return null;
+  }
+
+  /*
+   * The exchange is done with the stream. If it didn't end the response the client's told the stream failed.
+   */
+  @Override
+  protected void implCloseSelectableChannel() throws IOException
+  {
+    connection.onExchangeClosed(this);
+  }
+
+  @Override
+  protected void implConfigureBlocking(boolean block) throws IOException
+  {}
+}
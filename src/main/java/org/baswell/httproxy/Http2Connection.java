@@ -0,0 +1,1568 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * An HTTP/2 connection (RFC 7540) to a server, h2c with prior knowledge. The exchanges of a selector thread that send
+ * requests to the same server share one connection (see {@link SelectorLoop#http2Connection(ConnectionParameters)}),
+ * each request a stream on it, so thousands of clients cost the server a handful of connections instead of one each.
+ * </p>
+ *
+ * <p>
+ * Header blocks are compressed with HPACK. Request bodies are sent as the server's flow control windows allow and the
+ * windows given to the server for responses are only opened back up as the response bytes are written to the clients, so
+ * a slow client holds back its own stream and nothing else. Frames are queued as they're made and written once per pass
+ * of the selector loop.
+ * </p>
+ */
+class Http2Connection implements SelectorHandler, ServerConnector
+{
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(LineReader.ISO_8859_1);
+
+  static final int FRAME_HEADER_LENGTH = 9;
+
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+  /*
+   * The windows given to the server. A stream's window bounds how much of its response can be queued for a client that
+   * isn't keeping up.
+   */
+  static final int STREAM_WINDOW_SIZE = 256 * 1024;
+
+  static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  /*
+   * Times a stream is sent again after the server refused it before the refusal goes back to the client.
+   */
+  static final int MAX_STREAM_REFUSALS = 3;
+
+  static final int DATA = 0x0;
+
+  static final int HEADERS = 0x1;
+
+  static final int PRIORITY = 0x2;
+
+  static final int RST_STREAM = 0x3;
+
+  static final int SETTINGS = 0x4;
+
+  static final int PUSH_PROMISE = 0x5;
+
+  static final int PING = 0x6;
+
+  static final int GOAWAY = 0x7;
+
+  static final int WINDOW_UPDATE = 0x8;
+
+  static final int CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+
+  static final int FLAG_ACK = 0x1;
+
+  static final int FLAG_END_HEADERS = 0x4;
+
+  static final int FLAG_PADDED = 0x8;
+
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  /*
+   * Connection specific request headers that aren't sent over HTTP/2 (RFC 7540 8.1.2.2). Host becomes :authority.
+   */
+  private static final Set<String> NOT_FORWARDED = new HashSet<String>();
+
+  static
+  {
+    Collections.addAll(NOT_FORWARDED, "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "http2-settings");
+  }
+
+  final ConnectionParameters connectionParameters;
+
+  private final SelectorLoop selectorLoop;
+
+  private final SocketChannelPool socketChannelPool;
+
+  private final ProxyLogger log;
+
+  private final int maxWriteAttempts;
+
+  private final long idleTimeoutMillis;
+
+  private final WriteQueue writeQueue;
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(4 * (FRAME_HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE));
+
+  private final HpackEncoder encoder = new HpackEncoder();
+
+  private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+
+  private final TIntObjectHashMap<Http2Stream> streams = new TIntObjectHashMap<Http2Stream>();
+
+  private final ArrayDeque<Http2Stream> waitingStreams = new ArrayDeque<Http2Stream>();
+
+  /*
+   * Streams the server refused, sent again once another stream on the connection finishes.
+   */
+  private final ArrayDeque<Http2Stream> refusedStreams = new ArrayDeque<Http2Stream>();
+
+  private SocketChannel socketChannel;
+
+  private SelectionKey selectionKey;
+
+  private boolean connecting;
+
+  private SocketChannel connectingSocketChannel;
+
+  private long connectDeadline;
+
+  private boolean closed;
+
+  /*
+   * No new streams once the server sends GOAWAY or the stream ids run out.
+   */
+  private boolean goingAway;
+
+  private long idleSince;
+
+  private int nextStreamId = 1;
+
+  private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+
+  private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+  private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+  private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+  private int connectionReceiveWindow = CONNECTION_WINDOW_SIZE;
+
+  private int connectionReceivedSinceUpdate;
+
+  /*
+   * A header block continued in CONTINUATION frames. Nothing else can come on the connection until it ends.
+   */
+  private int continuationStreamId;
+
+  private boolean continuationEndStream;
+
+  private final TByteArrayList continuationBlock = new TByteArrayList();
+
+  private boolean flushRequested;
+
+  private final Runnable flushTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      flushRequested = false;
+      flush();
+    }
+  };
+
+  Http2Connection(SelectorLoop selectorLoop, ConnectionParameters connectionParameters, NIOProxyDirector proxyDirector, SocketChannelPool socketChannelPool) throws IOException
+  {
+    this.selectorLoop = selectorLoop;
+    this.connectionParameters = connectionParameters;
+    this.socketChannelPool = socketChannelPool;
+
+    log = new WrappedLogger(proxyDirector.getLogger());
+    maxWriteAttempts = proxyDirector.getMaxWriteAttempts();
+    idleTimeoutMillis = proxyDirector.getServerConnectionIdleTimeoutSeconds() * 1000l;
+    writeQueue = new WriteQueue(ByteBufferPool.forSize(proxyDirector.getBufferSize()));
+    writeQueue.highWaterMark = proxyDirector.getWriteQueueHighWaterMark();
+
+    socketChannelPool.reserve(connectionParameters);
+    connecting = true;
+    int connectTimeoutMillis = proxyDirector.getConnectTimeoutMillis();
+    connectDeadline = (connectTimeoutMillis > 0) ? System.currentTimeMillis() + connectTimeoutMillis : 0;
+    selectorLoop.watchConnect(this);
+    socketChannelPool.resolve(connectionParameters, selectorLoop, this);
+  }
+
+  /**
+   * @return False once the connection is closed, going away or has been idle past the server connection idle timeout.
+   */
+  boolean isOpenForStreams()
+  {
+    return !closed && !goingAway && !(streams.isEmpty() && waitingStreams.isEmpty() && refusedStreams.isEmpty() && (idleSince > 0) && ((System.currentTimeMillis() - idleSince) >= idleTimeoutMillis));
+  }
+
+  void closeIfIdle()
+  {
+    if (streams.isEmpty() && waitingStreams.isEmpty() && refusedStreams.isEmpty())
+    {
+      close(null);
+    }
+  }
+
+  /**
+   * Opens a stream for the given request. The HEADERS frame goes out once the connection is made and the server's
+   * concurrent stream limit allows.
+   *
+   * @param requestEnded True if the request has no body.
+   */
+  Http2Stream open(PipedExchangeChannel exchange, HttpRequest request, boolean requestEnded)
+  {
+    Http2Stream stream = new Http2Stream(this, exchange, request, requestEnded);
+    adopt(stream);
+    return stream;
+  }
+
+  boolean isBackedUp()
+  {
+    return writeQueue.isBackedUp();
+  }
+
+  int highWaterMark()
+  {
+    return writeQueue.highWaterMark;
+  }
+
+  /*
+   * Takes on a stream that hasn't been sent yet, new or moved from a connection that's going away.
+   */
+  private void adopt(Http2Stream stream)
+  {
+    stream.connection = this;
+    idleSince = 0;
+    if (canStart())
+    {
+      start(stream);
+      requestFlush();
+    }
+    else
+    {
+      waitingStreams.add(stream);
+    }
+  }
+
+  private boolean canStart()
+  {
+    return (socketChannel != null) && !closed && !goingAway && (streams.size() < peerMaxConcurrentStreams);
+  }
+
+  private void startWaitingStreams()
+  {
+    while (!waitingStreams.isEmpty() && canStart())
+    {
+      start(waitingStreams.poll());
+    }
+    requestFlush();
+  }
+
+  private void start(Http2Stream stream)
+  {
+    stream.id = nextStreamId;
+    nextStreamId += 2;
+    if (nextStreamId < 0)
+    {
+      goingAway = true;
+    }
+
+    stream.sendWindow = peerInitialWindowSize;
+    stream.receiveWindow = STREAM_WINDOW_SIZE;
+    streams.put(stream.id, stream);
+
+    boolean endStream = stream.requestEnded && stream.pendingData.isEmpty() && (stream.requestTrailers == null);
+    writeHeaders(stream.id, encodeRequest(stream.request), endStream);
+    stream.endStreamSent = endStream;
+    sendPendingData(stream);
+  }
+
+  void sendData(Http2Stream stream, ByteBuffer buffer, int start, int length)
+  {
+    if (stream.closed || stream.requestEnded)
+    {
+      return;
+    }
+
+    if ((stream.id != 0) && stream.pendingData.isEmpty())
+    {
+      int sent = writeData(stream, buffer, start, length);
+      start += sent;
+      length -= sent;
+    }
+
+    if (length > 0)
+    {
+      byte[] copy = new byte[length];
+      ByteBuffer source = buffer.duplicate();
+      source.limit(start + length);
+      source.position(start);
+      source.get(copy);
+      stream.pendingData.add(ByteBuffer.wrap(copy));
+      stream.pendingBytes += length;
+    }
+    requestFlush();
+  }
+
+  void endRequest(Http2Stream stream, List<HttpHeader> trailers)
+  {
+    if (stream.closed || stream.requestEnded)
+    {
+      return;
+    }
+
+    stream.requestEnded = true;
+    stream.requestTrailers = trailers.isEmpty() ? null : trailers;
+    if ((stream.id != 0) && stream.pendingData.isEmpty())
+    {
+      sendEndStream(stream);
+      requestFlush();
+    }
+  }
+
+  /**
+   * Gives the server back the window for the response bytes the stream's client has taken, unless the client is backed
+   * up.
+   */
+  void updateReceiveWindow(Http2Stream stream)
+  {
+    if (!stream.closed && !stream.endStreamReceived && (stream.receivedSinceUpdate >= (STREAM_WINDOW_SIZE / 2)) && !stream.exchange.isClientBackedUp())
+    {
+      writeWindowUpdate(stream.id, stream.receivedSinceUpdate);
+      stream.receiveWindow += stream.receivedSinceUpdate;
+      stream.receivedSinceUpdate = 0;
+      requestFlush();
+    }
+  }
+
+  void cancel(Http2Stream stream)
+  {
+    if (stream.closed)
+    {
+      return;
+    }
+
+    if (stream.id == 0)
+    {
+      waitingStreams.remove(stream);
+      refusedStreams.remove(stream);
+      stream.closed = true;
+    }
+    else
+    {
+      if (!closed)
+      {
+        writeRstStream(stream.id, Http2Exception.CANCEL);
+        requestFlush();
+      }
+      removeStream(stream);
+    }
+  }
+
+  @Override
+  public boolean isConnecting()
+  {
+    return connecting;
+  }
+
+  @Override
+  public long getConnectDeadline()
+  {
+    return connectDeadline;
+  }
+
+  /*
+   * A connection only connects once.
+   */
+  @Override
+  public int getConnectAttempt()
+  {
+    return 0;
+  }
+
+  @Override
+  public void onServerAddressResolved(InetSocketAddress address)
+  {
+    if (connecting)
+    {
+      try
+      {
+        connectingSocketChannel = SocketChannel.open();
+        connectingSocketChannel.configureBlocking(false);
+        connectingSocketChannel.socket().setTcpNoDelay(true);
+        if (connectingSocketChannel.connect(address))
+        {
+          onConnected();
+        }
+        else
+        {
+          connectingSocketChannel.register(selectorLoop.selector, SelectionKey.OP_CONNECT, this);
+        }
+      }
+      catch (IOException e)
+      {
+        onServerConnectFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void onConnectReady(SelectionKey selectionKey)
+  {
+    if (connecting && (connectingSocketChannel != null) && (selectionKey.channel() == connectingSocketChannel))
+    {
+      try
+      {
+        if (connectingSocketChannel.finishConnect())
+        {
+          onConnected();
+        }
+      }
+      catch (IOException e)
+      {
+        onServerConnectFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void onServerConnectTimeout()
+  {
+    if (connecting)
+    {
+      onServerConnectFailed(new SocketTimeoutException("Connect timed out."));
+    }
+  }
+
+  @Override
+  public void onServerConnectFailed(IOException e)
+  {
+    if (connecting)
+    {
+      close(e);
+    }
+  }
+
+  /*
+   * The connection preface: the magic, our SETTINGS (no server push, the stream window) and the connection window
+   * opened up past the default.
+   */
+  private void onConnected() throws IOException
+  {
+    selectionKey = connectingSocketChannel.register(selectorLoop.selector, SelectionKey.OP_READ, this);
+    socketChannel = connectingSocketChannel;
+    connectingSocketChannel = null;
+    connecting = false;
+
+    writeQueue.add(PREFACE);
+    byte[] settings = frame(12, SETTINGS, 0, 0);
+    putSetting(settings, FRAME_HEADER_LENGTH, SETTINGS_ENABLE_PUSH, 0);
+    putSetting(settings, FRAME_HEADER_LENGTH + 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+    writeQueue.add(settings);
+    writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+
+    startWaitingStreams();
+    flush();
+  }
+
+  @Override
+  public void onWriteReady(SelectionKey selectionKey)
+  {
+    flush();
+  }
+
+  @Override
+  public void onReadReady(SelectionKey selectionKey)
+  {
+    try
+    {
+      for (int i = 0; i < MAX_READS; i++)
+      {
+        int read = socketChannel.read(readBuffer);
+        if (read < 0)
+        {
+          throw new IOException("Connection closed.");
+        }
+        else if (read == 0)
+        {
+          break;
+        }
+
+        readBuffer.flip();
+        try
+        {
+          readFrames();
+        }
+        finally
+        {
+          readBuffer.compact();
+        }
+
+        if (closed)
+        {
+          return;
+        }
+      }
+      flush();
+    }
+    catch (Http2Exception e)
+    {
+      log.error("HTTP/2 connection error with " + connectionParameters.ipOrHost + ":" + connectionParameters.port + ". " + e.getMessage());
+      writeGoAway(e.errorCode);
+      flush();
+      close(e);
+    }
+    catch (IOException e)
+    {
+      close(e);
+    }
+  }
+
+  private void readFrames() throws Http2Exception
+  {
+    byte[] bytes = readBuffer.array();
+    while (readBuffer.remaining() >= FRAME_HEADER_LENGTH)
+    {
+      int position = readBuffer.position();
+      int length = ((bytes[position] & 0xff) << 16) | ((bytes[position + 1] & 0xff) << 8) | (bytes[position + 2] & 0xff);
+      if (length > DEFAULT_MAX_FRAME_SIZE)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes is over the max frame size.");
+      }
+      else if (readBuffer.remaining() < (FRAME_HEADER_LENGTH + length))
+      {
+        return;
+      }
+
+      int type = bytes[position + 3] & 0xff;
+      int flags = bytes[position + 4] & 0xff;
+      int streamId = getInt(bytes, position + 5) & 0x7fffffff;
+      readBuffer.position(position + FRAME_HEADER_LENGTH + length);
+
+      try
+      {
+        onFrame(type, flags, streamId, bytes, position + FRAME_HEADER_LENGTH, length);
+      }
+      catch (Http2Exception e)
+      {
+        if (e.streamId == 0)
+        {
+          throw e;
+        }
+
+        Http2Stream stream = streams.get(e.streamId);
+        writeRstStream(e.streamId, e.errorCode);
+        if (stream != null)
+        {
+          removeStream(stream);
+          stream.exchange.onStreamReset(e);
+        }
+      }
+
+      if (closed)
+      {
+        return;
+      }
+    }
+  }
+
+  private void onFrame(int type, int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if ((continuationStreamId != 0) && (type != CONTINUATION))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected a CONTINUATION frame.");
+    }
+
+    switch (type)
+    {
+      case DATA:
+        onData(flags, streamId, bytes, offset, length);
+        break;
+
+      case HEADERS:
+        onHeaders(flags, streamId, bytes, offset, length);
+        break;
+
+      case PRIORITY:
+        break;
+
+      case RST_STREAM:
+        if (length != 4)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM frame of " + length + " bytes.");
+        }
+        onRstStream(requireStream(streamId), getInt(bytes, offset));
+        break;
+
+      case SETTINGS:
+        onSettings(flags, streamId, bytes, offset, length);
+        break;
+
+      case PUSH_PROMISE:
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE with server push disabled.");
+
+      case PING:
+        if ((streamId != 0) || (length != 8))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid PING frame.");
+        }
+        if ((flags & FLAG_ACK) == 0)
+        {
+          byte[] ping = frame(8, PING, FLAG_ACK, 0);
+          System.arraycopy(bytes, offset, ping, FRAME_HEADER_LENGTH, 8);
+          writeQueue.add(ping);
+        }
+        break;
+
+      case GOAWAY:
+        if ((streamId != 0) || (length < 8))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid GOAWAY frame.");
+        }
+        onGoAway(getInt(bytes, offset) & 0x7fffffff, getInt(bytes, offset + 4));
+        break;
+
+      case WINDOW_UPDATE:
+        if (length != 4)
+        {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + length + " bytes.");
+        }
+        onWindowUpdate(streamId, getInt(bytes, offset) & 0x7fffffff);
+        break;
+
+      case CONTINUATION:
+        if ((continuationStreamId == 0) || (streamId != continuationStreamId))
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+        }
+        continuationBlock.add(bytes, offset, length);
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+          continuationStreamId = 0;
+          byte[] block = continuationBlock.toArray();
+          continuationBlock.resetQuick();
+          onHeaderBlock(streamId, continuationEndStream, block, 0, block.length);
+        }
+        else if (continuationBlock.size() > MAX_HEADER_BLOCK_SIZE)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block over " + MAX_HEADER_BLOCK_SIZE + " bytes.");
+        }
+        break;
+
+      default:
+        /*
+         * Unknown frame types are ignored (RFC 7540 4.1).
+         */
+        break;
+    }
+  }
+
+  private void onData(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    Http2Stream stream = requireStream(streamId);
+
+    /*
+     * The whole frame (padding too) counts against the windows. The connection window is given back straight away, the
+     * stream's as the client takes the data.
+     */
+    if (length > connectionReceiveWindow)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "DATA past the connection window.");
+    }
+    connectionReceiveWindow -= length;
+    connectionReceivedSinceUpdate += length;
+    if (connectionReceivedSinceUpdate >= (CONNECTION_WINDOW_SIZE / 2))
+    {
+      writeWindowUpdate(0, connectionReceivedSinceUpdate);
+      connectionReceiveWindow += connectionReceivedSinceUpdate;
+      connectionReceivedSinceUpdate = 0;
+    }
+
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0)
+    {
+      padding = (length > 0) ? (bytes[offset] & 0xff) + 1 : 1;
+      if (padding > length)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA padding past the end of the frame.");
+      }
+    }
+
+    if (stream == null)
+    {
+      return;
+    }
+    else if (stream.endStreamReceived)
+    {
+      throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after END_STREAM.");
+    }
+    else if (!stream.responseStarted)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "DATA before the response HEADERS.");
+    }
+    else if (length > stream.receiveWindow)
+    {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "DATA past the stream window.");
+    }
+
+    stream.receiveWindow -= length;
+    stream.receivedSinceUpdate += length;
+
+    int dataOffset = offset + (((flags & FLAG_PADDED) != 0) ? 1 : 0);
+    int dataLength = length - padding;
+    if (dataLength > 0)
+    {
+      stream.exchange.onStreamData(ByteBuffer.wrap(bytes, dataOffset, dataLength));
+      if (stream.closed)
+      {
+        return;
+      }
+    }
+
+    if ((flags & FLAG_END_STREAM) != 0)
+    {
+      stream.endStreamReceived = true;
+      onRemoteEnd(stream);
+      stream.exchange.onStreamEnd(Collections.<HttpHeader>emptyList());
+    }
+    else
+    {
+      updateReceiveWindow(stream);
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0.");
+    }
+
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0)
+    {
+      padding = (length > 0) ? (bytes[offset] & 0xff) : 0;
+      offset++;
+      length--;
+    }
+    if ((flags & FLAG_PRIORITY) != 0)
+    {
+      offset += 5;
+      length -= 5;
+    }
+    length -= padding;
+    if (length < 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS padding past the end of the frame.");
+    }
+
+    if ((flags & FLAG_END_HEADERS) != 0)
+    {
+      onHeaderBlock(streamId, (flags & FLAG_END_STREAM) != 0, bytes, offset, length);
+    }
+    else
+    {
+      continuationStreamId = streamId;
+      continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+      continuationBlock.resetQuick();
+      continuationBlock.add(bytes, offset, length);
+    }
+  }
+
+  /*
+   * Every block is decoded (the HPACK table depends on it) even when its stream is gone.
+   */
+  private void onHeaderBlock(int streamId, boolean endStream, byte[] block, int offset, int length) throws Http2Exception
+  {
+    List<HttpHeader> fields = new ArrayList<HttpHeader>();
+    decoder.decode(block, offset, length, fields);
+
+    Http2Stream stream = requireStream(streamId);
+    if (stream == null)
+    {
+      return;
+    }
+    else if (stream.endStreamReceived)
+    {
+      throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS after END_STREAM.");
+    }
+
+    int statusCode = -1;
+    List<HttpHeader> headers = new ArrayList<HttpHeader>(fields.size());
+    for (HttpHeader field : fields)
+    {
+      if (field.name.startsWith(":"))
+      {
+        if (!field.name.equals(":status") || stream.responseStarted || (statusCode != -1) || !headers.isEmpty())
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Unexpected pseudo-header field " + field.name + ".");
+        }
+        statusCode = parseStatus(field.value);
+        if (statusCode == -1)
+        {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Invalid :status " + field.value + ".");
+        }
+      }
+      else
+      {
+        field.name = WellKnownHeaders.forLowercase(field.name);
+        headers.add(field);
+      }
+    }
+
+    if (stream.responseStarted)
+    {
+      if (!endStream)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM.");
+      }
+      stream.endStreamReceived = true;
+      onRemoteEnd(stream);
+      stream.exchange.onStreamEnd(headers);
+    }
+    else if (statusCode == -1)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Response without :status.");
+    }
+    else if (statusCode < 200)
+    {
+      if (endStream)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Interim response with END_STREAM.");
+      }
+      stream.exchange.onStreamResponse(statusCode, headers, false);
+    }
+    else
+    {
+      stream.responseStarted = true;
+      if (endStream)
+      {
+        stream.endStreamReceived = true;
+        onRemoteEnd(stream);
+      }
+      stream.exchange.onStreamResponse(statusCode, headers, endStream);
+    }
+  }
+
+  /*
+   * A REFUSED_STREAM wasn't processed by the server so it's sent again, as long as none of its body has gone out, up to
+   * MAX_STREAM_REFUSALS times. It waits for another stream on the connection to finish first, or is sent right away if
+   * there's none to wait on.
+   */
+  private void onRstStream(Http2Stream stream, int errorCode)
+  {
+    if (stream == null)
+    {
+      return;
+    }
+
+    boolean refused = (errorCode == Http2Exception.REFUSED_STREAM) && !stream.dataSent && !stream.responseStarted && (stream.refusals < MAX_STREAM_REFUSALS);
+    removeStream(stream, refused);
+    if (refused)
+    {
+      stream.refusals++;
+      if (closed || streams.isEmpty())
+      {
+        retry(stream);
+      }
+      else
+      {
+        refusedStreams.add(stream);
+      }
+    }
+    else
+    {
+      stream.exchange.onStreamReset(new Http2Exception(errorCode, stream.id, "Stream reset by server (error code " + errorCode + ")."));
+    }
+  }
+
+  private void onSettings(int flags, int streamId, byte[] bytes, int offset, int length) throws Http2Exception
+  {
+    if (streamId != 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId + ".");
+    }
+    else if ((flags & FLAG_ACK) != 0)
+    {
+      if (length != 0)
+      {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload.");
+      }
+      return;
+    }
+    else if ((length % 6) != 0)
+    {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS frame of " + length + " bytes.");
+    }
+
+    boolean windowsOpened = false;
+    for (int i = offset; i < offset + length; i += 6)
+    {
+      int identifier = ((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff);
+      int value = getInt(bytes, i + 2);
+      switch (identifier)
+      {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxTableSize((value < 0) ? Integer.MAX_VALUE : value);
+          break;
+
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          peerMaxConcurrentStreams = (value < 0) ? Integer.MAX_VALUE : value;
+          break;
+
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0)
+          {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + (value & 0xffffffffl) + ".");
+          }
+
+          /*
+           * The change applies to the windows of the streams already open (RFC 7540 6.9.2).
+           */
+          int delta = value - peerInitialWindowSize;
+          peerInitialWindowSize = value;
+          for (Http2Stream stream : streams.valueCollection())
+          {
+            long window = (long)stream.sendWindow + delta;
+            if (window > Integer.MAX_VALUE)
+            {
+              throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window past 2^31-1.");
+            }
+            stream.sendWindow = (int)window;
+          }
+          windowsOpened |= delta > 0;
+          break;
+
+        case SETTINGS_MAX_FRAME_SIZE:
+          if ((value < DEFAULT_MAX_FRAME_SIZE) || (value > 0xffffff))
+          {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value + ".");
+          }
+          peerMaxFrameSize = value;
+          break;
+
+        default:
+          break;
+      }
+    }
+
+    writeQueue.add(frame(0, SETTINGS, FLAG_ACK, 0));
+    if (windowsOpened)
+    {
+      sendAllPendingData();
+    }
+    startWaitingStreams();
+  }
+
+  /*
+   * Streams the server won't process (after its last stream id) go to a new connection if they can, the rest finish
+   * here and then the connection is closed.
+   */
+  private void onGoAway(int lastStreamId, int errorCode)
+  {
+    goingAway = true;
+    while (!refusedStreams.isEmpty())
+    {
+      retry(refusedStreams.poll());
+    }
+    while (!waitingStreams.isEmpty())
+    {
+      retry(waitingStreams.poll());
+    }
+
+    for (Http2Stream stream : new ArrayList<Http2Stream>(streams.valueCollection()))
+    {
+      if (stream.id > lastStreamId)
+      {
+        removeStream(stream);
+        if (!stream.dataSent && !stream.responseStarted)
+        {
+          retry(stream);
+        }
+        else
+        {
+          stream.exchange.onStreamReset(new Http2Exception(errorCode, stream.id, "Server going away (error code " + errorCode + ")."));
+        }
+      }
+    }
+
+    if (streams.isEmpty())
+    {
+      close(null);
+    }
+  }
+
+  private void onWindowUpdate(int streamId, int increment) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      if (increment == 0)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+      }
+      else if (((long)connectionSendWindow + increment) > Integer.MAX_VALUE)
+      {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window past 2^31-1.");
+      }
+      connectionSendWindow += increment;
+      sendAllPendingData();
+    }
+    else
+    {
+      Http2Stream stream = requireStream(streamId);
+      if (stream == null)
+      {
+        return;
+      }
+      else if (increment == 0)
+      {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0.");
+      }
+      else if (((long)stream.sendWindow + increment) > Integer.MAX_VALUE)
+      {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window past 2^31-1.");
+      }
+      stream.sendWindow += increment;
+      sendPendingData(stream);
+      notifyIfWritable(stream);
+    }
+  }
+
+  /*
+   * @return The open stream with the given id or null if it's one we've already closed.
+   */
+  private Http2Stream requireStream(int streamId) throws Http2Exception
+  {
+    if (streamId == 0)
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Stream frame on stream 0.");
+    }
+
+    Http2Stream stream = streams.get(streamId);
+    if ((stream == null) && (((streamId & 1) == 0) || (streamId >= nextStreamId)))
+    {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame on idle stream " + streamId + ".");
+    }
+    return stream;
+  }
+
+  private void retry(Http2Stream stream)
+  {
+    stream.id = 0;
+    stream.endStreamSent = false;
+    stream.closed = false;
+    try
+    {
+      selectorLoop.http2Connection(connectionParameters).adopt(stream);
+    }
+    catch (IOException e)
+    {
+      stream.closed = true;
+      stream.exchange.onStreamConnectFailed(e);
+    }
+  }
+
+  /*
+   * The server ended its side. If the request body isn't all sent the rest won't be wanted.
+   */
+  private void onRemoteEnd(Http2Stream stream)
+  {
+    if (!stream.endStreamSent)
+    {
+      writeRstStream(stream.id, Http2Exception.CANCEL);
+    }
+    removeStream(stream);
+  }
+
+  private void removeStream(Http2Stream stream)
+  {
+    removeStream(stream, false);
+  }
+
+  /*
+   * @param refused True if the server refused the stream, which doesn't count as one finishing for the streams it refused
+   * before.
+   */
+  private void removeStream(Http2Stream stream, boolean refused)
+  {
+    stream.closed = true;
+    if (streams.remove(stream.id) != null)
+    {
+      while (!refused && !refusedStreams.isEmpty())
+      {
+        retry(refusedStreams.poll());
+      }
+
+      if (streams.isEmpty())
+      {
+        idleSince = System.currentTimeMillis();
+        if (goingAway)
+        {
+          close(null);
+          return;
+        }
+      }
+      startWaitingStreams();
+    }
+  }
+
+  private void sendAllPendingData()
+  {
+    for (Http2Stream stream : new ArrayList<Http2Stream>(streams.valueCollection()))
+    {
+      if ((connectionSendWindow <= 0))
+      {
+        break;
+      }
+      else if (!stream.pendingData.isEmpty())
+      {
+        sendPendingData(stream);
+        notifyIfWritable(stream);
+      }
+    }
+  }
+
+  private void sendPendingData(Http2Stream stream)
+  {
+    while (!stream.pendingData.isEmpty())
+    {
+      ByteBuffer data = stream.pendingData.peek();
+      int sent = writeData(stream, data, data.position(), data.remaining());
+      if (sent == 0)
+      {
+        return;
+      }
+
+      stream.pendingBytes -= sent;
+      data.position(data.position() + sent);
+      if (!data.hasRemaining())
+      {
+        stream.pendingData.poll();
+      }
+    }
+
+    if (stream.requestEnded && !stream.endStreamSent)
+    {
+      sendEndStream(stream);
+    }
+    requestFlush();
+  }
+
+  /*
+   * @return The number of bytes sent, as many as the windows allow.
+   */
+  private int writeData(Http2Stream stream, ByteBuffer buffer, int start, int length)
+  {
+    int sent = 0;
+    while (sent < length)
+    {
+      int size = Math.min(Math.min(length - sent, peerMaxFrameSize), Math.min(stream.sendWindow, connectionSendWindow));
+      if (size <= 0)
+      {
+        break;
+      }
+
+      ByteBuffer data = buffer.duplicate();
+      data.limit(start + sent + size);
+      data.position(start + sent);
+      writeQueue.add(frame(size, DATA, 0, stream.id, FRAME_HEADER_LENGTH));
+      writeQueue.add(data);
+
+      stream.sendWindow -= size;
+      connectionSendWindow -= size;
+      stream.dataSent = true;
+      sent += size;
+    }
+    return sent;
+  }
+
+  private void sendEndStream(Http2Stream stream)
+  {
+    if (stream.requestTrailers != null)
+    {
+      TByteArrayList block = new TByteArrayList();
+      encoder.beginBlock(block);
+      for (HttpHeader trailer : stream.requestTrailers)
+      {
+        encoder.encode(trailer.name.toLowerCase(), (trailer.value == null) ? "" : trailer.value, block);
+      }
+      writeHeaders(stream.id, block, true);
+    }
+    else
+    {
+      writeQueue.add(frame(0, DATA, FLAG_END_STREAM, stream.id));
+    }
+    stream.endStreamSent = true;
+
+    if (stream.endStreamReceived)
+    {
+      removeStream(stream);
+    }
+  }
+
+  private void notifyIfWritable(Http2Stream stream)
+  {
+    if (stream.wasBackedUp && !stream.closed && (stream.pendingBytes < writeQueue.highWaterMark) && !writeQueue.isBackedUp())
+    {
+      stream.wasBackedUp = false;
+      stream.exchange.onStreamWritable();
+    }
+  }
+
+  /*
+   * The request line becomes the :method, :scheme, :path and :authority pseudo-header fields (RFC 7540 8.1.2.3) and the
+   * header names are lowercased. Connection specific headers (and any the Connection header names) are left out.
+   */
+  private TByteArrayList encodeRequest(HttpRequest request)
+  {
+    String path = request.path;
+    String authority = request.getHeaderValue("Host");
+    int schemeEnd = path.indexOf("://");
+    if ((schemeEnd > 0) && (schemeEnd < path.indexOf('/')))
+    {
+      int pathStart = path.indexOf('/', schemeEnd + 3);
+      authority = path.substring(schemeEnd + 3, (pathStart == -1) ? path.length() : pathStart);
+      path = (pathStart == -1) ? "/" : path.substring(pathStart);
+    }
+    if ((authority == null) || authority.isEmpty())
+    {
+      authority = (connectionParameters.port == 80) ? connectionParameters.ipOrHost : connectionParameters.ipOrHost + ":" + connectionParameters.port;
+    }
+
+    Set<String> connectionTokens = null;
+    for (HttpHeader connection : request.getHeaders("Connection"))
+    {
+      if (connection.value == null)
+      {
+        continue;
+      }
+
+      for (String token : connection.value.split(","))
+      {
+        if (connectionTokens == null)
+        {
+          connectionTokens = new HashSet<String>();
+        }
+        connectionTokens.add(token.trim().toLowerCase());
+      }
+    }
+
+    TByteArrayList block = new TByteArrayList(512);
+    encoder.beginBlock(block);
+    encoder.encode(":method", request.method, block);
+    encoder.encode(":scheme", "http", block);
+    encoder.encode(":authority", authority, block);
+    encoder.encode(":path", path.isEmpty() ? "/" : path, block);
+
+    for (HttpHeader header : request.headers)
+    {
+      if (header.name == null)
+      {
+        continue;
+      }
+
+      String name = header.name.toLowerCase();
+      String value = (header.value == null) ? "" : header.value;
+      if (NOT_FORWARDED.contains(name) || ((connectionTokens != null) && connectionTokens.contains(name)) || (name.equals("te") && !value.equalsIgnoreCase("trailers")))
+      {
+        continue;
+      }
+      encoder.encode(name, value, block);
+    }
+    return block;
+  }
+
+  /*
+   * A header block too big for one frame is split into HEADERS and CONTINUATION frames, written back to back.
+   */
+  private void writeHeaders(int streamId, TByteArrayList block, boolean endStream)
+  {
+    int length = block.size();
+    int offset = 0;
+    boolean first = true;
+    do
+    {
+      int size = Math.min(length - offset, peerMaxFrameSize);
+      boolean last = (offset + size) == length;
+      int flags = (last ? FLAG_END_HEADERS : 0) | ((first && endStream) ? FLAG_END_STREAM : 0);
+      byte[] frame = frame(size, first ? HEADERS : CONTINUATION, flags, streamId);
+      block.toArray(frame, offset, FRAME_HEADER_LENGTH, size);
+      writeQueue.add(frame);
+      offset += size;
+      first = false;
+    }
+    while (offset < length);
+  }
+
+  private void writeWindowUpdate(int streamId, int increment)
+  {
+    byte[] frame = frame(4, WINDOW_UPDATE, 0, streamId);
+    putInt(frame, FRAME_HEADER_LENGTH, increment);
+    writeQueue.add(frame);
+  }
+
+  private void writeRstStream(int streamId, int errorCode)
+  {
+    byte[] frame = frame(4, RST_STREAM, 0, streamId);
+    putInt(frame, FRAME_HEADER_LENGTH, errorCode);
+    writeQueue.add(frame);
+  }
+
+  private void writeGoAway(int errorCode)
+  {
+    byte[] frame = frame(8, GOAWAY, 0, 0);
+    putInt(frame, FRAME_HEADER_LENGTH + 4, errorCode);
+    writeQueue.add(frame);
+  }
+
+  /*
+   * Frames made on the selector thread are written together once it's done with the ready keys.
+   */
+  private void requestFlush()
+  {
+    if (!flushRequested && (socketChannel != null) && !closed)
+    {
+      flushRequested = true;
+      selectorLoop.execute(flushTask);
+    }
+  }
+
+  private void flush()
+  {
+    if ((socketChannel == null) || closed)
+    {
+      return;
+    }
+
+    boolean wasBackedUp = writeQueue.isBackedUp();
+    try
+    {
+      for (int remainingWriteAttempts = maxWriteAttempts; remainingWriteAttempts > 0; remainingWriteAttempts--)
+      {
+        long written = writeQueue.write(socketChannel, null);
+        if (written < 0)
+        {
+          throw new IOException("Connection closed.");
+        }
+        else if ((written == 0) || writeQueue.isEmpty())
+        {
+          break;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      close(e);
+      return;
+    }
+
+    int interestOps = SelectionKey.OP_READ | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    if (selectionKey.isValid() && (selectionKey.interestOps() != interestOps))
+    {
+      selectionKey.interestOps(interestOps);
+    }
+
+    if (wasBackedUp && !writeQueue.isBackedUp())
+    {
+      for (Http2Stream stream : new ArrayList<Http2Stream>(streams.valueCollection()))
+      {
+        notifyIfWritable(stream);
+      }
+    }
+  }
+
+  /*
+   * Every stream still open (or waiting to be) is ended with the given error, a connect failure if the connection was
+   * never made.
+   */
+  private void close(IOException e)
+  {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+    boolean connectFailed = connecting;
+    connecting = false;
+    selectorLoop.onHttp2ConnectionClosed(this);
+
+    if (connectingSocketChannel != null)
+    {
+      socketChannelPool.closeQuitely(connectingSocketChannel);
+      connectingSocketChannel = null;
+    }
+    if (socketChannel != null)
+    {
+      socketChannelPool.closeQuitely(socketChannel);
+    }
+    socketChannelPool.cancelReservation(connectionParameters);
+    writeQueue.clear();
+
+    if (e == null)
+    {
+      e = new IOException("HTTP/2 connection closed.");
+    }
+
+    List<Http2Stream> open = new ArrayList<Http2Stream>(streams.valueCollection());
+    open.addAll(waitingStreams);
+    open.addAll(refusedStreams);
+    streams.clear();
+    waitingStreams.clear();
+    refusedStreams.clear();
+    for (Http2Stream stream : open)
+    {
+      stream.closed = true;
+      if (connectFailed)
+      {
+        stream.exchange.onStreamConnectFailed(e);
+      }
+      else
+      {
+        stream.exchange.onStreamReset(e);
+      }
+    }
+  }
+
+  /**
+   * @return The status code or -1 if it isn't three digits.
+   */
+  static int parseStatus(String status)
+  {
+    if (status.length() != 3)
+    {
+      return -1;
+    }
+
+    int statusCode = 0;
+    for (int i = 0; i < 3; i++)
+    {
+      char c = status.charAt(i);
+      if ((c < '0') || (c > '9'))
+      {
+        return -1;
+      }
+      statusCode = (statusCode * 10) + (c - '0');
+    }
+    return (statusCode < 100) ? -1 : statusCode;
+  }
+
+  /**
+   * @return The reason phrase for the status line of a response read over HTTP/2 (which has none).
+   */
+  static String reasonPhrase(int statusCode)
+  {
+    switch (statusCode)
+    {
+      case 100: return "Continue";
+      case 103: return "Early Hints";
+      case 200: return "OK";
+      case 201: return "Created";
+      case 202: return "Accepted";
+      case 204: return "No Content";
+      case 206: return "Partial Content";
+      case 301: return "Moved Permanently";
+      case 302: return "Found";
+      case 303: return "See Other";
+      case 304: return "Not Modified";
+      case 307: return "Temporary Redirect";
+      case 308: return "Permanent Redirect";
+      case 400: return "Bad Request";
+      case 401: return "Unauthorized";
+      case 403: return "Forbidden";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 409: return "Conflict";
+      case 410: return "Gone";
+      case 412: return "Precondition Failed";
+      case 413: return "Payload Too Large";
+      case 415: return "Unsupported Media Type";
+      case 416: return "Range Not Satisfiable";
+      case 422: return "Unprocessable Entity";
+      case 429: return "Too Many Requests";
+      case 500: return "Internal Server Error";
+      case 501: return "Not Implemented";
+      case 502: return "Bad Gateway";
+      case 503: return "Service Unavailable";
+      case 504: return "Gateway Timeout";
+      default: return "";
+    }
+  }
+
+  static byte[] frame(int length, int type, int flags, int streamId)
+  {
+    return frame(length, type, flags, streamId, length + FRAME_HEADER_LENGTH);
+  }
+
+  /*
+   * A frame header for a payload of the given length at the start of an array of the given size.
+   */
+  static byte[] frame(int payloadLength, int type, int flags, int streamId, int size)
+  {
+    byte[] frame = new byte[size];
+    frame[0] = (byte)(payloadLength >>> 16);
+    frame[1] = (byte)(payloadLength >>> 8);
+    frame[2] = (byte)payloadLength;
+    frame[3] = (byte)type;
+    frame[4] = (byte)flags;
+    putInt(frame, 5, streamId);
+    return frame;
+  }
+
+  static void putSetting(byte[] bytes, int offset, int identifier, int value)
+  {
+    bytes[offset] = (byte)(identifier >>> 8);
+    bytes[offset + 1] = (byte)identifier;
+    putInt(bytes, offset + 2, value);
+  }
+
+  static void putInt(byte[] bytes, int offset, int value)
+  {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+  static int getInt(byte[] bytes, int offset)
+  {
+    return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+  }
+
+  private static final int MAX_READS = 16;
+
+  static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 error (RFC 7540 5.4) found on a connection to a server. A stream error ends only its stream, a connection
+ * error (stream 0) ends the connection and every stream on it.
+ */
+class Http2Exception extends IOException
+{
+  static final int NO_ERROR = 0x0;
+
+  static final int PROTOCOL_ERROR = 0x1;
+
+  static final int INTERNAL_ERROR = 0x2;
+
+  static final int FLOW_CONTROL_ERROR = 0x3;
+
+  static final int STREAM_CLOSED = 0x5;
+
+  static final int FRAME_SIZE_ERROR = 0x6;
+
+  static final int REFUSED_STREAM = 0x7;
+
+  static final int CANCEL = 0x8;
+
+  static final int COMPRESSION_ERROR = 0x9;
+
+  private static final long serialVersionUID = 1L;
+
+  final int errorCode;
+
+  final int streamId;
+
+  Http2Exception(int errorCode, String message)
+  {
+    this(errorCode, 0, message);
+  }
+
+  Http2Exception(int errorCode, int streamId, String message)
+  {
+    super(message);
+    this.errorCode = errorCode;
+    this.streamId = streamId;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A request sent to a server as a stream of an {@link Http2Connection} and the response read back on it. The exchange
+ * the request came from hands the request body over as it's read from the client and the connection sends it as the
+ * flow control windows allow. Everything is on the selector thread.
+ */
+class Http2Stream
+{
+  Http2Connection connection;
+
+  final PipedExchangeChannel exchange;
+
+  final HttpRequest request;
+
+  /*
+   * 0 until the HEADERS frame is sent. Streams wait for the connection to be made and for the server's concurrent stream
+   * limit.
+   */
+  int id;
+
+  /*
+   * Bytes of DATA the server will still take on this stream.
+   */
+  int sendWindow;
+
+  /*
+   * Bytes of DATA the server can still send on this stream and the bytes received since the last WINDOW_UPDATE.
+   */
+  int receiveWindow;
+
+  int receivedSinceUpdate;
+
+  /*
+   * Request body copied off the client's read buffer that's waiting on the send windows.
+   */
+  final ArrayDeque<ByteBuffer> pendingData = new ArrayDeque<ByteBuffer>();
+
+  long pendingBytes;
+
+  boolean dataSent;
+
+  boolean requestEnded;
+
+  List<HttpHeader> requestTrailers;
+
+  boolean endStreamSent;
+
+  boolean responseStarted;
+
+  boolean endStreamReceived;
+
+  boolean closed;
+
+  /*
+   * Times the server has refused this stream (REFUSED_STREAM).
+   */
+  int refusals;
+
+  /*
+   * Set when the exchange saw this stream backed up so it's told when it isn't anymore.
+   */
+  boolean wasBackedUp;
+
+  Http2Stream(Http2Connection connection, PipedExchangeChannel exchange, HttpRequest request, boolean requestEnded)
+  {
+    this.connection = connection;
+    this.exchange = exchange;
+    this.request = request;
+    this.requestEnded = requestEnded;
+  }
+
+  /**
+   * Sends the request body bytes {@code buffer[start, start + length)}. Whatever the windows won't take now is copied.
+   */
+  void sendData(ByteBuffer buffer, int start, int length)
+  {
+    connection.sendData(this, buffer, start, length);
+  }
+
+  /**
+   * The request body has been read from the client.
+   */
+  void endRequest(List<HttpHeader> trailers)
+  {
+    connection.endRequest(this, trailers);
+  }
+
+  /**
+   * @return True when no more of the request body should be read from the client until
+   * {@link PipedExchangeChannel#onStreamWritable()}.
+   */
+  boolean isBackedUp()
+  {
+    if ((pendingBytes >= connection.highWaterMark()) || connection.isBackedUp())
+    {
+      wasBackedUp = true;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * The response bytes queued for the client have been written out, the server can be given more window.
+   */
+  void onClientWritten()
+  {
+    connection.updateReceiveWindow(this);
+  }
+
+  /**
+   * The exchange is done with this stream before it ended (the client went away).
+   */
+  void cancel()
+  {
+    connection.cancel(this);
+  }
+}
@@ -15,9 +15,7 @@
  */
 package org.baswell.httproxy;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -29,10 +27,6 @@ import java.util.List;
  */
 public class HttpCookie
 {
-  private static final String PATTERN_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
-
-  private static final String PATTERN_RFC1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
-
   /**
    * The cookie name.
    */
@@ -75,7 +69,6 @@ public class HttpCookie
    */
   public HttpCookie(String encodedHeaderValue)
   {
-
     String name = null;
     String value = null;
     String domain = null;
@@ -84,30 +77,28 @@ public class HttpCookie
     boolean secure = false;
     boolean httpOnly = false;
 
-    String[] attributes = encodedHeaderValue.split(";");
-
-    if (attributes.length > 0)
+    int length = encodedHeaderValue.length();
+    int attributeEnd = indexOf(encodedHeaderValue, ';', 0, length);
+    int equals = indexOf(encodedHeaderValue, '=', 0, attributeEnd);
+    if (equals < attributeEnd)
     {
-      String[] nameValues = attributes[0].trim().split("=");
-      if (nameValues.length > 0)
-      {
-        name = nameValues[0].trim();
-      }
-
-      if (nameValues.length > 1)
-      {
-        value = nameValues[1].trim();
-      }
+      name = trim(encodedHeaderValue, 0, equals);
+      value = trim(encodedHeaderValue, equals + 1, attributeEnd);
+    }
+    else
+    {
+      name = trim(encodedHeaderValue, 0, attributeEnd);
     }
 
-    for (int i = 1; i < attributes.length; i++)
+    while (attributeEnd < length)
     {
-      String attribute = attributes[i].trim();
-      String[] attNameValue = attribute.split("=");
-      if (attNameValue.length > 1)
+      int attributeStart = attributeEnd + 1;
+      attributeEnd = indexOf(encodedHeaderValue, ';', attributeStart, length);
+      equals = indexOf(encodedHeaderValue, '=', attributeStart, attributeEnd);
+      if (equals < attributeEnd)
       {
-        String attName = attNameValue[0].trim();
-        String attValue = attNameValue[1].trim();
+        String attName = trim(encodedHeaderValue, attributeStart, equals);
+        String attValue = trim(encodedHeaderValue, equals + 1, attributeEnd);
 
         if (attName.equalsIgnoreCase("Domain"))
         {
@@ -119,22 +110,20 @@ public class HttpCookie
         }
         else if (attName.equalsIgnoreCase("Expires"))
         {
-          try
-          {
-            String expiresPattern = attValue.contains("-") ? PATTERN_RFC1036 : PATTERN_RFC1123;
-            expiresAt = new SimpleDateFormat(expiresPattern).parse(attValue).getTime();
-          }
-          catch (Exception e)
-          {}
+          expiresAt = HttpDate.parse(attValue);
         }
       }
-      else if (attribute.equalsIgnoreCase("Secure"))
-      {
-        secure = true;
-      }
-      else if (attribute.equalsIgnoreCase("HttpOnly"))
+      else
       {
-        httpOnly = true;
+        String attribute = trim(encodedHeaderValue, attributeStart, attributeEnd);
+        if (attribute.equalsIgnoreCase("Secure"))
+        {
+          secure = true;
+        }
+        else if (attribute.equalsIgnoreCase("HttpOnly"))
+        {
+          httpOnly = true;
+        }
       }
     }
 
@@ -193,51 +182,54 @@ public class HttpCookie
   @Override
   public String toString()
   {
-    String encoded = name + "="+ value;
+    StringBuilder encoded = new StringBuilder(64);
+    encoded.append(name).append('=').append(value);
 
     if (domain != null)
     {
-      encoded += "; Domain=" + domain;
+      encoded.append("; Domain=").append(domain);
     }
 
     if (path != null)
     {
-      encoded += "; Path=" + path;
+      encoded.append("; Path=").append(path);
     }
 
     if (expiresAt != null)
     {
-      encoded += "; Expires=" + new SimpleDateFormat(PATTERN_RFC1036).format(new Date(expiresAt));
+      encoded.append("; Expires=").append(HttpDate.format(expiresAt));
     }
 
     if (secure)
     {
-      encoded += "; Secure";
+      encoded.append("; Secure");
     }
 
     if (httpOnly)
     {
-      encoded += "; HttpOnly";
+      encoded.append("; HttpOnly");
     }
 
-    return encoded;
+    return encoded.toString();
   }
 
   static List<HttpCookie> decodeHeaderValue(String cookieHeaderValue)
   {
-    String[] values = cookieHeaderValue.split(";");
     List<HttpCookie> cookies = new ArrayList<HttpCookie>();
-    for (String value : values)
+    int length = cookieHeaderValue.length();
+    for (int start = 0; start < length;)
     {
-      value = value.trim();
-      if (!value.isEmpty())
+      int end = indexOf(cookieHeaderValue, ';', start, length);
+      int equals = indexOf(cookieHeaderValue, '=', start, end);
+      if (equals < end)
       {
-        HttpCookie cookie = new HttpCookie(value);
-        if (cookie.name != null && cookie.value != null)
+        String name = trim(cookieHeaderValue, start, equals);
+        if (!name.isEmpty())
         {
-          cookies.add(cookie);
+          cookies.add(new HttpCookie(name, trim(cookieHeaderValue, equals + 1, end)));
         }
       }
+      start = end + 1;
     }
     return cookies;
   }
@@ -257,4 +249,31 @@ public class HttpCookie
     return headerValue.toString();
   }
 
+  /*
+   * The index of c in value[start, end) or end if it isn't there.
+   */
+  static int indexOf(String value, char c, int start, int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      if (value.charAt(i) == c)
+      {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  static String trim(String value, int start, int end)
+  {
+    while ((start < end) && (value.charAt(start) <= ' '))
+    {
+      start++;
+    }
+    while ((end > start) && (value.charAt(end - 1) <= ' '))
+    {
+      end--;
+    }
+    return value.substring(start, end);
+  }
 }
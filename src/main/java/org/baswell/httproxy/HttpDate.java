@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe parsing and formatting of the dates used in cookie <i>Expires</i> attributes (and other HTTP dates) without
+ * SimpleDateFormat. Parses RFC 1123 (<i>Tue, 15 Jan 2013 21:47:38 GMT</i>) and RFC 1036 (<i>Tuesday, 15-Jan-13 21:47:38
+ * GMT</i>) dates and formats RFC 1123 dates. Both directions cache by the second since the same few dates (now plus a
+ * fixed max age) are seen over and over.
+ */
+final class HttpDate
+{
+  static final String PATTERN_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  static final String PATTERN_RFC1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
+
+  private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"};
+
+  private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  private static final int PARSE_CACHE_SIZE = 64;
+
+  private static final Parsed[] parseCache = new Parsed[PARSE_CACHE_SIZE];
+
+  private static volatile Formatted lastFormatted = new Formatted(Long.MIN_VALUE, null);
+
+  /**
+   * @return The time in milliseconds of the given date or null if it isn't a date in one of the supported formats.
+   */
+  static Long parse(String date)
+  {
+    int slot = date.hashCode() & (PARSE_CACHE_SIZE - 1);
+    Parsed parsed = parseCache[slot];
+    if ((parsed != null) && parsed.date.equals(date))
+    {
+      return parsed.time;
+    }
+
+    long time = parseGmt(date);
+    Long result;
+    if (time != Long.MIN_VALUE)
+    {
+      result = time;
+    }
+    else
+    {
+      /*
+       * Other time zones (and anything else SimpleDateFormat is lenient about) the slow way.
+       */
+      try
+      {
+        result = new SimpleDateFormat(date.contains("-") ? PATTERN_RFC1036 : PATTERN_RFC1123).parse(date).getTime();
+      }
+      catch (Exception e)
+      {
+        return null;
+      }
+    }
+
+    parseCache[slot] = new Parsed(date, result);
+    return result;
+  }
+
+  /**
+   * @return The given time as an RFC 1123 date in GMT (ex. <i>Tue, 15 Jan 2013 21:47:38 GMT</i>).
+   */
+  static String format(long time)
+  {
+    long second = floorDiv(time, 1000l);
+    Formatted formatted = lastFormatted;
+    if (formatted.second == second)
+    {
+      return formatted.date;
+    }
+
+    long days = floorDiv(second, 86400l);
+    int secondOfDay = (int)(second - (days * 86400l));
+
+    /*
+     * Civil date from days since the epoch (Howard Hinnant's days_from_civil inverted).
+     */
+    long z = days + 719468;
+    long era = floorDiv(z, 146097l);
+    int dayOfEra = (int)(z - (era * 146097));
+    int yearOfEra = (dayOfEra - (dayOfEra / 1460) + (dayOfEra / 36524) - (dayOfEra / 146096)) / 365;
+    int dayOfYear = dayOfEra - ((365 * yearOfEra) + (yearOfEra / 4) - (yearOfEra / 100));
+    int mp = ((5 * dayOfYear) + 2) / 153;
+    int day = dayOfYear - (((153 * mp) + 2) / 5) + 1;
+    int month = (mp < 10) ? mp + 3 : mp - 9;
+    long year = yearOfEra + (era * 400) + ((month <= 2) ? 1 : 0);
+
+    char[] chars = new char[29];
+    DAYS[(int)floorMod(days, 7l)].getChars(0, 3, chars, 0);
+    chars[3] = ',';
+    chars[4] = ' ';
+    twoDigits(day, chars, 5);
+    chars[7] = ' ';
+    MONTHS[month - 1].getChars(0, 3, chars, 8);
+    chars[11] = ' ';
+    twoDigits((int)(year / 100), chars, 12);
+    twoDigits((int)(year % 100), chars, 14);
+    chars[16] = ' ';
+    twoDigits(secondOfDay / 3600, chars, 17);
+    chars[19] = ':';
+    twoDigits((secondOfDay / 60) % 60, chars, 20);
+    chars[22] = ':';
+    twoDigits(secondOfDay % 60, chars, 23);
+    chars[25] = ' ';
+    chars[26] = 'G';
+    chars[27] = 'M';
+    chars[28] = 'T';
+
+    String date;
+    if ((year < 0) || (year > 9999))
+    {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(PATTERN_RFC1123, Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      date = dateFormat.format(new Date(time));
+    }
+    else
+    {
+      date = new String(chars);
+    }
+    lastFormatted = new Formatted(second, date);
+    return date;
+  }
+
+  /*
+   * Day name, comma, day of month, month name, year, time and GMT separated by spaces (RFC 1123) or dashes in the date
+   * (RFC 1036). Returns Long.MIN_VALUE if the date isn't in this form.
+   */
+  static long parseGmt(String date)
+  {
+    int length = date.length();
+    int i = date.indexOf(',');
+    if (i < 0)
+    {
+      return Long.MIN_VALUE;
+    }
+
+    i = skipSpaces(date, i + 1);
+    int start = i;
+    int day = 0;
+    while ((i < length) && isDigit(date.charAt(i)) && (i - start) < 2)
+    {
+      day = (day * 10) + (date.charAt(i++) - '0');
+    }
+    if ((i == start) || (i >= length) || ((date.charAt(i) != ' ') && (date.charAt(i) != '-')))
+    {
+      return Long.MIN_VALUE;
+    }
+    i++;
+
+    if ((i + 3) >= length)
+    {
+      return Long.MIN_VALUE;
+    }
+    int month = month(date, i);
+    i += 3;
+    if ((month < 0) || ((date.charAt(i) != ' ') && (date.charAt(i) != '-')))
+    {
+      return Long.MIN_VALUE;
+    }
+    i++;
+
+    start = i;
+    int year = 0;
+    while ((i < length) && isDigit(date.charAt(i)) && (i - start) < 4)
+    {
+      year = (year * 10) + (date.charAt(i++) - '0');
+    }
+    if ((i - start) == 2)
+    {
+      year += (year < 70) ? 2000 : 1900;
+    }
+    else if ((i - start) != 4)
+    {
+      return Long.MIN_VALUE;
+    }
+
+    if (((i + 9) > length) || (date.charAt(i) != ' '))
+    {
+      return Long.MIN_VALUE;
+    }
+    i++;
+    int hour = twoDigits(date, i);
+    int minute = twoDigits(date, i + 3);
+    int second = twoDigits(date, i + 6);
+    if ((hour < 0) || (date.charAt(i + 2) != ':') || (minute < 0) || (date.charAt(i + 5) != ':') || (second < 0))
+    {
+      return Long.MIN_VALUE;
+    }
+    i = skipSpaces(date, i + 8);
+
+    if (!(date.regionMatches(true, i, "GMT", 0, 3) && ((i + 3) == length)) && !(date.regionMatches(true, i, "UTC", 0, 3) && ((i + 3) == length)))
+    {
+      return Long.MIN_VALUE;
+    }
+
+    if ((day < 1) || (day > 31) || (hour > 23) || (minute > 59) || (second > 59))
+    {
+      return Long.MIN_VALUE;
+    }
+
+    return (daysFromCivil(year, month + 1, day) * 86400000l) + (((hour * 3600l) + (minute * 60l) + second) * 1000l);
+  }
+
+  /*
+   * Division and remainder rounding toward negative infinity (Math.floorDiv and Math.floorMod are Java 8).
+   */
+  static long floorDiv(long x, long y)
+  {
+    long quotient = x / y;
+    return (((x % y) != 0) && ((x < 0) != (y < 0))) ? quotient - 1 : quotient;
+  }
+
+  static long floorMod(long x, long y)
+  {
+    return x - (floorDiv(x, y) * y);
+  }
+
+  static long daysFromCivil(long year, int month, int day)
+  {
+    year -= (month <= 2) ? 1 : 0;
+    long era = floorDiv(year, 400l);
+    long yearOfEra = year - (era * 400);
+    long dayOfYear = (((153 * (month + ((month > 2) ? -3 : 9))) + 2) / 5) + day - 1;
+    long dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+    return (era * 146097) + dayOfEra - 719468;
+  }
+
+  private static int month(String date, int start)
+  {
+    for (int i = 0; i < MONTHS.length; i++)
+    {
+      if (date.regionMatches(true, start, MONTHS[i], 0, 3))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int twoDigits(String date, int start)
+  {
+    char tens = date.charAt(start);
+    char ones = date.charAt(start + 1);
+    return (isDigit(tens) && isDigit(ones)) ? ((tens - '0') * 10) + (ones - '0') : -1;
+  }
+
+  private static void twoDigits(int value, char[] chars, int start)
+  {
+    chars[start] = (char)('0' + (value / 10));
+    chars[start + 1] = (char)('0' + (value % 10));
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return (c >= '0') && (c <= '9');
+  }
+
+  private static int skipSpaces(String date, int i)
+  {
+    while ((i < date.length()) && (date.charAt(i) == ' '))
+    {
+      i++;
+    }
+    return i;
+  }
+
+  private HttpDate()
+  {}
+
+  private static class Parsed
+  {
+    final String date;
+
+    final Long time;
+
+    Parsed(String date, Long time)
+    {
+      this.date = date;
+      this.time = time;
+    }
+  }
+
+  private static class Formatted
+  {
+    final long second;
+
+    final String date;
+
+    Formatted(long second, String date)
+    {
+      this.second = second;
+      this.date = date;
+    }
+  }
+}
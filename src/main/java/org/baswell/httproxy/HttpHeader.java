@@ -29,21 +29,47 @@ import static org.baswell.httproxy.Constants.*;
  */
 public class HttpHeader implements Serializable
 {
+  private static final long serialVersionUID = -6686457674924522284L;
+
+  /**
+   * Rename a header that's already in a message's headers with {@link #setName(String)}. Assigned directly, lookups by
+   * the old name notice the change but lookups by the new name may not find the header.
+   */
   public String name;
 
   public String value;
 
+  /*
+   * Counts the renames through setName(String) of every header, so a HeaderIndex knows when a name it indexed may have changed.
+   */
+  static volatile int renames;
+
+  /*
+   * Position of this header's line in the raw header block of the message it was read in, -1 if it wasn't read off the wire.
+   */
+  transient int rawIndex = -1;
+
   public HttpHeader(String name, String value)
   {
     this.name = name;
     this.value = value;
   }
 
+  /**
+   * Renames this header so that lookups by name ({@link HttpMessage#getHeaderValue(String)} for example) on the message
+   * it's in find it under the new name.
+   */
+  public void setName(String name)
+  {
+    this.name = name;
+    renames++;
+  }
+
   void addTo(TByteArrayList bytes)
   {
-    if (name != null) bytes.add(name.getBytes());
-    bytes.add(": ".getBytes());
-    if (value != null) bytes.add(value.getBytes());
+    if (name != null) bytes.add(name.getBytes(LineReader.ISO_8859_1));
+    bytes.add(": ".getBytes(LineReader.ISO_8859_1));
+    if (value != null) bytes.add(value.getBytes(LineReader.ISO_8859_1));
     bytes.add(CR);
     bytes.add(LF);
   }
@@ -18,12 +18,13 @@ package org.baswell.httproxy;
 import gnu.trove.list.array.TByteArrayList;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -36,6 +37,12 @@ import static org.baswell.httproxy.Constants.*;
  */
 abstract public class HttpMessage implements Serializable
 {
+  /*
+   * Pinned (here and in the subclasses, HttpHeader and ConnectionParameters) to what it was before fields were added,
+   * messages Java serialized by earlier versions still deserialize.
+   */
+  private static final long serialVersionUID = 6974447695820422463L;
+
   /**
    * @return The status line of this message (ex. <i>GET /path/to/file/index.html HTTP/1.0</i>, <i>HTTP/1.0 200 OK</i>).
    */
@@ -47,9 +54,15 @@ abstract public class HttpMessage implements Serializable
   public final Date startedAt = new Date();
 
   /**
-   * The HTTP headers of this message.
+   * The HTTP headers of this message. The lookup methods ({@link #getHeaderValue(String)}, {@link #hasHeader(String)}, ...)
+   * use an index that is kept in step with changes made to this list.
+   */
+  public final List<HttpHeader> headers = new HeaderList();
+
+  /**
+   * The trailer fields sent after the content of a chunked message. Empty until the content has been read.
    */
-  public final List<HttpHeader> headers = new ArrayList<HttpHeader>();
+  public final List<HttpHeader> trailers = new ArrayList<HttpHeader>();
 
   /**
    * When did this message end.
@@ -67,6 +80,31 @@ abstract public class HttpMessage implements Serializable
    */
   public Long bodySize;
 
+  private transient HeaderIndex headerIndex;
+
+  /*
+   * The status line and header lines as they were read (each terminated by CRLF) followed by the blank line. Only lines
+   * that re-encode to the same bytes are kept so forwarding them untouched is the same as encoding the parsed message.
+   * Null if the message wasn't read off the wire or the status line wasn't kept.
+   */
+  private transient byte[] rawHeaderBlock;
+
+  private transient int rawLength;
+
+  private transient int rawStatusLineEnd;
+
+  /*
+   * Per kept header line: the header as parsed, its name and value when parsed (to tell if either has been reassigned)
+   * and the start and end of its line in rawHeaderBlock.
+   */
+  private transient HttpHeader[] rawHeaders;
+
+  private transient String[] rawNamesAndValues;
+
+  private transient int[] rawLineBounds;
+
+  private transient int rawHeaderCount;
+
   /**
    *
    * @param name The header name
@@ -74,14 +112,7 @@ abstract public class HttpMessage implements Serializable
    */
   public boolean hasHeader(String name)
   {
-    for (HttpHeader header : headers)
-    {
-      if (header.name.equalsIgnoreCase(name))
-      {
-        return true;
-      }
-    }
-    return false;
+    return headerIndex().first(name) >= 0;
   }
 
   public boolean hasContent()
@@ -97,12 +128,10 @@ abstract public class HttpMessage implements Serializable
   public List<HttpHeader> getHeaders(String name)
   {
     List<HttpHeader> headersWithName = new ArrayList<HttpHeader>();
-    for (HttpHeader header : headers)
+    HeaderIndex headerIndex = headerIndex();
+    for (int position = headerIndex.first(name); position >= 0; position = headerIndex.next(position))
     {
-      if (header.name.equalsIgnoreCase(name))
-      {
-        headersWithName.add(header);
-      }
+      headersWithName.add(headers.get(position));
     }
     return headersWithName;
   }
@@ -114,14 +143,25 @@ abstract public class HttpMessage implements Serializable
    */
   public String getHeaderValue(String name)
   {
-    for (HttpHeader header : headers)
+    int position = headerIndex().first(name);
+    return (position < 0) ? null : headers.get(position).value;
+  }
+
+  /**
+   *
+   * @param name The trailer field name.
+   * @return The value from the first trailer field found that matches the given <i>name</i> (case-insensitive) or <code>null</code> if no match is found.
+   * @see #trailers
+   */
+  public String getTrailerValue(String name)
+  {
+    for (HttpHeader trailer : trailers)
     {
-      if (header.name.equalsIgnoreCase(name))
+      if (trailer.name.equalsIgnoreCase(name))
       {
-        return header.value;
+        return trailer.value;
       }
     }
-
     return null;
   }
 
@@ -131,27 +171,26 @@ abstract public class HttpMessage implements Serializable
    */
   public Integer getKeepAliveTimeoutSeconds()
   {
-    for (HttpHeader header : headers)
+    HeaderIndex headerIndex = headerIndex();
+    for (int position = headerIndex.first("Keep-Alive"); position >= 0; position = headerIndex.next(position))
     {
-      if (header.name.equalsIgnoreCase("Keep-Alive"))
+      HttpHeader header = headers.get(position);
+      int index = header.value.indexOf("timeout=");
+      if (index >= 0)
       {
-        int index = header.value.indexOf("timeout=");
-        if (index >= 0)
+        String timeout = header.value.substring(index + "timeout=".length());
+        index = timeout.indexOf(",");
+        if (index > 0)
         {
-          String timeout = header.value.substring(index + "timeout=".length());
-          index = timeout.indexOf(",");
-          if (index > 0)
-          {
-            timeout = timeout.substring(0, index);
-          }
-
-          try
-          {
-            return new Integer(timeout);
-          }
-          catch (NumberFormatException e)
-          {}
+          timeout = timeout.substring(0, index);
         }
+
+        try
+        {
+          return new Integer(timeout);
+        }
+        catch (NumberFormatException e)
+        {}
       }
     }
 
@@ -167,16 +206,15 @@ abstract public class HttpMessage implements Serializable
    */
   public void setOrAddHeader(String name, String value)
   {
-    for (HttpHeader header : headers)
+    int position = headerIndex().first(name);
+    if (position >= 0)
     {
-      if (header.name.equalsIgnoreCase(name))
-      {
-        header.value = value;
-        return;
-      }
+      headers.get(position).value = value;
+    }
+    else
+    {
+      headers.add(new HttpHeader(name, value));
     }
-
-    headers.add(new HttpHeader(name, value));
   }
 
   /**
@@ -198,7 +236,24 @@ abstract public class HttpMessage implements Serializable
   @Override
   public String toString()
   {
-    return new String(toBytes());
+    return new String(toBytes(), LineReader.ISO_8859_1);
+  }
+
+  /**
+   * @see HeaderIndex#version()
+   */
+  int headersVersion()
+  {
+    return headerIndex().version();
+  }
+
+  private HeaderIndex headerIndex()
+  {
+    if (headerIndex == null)
+    {
+      headerIndex = new HeaderIndex((HeaderList)headers);
+    }
+    return headerIndex;
   }
 
   /**
@@ -206,22 +261,11 @@ abstract public class HttpMessage implements Serializable
    *
    * @return The encoded bytes.
    * @see #decode(byte[])
+   * @see HttpMessageCodec
    */
   public byte[] encode()
   {
-    try
-    {
-      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-      ObjectOutputStream out = new ObjectOutputStream(bytes);
-      out.writeObject(this);
-      out.close();
-
-      return bytes.toByteArray();
-    }
-    catch (IOException e)
-    {
-      throw new RuntimeException(e);
-    }
+    return HttpMessageCodec.encode(this);
   }
 
   @Override
@@ -230,16 +274,43 @@ abstract public class HttpMessage implements Serializable
     return object != null && object.getClass() == getClass() && object.toString().equals(toString());
   }
 
+  /**
+   * @return The status line and headers of this message encoded. When the message was read off the wire the lines that
+   * haven't been modified are copied from the bytes read and only the changed lines are encoded. If nothing was modified
+   * the bytes read are returned as is.
+   */
   byte[] toBytes()
   {
-    TByteArrayList bytes = new TByteArrayList((headers.size() + 1) * AVERAGE_HEADER_LENGTH);
-    bytes.add(getStatusLine().getBytes());
-    bytes.add(CR);
-    bytes.add(LF);
+    boolean rawStatusLine = (rawHeaderBlock != null) && !statusLineModified();
+    if (rawStatusLine && (rawLength == rawHeaderBlock.length) && !headersModified())
+    {
+      return rawHeaderBlock;
+    }
+
+    TByteArrayList bytes = new TByteArrayList((rawHeaderBlock == null) ? ((headers.size() + 1) * AVERAGE_HEADER_LENGTH) : (rawLength + AVERAGE_HEADER_LENGTH * 4));
+    if (rawStatusLine)
+    {
+      bytes.add(rawHeaderBlock, 0, rawStatusLineEnd);
+    }
+    else
+    {
+      bytes.add(getStatusLine().getBytes(LineReader.ISO_8859_1));
+      bytes.add(CR);
+      bytes.add(LF);
+    }
 
     for (HttpHeader header : headers)
     {
-      header.addTo(bytes);
+      int rawIndex = header.rawIndex;
+      if ((rawHeaderBlock != null) && isRawHeader(header, rawIndex))
+      {
+        int lineStart = rawLineBounds[rawIndex * 2];
+        bytes.add(rawHeaderBlock, lineStart, rawLineBounds[rawIndex * 2 + 1] - lineStart);
+      }
+      else
+      {
+        header.addTo(bytes);
+      }
     }
 
     bytes.add(CR);
@@ -248,14 +319,178 @@ abstract public class HttpMessage implements Serializable
     return bytes.toArray();
   }
 
-  HttpHeader addHeader(String headerLine)
+  /**
+   * @return True if the status line fields have been changed since {@link #captureStatusLine(byte[], int, int)}.
+   */
+  boolean statusLineModified()
+  {
+    return true;
+  }
+
+  /**
+   * Called when the status line is kept so subclasses can remember the fields it was parsed into.
+   */
+  void onStatusLineCaptured()
+  {}
+
+  /**
+   * Keeps the status line {@code line[start, end)} read for this message if it encodes back to the same bytes. Header
+   * lines are only kept after the status line has been.
+   */
+  void captureStatusLine(byte[] line, int start, int end)
+  {
+    start = LineReader.skipWhitespace(line, start, end);
+    end = LineReader.trimWhitespace(line, start, end);
+    if (sameChars(getStatusLine(), line, start, end))
+    {
+      rawHeaderBlock = new byte[AVERAGE_HEADER_LENGTH * 16];
+      rawLength = 0;
+      appendRawLine(line, start, end);
+      rawStatusLineEnd = rawLength;
+      onStatusLineCaptured();
+    }
+  }
+
+  /**
+   * Called after the last header line has been read.
+   */
+  void onHeaderBlockEnd()
+  {
+    if (rawHeaderBlock != null)
+    {
+      appendRawLine(EMPTY_LINE, 0, 0);
+      if (rawLength < rawHeaderBlock.length)
+      {
+        byte[] trimmed = new byte[rawLength];
+        System.arraycopy(rawHeaderBlock, 0, trimmed, 0, rawLength);
+        rawHeaderBlock = trimmed;
+      }
+    }
+  }
+
+  private boolean headersModified()
+  {
+    int size = headers.size();
+    if (size != rawHeaderCount)
+    {
+      return true;
+    }
+
+    for (int i = 0; i < size; i++)
+    {
+      HttpHeader header = headers.get(i);
+      if ((header.rawIndex != i) || !isRawHeader(header, i))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isRawHeader(HttpHeader header, int rawIndex)
   {
-    int index = headerLine.indexOf(':');
-    if ((index > 0) && (index < (headerLine.length() - 1)))
+    return (rawIndex >= 0) && (rawIndex < rawHeaderCount) && (rawHeaders[rawIndex] == header)
+        && (header.name == rawNamesAndValues[rawIndex * 2]) && (header.value == rawNamesAndValues[rawIndex * 2 + 1]);
+  }
+
+  private void captureHeaderLine(HttpHeader header, byte[] line, int start, int end)
+  {
+    if (rawHeaders == null)
+    {
+      rawHeaders = new HttpHeader[16];
+      rawNamesAndValues = new String[32];
+      rawLineBounds = new int[32];
+    }
+    else if (rawHeaderCount == rawHeaders.length)
+    {
+      rawHeaders = Arrays.copyOf(rawHeaders, rawHeaderCount * 2);
+      rawNamesAndValues = Arrays.copyOf(rawNamesAndValues, rawHeaderCount * 4);
+      rawLineBounds = Arrays.copyOf(rawLineBounds, rawHeaderCount * 4);
+    }
+
+    int rawIndex = rawHeaderCount++;
+    rawHeaders[rawIndex] = header;
+    rawNamesAndValues[rawIndex * 2] = header.name;
+    rawNamesAndValues[rawIndex * 2 + 1] = header.value;
+    rawLineBounds[rawIndex * 2] = rawLength;
+    appendRawLine(line, start, end);
+    rawLineBounds[rawIndex * 2 + 1] = rawLength;
+    header.rawIndex = rawIndex;
+  }
+
+  private void appendRawLine(byte[] line, int start, int end)
+  {
+    int length = end - start;
+    if ((rawLength + length + 2) > rawHeaderBlock.length)
     {
-      String name = headerLine.substring(0, index).trim();
-      String value = headerLine.substring(index + 1, headerLine.length()).trim();
-      HttpHeader header = new HttpHeader(name, value);
+      rawHeaderBlock = Arrays.copyOf(rawHeaderBlock, Math.max(rawHeaderBlock.length * 2, rawLength + length + 2));
+    }
+    System.arraycopy(line, start, rawHeaderBlock, rawLength, length);
+    rawLength += length;
+    rawHeaderBlock[rawLength++] = CR;
+    rawHeaderBlock[rawLength++] = LF;
+  }
+
+  private static boolean sameChars(String string, byte[] bytes, int start, int end)
+  {
+    if (string.length() != (end - start))
+    {
+      return false;
+    }
+
+    for (int i = 0; i < string.length(); i++)
+    {
+      if (string.charAt(i) != (bytes[start + i] & 0xff))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static final byte[] EMPTY_LINE = new byte[0];
+
+  /**
+   * Parses the header line {@code line[start, end)} (without its line terminator) and adds it to this message.
+   *
+   * @return The added header or null if the line is not a valid header.
+   */
+  HttpHeader addHeader(byte[] line, int start, int end)
+  {
+    HttpHeader header = parseHeader(line, start, end, headers);
+    if ((header != null) && (rawHeaderBlock != null))
+    {
+      start = LineReader.skipWhitespace(line, start, end);
+      end = LineReader.trimWhitespace(line, start, end);
+
+      /*
+       * Whitespace between the name and the colon is dropped when encoded (a server could read it differently) so the
+       * line isn't kept.
+       */
+      if (line[start + header.name.length()] == ':')
+      {
+        captureHeaderLine(header, line, start, end);
+      }
+    }
+    return header;
+  }
+
+  /**
+   * Parses the header (or trailer) line {@code line[start, end)} (without its line terminator) and adds it to the given list.
+   *
+   * @return The added header or null if the line is not a valid header.
+   */
+  static HttpHeader parseHeader(byte[] line, int start, int end, List<HttpHeader> headers)
+  {
+    start = LineReader.skipWhitespace(line, start, end);
+    end = LineReader.trimWhitespace(line, start, end);
+
+    int index = LineReader.indexOf(line, start, end, (byte)':');
+    if ((index > start) && (index < (end - 1)))
+    {
+      String name = WellKnownHeaders.name(line, start, LineReader.trimWhitespace(line, start, index));
+      int valueStart = LineReader.skipWhitespace(line, index + 1, end);
+      HttpHeader header = new HttpHeader(name, new String(line, valueStart, end - valueStart, LineReader.ISO_8859_1));
       headers.add(header);
       return header;
     }
@@ -266,7 +501,8 @@ abstract public class HttpMessage implements Serializable
   }
 
   /**
-   * Decode the given bytes which must be a byte array created from {@link #encode()}.
+   * Decode the given bytes which must be a byte array created from {@link #encode()}. Messages encoded with Java
+   * serialization (before {@link HttpMessageCodec}) are still decoded.
    *
    * @param bytes The encoded message bytes.
    * @return The HttpMessage that was previously encoded from the given bytes.
@@ -275,8 +511,15 @@ abstract public class HttpMessage implements Serializable
   {
     try
     {
-      ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-      return (HttpMessage)objectInputStream.readObject();
+      if ((bytes.length >= 2) && (bytes[0] == (byte)0xAC) && (bytes[1] == (byte)0xED))
+      {
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return (HttpMessage)objectInputStream.readObject();
+      }
+      else
+      {
+        return HttpMessageCodec.decode(bytes);
+      }
     }
     catch (IOException e)
     {
@@ -287,4 +530,48 @@ abstract public class HttpMessage implements Serializable
       throw new RuntimeException(e);
     }
   }
+
+  /*
+   * Messages serialized by earlier versions have their headers in a plain ArrayList and no trailers. The final fields
+   * are set the only way deserialization allows, reflectively. Transient fields aren't initialized either.
+   */
+  private void readObject(ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException
+  {
+    objectInputStream.defaultReadObject();
+    if (!(headers instanceof HeaderList))
+    {
+      HeaderList headerList = new HeaderList();
+      if (headers != null)
+      {
+        headerList.addAll(headers);
+      }
+      setFinalField("headers", headerList);
+    }
+
+    if (trailers == null)
+    {
+      setFinalField("trailers", new ArrayList<HttpHeader>());
+    }
+
+    if (attachements == null)
+    {
+      setFinalField("attachements", new HashMap<String, Object>());
+    }
+  }
+
+  private void setFinalField(String name, Object value) throws InvalidObjectException
+  {
+    try
+    {
+      Field field = HttpMessage.class.getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(this, value);
+    }
+    catch (Exception e)
+    {
+      InvalidObjectException invalidObjectException = new InvalidObjectException("Unable to set " + name + ".");
+      invalidObjectException.initCause(e);
+      throw invalidObjectException;
+    }
+  }
 }
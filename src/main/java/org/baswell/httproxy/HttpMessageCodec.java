@@ -0,0 +1,692 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Compact binary encoding of {@link HttpRequest} and {@link HttpResponse}. Used by {@link HttpMessage#encode()} and
+ * {@link HttpMessage#decode(byte[])}, and through {@link Writer} and {@link Reader} to write a stream of messages
+ * straight into (and read them out of) ByteBuffers or streams.
+ * </p>
+ *
+ * <p>
+ * Each message is framed as one magic byte ({@code 'H'}), the format version and the length of the body (4 bytes, big
+ * endian) followed by the body. Integers in the body are variable length (7 bits a byte) and strings are their UTF-8
+ * length + 1 (0 for null) followed by the UTF-8 bytes. Header names are a reference to a static table of well known
+ * names, a reference to a name written earlier (the dynamic table) or a literal that is added to the dynamic table. A
+ * Writer and the Reader of its output keep the dynamic table across messages so a stream of messages writes each custom
+ * header name once.
+ * </p>
+ *
+ * <p>
+ * The version 1 body is:
+ * </p>
+ *
+ * <pre>
+ * type (1 request, 2 response)
+ * flags (1 first in exchange, 2 over SSL)
+ * request:  clientIp method path version
+ * response: version statusCode (zigzag) reasonPhrase connectionParameters (0 or 1 followed by host port flags (1 SSL, 2 HTTP/2))
+ * startedAt endedAt bodySize (0 for null or 1 followed by the zigzag value)
+ * header count, (name reference, value) ...
+ * trailer count, (name reference, value) ...
+ * </pre>
+ */
+public class HttpMessageCodec
+{
+  /**
+   * The version of the format written.
+   */
+  public static final int VERSION = 1;
+
+  static final byte MAGIC = 'H';
+
+  static final int FRAME_HEADER_LENGTH = 6;
+
+  static final int MAX_DYNAMIC_NAMES = 256;
+
+  /*
+   * Part of the format. Names can only be added to the end (with a new version).
+   */
+  static final String[] STATIC_NAMES = {"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+      "Access-Control-Allow-Origin", "Age", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+      "Content-Encoding", "Content-Language", "Content-Length", "Content-Range", "Content-Type", "Cookie", "Date", "DNT",
+      "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+      "Keep-Alive", "Last-Modified", "Location", "Origin", "Pragma", "Proxy-Connection", "Range", "Referer", "Server",
+      "Set-Cookie", "Strict-Transport-Security", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests",
+      "User-Agent", "Vary", "Via", "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto",
+      "X-Powered-By", "X-Requested-With"};
+
+  private static final Map<String, Integer> STATIC_INDEXES = new HashMap<String, Integer>();
+
+  static
+  {
+    for (int i = 0; i < STATIC_NAMES.length; i++)
+    {
+      STATIC_INDEXES.put(STATIC_NAMES[i], i);
+    }
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int TYPE_REQUEST = 1;
+
+  private static final int TYPE_RESPONSE = 2;
+
+  private static final int FLAG_FIRST_IN_EXCHANGE = 1;
+
+  private static final int FLAG_OVER_SSL = 2;
+
+  /**
+   * @return The given message encoded on its own (its dynamic name table starts empty).
+   */
+  public static byte[] encode(HttpMessage message)
+  {
+    ByteBuffer buffer = new Writer().encode(message, null);
+    byte[] bytes = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * @param bytes A message encoded with {@link #encode(HttpMessage)}.
+   * @throws IOException If the bytes aren't an encoded message (or are from an unsupported version).
+   */
+  public static HttpMessage decode(byte[] bytes) throws IOException
+  {
+    HttpMessage message = new Reader().read(ByteBuffer.wrap(bytes));
+    if (message == null)
+    {
+      throw new EOFException("Encoded HttpMessage is truncated.");
+    }
+    return message;
+  }
+
+  /**
+   * Encodes a stream of messages. Not thread-safe. The messages must be read back in the same order by one {@link Reader}.
+   */
+  public static class Writer
+  {
+    private final Map<String, Integer> dynamicIndexes = new HashMap<String, Integer>();
+
+    private final List<String> dynamicNames = new ArrayList<String>();
+
+    private ByteBuffer streamBuffer;
+
+    /**
+     * Encodes the message at the buffer's position. If the buffer doesn't have room for the whole message nothing is
+     * written (the position is left where it was) and BufferOverflowException is thrown.
+     */
+    public void write(HttpMessage message, ByteBuffer buffer) throws BufferOverflowException
+    {
+      int start = buffer.position();
+      int dynamicNamesBefore = dynamicNames.size();
+      try
+      {
+        writeMessage(message, buffer);
+      }
+      catch (BufferOverflowException e)
+      {
+        buffer.position(start);
+        while (dynamicNames.size() > dynamicNamesBefore)
+        {
+          dynamicIndexes.remove(dynamicNames.remove(dynamicNames.size() - 1));
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Encodes the message and writes it to the given stream.
+     */
+    public void write(HttpMessage message, OutputStream outputStream) throws IOException
+    {
+      streamBuffer = encode(message, streamBuffer);
+      outputStream.write(streamBuffer.array(), 0, streamBuffer.position());
+    }
+
+    /*
+     * Encodes into the given heap buffer (cleared first) growing it until the message fits.
+     */
+    ByteBuffer encode(HttpMessage message, ByteBuffer buffer)
+    {
+      if (buffer == null)
+      {
+        buffer = ByteBuffer.allocate(Math.max(256, (message.headers.size() + 1) * Constants.AVERAGE_HEADER_LENGTH));
+      }
+
+      while (true)
+      {
+        buffer.clear();
+        try
+        {
+          write(message, buffer);
+          return buffer;
+        }
+        catch (BufferOverflowException e)
+        {
+          buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        }
+      }
+    }
+
+    private void writeMessage(HttpMessage message, ByteBuffer buffer)
+    {
+      int start = buffer.position();
+      buffer.put(MAGIC);
+      buffer.put((byte)VERSION);
+      buffer.putInt(0);
+
+      if (message instanceof HttpRequest)
+      {
+        HttpRequest request = (HttpRequest)message;
+        buffer.put((byte)TYPE_REQUEST);
+        buffer.put(flags(request.firstInExchange, request.overSSL));
+        writeString(request.clientIp, buffer);
+        writeString(request.method, buffer);
+        writeString(request.path, buffer);
+        writeString(request.version, buffer);
+      }
+      else if (message instanceof HttpResponse)
+      {
+        HttpResponse response = (HttpResponse)message;
+        buffer.put((byte)TYPE_RESPONSE);
+        buffer.put(flags(response.firstInExchange, response.overSSL));
+        writeString(response.version, buffer);
+        writeVarLong(zigzag(response.statusCode), buffer);
+        writeString(response.reasonPhrase, buffer);
+
+        ConnectionParameters connectionParameters = response.connectionParameters;
+        if (connectionParameters == null)
+        {
+          buffer.put((byte)0);
+        }
+        else
+        {
+          buffer.put((byte)1);
+          writeString(connectionParameters.ipOrHost, buffer);
+          writeVarLong(connectionParameters.port, buffer);
+          buffer.put((byte)((connectionParameters.ssl ? 1 : 0) | (connectionParameters.http2 ? 2 : 0)));
+        }
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported message type: " + message.getClass().getName());
+      }
+
+      writeVarLong(zigzag(message.startedAt.getTime()), buffer);
+      writeNullableLong(message.endedAt == null ? null : message.endedAt.getTime(), buffer);
+      writeNullableLong(message.bodySize, buffer);
+      writeHeaders(message.headers, buffer);
+      writeHeaders(message.trailers, buffer);
+
+      buffer.putInt(start + 2, buffer.position() - start - FRAME_HEADER_LENGTH);
+    }
+
+    private void writeHeaders(List<HttpHeader> headers, ByteBuffer buffer)
+    {
+      writeVarLong(headers.size(), buffer);
+      for (int i = 0; i < headers.size(); i++)
+      {
+        HttpHeader header = headers.get(i);
+        writeName(header.name, buffer);
+        writeString(header.value, buffer);
+      }
+    }
+
+    private void writeName(String name, ByteBuffer buffer)
+    {
+      Integer index = (name == null) ? null : STATIC_INDEXES.get(name);
+      if (index != null)
+      {
+        writeVarLong(index + 1, buffer);
+        return;
+      }
+
+      index = (name == null) ? null : dynamicIndexes.get(name);
+      if (index != null)
+      {
+        writeVarLong(STATIC_NAMES.length + 1 + index, buffer);
+        return;
+      }
+
+      buffer.put((byte)0);
+      writeString(name, buffer);
+      if ((name != null) && (dynamicNames.size() < MAX_DYNAMIC_NAMES))
+      {
+        dynamicIndexes.put(name, dynamicNames.size());
+        dynamicNames.add(name);
+      }
+    }
+  }
+
+  /**
+   * Decodes a stream of messages written by one {@link Writer}. Not thread-safe.
+   */
+  public static class Reader
+  {
+    private final List<String> dynamicNames = new ArrayList<String>();
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Decodes the message at the buffer's position. If the buffer doesn't hold the whole message yet null is returned and
+     * the position is left where it was.
+     *
+     * @throws IOException If the bytes at the buffer's position aren't an encoded message.
+     */
+    public HttpMessage read(ByteBuffer buffer) throws IOException
+    {
+      int start = buffer.position();
+      if (buffer.remaining() < FRAME_HEADER_LENGTH)
+      {
+        return null;
+      }
+
+      int length = readFrameHeader(buffer.get(start), buffer.get(start + 1), buffer.getInt(start + 2));
+      if (buffer.remaining() < (FRAME_HEADER_LENGTH + length))
+      {
+        return null;
+      }
+
+      int limit = buffer.limit();
+      buffer.position(start + FRAME_HEADER_LENGTH);
+      buffer.limit(start + FRAME_HEADER_LENGTH + length);
+      try
+      {
+        HttpMessage message = readMessage(buffer);
+        if (buffer.hasRemaining())
+        {
+          throw new IOException("Invalid encoded HttpMessage: " + buffer.remaining() + " unread bytes.");
+        }
+        return message;
+      }
+      catch (BufferUnderflowException e)
+      {
+        throw new IOException("Invalid encoded HttpMessage: truncated body.");
+      }
+      catch (RuntimeException e)
+      {
+        throw new IOException("Invalid encoded HttpMessage.", e);
+      }
+      finally
+      {
+        buffer.limit(limit);
+      }
+    }
+
+    /**
+     * Reads the next message from the stream.
+     *
+     * @return The message or null if the stream ended before another message.
+     * @throws IOException If the stream ended part way through a message or the bytes aren't an encoded message.
+     */
+    public HttpMessage read(InputStream inputStream) throws IOException
+    {
+      byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+      if (!readFully(inputStream, frameHeader, 0, FRAME_HEADER_LENGTH, true))
+      {
+        return null;
+      }
+
+      ByteBuffer header = ByteBuffer.wrap(frameHeader);
+      int length = readFrameHeader(header.get(0), header.get(1), header.getInt(2));
+      byte[] bytes = new byte[FRAME_HEADER_LENGTH + length];
+      System.arraycopy(frameHeader, 0, bytes, 0, FRAME_HEADER_LENGTH);
+      readFully(inputStream, bytes, FRAME_HEADER_LENGTH, length, false);
+      return read(ByteBuffer.wrap(bytes));
+    }
+
+    private HttpMessage readMessage(ByteBuffer buffer) throws IOException
+    {
+      int type = buffer.get();
+      int flags = buffer.get();
+      boolean firstInExchange = (flags & FLAG_FIRST_IN_EXCHANGE) != 0;
+      boolean overSSL = (flags & FLAG_OVER_SSL) != 0;
+
+      HttpMessage message;
+      if (type == TYPE_REQUEST)
+      {
+        String clientIp = readString(buffer);
+        String method = readString(buffer);
+        String path = readString(buffer);
+        String version = readString(buffer);
+        message = new HttpRequest(clientIp, firstInExchange, overSSL, method, path, version);
+      }
+      else if (type == TYPE_RESPONSE)
+      {
+        String version = readString(buffer);
+        int statusCode = (int)unzigzag(readVarLong(buffer));
+        String reasonPhrase = readString(buffer);
+
+        ConnectionParameters connectionParameters = null;
+        if (buffer.get() != 0)
+        {
+          String ipOrHost = readString(buffer);
+          int port = (int)readVarLong(buffer);
+          byte connectionFlags = buffer.get();
+          connectionParameters = new ConnectionParameters((connectionFlags & 1) != 0, ipOrHost, port, null, (connectionFlags & 2) != 0);
+        }
+        message = new HttpResponse(firstInExchange, overSSL, connectionParameters, version, statusCode, reasonPhrase);
+      }
+      else
+      {
+        throw new IOException("Invalid encoded HttpMessage: unknown type " + type + ".");
+      }
+
+      message.startedAt.setTime(unzigzag(readVarLong(buffer)));
+      Long endedAt = readNullableLong(buffer);
+      message.endedAt = (endedAt == null) ? null : new Date(endedAt);
+      message.bodySize = readNullableLong(buffer);
+      readHeaders(message.headers, buffer);
+      readHeaders(message.trailers, buffer);
+      return message;
+    }
+
+    private void readHeaders(List<HttpHeader> headers, ByteBuffer buffer) throws IOException
+    {
+      long count = readVarLong(buffer);
+      if (count > buffer.remaining())
+      {
+        throw new IOException("Invalid encoded HttpMessage: " + count + " headers in " + buffer.remaining() + " bytes.");
+      }
+
+      for (int i = 0; i < count; i++)
+      {
+        String name = readName(buffer);
+        headers.add(new HttpHeader(name, readString(buffer)));
+      }
+    }
+
+    private String readName(ByteBuffer buffer) throws IOException
+    {
+      long reference = readVarLong(buffer);
+      if (reference == 0)
+      {
+        String name = readString(buffer);
+        if ((name != null) && (dynamicNames.size() < MAX_DYNAMIC_NAMES))
+        {
+          dynamicNames.add(name);
+        }
+        return name;
+      }
+      else if (reference <= STATIC_NAMES.length)
+      {
+        return STATIC_NAMES[(int)reference - 1];
+      }
+      else
+      {
+        long index = reference - STATIC_NAMES.length - 1;
+        if (index >= dynamicNames.size())
+        {
+          throw new IOException("Invalid encoded HttpMessage: unknown header name reference " + reference + ".");
+        }
+        return dynamicNames.get((int)index);
+      }
+    }
+
+    private String readString(ByteBuffer buffer) throws IOException
+    {
+      long encodedLength = readVarLong(buffer);
+      if (encodedLength == 0)
+      {
+        return null;
+      }
+
+      long length = encodedLength - 1;
+      if (length > buffer.remaining())
+      {
+        throw new IOException("Invalid encoded HttpMessage: string of " + length + " bytes in " + buffer.remaining() + " bytes.");
+      }
+
+      byte[] bytes;
+      int offset;
+      if (buffer.hasArray())
+      {
+        bytes = buffer.array();
+        offset = buffer.arrayOffset() + buffer.position();
+        buffer.position(buffer.position() + (int)length);
+      }
+      else
+      {
+        if (scratch.length < length)
+        {
+          scratch = new byte[(int)Math.max(length, scratch.length * 2)];
+        }
+        bytes = scratch;
+        offset = 0;
+        buffer.get(bytes, 0, (int)length);
+      }
+
+      for (int i = offset, end = offset + (int)length; i < end; i++)
+      {
+        if (bytes[i] < 0)
+        {
+          return new String(bytes, offset, (int)length, UTF_8);
+        }
+      }
+      return new String(bytes, offset, (int)length, LineReader.ISO_8859_1);
+    }
+
+    private static int readFrameHeader(byte magic, byte version, int length) throws IOException
+    {
+      if (magic != MAGIC)
+      {
+        throw new IOException("Not an encoded HttpMessage.");
+      }
+      else if ((version < 1) || (version > VERSION))
+      {
+        throw new IOException("Unsupported encoded HttpMessage version: " + version + ".");
+      }
+      else if (length < 0)
+      {
+        throw new IOException("Invalid encoded HttpMessage length: " + length + ".");
+      }
+      return length;
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] bytes, int offset, int length, boolean eofAllowedAtStart) throws IOException
+    {
+      int read = 0;
+      while (read < length)
+      {
+        int count = inputStream.read(bytes, offset + read, length - read);
+        if (count < 0)
+        {
+          if ((read == 0) && eofAllowedAtStart)
+          {
+            return false;
+          }
+          throw new EOFException("Stream ended part way through an encoded HttpMessage.");
+        }
+        read += count;
+      }
+      return true;
+    }
+  }
+
+  static byte flags(boolean firstInExchange, boolean overSSL)
+  {
+    return (byte)((firstInExchange ? FLAG_FIRST_IN_EXCHANGE : 0) | (overSSL ? FLAG_OVER_SSL : 0));
+  }
+
+  static void writeString(String string, ByteBuffer buffer)
+  {
+    if (string == null)
+    {
+      buffer.put((byte)0);
+      return;
+    }
+
+    int length = string.length();
+    int utf8Length = length;
+    for (int i = 0; i < length; i++)
+    {
+      char c = string.charAt(i);
+      if (c >= 0x80)
+      {
+        utf8Length = utf8Length(string, i);
+        break;
+      }
+    }
+
+    writeVarLong(utf8Length + 1l, buffer);
+    if (utf8Length > buffer.remaining())
+    {
+      throw new BufferOverflowException();
+    }
+
+    if (utf8Length == length)
+    {
+      for (int i = 0; i < length; i++)
+      {
+        buffer.put((byte)string.charAt(i));
+      }
+    }
+    else
+    {
+      for (int i = 0; i < length; i++)
+      {
+        char c = string.charAt(i);
+        if (c < 0x80)
+        {
+          buffer.put((byte)c);
+        }
+        else if (c < 0x800)
+        {
+          buffer.put((byte)(0xc0 | (c >> 6)));
+          buffer.put((byte)(0x80 | (c & 0x3f)));
+        }
+        else if (Character.isHighSurrogate(c) && ((i + 1) < length) && Character.isLowSurrogate(string.charAt(i + 1)))
+        {
+          int codePoint = Character.toCodePoint(c, string.charAt(++i));
+          buffer.put((byte)(0xf0 | (codePoint >> 18)));
+          buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3f)));
+          buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3f)));
+          buffer.put((byte)(0x80 | (codePoint & 0x3f)));
+        }
+        else
+        {
+          if (Character.isSurrogate(c))
+          {
+            c = '?';
+          }
+          buffer.put((byte)(0xe0 | (c >> 12)));
+          buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+          buffer.put((byte)(0x80 | (c & 0x3f)));
+        }
+      }
+    }
+  }
+
+  /*
+   * The UTF-8 length of the string, the first `from` characters are known to be ASCII.
+   */
+  private static int utf8Length(String string, int from)
+  {
+    int length = from;
+    for (int i = from; i < string.length(); i++)
+    {
+      char c = string.charAt(i);
+      if (c < 0x80)
+      {
+        length++;
+      }
+      else if (c < 0x800)
+      {
+        length += 2;
+      }
+      else if (Character.isHighSurrogate(c) && ((i + 1) < string.length()) && Character.isLowSurrogate(string.charAt(i + 1)))
+      {
+        length += 4;
+        i++;
+      }
+      else
+      {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  static void writeNullableLong(Long value, ByteBuffer buffer)
+  {
+    if (value == null)
+    {
+      buffer.put((byte)0);
+    }
+    else
+    {
+      buffer.put((byte)1);
+      writeVarLong(zigzag(value), buffer);
+    }
+  }
+
+  static Long readNullableLong(ByteBuffer buffer)
+  {
+    return (buffer.get() == 0) ? null : unzigzag(readVarLong(buffer));
+  }
+
+  static void writeVarLong(long value, ByteBuffer buffer)
+  {
+    while ((value & ~0x7fl) != 0)
+    {
+      buffer.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte)value);
+  }
+
+  static long readVarLong(ByteBuffer buffer)
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      byte b = buffer.get();
+      value |= (long)(b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Variable length integer longer than 64 bits.");
+  }
+
+  static long zigzag(long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -15,7 +15,6 @@
  */
 package org.baswell.httproxy;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -24,6 +23,8 @@ import java.util.List;
  */
 public class HttpRequest extends HttpMessage
 {
+  private static final long serialVersionUID = -9026161820636288240L;
+
   /**
    * The client IP address this request came from.
    */
@@ -56,6 +57,14 @@ public class HttpRequest extends HttpMessage
 
   private String cachedHost;
 
+  private transient CookieView cookieView;
+
+  private transient String rawMethod;
+
+  private transient String rawPath;
+
+  private transient String rawVersion;
+
   /**
    *
    * @param clientIp The client IP address this request came from.
@@ -122,6 +131,30 @@ public class HttpRequest extends HttpMessage
     return method + " " + path + " " + version;
   }
 
+  @Override
+  void onStatusLineCaptured()
+  {
+    rawMethod = method;
+    rawPath = path;
+    rawVersion = version;
+  }
+
+  @Override
+  boolean statusLineModified()
+  {
+    return (method != rawMethod) || (path != rawPath) || (version != rawVersion);
+  }
+
+  /**
+   *
+   * @return True if this is a CONNECT request, asking for a tunnel to the host and port in its path.
+   * @see ProxyDirector#onConnectRequest(HttpRequest)
+   */
+  public boolean isConnect()
+  {
+    return "CONNECT".equalsIgnoreCase(method);
+  }
+
   public String getURL()
   {
     return (overSSL ? "https://" : "http://") + getHost() + path;
@@ -161,17 +194,32 @@ public class HttpRequest extends HttpMessage
    */
   public List<HttpCookie> getCookies()
   {
-    List<HttpCookie> cookies = new ArrayList<HttpCookie>();
-    for (HttpHeader cookieHeader : getHeaders("Cookie"))
-    {
-      try
-      {
-        cookies.addAll(HttpCookie.decodeHeaderValue(cookieHeader.value));
-      }
-      catch (Exception e)
-      {}
-    }
-    return cookies;
+    return cookieView().toList();
+  }
+
+  /**
+   *
+   * @param name The cookie name (case-sensitive).
+   * @return The first cookie in the headers of this request with the given name or <code>null</code> if there isn't one.
+   */
+  public HttpCookie getCookie(String name)
+  {
+    CookieView cookieView = cookieView();
+    int position = cookieView.indexOf(name);
+    return (position < 0) ? null : new HttpCookie(name, cookieView.value(position));
+  }
+
+  /**
+   *
+   * @param name The cookie name (case-sensitive).
+   * @return The value of the first cookie in the headers of this request with the given name or <code>null</code> if there
+   * isn't one.
+   */
+  public String getCookieValue(String name)
+  {
+    CookieView cookieView = cookieView();
+    int position = cookieView.indexOf(name);
+    return (position < 0) ? null : cookieView.value(position);
   }
 
   /**
@@ -194,4 +242,17 @@ public class HttpRequest extends HttpMessage
 
     setOrAddHeader("Cookie", HttpCookie.encodeHeaderValue(cookies));
   }
+
+  /*
+   * The Cookie headers are split once and split again only after the headers change.
+   */
+  CookieView cookieView()
+  {
+    int headersVersion = headersVersion();
+    if ((cookieView == null) || !cookieView.isCurrent(headersVersion))
+    {
+      cookieView = new CookieView(headersVersion, getHeaders("Cookie"));
+    }
+    return cookieView;
+  }
 }
@@ -23,6 +23,8 @@ import java.util.List;
  */
 public class HttpResponse extends HttpMessage
 {
+  private static final long serialVersionUID = -2555966349509251436L;
+
   /**
    * Is this response the first in the exchange (multiple requests & responses can be processed over the same connection).
    */
@@ -53,6 +55,12 @@ public class HttpResponse extends HttpMessage
    */
   public String reasonPhrase;
 
+  private transient String rawVersion;
+
+  private transient int rawStatusCode;
+
+  private transient String rawReasonPhrase;
+
   /**
    *
    * @param firstInExchange Is this response the first in the exchange.
@@ -132,6 +140,20 @@ public class HttpResponse extends HttpMessage
     return version + " " + statusCode + " " + reasonPhrase;
   }
 
+  @Override
+  void onStatusLineCaptured()
+  {
+    rawVersion = version;
+    rawStatusCode = statusCode;
+    rawReasonPhrase = reasonPhrase;
+  }
+
+  @Override
+  boolean statusLineModified()
+  {
+    return (version != rawVersion) || (statusCode != rawStatusCode) || (reasonPhrase != rawReasonPhrase);
+  }
+
   /**
    *
    * @return Parse and return all cookies set in this response.
@@ -151,6 +173,45 @@ public class HttpResponse extends HttpMessage
     return cookies;
   }
 
+  /**
+   *
+   * @param name The cookie name (case-sensitive).
+   * @return The first cookie set in this response with the given name or <code>null</code> if there isn't one. Only the
+   * matching Set-Cookie header is parsed.
+   */
+  public HttpCookie getSetCookie(String name)
+  {
+    for (HttpHeader cookieHeader : getHeaders("Set-Cookie"))
+    {
+      String value = cookieHeader.value;
+      if (value == null)
+      {
+        continue;
+      }
+
+      int nameStart = 0;
+      while ((nameStart < value.length()) && (value.charAt(nameStart) <= ' '))
+      {
+        nameStart++;
+      }
+
+      if (value.startsWith(name, nameStart))
+      {
+        int i = nameStart + name.length();
+        while ((i < value.length()) && (value.charAt(i) <= ' '))
+        {
+          i++;
+        }
+
+        if ((i < value.length()) && (value.charAt(i) == '='))
+        {
+          return new HttpCookie(value);
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Add a Set-Cookie header to this response. Should be called from {@link ProxyDirector#onResponseStart(HttpRequest, HttpResponse)}
    * for the client to see this additional header.
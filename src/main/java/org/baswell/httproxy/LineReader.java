@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * Reads LF (or CRLF) terminated lines out of a ByteBuffer. The buffer is searched eight bytes at a time for the line feed
+ * and a complete line sitting in a heap buffer is referenced in place. Only lines that are split across reads (or that
+ * come from a direct buffer) are copied, and then into an arena that is reused for every line of the connection.
+ */
+class LineReader
+{
+  static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  /**
+   * After {@link #readLine(ByteBuffer)} returns true the line, without its terminator, is {@code lineBytes[lineStart, lineEnd)}.
+   * The slice is only valid until the next call to readLine.
+   */
+  byte[] lineBytes;
+
+  int lineStart;
+
+  int lineEnd;
+
+  private byte[] arena = new byte[AVERAGE_HEADER_LENGTH * 4];
+
+  private int arenaLength;
+
+  /**
+   * @return True if a full line was read and is available in {@link #lineBytes}. False if the buffer was exhausted before
+   * the end of the line was found (the partial line is held until the next call).
+   */
+  boolean readLine(ByteBuffer buffer)
+  {
+    int position = buffer.position();
+    int limit = buffer.limit();
+    int lfIndex = indexOfLF(buffer, position, limit);
+
+    if (lfIndex < 0)
+    {
+      append(buffer, position, limit);
+      buffer.position(limit);
+      return false;
+    }
+
+    if ((arenaLength == 0) && buffer.hasArray())
+    {
+      int arrayOffset = buffer.arrayOffset();
+      lineBytes = buffer.array();
+      lineStart = arrayOffset + position;
+      lineEnd = arrayOffset + lfIndex;
+    }
+    else
+    {
+      append(buffer, position, lfIndex);
+      lineBytes = arena;
+      lineStart = 0;
+      lineEnd = arenaLength;
+      arenaLength = 0;
+    }
+
+    if ((lineEnd > lineStart) && (lineBytes[lineEnd - 1] == CR))
+    {
+      lineEnd--;
+    }
+
+    buffer.position(lfIndex + 1);
+    return true;
+  }
+
+  /**
+   * @return The last line read with leading and trailing whitespace removed.
+   */
+  String lineToString()
+  {
+    int start = skipWhitespace(lineBytes, lineStart, lineEnd);
+    int end = trimWhitespace(lineBytes, start, lineEnd);
+    return new String(lineBytes, start, end - start, ISO_8859_1);
+  }
+
+  /**
+   * @return True if no partial line is being held.
+   */
+  boolean isEmpty()
+  {
+    return arenaLength == 0;
+  }
+
+  /**
+   * @return The length of the partial line being held.
+   */
+  int partialLength()
+  {
+    return arenaLength;
+  }
+
+  void clear()
+  {
+    arenaLength = 0;
+  }
+
+  private void append(ByteBuffer buffer, int from, int to)
+  {
+    int length = to - from;
+    if (length > 0)
+    {
+      if ((arenaLength + length) > arena.length)
+      {
+        byte[] newArena = new byte[Math.max(arena.length * 2, arenaLength + length)];
+        System.arraycopy(arena, 0, newArena, 0, arenaLength);
+        arena = newArena;
+      }
+
+      buffer.position(from);
+      buffer.get(arena, arenaLength, length);
+      arenaLength += length;
+    }
+  }
+
+  static int skipWhitespace(byte[] bytes, int start, int end)
+  {
+    while ((start < end) && isWhitespace(bytes[start]))
+    {
+      start++;
+    }
+    return start;
+  }
+
+  static int trimWhitespace(byte[] bytes, int start, int end)
+  {
+    while ((end > start) && isWhitespace(bytes[end - 1]))
+    {
+      end--;
+    }
+    return end;
+  }
+
+  static boolean isWhitespace(byte b)
+  {
+    return (b == ' ') || (b == '\t') || (b == CR) || (b == LF);
+  }
+
+  static int indexOf(byte[] bytes, int start, int end, byte b)
+  {
+    for (int i = start; i < end; i++)
+    {
+      if (bytes[i] == b)
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Eight bytes at a time: XOR with a word of line feeds turns every LF into a zero byte, and the (exact, no false positive)
+   * zero byte test leaves the high bit set only in those bytes. getLong is big-endian so the first LF is the leading set bit.
+   */
+  static int indexOfLF(ByteBuffer buffer, int from, int to)
+  {
+    int i = from;
+    for (int wordEnd = to - 7; i < wordEnd; i += 8)
+    {
+      long word = buffer.getLong(i) ^ LF_WORD;
+      long zeros = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+      if (zeros != 0)
+      {
+        return i + (Long.numberOfLeadingZeros(zeros) >>> 3);
+      }
+    }
+
+    for (; i < to; i++)
+    {
+      if (buffer.get(i) == LF)
+      {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static final long LF_WORD = 0x0A0A0A0A0A0A0A0AL;
+
+  private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+}
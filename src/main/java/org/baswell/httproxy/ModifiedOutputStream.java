@@ -6,6 +6,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.zip.DataFormatException;
@@ -43,11 +44,9 @@ class ModifiedOutputStream extends OutputStream
 
   private final boolean inputChunked;
 
-  private ReadChunkedInputState chunkedInputState;
+  private final HttpMessage contentMessage;
 
-  private int chunkedLineRemaining;
-
-  private TByteArrayList inputBuffer;
+  private ChunkedDecoder chunkedDecoder;
 
   private final TByteArrayList outputBuffer = new TByteArrayList();
 
@@ -77,13 +76,15 @@ class ModifiedOutputStream extends OutputStream
 
     requestModifier = requestContentModifier != null;
 
-    HttpMessage contentMessage = response == null ? request : response;
+    contentMessage = response == null ? request : response;
 
     if ("chunked".equalsIgnoreCase(contentMessage.getHeaderValue("Transfer-Encoding")))
     {
       inputChunked = true;
-      inputBuffer = new TByteArrayList();
-      chunkedInputState = ReadChunkedInputState.READ_BYTE_COUNT;
+      /*
+       * The piped message decoding the same bytes adds the trailers to the message.
+       */
+      chunkedDecoder = new ChunkedDecoder(false);
     }
     else
     {
@@ -158,6 +159,12 @@ class ModifiedOutputStream extends OutputStream
     outputStream.write("0".getBytes());
     outputStream.write(Constants.CR);
     outputStream.write(Constants.LF);
+    for (HttpHeader trailer : contentMessage.trailers)
+    {
+      outputStream.write(trailer.toString().getBytes(LineReader.ISO_8859_1));
+      outputStream.write(Constants.CR);
+      outputStream.write(Constants.LF);
+    }
     outputStream.write(Constants.CR);
     outputStream.write(Constants.LF);
   }
@@ -208,86 +215,33 @@ class ModifiedOutputStream extends OutputStream
     }
     else
     {
-      inputBuffer.add(bytes);
-      boolean needMoreBytes = false;
-
-      while (!inputBuffer.isEmpty() && !needMoreBytes)
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining() && !chunkedDecoder.isDone())
       {
-        String line;
-        switch (chunkedInputState)
+        int dataLength;
+        try
         {
-          case READ_BYTE_COUNT:
-            byte[] lineBytes = readNextChunkedLine();
-            if (lineBytes != null)
-            {
-              line = new String(lineBytes);
-              try
-              {
-                chunkedLineRemaining = Integer.parseInt(line.trim(), 16);
-                if (chunkedLineRemaining == 0)
-                {
-                  chunkedInputState = ReadChunkedInputState.READ_LAST_LINE;
-                }
-                else if (chunkedLineRemaining < 0)
-                {
-                  throw new IOException("Invalid chunked encoding byte count: " + chunkedLineRemaining);
-                }
-                else
-                {
-                  chunkedInputState = ReadChunkedInputState.READ_BYTES;
-                }
-              }
-              catch (Exception e)
-              {
-                throw new IOException("Invalid chunked encoding byte count: " + line, e);
-              }
-
-            }
-            else
-            {
-              needMoreBytes = true;
-            }
-            break;
-
-          case READ_BYTES:
-            int bytesToRead = Math.min(chunkedLineRemaining, inputBuffer.size());
-
-            byte[] uncompressedBytes = encoderDecoder.decode(inputBuffer.toArray(0, bytesToRead));
-            inputBuffer.remove(0, bytesToRead);
-            if (uncompressedBytes != null && uncompressedBytes.length > 0)
-            {
-              if (requestModifier)
-              {
-                requestContentModifier.modifyAndWrite(request, uncompressedBytes, charset, outputStreamBridge);
-              }
-              else
-              {
-                responseContentModifier.modifyAndWrite(request, response, uncompressedBytes, charset, outputStreamBridge);
-              }
-            }
-
-            chunkedLineRemaining -= bytesToRead;
-            if (chunkedLineRemaining == 0)
-            {
-              chunkedInputState = ReadChunkedInputState.CLEAR_READ_BYTES_TERMINATOR;
-            }
-            break;
+          dataLength = chunkedDecoder.decode(buffer, contentMessage);
+        }
+        catch (HttpProtocolException e)
+        {
+          throw new IOException(e.getMessage(), e);
+        }
 
-          case CLEAR_READ_BYTES_TERMINATOR:
-            if (readNextChunkedLine() == null)
+        if (dataLength > 0)
+        {
+          byte[] uncompressedBytes = encoderDecoder.decode(Arrays.copyOfRange(bytes, buffer.position() - dataLength, buffer.position()));
+          if (uncompressedBytes != null && uncompressedBytes.length > 0)
+          {
+            if (requestModifier)
             {
-              needMoreBytes = true;
+              requestContentModifier.modifyAndWrite(request, uncompressedBytes, charset, outputStreamBridge);
             }
             else
             {
-              chunkedInputState = ReadChunkedInputState.READ_BYTE_COUNT;
+              responseContentModifier.modifyAndWrite(request, response, uncompressedBytes, charset, outputStreamBridge);
             }
-            break;
-
-          case READ_LAST_LINE:
-            inputBuffer.clear();
-            // No more application data
-            break;
+          }
         }
       }
     }
@@ -327,24 +281,6 @@ class ModifiedOutputStream extends OutputStream
     }
   }
 
-  /**
-   * Reads the next line from the input buffer (all bytes to the first line feed character).
-   */
-  byte[] readNextChunkedLine()
-  {
-    for (int i = 0; i < inputBuffer.size(); i++)
-    {
-      if (inputBuffer.get(i) == LF)
-      {
-        byte[] line = inputBuffer.subList(0, i + 1).toArray();
-        inputBuffer.remove(0, i + 1);
-        return line;
-      }
-    }
-
-    return null;
-  }
-
   static Charset contentTypeToCharset(String contentType, ProxyLogger log)
   {
     if (nullEmpty(contentType))
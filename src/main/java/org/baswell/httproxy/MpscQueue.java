@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producer threads and a single consumer thread. Producers swap themselves in as the
+ * tail with one atomic exchange and then link the previous tail to them. The consumer walks the links from a stub head node.
+ * An element offered by a producer that hasn't linked yet is not visible to {@link #poll()} until it does.
+ */
+class MpscQueue<E>
+{
+  private final AtomicReference<Node<E>> tail;
+
+  /*
+   * Only touched by the consumer.
+   */
+  private Node<E> head;
+
+  MpscQueue()
+  {
+    head = new Node<E>(null);
+    tail = new AtomicReference<Node<E>>(head);
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  void offer(E element)
+  {
+    Node<E> node = new Node<E>(element);
+    Node<E> previous = tail.getAndSet(node);
+    previous.next = node;
+  }
+
+  /**
+   * Must only be called from the consumer thread.
+   *
+   * @return The next element or null if the queue is empty.
+   */
+  E poll()
+  {
+    Node<E> next = head.next;
+    if (next == null)
+    {
+      return null;
+    }
+
+    E element = next.element;
+    next.element = null;
+    head = next;
+    return element;
+  }
+
+  /**
+   * Must only be called from the consumer thread.
+   */
+  boolean isEmpty()
+  {
+    return head.next == null;
+  }
+
+  private static class Node<E>
+  {
+    E element;
+
+    volatile Node<E> next;
+
+    Node(E element)
+    {
+      this.element = element;
+    }
+  }
+}
@@ -29,8 +29,30 @@ public interface NIOProxyDirector extends ProxyDirector
    */
   int getMaxWriteAttempts();
 
+  /**
+   *
+   * @return The maximum number of bytes held in memory for a SocketChannel that isn't keeping up with the other side of
+   * the exchange. Once reached, reading from the other side stops until half of these bytes have been written out.
+   */
+  int getWriteQueueHighWaterMark();
+
+  /**
+   *
+   * @return The maximum number of requests from a client that are sent on to the server before their responses are done
+   * (HTTP/1.1 pipelining). Once reached the client's next request isn't read until the oldest response is done. A value
+   * of 1 turns pipelining off.
+   */
+  int getMaxPipelinedRequests();
+
   /**
    * @return The thread pool used to execute long running SSL operations (like CA verification). Can be null if not using SSL connections.
    */
   ExecutorService getSSLThreadPool();
+
+  /**
+   * Not used when each selector thread accepts its own connections ({@link ServerSocketChannelAcceptLoop#start(java.net.SocketAddress, int)}).
+   *
+   * @return How accepted client connections are placed on the selector threads.
+   */
+  SelectorPlacement getSelectorPlacement();
 }
@@ -16,13 +16,21 @@
 package org.baswell.httproxy;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class PipedExchangeChannel
+import static org.baswell.httproxy.Constants.*;
+import static org.baswell.httproxy.SharedMethods.*;
+
+class PipedExchangeChannel implements SelectorHandler, ServerConnector, CollapsedRequest.Waiter
 {
   private final SelectorLoop selectorLoop;
 
@@ -38,194 +46,547 @@ class PipedExchangeChannel
 
   private final ProxyLogger log;
 
-  private final SocketChannelMultiplexer socketChannelMultiplexer;
+  private final SocketChannelPool socketChannelPool;
 
   private boolean connectingServerChannel;
 
-  private final Map<ConnectionParameters, SelectionKey> responseSelectionKeys = new HashMap<ConnectionParameters, SelectionKey>();
+  private SocketChannel serverSocketChannel;
+
+  private ConnectionParameters serverConnectionParameters;
 
   private SelectionKey currentResponseSelectionKey;
 
+  private boolean connecting;
+
+  private SocketChannel connectingSocketChannel;
+
+  private long connectDeadline;
+
+  private int connectAttempt;
+
+  private boolean closed;
+
   private ConnectionParameters currentConnectionParameters;
 
-  PipedExchangeChannel(SelectorLoop selectorLoop, SocketChannel clientSocketChannel, NIOProxyDirector proxyDirector) throws IOException
+  private final int maxPipelinedRequests;
+
+  /*
+   * Requests sent (or being sent) to the server whose responses haven't been read yet, oldest first. The server answers
+   * in the order the requests were sent so the response being read is always for the head of the queue.
+   */
+  private final ArrayDeque<HttpRequest> inFlightRequests = new ArrayDeque<HttpRequest>();
+
+  /*
+   * The server a pipelined request is waiting to go to once the responses for the requests before it (sent to another
+   * server) are done. Nothing more is read from the client until then.
+   */
+  private ConnectionParameters heldConnectionParameters;
+
+  /*
+   * Did every exchange over the current server channel leave it open.
+   */
+  private boolean serverReusable;
+
+  /*
+   * The stream the current request was sent on when its server is reached over HTTP/2. While it's open it's the only
+   * request in flight.
+   */
+  private Http2Stream http2Stream;
+
+  private boolean requestOverHttp2;
+
+  /*
+   * A response read over HTTP/2 without a Content-Length can't be chunked for an HTTP/1.0 client, its end is the client
+   * connection closing.
+   */
+  private boolean closeAfterResponse;
+
+  /*
+   * The HTTP/2 stream the request is read from when the client connection is HTTP/2. The exchange only lasts for its one
+   * request.
+   */
+  private final Http2ClientStream clientStream;
+
+  /*
+   * HTTP/2 was offered to the client through ALPN. What it picked is known once the first bytes are read.
+   */
+  private boolean negotiatingProtocol;
+
+  /*
+   * The request in flight asks to switch protocols (Upgrade). Nothing more is read from the client until its response
+   * says whether the connection is still HTTP.
+   */
+  private boolean upgradeRequested;
+
+  /*
+   * A CONNECT request is waiting on its new server connection. Nothing more is read from the client until the tunnel is
+   * established.
+   */
+  private boolean connectRequested;
+
+  /*
+   * After a 101 (Switching Protocols) or once a CONNECT request's server is connected the exchange is a tunnel, bytes are
+   * passed between the client and the server without being parsed.
+   */
+  private boolean tunneling;
+
+  /*
+   * A read of what an SSL side of the tunnel has buffered is queued on the selector loop.
+   */
+  private boolean tunnelReadScheduled;
+
+  private HttpRequest tunnelRequest;
+
+  private long tunnelBytesFromClient;
+
+  private long tunnelBytesFromServer;
+
+  /*
+   * The client (server) has closed its output. Once what it sent is written the other side's output is shut down.
+   */
+  private boolean clientEnded;
+
+  private boolean serverEnded;
+
+  /*
+   * Shared by all exchanges, null if the director doesn't cache responses.
+   */
+  private final ResponseCache responseCache;
+
+  /*
+   * Collects the body of the response being read for the cache.
+   */
+  private CacheFill cacheFill;
+
+  /*
+   * The current request was answered from the cache (or waits on a collapsed request or a revalidation), it doesn't go to
+   * a server.
+   */
+  private boolean servedFromCache;
+
+  private final int collapsedRequestTimeoutMillis;
+
+  /*
+   * Identical requests wait on the current request's response. Once it has started (sharingResponse) the response's
+   * bytes are published to them as they're written to this client.
+   */
+  private CollapsedRequest leading;
+
+  private boolean sharingResponse;
+
+  /*
+   * The current request waits on an identical request another exchange sent to the server. Nothing more is read from the
+   * client until the response has been queued for it.
+   */
+  private CollapsedRequest.Attachment waitingOn;
+
+  /*
+   * When the request stops waiting (on a collapsed request or a revalidation) and goes to the server on its own, 0 once a
+   * collapsed response has started.
+   */
+  private long waitDeadline;
+
+  private final AtomicBoolean collapseTakeScheduled = new AtomicBoolean();
+
+  /*
+   * The current request waits on the revalidation of the stale response stored for it. Nothing more is read from the
+   * client until it's answered.
+   */
+  private boolean revalidating;
+
+  /*
+   * Counts the revalidations waited on, so the result of one given up on isn't sent.
+   */
+  private int revalidation;
+
+  private final Runnable collapseTakeTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      takeCollapsedResponse();
+    }
+  };
+
+  PipedExchangeChannel(SelectorLoop selectorLoop, SocketChannel clientSocketChannel, NIOProxyDirector proxyDirector, SocketChannelPool socketChannelPool) throws IOException
   {
     this.selectorLoop = selectorLoop;
     this.clientSocketChannel = clientSocketChannel;
     this.proxyDirector = proxyDirector;
+    this.socketChannelPool = socketChannelPool;
 
     log = new WrappedLogger(proxyDirector.getLogger());
+    maxPipelinedRequests = Math.max(1, proxyDirector.getMaxPipelinedRequests());
+    responseCache = proxyDirector.getResponseCache();
+    collapsedRequestTimeoutMillis = proxyDirector.getCollapsedRequestTimeoutMillis();
 
     clientSocketChannel.configureBlocking(false);
 
-    SocketChannel realSocketChannel;
-    if (clientSocketChannel instanceof WrappedSocketChannel)
+    if (clientSocketChannel instanceof Http2ClientStream)
     {
-      realSocketChannel = ((WrappedSocketChannel)clientSocketChannel).getWrappedSocketChannel();
+      /*
+       * Nothing to register, the stream's connection says when there's request input.
+       */
+      clientStream = (Http2ClientStream)clientSocketChannel;
+      clientStream.exchange = this;
+      requestSelectionKey = null;
     }
     else
     {
-      realSocketChannel = clientSocketChannel;
-    }
+      clientStream = null;
+      negotiatingProtocol = (clientSocketChannel instanceof SSLSocketChannel) && ((SSLSocketChannel)clientSocketChannel).http2Offered;
+
+      SocketChannel realSocketChannel;
+      if (clientSocketChannel instanceof WrappedSocketChannel)
+      {
+        realSocketChannel = ((WrappedSocketChannel)clientSocketChannel).getWrappedSocketChannel();
+      }
+      else
+      {
+        realSocketChannel = clientSocketChannel;
+      }
 
-    requestSelectionKey = realSocketChannel.register(selectorLoop.selector, SelectionKey.OP_READ);
-    requestSelectionKey.attach(this);
+      requestSelectionKey = realSocketChannel.register(selectorLoop.selector, SelectionKey.OP_READ);
+      requestSelectionKey.attach(this);
+    }
 
     requestPipeChannel = new PipedRequestChannel(proxyDirector, this, clientSocketChannel);
     responsePipeChannel = new PipedResponseChannel(proxyDirector, this, clientSocketChannel);
-    socketChannelMultiplexer = new SocketChannelMultiplexer(proxyDirector.getSSLThreadPool(), proxyDirector.getLogger());
+
+    /*
+     * A client connection was counted when it was given to the selector loop.
+     */
+    if (clientStream != null)
+    {
+      selectorLoop.load.activeExchanges.incrementAndGet();
+    }
+    selectorLoop.load.totalExchanges.incrementAndGet();
   }
 
-  void onReadReady(SelectionKey selectionKey)
+  @Override
+  public void onReadReady(SelectionKey selectionKey)
   {
     connectingServerChannel = false;
-    if (requestSelectionKey == selectionKey)
+    if (tunneling)
     {
-      try
+      readTunnel(selectionKey);
+    }
+    else if (requestSelectionKey == selectionKey)
+    {
+      readRequest();
+    }
+    else if (currentResponseSelectionKey == selectionKey)
+    {
+      readResponse();
+    }
+    else
+    {
+      log.error("Received onReadReady() event with invalid selection key.");
+    }
+  }
+
+  private void readRequest()
+  {
+    try
+    {
+      if (negotiatingProtocol && !negotiateProtocol())
       {
-        if (!requestPipeChannel.readAndWriteAvailabe())
-        {
-          requestSelectionKey.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-        }
-        else if ((requestSelectionKey.interestOps() & SelectionKey.OP_WRITE) != 0)
-        {
-          requestSelectionKey.interestOps(SelectionKey.OP_READ);
-        }
+        return;
       }
-      catch (ProxiedIOException proxiedIOException)
+
+      requestPipeChannel.readAndWriteAvailabe();
+      releaseServerChannelIfDone();
+      updateInterestOps();
+      closeIfStreamDone();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      if (connectingServerChannel)
+      {
+        connectingServerChannel = false;
+      }
+      else if (!isExchangeComplete())
       {
-        if (connectingServerChannel)
+        if (proxiedIOException.reading)
         {
-          connectingServerChannel = false;
+          proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
         }
-        else if (!requestPipeChannel.isMessageComplete() || !responsePipeChannel.isMessageComplete())
+        else
         {
-          if (proxiedIOException.reading)
-          {
-            proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
-          }
-          else
-          {
-            proxyDirector.onPrematureResponseClosed(requestPipeChannel.currentRequest, currentConnectionParameters, proxiedIOException.e);
-          }
+          proxyDirector.onPrematureResponseClosed(respondingTo(), currentConnectionParameters, proxiedIOException.e);
         }
-
-        close();
       }
-      catch (HttpProtocolException e)
+
+      close();
+    }
+    catch (HttpProtocolException e)
+    {
+      proxyDirector.onRequestHttpProtocolError(requestPipeChannel.currentRequest, e.getMessage());
+      close();
+    }
+    catch (EndProxiedRequestException e)
+    {
+      endExchange(e);
+    }
+  }
+
+  private void readResponse()
+  {
+    boolean requestReadPaused = isRequestReadPaused();
+    try
+    {
+      responsePipeChannel.readAndWriteAvailabe();
+      if (tunneling)
       {
-        proxyDirector.onRequestHttpProtocolError(requestPipeChannel.currentRequest, e.getMessage());
-        close();
+        startTunnel();
+        return;
       }
-      catch (EndProxiedRequestException e)
+      else if ((heldConnectionParameters != null) && inFlightRequests.isEmpty())
       {
-        try
-        {
-          clientSocketChannel.write(ByteBuffer.wrap(e.toString().getBytes()));
-        }
-        catch (IOException ie)
-        {}
-        close();
+        sendHeldRequest();
       }
+      releaseServerChannelIfDone();
+      updateInterestOps();
+      closeIfStreamDone();
     }
-    else if (currentResponseSelectionKey == selectionKey)
+    catch (ProxiedIOException proxiedIOException)
     {
-      try
+      if (connectingServerChannel)
       {
-        if (!responsePipeChannel.readAndWriteAvailabe())
-        {
-          currentResponseSelectionKey.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-        }
-        else
-        {
-          if ((currentResponseSelectionKey.interestOps() & SelectionKey.OP_WRITE) != 0)
-          {
-            currentResponseSelectionKey.interestOps(SelectionKey.OP_READ);
-          }
-        }
+        connectingServerChannel = false;
       }
-      catch (ProxiedIOException proxiedIOException)
+      else if (!isExchangeComplete())
       {
-        if (connectingServerChannel)
+        if (proxiedIOException.reading)
         {
-          connectingServerChannel = false;
+          proxyDirector.onPrematureResponseClosed(respondingTo(), currentConnectionParameters, proxiedIOException.e);
         }
-        else if (!requestPipeChannel.isMessageComplete() || !responsePipeChannel.isMessageComplete())
+        else
         {
-          if (proxiedIOException.reading)
-          {
-            proxyDirector.onPrematureResponseClosed(requestPipeChannel.currentRequest, currentConnectionParameters, proxiedIOException.e);
-          }
-          else
-          {
-            proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
-          }
+          proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
         }
-
-        close();
-      }
-      catch (HttpProtocolException e)
-      {
-        proxyDirector.onResponseHttpProtocolError(requestPipeChannel.currentRequest, responsePipeChannel.currentResponse, e.getMessage());
-        close();
       }
-      catch (EndProxiedRequestException e)
+
+      close();
+      return;
+    }
+    catch (HttpProtocolException e)
+    {
+      proxyDirector.onResponseHttpProtocolError(respondingTo(), responsePipeChannel.currentResponse, e.getMessage());
+      close();
+      return;
+    }
+    catch (EndProxiedRequestException e)
+    {
+      endExchange(e);
+      return;
+    }
+
+    /*
+     * A response being done can let the client's next pipelined request through. It may already be in the read buffer
+     * so don't wait for another read event.
+     */
+    if (requestReadPaused && !closed && !isRequestReadPaused())
+    {
+      readRequest();
+    }
+  }
+
+  /*
+   * The first bytes the client sends tell the handshake is done. If the client picked h2 the connection (and the bytes
+   * read) is handed to an HTTP/2 connection and this exchange is done. Otherwise the bytes are left in the read buffer for
+   * the request.
+   *
+   * Returns false if there's nothing more to do with the client channel here.
+   */
+  private boolean negotiateProtocol() throws ProxiedIOException
+  {
+    ByteBuffer readBuffer = requestPipeChannel.readBuffer = requestPipeChannel.bufferPool.take();
+    int read;
+    try
+    {
+      read = clientSocketChannel.read(readBuffer);
+    }
+    catch (IOException e)
+    {
+      throw new ProxiedIOException(requestPipeChannel.currentRequest, true, e);
+    }
+    readBuffer.flip();
+
+    if (read < 0)
+    {
+      throw new ProxiedIOException(requestPipeChannel.currentRequest, true, new IOException("Connection closed."));
+    }
+    else if (read == 0)
+    {
+      requestPipeChannel.releaseReadBuffer();
+      return false;
+    }
+
+    negotiatingProtocol = false;
+    if (!"h2".equals(((SSLSocketChannel)clientSocketChannel).getApplicationProtocol()))
+    {
+      return true;
+    }
+
+    closed = true;
+    selectorLoop.load.activeExchanges.decrementAndGet();
+    new Http2ClientConnection(selectorLoop, clientSocketChannel, requestSelectionKey, proxyDirector, socketChannelPool, readBuffer);
+    requestPipeChannel.releaseBuffers();
+    responsePipeChannel.releaseBuffers();
+    return false;
+  }
+
+  private void endExchange(EndProxiedRequestException e)
+  {
+    if (clientStream != null)
+    {
+      clientStream.sendEndResponse(e);
+    }
+    else
+    {
+      try
       {
-        try
-        {
-          clientSocketChannel.write(ByteBuffer.wrap(e.toString().getBytes()));
-        }
-        catch (IOException ie)
-        {}
-        close();
+        clientSocketChannel.write(ByteBuffer.wrap(e.toString().getBytes()));
       }
+      catch (IOException ie)
+      {}
+    }
+    close();
+  }
+
+  /*
+   * The exchange for an HTTP/2 stream is done once the response has been handed to the stream. Its connection sends what
+   * the client's flow control holds back.
+   */
+  private void closeIfStreamDone()
+  {
+    if ((clientStream != null) && !closed && clientStream.responseEnded)
+    {
+      close();
+    }
+  }
+
+  /*
+   * There's request input on the stream.
+   */
+  void onClientStreamReadable()
+  {
+    connectingServerChannel = false;
+    if (!closed)
+    {
+      readRequest();
+    }
+  }
+
+  /*
+   * The stream took the response data that was waiting on the client's flow control, reading the response can carry on.
+   */
+  void onClientStreamWritable()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    if (http2Stream != null)
+    {
+      http2Stream.onClientWritten();
+    }
+
+    if ((currentResponseSelectionKey != null) && !isResponseReadPaused())
+    {
+      readResponse();
     }
     else
     {
-      log.error("Received onReadReady() event with invalid selection key.");
+      updateInterestOps();
+    }
+  }
+
+  /*
+   * The client reset the stream or its connection is gone.
+   */
+  void onClientStreamReset()
+  {
+    if (!closed)
+    {
+      if (!isExchangeComplete())
+      {
+        proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, new IOException("Stream reset by client."));
+      }
+      close();
     }
   }
 
   /*
-   * If a previous onReadReady event could not write all the output to the socket channel buffer we'll start listening
-   * for write ready events for that socket channel. When ready this method will be called and if a full write is performed
-   * we'll turn off the write ready events.
+   * If a previous onReadReady event could not write all the output to a socket channel the rest was queued and we started
+   * listening for write ready events on that socket channel. The client channel receives the response and the server
+   * channel receives the request.
    */
-  void onWriteReady(SelectionKey selectionKey)
+  @Override
+  public void onWriteReady(SelectionKey selectionKey)
   {
     if (selectionKey == requestSelectionKey)
     {
+      boolean requestReadPaused = isRequestReadPaused();
       try
       {
-        if (requestPipeChannel.write())
+        responsePipeChannel.write();
+        if (closeAfterResponse && responsePipeChannel.isMessageComplete())
         {
-          requestSelectionKey.interestOps(SelectionKey.OP_READ);
+          close();
+          return;
         }
+        else if (tunneling)
+        {
+          onTunnelWritten();
+          return;
+        }
+        else if (http2Stream != null)
+        {
+          http2Stream.onClientWritten();
+        }
+        updateInterestOps();
       }
       catch (ProxiedIOException proxiedIOException)
       {
-        if (!requestPipeChannel.isMessageComplete() || !responsePipeChannel.isMessageComplete())
+        if (!isExchangeComplete())
         {
           proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
         }
 
         close();
+        return;
+      }
+
+      /*
+       * The body of a cached response being written out lets the client's next pipelined request through.
+       */
+      if (requestReadPaused && !closed && !isRequestReadPaused())
+      {
+        readRequest();
       }
     }
     else if (selectionKey == currentResponseSelectionKey)
     {
       try
       {
-        if (responsePipeChannel.write())
+        requestPipeChannel.write();
+        if (tunneling)
         {
-          currentResponseSelectionKey.interestOps(SelectionKey.OP_READ);
+          onTunnelWritten();
+          return;
         }
+        releaseServerChannelIfDone();
+        updateInterestOps();
+        closeIfStreamDone();
       }
       catch (ProxiedIOException proxiedIOException)
       {
-        if (!requestPipeChannel.isMessageComplete() || !responsePipeChannel.isMessageComplete())
+        if (!isExchangeComplete())
         {
-          proxyDirector.onPrematureResponseClosed(requestPipeChannel.currentRequest, currentConnectionParameters, proxiedIOException.e);
+          proxyDirector.onPrematureResponseClosed(respondingTo(), currentConnectionParameters, proxiedIOException.e);
         }
 
         close();
@@ -237,61 +598,1305 @@ class PipedExchangeChannel
     }
   }
 
-  void onRequest() throws EndProxiedRequestException, IOException
+  /*
+   * A channel is only read from while the write queue it feeds isn't backed up (and its reads aren't paused), and write
+   * ready events are only wanted while bytes are queued for it.
+   */
+  private void updateInterestOps()
   {
-    connectingServerChannel = true;
-
-    currentConnectionParameters = proxyDirector.onRequestStart(requestPipeChannel.currentRequest);
-    if (currentConnectionParameters == null)
+    if (tunneling)
     {
-      throw EndProxiedRequestException.NOT_FOUND;
-    }
-
+      if (requestSelectionKey.isValid())
+      {
+        setInterestOps(requestSelectionKey, !clientEnded && !requestPipeChannel.writeQueue.isBackedUp(), !responsePipeChannel.writeQueue.isEmpty());
+      }
+
+      if ((currentResponseSelectionKey != null) && currentResponseSelectionKey.isValid())
+      {
+        setInterestOps(currentResponseSelectionKey, !serverEnded && !responsePipeChannel.writeQueue.isBackedUp(), !requestPipeChannel.writeQueue.isEmpty());
+      }
+      return;
+    }
+
+    if (clientStream != null)
+    {
+      clientStream.interestOps(!requestPipeChannel.writeQueue.isBackedUp() && !isRequestReadPaused());
+    }
+    else if (requestSelectionKey.isValid())
+    {
+      setInterestOps(requestSelectionKey, !requestPipeChannel.writeQueue.isBackedUp() && !isRequestReadPaused(), !responsePipeChannel.writeQueue.isEmpty() || responsePipeChannel.isWritingFile());
+    }
+
+    if ((currentResponseSelectionKey != null) && currentResponseSelectionKey.isValid())
+    {
+      setInterestOps(currentResponseSelectionKey, !responsePipeChannel.writeQueue.isBackedUp() && !isResponseReadPaused(), !requestPipeChannel.writeQueue.isEmpty());
+    }
+  }
+
+  /*
+   * The client's next request isn't read while as many requests as allowed are waiting on responses, while a request
+   * is held for another server, while an upgrade request waits on its response, while a CONNECT request waits on its
+   * server connection, while a request waits on a collapsed request or a revalidation or while the body of a cached
+   * response is written from its file. Nothing is read as HTTP once the exchange is a tunnel. A request sent over HTTP/2
+   * isn't pipelined and its body isn't read while its stream is backed up.
+   */
+  boolean isRequestReadPaused()
+  {
+    if (tunneling)
+    {
+      return true;
+    }
+
+    return (heldConnectionParameters != null)
+        || connectRequested
+        || (waitingOn != null)
+        || revalidating
+        || responsePipeChannel.isWritingFile()
+        || (upgradeRequested && requestPipeChannel.isReadComplete())
+        || (requestPipeChannel.isReadComplete() && (inFlightRequests.size() >= ((http2Stream == null) ? maxPipelinedRequests : 1)))
+        || ((http2Stream != null) && !requestPipeChannel.isReadComplete() && http2Stream.isBackedUp());
+  }
+
+  boolean isRequestOverHttp2()
+  {
+    return requestOverHttp2;
+  }
+
+  /*
+   * Nothing more is read from the server once every request sent to it has its response, while an HTTP/2 client's
+   * stream is backed up or once the exchange is a tunnel.
+   */
+  boolean isResponseReadPaused()
+  {
+    if (tunneling)
+    {
+      return true;
+    }
+
+    return (responsePipeChannel.isReadComplete() && inFlightRequests.isEmpty()) || ((clientStream != null) && clientStream.isBackedUp());
+  }
+
+  boolean isClientOverHttp2()
+  {
+    return clientStream != null;
+  }
+
+  /*
+   * Responses to HEAD requests, 1xx, 204 and 304 responses never have a body (RFC 7230 3.3.3).
+   */
+  boolean responseHasBody()
+  {
+    HttpRequest request = inFlightRequests.peek();
+    int statusCode = responsePipeChannel.currentResponse.statusCode;
+    return ((request == null) || !"HEAD".equalsIgnoreCase(request.method))
+        && (statusCode >= 200) && (statusCode != 204) && (statusCode != 304);
+  }
+
+  private boolean isExchangeComplete()
+  {
+    return requestPipeChannel.isMessageComplete() && responsePipeChannel.isMessageComplete() && inFlightRequests.isEmpty();
+  }
+
+  /*
+   * The request the response being read is for.
+   */
+  private HttpRequest respondingTo()
+  {
+    HttpRequest request = inFlightRequests.peek();
+    return (request == null) ? requestPipeChannel.currentRequest : request;
+  }
+
+  /*
+   * HTTP/2 is only spoken with prior knowledge over plain connections (h2c). Over SSL it would need ALPN.
+   */
+  private static boolean overHttp2(ConnectionParameters connectionParameters)
+  {
+    return connectionParameters.http2 && !connectionParameters.ssl;
+  }
+
+  private static void setInterestOps(SelectionKey selectionKey, boolean read, boolean write)
+  {
+    int interestOps = (read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0);
+    if (selectionKey.interestOps() != interestOps)
+    {
+      selectionKey.interestOps(interestOps);
+    }
+  }
+
+  /*
+   * Returns false if the request is held until the responses to the requests pipelined before it are done (it goes to
+   * another server) or if it's sent over HTTP/2. Otherwise the request's bytes are sent (or queued while connecting) to
+   * the server.
+   */
+  boolean onRequest() throws EndProxiedRequestException, IOException
+  {
+    connectingServerChannel = true;
+    servedFromCache = false;
+
+    if ((clientStream == null) && requestPipeChannel.currentRequest.isConnect())
+    {
+      openTunnel();
+      return false;
+    }
+
+    currentConnectionParameters = proxyDirector.onRequestStart(requestPipeChannel.currentRequest);
+    if (currentConnectionParameters == null)
+    {
+      throw EndProxiedRequestException.NOT_FOUND;
+    }
+    requestOverHttp2 = overHttp2(currentConnectionParameters);
+    upgradeRequested = !requestOverHttp2 && (clientStream == null) && requestPipeChannel.currentRequest.hasHeader("Upgrade");
+
+    if (responseCache != null)
+    {
+      HttpRequest request = requestPipeChannel.currentRequest;
+      responseCache.onPurgeRequest(request, proxyDirector.getPurgePath());
+      responseCache.onRequest(request);
+      if (canServeFromCache(request))
+      {
+        CachedResponse cachedResponse = responseCache.get(request);
+        if (cachedResponse != null)
+        {
+          serveCachedResponse(request, cachedResponse);
+          return false;
+        }
+        else if (!requestOverHttp2 && revalidate(request))
+        {
+          return false;
+        }
+        else if ((collapsedRequestTimeoutMillis > 0) && waitOnCollapsedRequest(request))
+        {
+          return false;
+        }
+        else if ((collapsedRequestTimeoutMillis > 0) && !requestOverHttp2)
+        {
+          leading = responseCache.lead(request);
+        }
+      }
+    }
+
+    /*
+     * The server channel is only still held (or connecting) here if the client sent this request before the last
+     * response was done.
+     */
+    if (((serverSocketChannel != null) || connecting) && !currentConnectionParameters.equals(serverConnectionParameters))
+    {
+      if (!inFlightRequests.isEmpty())
+      {
+        heldConnectionParameters = currentConnectionParameters;
+        connectingServerChannel = false;
+        return false;
+      }
+
+      releaseServerChannel(false);
+    }
+
+    sendRequest();
+    return !requestOverHttp2;
+  }
+
+  /*
+   * Only a request that would go to the server right now (nothing pipelined before it still waiting on its response) is
+   * answered from the cache, so responses stay in order. The request can't have a body and the client has to be
+   * HTTP/1.1 keeping the connection open, the stored header is sent as is.
+   */
+  private boolean canServeFromCache(HttpRequest request)
+  {
+    Long contentLength = requestPipeChannel.contentLength;
+    return (clientStream == null) && inFlightRequests.isEmpty() && (heldConnectionParameters == null) && !upgradeRequested
+        && !requestPipeChannel.chunked && ((contentLength == null) || (contentLength == 0))
+        && "HTTP/1.1".equals(request.version) && keepsConnectionOpen(request, request.version);
+  }
+
+  /*
+   * The hit is queued behind whatever is left of the last response to write to the client. A body in the disk tier is
+   * written from its file after the queue.
+   */
+  private void serveCachedResponse(HttpRequest request, CachedResponse cachedResponse) throws IOException
+  {
+    servedFromCache = true;
+    requestOverHttp2 = false;
+    connectingServerChannel = false;
+
+    WriteQueue writeQueue = responsePipeChannel.writeQueue;
+    writeQueue.add(cachedResponse.header);
+    writeQueue.add(cachedResponse.ageLine(System.currentTimeMillis()));
+    if ("HEAD".equalsIgnoreCase(request.method))
+    {
+      cachedResponse.release();
+    }
+    else if (cachedResponse.body != null)
+    {
+      writeQueue.add(cachedResponse.body);
+    }
+    else
+    {
+      responsePipeChannel.writeFile(cachedResponse);
+    }
+
+    try
+    {
+      responsePipeChannel.write();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      throw proxiedIOException.e;
+    }
+  }
+
+  /*
+   * A stale response stored for the request is sent right away if it can be while it's revalidated in the background,
+   * otherwise the request waits on its revalidation. Revalidations are sent over HTTP/1.1 so requests for HTTP/2 servers
+   * aren't revalidated.
+   */
+  private boolean revalidate(HttpRequest request) throws IOException
+  {
+    CachedResponse stale = responseCache.getStale(request);
+    if (stale == null)
+    {
+      return false;
+    }
+    else if (responseCache.serveWhileRevalidating(request, currentConnectionParameters, stale, proxyDirector))
+    {
+      serveCachedResponse(request, stale);
+      return true;
+    }
+
+    revalidating = true;
+    servedFromCache = true;
+    connectingServerChannel = false;
+    final int revalidation = ++this.revalidation;
+    waitDeadline = System.currentTimeMillis() + Revalidator.WAIT_TIMEOUT_MILLIS;
+    selectorLoop.watchWaiting(this);
+    responseCache.revalidate(request, currentConnectionParameters, stale, proxyDirector, new Revalidator.Listener()
+    {
+      /*
+       * Called on a revalidation thread.
+       */
+      @Override
+      public void onRevalidated(final CachedResponse response)
+      {
+        selectorLoop.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            serveRevalidatedResponse(revalidation, response);
+          }
+        });
+      }
+    });
+    return true;
+  }
+
+  /*
+   * Without a response to send the request goes to the server like a miss. The result of a revalidation the request
+   * stopped waiting on is dropped.
+   */
+  private void serveRevalidatedResponse(int revalidation, CachedResponse response)
+  {
+    if (closed || !revalidating || (revalidation != this.revalidation))
+    {
+      if (response != null)
+      {
+        response.release();
+      }
+      return;
+    }
+
+    revalidating = false;
+    if (response == null)
+    {
+      sendWaitingRequest();
+      return;
+    }
+
     try
     {
-      SocketChannel serverSocketChannel = socketChannelMultiplexer.getConnectionFor(currentConnectionParameters);
+      serveCachedResponse(requestPipeChannel.currentRequest, response);
+    }
+    catch (IOException e)
+    {
+      proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, e);
+      close();
+      return;
+    }
+
+    updateInterestOps();
+    if (!isRequestReadPaused())
+    {
+      readRequest();
+    }
+  }
+
+  /*
+   * The request waits on an identical request another exchange sent to the server if there is one.
+   */
+  private boolean waitOnCollapsedRequest(HttpRequest request)
+  {
+    waitingOn = responseCache.attach(request, this);
+    if (waitingOn == null)
+    {
+      return false;
+    }
+
+    servedFromCache = true;
+    requestOverHttp2 = false;
+    connectingServerChannel = false;
+    waitDeadline = System.currentTimeMillis() + collapsedRequestTimeoutMillis;
+    selectorLoop.watchWaiting(this);
+    return true;
+  }
+
+  /*
+   * Called on the leader's thread.
+   */
+  @Override
+  public void onCollapsedResponse()
+  {
+    if (collapseTakeScheduled.compareAndSet(false, true))
+    {
+      selectorLoop.execute(collapseTakeTask);
+    }
+  }
+
+  long getWaitDeadline()
+  {
+    return ((waitingOn == null) && !revalidating) ? 0 : waitDeadline;
+  }
+
+  /*
+   * A request still waiting on a revalidation at its deadline goes to the server, the revalidation carries on without
+   * it.
+   */
+  void onWaitTimeout()
+  {
+    if (closed)
+    {
+      return;
+    }
+    else if (revalidating)
+    {
+      revalidating = false;
+      sendWaitingRequest();
+    }
+    else if ((waitingOn != null) && waitingOn.timeout())
+    {
+      sendWaitingRequest();
+    }
+  }
+
+  /*
+   * Queues what the leader has published since the last take for the client.
+   */
+  private void takeCollapsedResponse()
+  {
+    collapseTakeScheduled.set(false);
+    if (closed || (waitingOn == null))
+    {
+      return;
+    }
+
+    List<byte[]> published = new ArrayList<byte[]>();
+    int state = waitingOn.take(published);
+    if (state == CollapsedRequest.FALLBACK)
+    {
+      sendWaitingRequest();
+      return;
+    }
+    else if (state == CollapsedRequest.FAILED)
+    {
+      proxyDirector.onPrematureResponseClosed(requestPipeChannel.currentRequest, currentConnectionParameters, new IOException("The response to the request waited on broke off."));
+      close();
+      return;
+    }
+    else if (state == CollapsedRequest.COMPLETE)
+    {
+      waitingOn = null;
+    }
+    else if (state == CollapsedRequest.STREAMING)
+    {
+      waitDeadline = 0;
+    }
+
+    for (byte[] bytes : published)
+    {
+      responsePipeChannel.writeQueue.add(bytes);
+    }
+
+    try
+    {
+      responsePipeChannel.write();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
+      close();
+      return;
+    }
+
+    updateInterestOps();
+    if ((waitingOn == null) && !isRequestReadPaused())
+    {
+      readRequest();
+    }
+  }
+
+  /*
+   * The request stops waiting (on a collapsed request or a revalidation) and goes to the server like a request that was
+   * held.
+   */
+  private void sendWaitingRequest()
+  {
+    waitingOn = null;
+    servedFromCache = false;
+    requestOverHttp2 = overHttp2(currentConnectionParameters);
+    try
+    {
+      sendHeldRequest();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      close();
+      return;
+    }
+
+    onRequestDone();
+    updateInterestOps();
+    if (!isRequestReadPaused())
+    {
+      readRequest();
+    }
+  }
+
+  private void sendRequest() throws IOException
+  {
+    try
+    {
+      if (requestOverHttp2)
+      {
+        Long contentLength = requestPipeChannel.contentLength;
+        boolean hasBody = requestPipeChannel.chunked || ((contentLength != null) && (contentLength > 0));
+        http2Stream = selectorLoop.http2Connection(currentConnectionParameters).open(this, requestPipeChannel.currentRequest, !hasBody);
+      }
+      else if ((serverSocketChannel == null) && !connecting)
+      {
+        SocketChannel idleSocketChannel = socketChannelPool.checkoutIdle(currentConnectionParameters);
+        serverConnectionParameters = currentConnectionParameters;
+        if (idleSocketChannel != null)
+        {
+          useServerChannel(idleSocketChannel);
+        }
+        else
+        {
+          /*
+           * Bytes read from the client until the connection is made are queued up on the request.
+           */
+          connectServerChannel();
+        }
+      }
+
+      inFlightRequests.add(requestPipeChannel.currentRequest);
+      responsePipeChannel.currentConnectionParameters = currentConnectionParameters;
+      responsePipeChannel.overSSL = currentConnectionParameters.ssl;
+      connectingServerChannel = false;
+    }
+    catch (IOException e)
+    {
+      proxyDirector.onConnectionFailed(requestPipeChannel.currentRequest, currentConnectionParameters, e);
+      throw e;
+    }
+  }
+
+  private void connectServerChannel() throws IOException
+  {
+    socketChannelPool.reserve(currentConnectionParameters);
+    connecting = true;
+    connectAttempt++;
+    serverReusable = true;
+    int connectTimeoutMillis = proxyDirector.getConnectTimeoutMillis();
+    connectDeadline = (connectTimeoutMillis > 0) ? System.currentTimeMillis() + connectTimeoutMillis : 0;
+    selectorLoop.watchConnect(this);
+    socketChannelPool.resolve(currentConnectionParameters, selectorLoop, this);
+  }
+
+  /*
+   * A new connection (never a pooled one) is made to the server the director picked for the CONNECT request. The client
+   * is answered once it's connected and the exchange is a tunnel from then on.
+   */
+  private void openTunnel() throws EndProxiedRequestException
+  {
+    HttpRequest request = requestPipeChannel.currentRequest;
+    if (!inFlightRequests.isEmpty() || (heldConnectionParameters != null))
+    {
+      /*
+       * The responses to requests pipelined before the CONNECT would have to come back through the tunnel.
+       */
+      throw EndProxiedRequestException.BAD_REQUEST;
+    }
+
+    currentConnectionParameters = proxyDirector.onConnectRequest(request);
+    if (currentConnectionParameters == null)
+    {
+      throw EndProxiedRequestException.FORBIDDEN;
+    }
+
+    if ((serverSocketChannel != null) || connecting)
+    {
+      releaseServerChannel(serverReusable && requestPipeChannel.writeQueue.isEmpty() && (responsePipeChannel.readBuffer == null));
+    }
+
+    requestOverHttp2 = false;
+    upgradeRequested = false;
+    connectRequested = true;
+    tunnelRequest = request;
+    serverConnectionParameters = currentConnectionParameters;
+    responsePipeChannel.currentConnectionParameters = currentConnectionParameters;
+    responsePipeChannel.overSSL = currentConnectionParameters.ssl;
+    try
+    {
+      connectServerChannel();
+    }
+    catch (IOException e)
+    {
+      proxyDirector.onConnectionFailed(request, currentConnectionParameters, e);
+      throw EndProxiedRequestException.BAD_GATEWAY;
+    }
+    connectingServerChannel = false;
+  }
+
+  /*
+   * The CONNECT request's server is connected. The client is told the tunnel is established and whatever it sent past
+   * the request is the first through it.
+   */
+  private void establishTunnel()
+  {
+    connectRequested = false;
+    tunneling = true;
+    responsePipeChannel.writeQueue.add(CONNECTION_ESTABLISHED);
+    startTunnel();
+  }
+
+  /*
+   * The responses from the last server are done so the held request can go to its server and the client's requests
+   * after it can be read.
+   */
+  private void sendHeldRequest() throws ProxiedIOException
+  {
+    heldConnectionParameters = null;
+    if ((serverSocketChannel != null) || connecting)
+    {
+      releaseServerChannel(serverReusable && requestPipeChannel.writeQueue.isEmpty() && (responsePipeChannel.readBuffer == null));
+    }
+
+    try
+    {
+      sendRequest();
+    }
+    catch (IOException e)
+    {
+      throw new ProxiedIOException(requestPipeChannel.currentRequest, false, e);
+    }
+
+    /*
+     * Written with the rest of the request when reading from the client resumes (or on the next write ready event) so
+     * the header and body don't go out as separate small segments.
+     */
+    if (!requestOverHttp2)
+    {
+      requestPipeChannel.writeQueue.add(requestPipeChannel.currentRequest.toBytes());
+    }
+  }
+
+  @Override
+  public boolean isConnecting()
+  {
+    return connecting;
+  }
+
+  @Override
+  public long getConnectDeadline()
+  {
+    return connectDeadline;
+  }
+
+  @Override
+  public int getConnectAttempt()
+  {
+    return connectAttempt;
+  }
+
+  /*
+   * Called on the selector thread once the server's address has been looked up.
+   */
+  @Override
+  public void onServerAddressResolved(InetSocketAddress address)
+  {
+    if (connecting)
+    {
+      try
+      {
+        connectingSocketChannel = SocketChannel.open();
+        connectingSocketChannel.configureBlocking(false);
+        /*
+         * A request goes out as its header then its body as it's read, and pipelined requests back to back. Don't let
+         * Nagle hold a piece back waiting on the server's delayed ACK.
+         */
+        connectingSocketChannel.socket().setTcpNoDelay(true);
+        if (connectingSocketChannel.connect(address))
+        {
+          onServerConnected();
+        }
+        else
+        {
+          connectingSocketChannel.register(selectorLoop.selector, SelectionKey.OP_CONNECT, this);
+        }
+      }
+      catch (IOException e)
+      {
+        onServerConnectFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void onConnectReady(SelectionKey selectionKey)
+  {
+    if (connecting && (connectingSocketChannel != null) && (selectionKey.channel() == connectingSocketChannel))
+    {
+      try
+      {
+        if (connectingSocketChannel.finishConnect())
+        {
+          onServerConnected();
+        }
+      }
+      catch (IOException e)
+      {
+        onServerConnectFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void onServerConnectTimeout()
+  {
+    if (connecting)
+    {
+      onServerConnectFailed(new SocketTimeoutException("Connect timed out."));
+    }
+  }
+
+  @Override
+  public void onServerConnectFailed(IOException e)
+  {
+    if (connecting)
+    {
+      proxyDirector.onConnectionFailed(requestPipeChannel.currentRequest, serverConnectionParameters, e);
+      endWithBadGateway();
+    }
+  }
+
+  /*
+   * The client is answered with 502 when the server can't be connected to, unless some of an earlier response is still
+   * being written to it.
+   */
+  private void endWithBadGateway()
+  {
+    if ((clientStream != null) || connectRequested || (responsePipeChannel.writeQueue.isEmpty() && !responsePipeChannel.isWritingFile()))
+    {
+      endExchange(EndProxiedRequestException.BAD_GATEWAY);
+    }
+    else
+    {
+      close();
+    }
+  }
+
+  private void onServerConnected()
+  {
+    SocketChannel socketChannel = socketChannelPool.onConnected(serverConnectionParameters, connectingSocketChannel);
+    connecting = false;
+    connectingSocketChannel = null;
+
+    try
+    {
+      useServerChannel(socketChannel);
+    }
+    catch (IOException e)
+    {
+      proxyDirector.onConnectionFailed(requestPipeChannel.currentRequest, serverConnectionParameters, e);
+      close();
+      return;
+    }
+
+    if (connectRequested)
+    {
+      establishTunnel();
+      return;
+    }
+
+    try
+    {
+      /*
+       * Send what was queued up while connecting.
+       */
+      requestPipeChannel.write();
+      releaseServerChannelIfDone();
+      updateInterestOps();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      proxyDirector.onPrematureResponseClosed(requestPipeChannel.currentRequest, currentConnectionParameters, proxiedIOException.e);
+      close();
+    }
+  }
+
+  /*
+   * A pooled channel stays registered (with no interest) with every selector it's been used on. Registering again
+   * returns that key.
+   */
+  private void useServerChannel(SocketChannel socketChannel) throws IOException
+  {
+    serverSocketChannel = socketChannel;
+    serverReusable = true;
+    SocketChannel realSocketChannel = (serverSocketChannel instanceof WrappedSocketChannel) ? ((WrappedSocketChannel) serverSocketChannel).getWrappedSocketChannel() : serverSocketChannel;
+    currentResponseSelectionKey = realSocketChannel.register(selectorLoop.selector, SelectionKey.OP_READ, this);
+    requestPipeChannel.currentWriteChannel = responsePipeChannel.currentReadChannel = serverSocketChannel;
+  }
+
+  /*
+   * Once the request being read and the responses to every request sent are done the server channel goes back to the
+   * pool for the next request (from this client or any other).
+   */
+  private void releaseServerChannelIfDone()
+  {
+    if ((serverSocketChannel != null) && !tunneling && requestPipeChannel.isReadComplete() && inFlightRequests.isEmpty() && (heldConnectionParameters == null))
+    {
+      boolean reusable = serverReusable && requestPipeChannel.writeQueue.isEmpty() && (responsePipeChannel.readBuffer == null);
+      releaseServerChannel(reusable);
+    }
+  }
+
+  private void releaseServerChannel(boolean reusable)
+  {
+    if (connecting)
+    {
+      /*
+       * Abandon the connect in progress.
+       */
+      connecting = false;
+      if (connectingSocketChannel != null)
+      {
+        socketChannelPool.closeQuitely(connectingSocketChannel);
+        connectingSocketChannel = null;
+      }
+      socketChannelPool.cancelReservation(serverConnectionParameters);
+      serverConnectionParameters = null;
+      return;
+    }
+
+    if ((currentResponseSelectionKey != null) && currentResponseSelectionKey.isValid())
+    {
+      currentResponseSelectionKey.interestOps(0);
+      currentResponseSelectionKey.attach(null);
+    }
+
+    requestPipeChannel.currentWriteChannel = responsePipeChannel.currentReadChannel = null;
+    socketChannelPool.release(serverConnectionParameters, serverSocketChannel, reusable);
+    responsePipeChannel.discardReadBuffer();
+
+    serverSocketChannel = null;
+    serverConnectionParameters = null;
+    currentResponseSelectionKey = null;
+  }
+
+  void onRequestDone()
+  {
+    if (servedFromCache)
+    {
+      return;
+    }
+
+    proxyDirector.onRequestEnd(requestPipeChannel.currentRequest, currentConnectionParameters);
+    if (requestOverHttp2 && (http2Stream != null))
+    {
+      http2Stream.endRequest(requestPipeChannel.currentRequest.trailers);
+    }
+  }
+
+  void onRequestContent(ByteBuffer buffer, int start, int length)
+  {
+    if (requestOverHttp2 && (http2Stream != null))
+    {
+      http2Stream.sendData(buffer, start, length);
+    }
+  }
+
+  /*
+   * The response read off the HTTP/2 stream goes to the client as HTTP/1.1. Without a Content-Length the body is chunked
+   * (or ends with the connection for an HTTP/1.0 client). Interim (1xx) responses are passed on as they come.
+   */
+  void onStreamResponse(int statusCode, List<HttpHeader> headers, boolean endStream)
+  {
+    HttpRequest request = respondingTo();
+    HttpResponse response = new HttpResponse(responsePipeChannel.firstInExchange, false, currentConnectionParameters, "HTTP/1.1", statusCode, Http2Connection.reasonPhrase(statusCode));
+    for (HttpHeader header : headers)
+    {
+      response.headers.add(header);
+    }
 
-      if (responseSelectionKeys.containsKey(currentConnectionParameters))
+    responsePipeChannel.currentResponse = response;
+    boolean chunked = false;
+    if ((clientStream == null) && responseHasBody() && !response.hasHeader("Content-Length"))
+    {
+      if (endStream)
+      {
+        response.headers.add(new HttpHeader("Content-Length", "0"));
+      }
+      else if ("HTTP/1.0".equals(request.version))
       {
-        currentResponseSelectionKey = responseSelectionKeys.get(currentConnectionParameters);
+        closeAfterResponse = true;
+        response.setOrAddHeader("Connection", "close");
       }
       else
       {
-        SocketChannel realSocketChannel = (serverSocketChannel instanceof WrappedSocketChannel) ? ((WrappedSocketChannel) serverSocketChannel).getWrappedSocketChannel() : serverSocketChannel;
-        currentResponseSelectionKey = realSocketChannel.register(selectorLoop.selector, SelectionKey.OP_READ);
-        currentResponseSelectionKey.attach(this);
-        responseSelectionKeys.put(currentConnectionParameters, currentResponseSelectionKey);
+        response.headers.add(new HttpHeader("Transfer-Encoding", "chunked"));
+        chunked = true;
       }
+    }
 
-      responsePipeChannel.currentConnectionParameters = currentConnectionParameters;
-      requestPipeChannel.currentWriteChannel = responsePipeChannel.currentReadChannel = serverSocketChannel;
-      responsePipeChannel.overSSL = currentConnectionParameters.ssl;
-      connectingServerChannel = false;
+    responsePipeChannel.startStreamResponse(response, chunked);
+    onResponse();
+    responsePipeChannel.writeStreamHeader(endStream || !responseHasBody());
+
+    if (endStream || (statusCode < 200))
+    {
+      onStreamEnd(Collections.<HttpHeader>emptyList());
     }
-    catch (IOException e)
+    else
     {
-      proxyDirector.onConnectionFailed(requestPipeChannel.currentRequest, currentConnectionParameters, e);
-      throw e;
+      writeStreamResponse();
     }
   }
 
-  void onRequestDone()
+  void onStreamData(ByteBuffer data)
   {
-    proxyDirector.onRequestEnd(requestPipeChannel.currentRequest, currentConnectionParameters);
+    if (cacheFill != null)
+    {
+      cacheFill.append(data, data.position(), data.remaining());
+    }
+    responsePipeChannel.writeStreamContent(data);
+    writeStreamResponse();
+  }
+
+  void onStreamEnd(List<HttpHeader> trailers)
+  {
+    responsePipeChannel.endStreamResponse(trailers);
+    boolean interim = responsePipeChannel.currentResponse.statusCode < 200;
+    onResponseDone();
+    if (!interim)
+    {
+      http2Stream = null;
+    }
+
+    writeStreamResponse();
+    closeIfStreamDone();
+    if (!closed && !interim && !isRequestReadPaused())
+    {
+      /*
+       * The client's next request may already be in the read buffer.
+       */
+      readRequest();
+    }
+  }
+
+  /*
+   * The stream was reset or its connection lost.
+   */
+  void onStreamReset(IOException e)
+  {
+    http2Stream = null;
+    if (!closed)
+    {
+      proxyDirector.onPrematureResponseClosed(respondingTo(), currentConnectionParameters, e);
+      close();
+    }
+  }
+
+  void onStreamConnectFailed(IOException e)
+  {
+    http2Stream = null;
+    if (!closed)
+    {
+      proxyDirector.onConnectionFailed(respondingTo(), currentConnectionParameters, e);
+      endWithBadGateway();
+    }
+  }
+
+  /*
+   * The stream isn't backed up anymore, reading the request body can carry on.
+   */
+  void onStreamWritable()
+  {
+    if (!closed && !isRequestReadPaused())
+    {
+      readRequest();
+    }
+  }
+
+  boolean isClientBackedUp()
+  {
+    return (clientStream == null) ? responsePipeChannel.writeQueue.isBackedUp() : clientStream.isBackedUp();
+  }
+
+  private void writeStreamResponse()
+  {
+    try
+    {
+      responsePipeChannel.write();
+      if (closeAfterResponse && responsePipeChannel.isMessageComplete())
+      {
+        close();
+        return;
+      }
+      updateInterestOps();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      if (!isExchangeComplete())
+      {
+        proxyDirector.onPrematureRequestClosed(requestPipeChannel.currentRequest, proxiedIOException.e);
+      }
+      close();
+    }
   }
 
   void onResponse()
   {
-    proxyDirector.onResponseStart(requestPipeChannel.currentRequest, responsePipeChannel.currentResponse);
+    HttpRequest request = respondingTo();
+    proxyDirector.onResponseStart(request, responsePipeChannel.currentResponse);
+    cacheFill = (responseCache == null) ? null : responseCache.fill(request, responsePipeChannel.currentResponse);
+  }
+
+  /*
+   * The response to a request identical requests wait on is shared with them if it could be cached and its end is
+   * known without the connection closing. Otherwise they're sent on their own.
+   */
+  void onResponseHeader(byte[] header)
+  {
+    HttpResponse response = responsePipeChannel.currentResponse;
+    if ((leading == null) || (response.statusCode < 200))
+    {
+      return;
+    }
+
+    if ((cacheFill != null) && keepsConnectionOpen(response, response.version)
+        && (!responseHasBody() || responsePipeChannel.chunked || (responsePipeChannel.contentLength != null)))
+    {
+      leading.start(header, cacheFill.varyNames);
+      sharingResponse = true;
+    }
+    else
+    {
+      leading.abandon();
+      leading = null;
+    }
+  }
+
+  /*
+   * The response bytes about to be written to the client (mark to position of the read buffer) go to the waiters too.
+   * They're copied once, every waiter queues the same array.
+   */
+  void onResponseWrite(ByteBuffer readBuffer)
+  {
+    if (!sharingResponse)
+    {
+      return;
+    }
+
+    ByteBuffer written = readBuffer.duplicate();
+    written.reset();
+    written.limit(readBuffer.position());
+    if (written.hasRemaining())
+    {
+      byte[] bytes = new byte[written.remaining()];
+      written.get(bytes);
+      leading.publish(bytes);
+    }
+
+    if (responsePipeChannel.isReadComplete())
+    {
+      leading.complete();
+      leading = null;
+      sharingResponse = false;
+    }
+  }
+
+  /*
+   * The response body is being cached or shared with collapsed requests.
+   */
+  boolean isResponseBodyObserved()
+  {
+    return (cacheFill != null) || sharingResponse;
+  }
+
+  void onResponseContent(ByteBuffer buffer, int start, int length)
+  {
+    if (cacheFill != null)
+    {
+      cacheFill.append(buffer, start, length);
+    }
   }
 
   void onResponseDone()
   {
-    proxyDirector.onResponseEnd(requestPipeChannel.currentRequest, responsePipeChannel.currentResponse);
+    HttpRequest request = respondingTo();
+    HttpResponse response = responsePipeChannel.currentResponse;
+    proxyDirector.onResponseEnd(request, response);
+
+    if (cacheFill != null)
+    {
+      cacheFill.complete();
+      cacheFill = null;
+    }
+
+    /*
+     * Interim (1xx) responses come before the final response to the same request. 101 is final, the connection is
+     * something else after it.
+     */
+    if (((response.statusCode < 100) || (response.statusCode >= 200) || (response.statusCode == 101)) && !inFlightRequests.isEmpty())
+    {
+      inFlightRequests.poll();
+      serverReusable &= keepsConnectionOpen(request, request.version) && keepsConnectionOpen(response, response.version);
+
+      tunneling = upgradeRequested && (response.statusCode == 101);
+      upgradeRequested = false;
+      if (tunneling)
+      {
+        tunnelRequest = request;
+      }
+    }
+  }
+
+  /*
+   * The 101 response has been read (or the CONNECT request's server connected). Bytes either side sent past the request
+   * and its response are the first through the tunnel. The read buffers go back to the pool, every read after this
+   * borrows one just for the read.
+   */
+  private void startTunnel()
+  {
+    tunnelBytesFromClient += queueUnread(requestPipeChannel);
+    tunnelBytesFromServer += queueUnread(responsePipeChannel);
+
+    try
+    {
+      requestPipeChannel.write();
+      responsePipeChannel.write();
+    }
+    catch (ProxiedIOException proxiedIOException)
+    {
+      close();
+      return;
+    }
+    onTunnelWritten();
+  }
+
+  /*
+   * Moves what's left unprocessed in the read buffer of the given pipe to its write queue and gives the buffer back.
+   * Returns the number of bytes moved.
+   */
+  private static int queueUnread(PipedMessage pipe)
+  {
+    int unread = 0;
+    if ((pipe.readBuffer != null) && pipe.readBuffer.hasRemaining())
+    {
+      unread = pipe.readBuffer.remaining();
+      pipe.writeQueue.add(pipe.readBuffer);
+    }
+    pipe.discardReadBuffer();
+    return unread;
+  }
+
+  private void readTunnel(SelectionKey selectionKey)
+  {
+    try
+    {
+      if (selectionKey == requestSelectionKey)
+      {
+        long spliced = splice(clientSocketChannel, serverSocketChannel, requestPipeChannel);
+        if (spliced < 0)
+        {
+          clientEnded = true;
+        }
+        else
+        {
+          tunnelBytesFromClient += spliced;
+        }
+      }
+      else if (selectionKey == currentResponseSelectionKey)
+      {
+        long spliced = splice(serverSocketChannel, clientSocketChannel, responsePipeChannel);
+        if (spliced < 0)
+        {
+          serverEnded = true;
+        }
+        else
+        {
+          tunnelBytesFromServer += spliced;
+        }
+      }
+      onTunnelWritten();
+    }
+    catch (IOException e)
+    {
+      close();
+    }
+  }
+
+  /*
+   * Reads what one side sent and writes it to the other through a pooled buffer that's given back right away, so a
+   * quiet tunnel holds no buffers. What the other side won't take yet is queued and reading stops while the queue is
+   * backed up.
+   *
+   * Returns the number of bytes read or -1 if the side has closed its output. If it closed after sending something the
+   * end is seen on the next read.
+   */
+  private static long splice(SocketChannel readChannel, SocketChannel writeChannel, PipedMessage pipe) throws IOException
+  {
+    ByteBuffer buffer = pipe.bufferPool.take();
+    try
+    {
+      long spliced = 0;
+      for (int i = 0; (i < MAX_TUNNEL_READS) && !pipe.writeQueue.isBackedUp(); i++)
+      {
+        buffer.clear();
+        int read = readChannel.read(buffer);
+        if (read < 0)
+        {
+          return (spliced > 0) ? spliced : -1;
+        }
+        else if (read == 0)
+        {
+          break;
+        }
+
+        spliced += read;
+        buffer.flip();
+        if (pipe.writeQueue.write(writeChannel, buffer) < 0)
+        {
+          throw new IOException("Connection closed.");
+        }
+      }
+      return spliced;
+    }
+    finally
+    {
+      pipe.bufferPool.give(buffer);
+    }
+  }
+
+  /*
+   * Once a side has closed its output and what it sent has all been written the other side's output is shut down (or
+   * the tunnel closed, SSL can't be half closed here). The tunnel is closed once both sides are done.
+   */
+  private void onTunnelWritten()
+  {
+    try
+    {
+      if (clientEnded && requestPipeChannel.writeQueue.isEmpty() && !shutdownOutput(serverSocketChannel))
+      {
+        close();
+        return;
+      }
+      else if (serverEnded && responsePipeChannel.writeQueue.isEmpty() && !shutdownOutput(clientSocketChannel))
+      {
+        close();
+        return;
+      }
+    }
+    catch (IOException e)
+    {
+      close();
+      return;
+    }
+
+    if (clientEnded && serverEnded && requestPipeChannel.writeQueue.isEmpty() && responsePipeChannel.writeQueue.isEmpty())
+    {
+      close();
+    }
+    else
+    {
+      updateInterestOps();
+      if (!tunnelReadScheduled && (hasBufferedTunnelInput(true) || hasBufferedTunnelInput(false)))
+      {
+        tunnelReadScheduled = true;
+        selectorLoop.execute(tunnelReadTask);
+      }
+    }
+  }
+
+  /*
+   * An SSL channel can hold bytes it has already taken off the socket, when a splice stops after MAX_TUNNEL_READS or on
+   * backpressure, and it won't be selected for them. They're read from a task instead, once the other side can take
+   * them.
+   */
+  private boolean hasBufferedTunnelInput(boolean fromClient)
+  {
+    if (fromClient)
+    {
+      return !clientEnded && !requestPipeChannel.writeQueue.isBackedUp() && (clientSocketChannel instanceof SSLSocketChannel)
+          && ((SSLSocketChannel)clientSocketChannel).hasBufferedInput();
+    }
+    else
+    {
+      return !serverEnded && !responsePipeChannel.writeQueue.isBackedUp() && (serverSocketChannel instanceof SSLSocketChannel)
+          && ((SSLSocketChannel)serverSocketChannel).hasBufferedInput();
+    }
+  }
+
+  private final Runnable tunnelReadTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      tunnelReadScheduled = false;
+      if (!closed && hasBufferedTunnelInput(true))
+      {
+        readTunnel(requestSelectionKey);
+      }
+      if (!closed && hasBufferedTunnelInput(false))
+      {
+        readTunnel(currentResponseSelectionKey);
+      }
+    }
+  };
+
+  /*
+   * Returns false if the channel can't be half closed.
+   */
+  private static boolean shutdownOutput(SocketChannel socketChannel) throws IOException
+  {
+    if (socketChannel instanceof WrappedSocketChannel)
+    {
+      return false;
+    }
+    else if (socketChannel.isOpen())
+    {
+      socketChannel.shutdownOutput();
+    }
+    return true;
   }
 
   void close()
   {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+    selectorLoop.load.activeExchanges.decrementAndGet();
+
     if (clientSocketChannel.isConnected())
     {
       try
@@ -302,6 +1907,37 @@ class PipedExchangeChannel
       {}
     }
 
-    socketChannelMultiplexer.closeQuitely();
+    if ((serverSocketChannel != null) || connecting)
+    {
+      releaseServerChannel(false);
+    }
+
+    if (http2Stream != null)
+    {
+      http2Stream.cancel();
+      http2Stream = null;
+    }
+
+    if (waitingOn != null)
+    {
+      waitingOn.detach();
+      waitingOn = null;
+    }
+
+    if (leading != null)
+    {
+      leading.abandon();
+      leading = null;
+    }
+
+    requestPipeChannel.releaseBuffers();
+    responsePipeChannel.releaseBuffers();
+
+    if (tunneling)
+    {
+      proxyDirector.onTunnelClosed(tunnelRequest, currentConnectionParameters, tunnelBytesFromClient, tunnelBytesFromServer);
+    }
   }
+
+  private static final int MAX_TUNNEL_READS = 4;
 }
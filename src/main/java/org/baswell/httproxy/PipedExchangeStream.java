@@ -15,13 +15,24 @@
  */
 package org.baswell.httproxy;
 
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.baswell.httproxy.Constants.*;
+import static org.baswell.httproxy.SharedMethods.*;
 
 class PipedExchangeStream implements ReapedPipedExchange
 {
-  final SocketMultiplexer socketMultiplexer;
+  private final SocketPool socketPool;
 
   volatile boolean closed;
 
@@ -37,10 +48,22 @@ class PipedExchangeStream implements ReapedPipedExchange
 
   private ConnectionParameters currentConnectionParameters;
 
+  private Socket serverSocket;
+
+  private ConnectionParameters serverConnectionParameters;
+
   private volatile boolean connectingServerSocket;
 
   private final CountDownLatch responseStartSignal = new CountDownLatch(1);
 
+  /*
+   * The request and response loops take turns holding this lock, handing off with exchangeTurn. A lock rather than the
+   * object monitor so virtual threads blocked in (or waiting for) the exchange don't pin their carrier thread.
+   */
+  private final ReentrantLock exchangeLock = new ReentrantLock();
+
+  private final Condition exchangeTurn = exchangeLock.newCondition();
+
   private final ProxyLogger log;
 
   private ModifiedOutputStream requestModifiedOutputStream;
@@ -51,7 +74,41 @@ class PipedExchangeStream implements ReapedPipedExchange
 
   ModifiedOutputStream modifiedResponseStream;
 
-  PipedExchangeStream(Socket clientSocket, IOProxyDirector proxyDirector) throws IOException
+  /*
+   * After a 101 (Switching Protocols) response to an upgrade request or once a CONNECT request's server is connected the
+   * exchange is a tunnel. The request and response loops stop taking turns, each copies the bytes one side sends to the
+   * other without parsing them.
+   */
+  private volatile boolean tunneling;
+
+  private Socket tunnelServerSocket;
+
+  private HttpRequest tunnelRequest;
+
+  private final AtomicInteger tunnelDirectionsEnded = new AtomicInteger();
+
+  private final AtomicLong tunnelBytesFromClient = new AtomicLong();
+
+  private final AtomicLong tunnelBytesFromServer = new AtomicLong();
+
+  private final AtomicBoolean tunnelClosed = new AtomicBoolean();
+
+  /*
+   * Shared by all exchanges, null if the director doesn't cache responses.
+   */
+  private final ResponseCache responseCache;
+
+  /*
+   * Collects the body of the response being read for the cache.
+   */
+  private CacheFill cacheFill;
+
+  /*
+   * The current request was answered from the cache, the response loop has nothing to read for it.
+   */
+  private boolean servedFromCache;
+
+  PipedExchangeStream(Socket clientSocket, IOProxyDirector proxyDirector, SocketPool socketPool) throws IOException
   {
     clientSocket.setKeepAlive(true); // Use keep alives so we know when the far end has shutdown the socket.
 
@@ -64,15 +121,17 @@ class PipedExchangeStream implements ReapedPipedExchange
     clientOutputStream = new ClientOutputStream(clientSocket.getOutputStream());
     responsePipeStream = new PipedResponseStream(proxyDirector, this, clientOutputStream);
 
-    socketMultiplexer = new SocketMultiplexer();
+    this.socketPool = socketPool;
+    responseCache = proxyDirector.getResponseCache();
   }
 
-  synchronized void requestLoop()
+  void requestLoop()
   {
+    exchangeLock.lock();
     try
     {
       responseStartSignal.countDown();
-      while (!closed)
+      while (!closed && !tunneling)
       {
         requestPipeStream.reset();
         requestPipeStream.readAndWriteMessage();
@@ -80,10 +139,15 @@ class PipedExchangeStream implements ReapedPipedExchange
         try
         {
           onRequestDone();
-          notifyAll();
-          if (!closed)
+          if (servedFromCache)
           {
-            wait();
+            continue;
+          }
+
+          exchangeTurn.signalAll();
+          if (!closed && !tunneling)
+          {
+            exchangeTurn.await();
           }
         }
         catch (InterruptedException e)
@@ -141,6 +205,23 @@ class PipedExchangeStream implements ReapedPipedExchange
       log.error("Unexpected exception thrown in request loop.", e);
       close();
     }
+    finally
+    {
+      exchangeLock.unlock();
+    }
+
+    if (tunneling && !closed)
+    {
+      try
+      {
+        requestPipeStream.tunnel(tunnelServerSocket.getOutputStream(), tunnelBytesFromClient);
+        onTunnelInputEnded(tunnelServerSocket);
+      }
+      catch (IOException e)
+      {
+        close();
+      }
+    }
   }
 
   void responseLoop()
@@ -152,21 +233,22 @@ class PipedExchangeStream implements ReapedPipedExchange
     catch (InterruptedException e)
     {}
 
-    synchronized (this)
+    exchangeLock.lock();
+    try
     {
       try
       {
-        while (!closed)
+        while (!closed && !tunneling)
         {
           try
           {
             responsePipeStream.reset();
             responsePipeStream.readAndWriteMessage();
             onResponseDone();
-            notifyAll();
-            if (!closed)
+            exchangeTurn.signalAll();
+            if (!closed && !tunneling)
             {
-              wait();
+              exchangeTurn.await();
             }
           }
           catch (InterruptedException e)
@@ -227,21 +309,63 @@ class PipedExchangeStream implements ReapedPipedExchange
         close();
       }
     }
+    finally
+    {
+      exchangeLock.unlock();
+    }
+
+    if (tunneling && !closed)
+    {
+      try
+      {
+        responsePipeStream.tunnel(tunnelBytesFromServer);
+        onTunnelInputEnded(clientSocket);
+      }
+      catch (IOException e)
+      {
+        close();
+      }
+    }
   }
 
-  void onRequest(HttpRequest request) throws EndProxiedRequestException, IOException
+  /*
+   * Returns false for a CONNECT request. The client has been answered by the proxy and nothing is sent to the server for
+   * the request itself.
+   */
+  boolean onRequest(HttpRequest request) throws EndProxiedRequestException, IOException
   {
+    servedFromCache = false;
+    if (request.isConnect())
+    {
+      openTunnel(request);
+      return false;
+    }
+
     currentConnectionParameters = proxyDirector.onRequestStart(requestPipeStream.currentRequest);
     if (currentConnectionParameters == null)
     {
       throw EndProxiedRequestException.NOT_FOUND;
     }
+    else if ((responseCache != null) && serveFromCache(request))
+    {
+      return false;
+    }
     else
     {
       connectingServerSocket = true;
       try
       {
-        Socket serverSocket = socketMultiplexer.getConnectionFor(currentConnectionParameters);
+        if ((serverSocket != null) && !currentConnectionParameters.equals(serverConnectionParameters))
+        {
+          releaseServerSocket(false);
+        }
+
+        if (serverSocket == null)
+        {
+          serverSocket = socketPool.checkout(currentConnectionParameters);
+          serverConnectionParameters = currentConnectionParameters;
+        }
+
         serverSocket.setKeepAlive(true); // Use keep alives so we know when the far end has shutdown the socket.
         Integer socketTimeout = proxyDirector.getSocketReadTimeout(request);
         if (socketTimeout != null && socketTimeout > 0)
@@ -273,6 +397,118 @@ class PipedExchangeStream implements ReapedPipedExchange
         throw e;
       }
     }
+    return true;
+  }
+
+  /*
+   * Only a request without a body and with nothing read past it (pipelined requests are passed to the server raw) is
+   * answered from the cache. The client has to be HTTP/1.1 keeping the connection open, the stored header is sent as is.
+   * Called from the request loop holding the exchange lock, the response loop isn't writing to the client.
+   */
+  private boolean serveFromCache(HttpRequest request) throws EndProxiedRequestException, IOException
+  {
+    responseCache.onPurgeRequest(request, proxyDirector.getPurgePath());
+    responseCache.onRequest(request);
+    if (request.hasContent() || requestPipeStream.readBuffer.hasRemaining() || !"HTTP/1.1".equals(request.version) || !keepsConnectionOpen(request, request.version))
+    {
+      return false;
+    }
+
+    CachedResponse cachedResponse = responseCache.get(request);
+    if ((cachedResponse == null) && ((cachedResponse = revalidate(request)) == null))
+    {
+      return false;
+    }
+
+    try
+    {
+      OutputStream outputStream = responsePipeStream.outputStream;
+      outputStream.write(cachedResponse.header);
+      outputStream.write(cachedResponse.ageLine(System.currentTimeMillis()));
+      if ("HEAD".equalsIgnoreCase(request.method))
+      {}
+      else if (cachedResponse.body != null)
+      {
+        outputStream.write(cachedResponse.body);
+      }
+      else
+      {
+        responsePipeStream.writeCachedBody(cachedResponse);
+      }
+      outputStream.flush();
+    }
+    finally
+    {
+      cachedResponse.release();
+    }
+
+    servedFromCache = true;
+    lastExchangeAt = System.currentTimeMillis();
+    return true;
+  }
+
+  /*
+   * A stale response stored for the request is sent right away if it can be while it's revalidated in the background,
+   * otherwise this waits on its revalidation.
+   *
+   * @return What to send or null if the request goes to the server.
+   */
+  private CachedResponse revalidate(HttpRequest request)
+  {
+    CachedResponse stale = responseCache.getStale(request);
+    if (stale == null)
+    {
+      return null;
+    }
+    else if (responseCache.serveWhileRevalidating(request, currentConnectionParameters, stale, proxyDirector))
+    {
+      return stale;
+    }
+    else
+    {
+      return responseCache.revalidate(request, currentConnectionParameters, stale, proxyDirector);
+    }
+  }
+
+  /*
+   * A new connection (never a pooled one) is made to the server the director picked for the CONNECT request and the
+   * client is told the tunnel is established. Bytes the client sent past the request go to the server as the rest of the
+   * request is written.
+   */
+  private void openTunnel(HttpRequest request) throws EndProxiedRequestException, IOException
+  {
+    currentConnectionParameters = proxyDirector.onConnectRequest(request);
+    if (currentConnectionParameters == null)
+    {
+      throw EndProxiedRequestException.FORBIDDEN;
+    }
+
+    if (serverSocket != null)
+    {
+      releaseServerSocket(false);
+    }
+
+    try
+    {
+      serverSocket = socketPool.checkoutNew(currentConnectionParameters);
+    }
+    catch (IOException e)
+    {
+      proxyDirector.onConnectionFailed(request, currentConnectionParameters, e);
+      throw EndProxiedRequestException.BAD_GATEWAY;
+    }
+    serverConnectionParameters = currentConnectionParameters;
+    serverSocket.setKeepAlive(true);
+    tunnelServerSocket = serverSocket;
+    tunnelRequest = request;
+    clientSocket.setSoTimeout(0);
+
+    clientSocket.getOutputStream().write(CONNECTION_ESTABLISHED);
+    clientSocket.getOutputStream().flush();
+
+    requestPipeStream.currentOutputStream = serverSocket.getOutputStream();
+    responsePipeStream.currentConnectionParameters = currentConnectionParameters;
+    responsePipeStream.currentInputStream = serverSocket.getInputStream();
   }
 
   void onRequestHeaderWritten() throws IOException
@@ -285,6 +521,11 @@ class PipedExchangeStream implements ReapedPipedExchange
 
   void onRequestDone() throws IOException
   {
+    if (servedFromCache)
+    {
+      return;
+    }
+
     if (requestModifiedOutputStream != null)
     {
       requestModifiedOutputStream.onContentComplete();
@@ -294,6 +535,15 @@ class PipedExchangeStream implements ReapedPipedExchange
     requestPipeStream.currentOutputStream.flush();
     requestPipeStream.currentOutputStream = null;
     requestModifiedOutputStream = null;
+
+    if (requestPipeStream.currentRequest.isConnect())
+    {
+      /*
+       * What's left in the read buffer was sent past the CONNECT request and has already been written to the server.
+       */
+      tunnelBytesFromClient.addAndGet(requestPipeStream.readBuffer.remaining());
+      tunneling = true;
+    }
   }
 
   void onResponse() throws EndProxiedRequestException, IOException
@@ -308,6 +558,19 @@ class PipedExchangeStream implements ReapedPipedExchange
     {
       modifiedResponseStream = null;
     }
+
+    /*
+     * Only the body as the server sent it is stored, not one a content modifier changes.
+     */
+    cacheFill = ((responseCache == null) || (modifiedResponseStream != null)) ? null : responseCache.fill(requestPipeStream.currentRequest, responsePipeStream.currentResponse);
+  }
+
+  void onResponseContent(ByteBuffer buffer, int start, int length)
+  {
+    if (cacheFill != null)
+    {
+      cacheFill.append(buffer, start, length);
+    }
   }
 
   void onResponseHeaderSent()
@@ -315,7 +578,10 @@ class PipedExchangeStream implements ReapedPipedExchange
     clientOutputStream.wrappedOutputStream = modifiedResponseStream;
   }
 
-  synchronized void onResponseDone() throws IOException
+  /*
+   * Called from the response loop holding the exchange lock.
+   */
+  void onResponseDone() throws IOException
   {
     if (modifiedResponseStream != null)
     {
@@ -327,9 +593,36 @@ class PipedExchangeStream implements ReapedPipedExchange
 
     responsePipeStream.outputStream.flush();
     proxyDirector.onResponseEnd(requestPipeStream.currentRequest, responsePipeStream.currentResponse);
-    responsePipeStream.currentInputStream = null;
     clientOutputStream.wrappedOutputStream = null;
 
+    if (cacheFill != null)
+    {
+      cacheFill.complete();
+      cacheFill = null;
+    }
+
+    if ((responsePipeStream.currentResponse.statusCode == 101) && requestPipeStream.currentRequest.hasHeader("Upgrade"))
+    {
+      /*
+       * Bytes either side sent right after the upgrade request and its response have already gone through. A tunnel can
+       * be quiet for as long as its protocol likes so the read timeouts are dropped.
+       */
+      tunnelServerSocket = serverSocket;
+      tunnelRequest = requestPipeStream.currentRequest;
+      tunnelBytesFromServer.addAndGet(responsePipeStream.readBuffer.remaining());
+      clientSocket.setSoTimeout(0);
+      tunnelServerSocket.setSoTimeout(0);
+      tunneling = true;
+      return;
+    }
+    responsePipeStream.currentInputStream = null;
+
+    /*
+     * The server socket goes back to the pool for the next request (from this client or any other).
+     */
+    releaseServerSocket(keepsConnectionOpen(requestPipeStream.currentRequest, requestPipeStream.currentRequest.version)
+        && keepsConnectionOpen(responsePipeStream.currentResponse, responsePipeStream.currentResponse.version));
+
     /*
      * Some browsers (Firefox, Safari) will keep the connection open until the server actually closes it. Since we'd are about
      * to go into a read wait on the client (request) if the server connection is going to shutdown anyway go ahead and close shop.
@@ -340,6 +633,22 @@ class PipedExchangeStream implements ReapedPipedExchange
     }
   }
 
+  /*
+   * Called from each loop once the side it reads from has closed its output. The other side's output is shut down (or
+   * the tunnel closed, SSL sockets can't be half closed) and once both sides are done the exchange is closed.
+   */
+  private void onTunnelInputEnded(Socket outputSocket) throws IOException
+  {
+    if ((outputSocket instanceof SSLSocket) || (tunnelDirectionsEnded.incrementAndGet() == 2))
+    {
+      close();
+    }
+    else
+    {
+      outputSocket.shutdownOutput();
+    }
+  }
+
   @Override
   public boolean active()
   {
@@ -380,12 +689,33 @@ class PipedExchangeStream implements ReapedPipedExchange
         {}
       }
 
-      synchronized (this)
+      exchangeLock.lock();
+      try
+      {
+        exchangeTurn.signalAll();
+
+        if (serverSocket != null)
+        {
+          releaseServerSocket(false);
+        }
+
+      }
+      finally
       {
-        notifyAll();
+        exchangeLock.unlock();
       }
 
-      socketMultiplexer.closeQuitely();
+      if (tunneling && tunnelClosed.compareAndSet(false, true))
+      {
+        proxyDirector.onTunnelClosed(tunnelRequest, currentConnectionParameters, tunnelBytesFromClient.get(), tunnelBytesFromServer.get());
+      }
     }
   }
+
+  private void releaseServerSocket(boolean reusable)
+  {
+    socketPool.release(serverConnectionParameters, serverSocket, reusable);
+    serverSocket = null;
+    serverConnectionParameters = null;
+  }
 }
@@ -15,15 +15,11 @@
  */
 package org.baswell.httproxy;
 
-import gnu.trove.list.TByteList;
-import gnu.trove.list.array.TByteArrayList;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
 
-import static org.baswell.httproxy.Constants.*;
-
 abstract class PipedMessage
 {
   abstract void readStatusLine() throws IOException;
@@ -40,23 +36,23 @@ abstract class PipedMessage
 
   final int bufferSize;
 
+  final ByteBufferPool bufferPool;
+
   ReadState readState = ReadState.READING_STATUS;
 
   HttpMessage currentMessage;
 
-  final TByteArrayList currentLine = new TByteArrayList(AVERAGE_HEADER_LENGTH);
+  final LineReader lineReader = new LineReader();
 
-  TByteList writeBuffer = new TByteArrayList();
+  final WriteQueue writeQueue;
 
   Long contentLength;
 
   long contentRead;
 
-  int chunkedNextBytesTotal;
+  boolean chunked;
 
-  int chunkedNextBytesRead;
-
-  ReadChunkedInputState processChunkedState;
+  final ChunkedDecoder chunkedDecoder = new ChunkedDecoder(true);
 
 
   PipedMessage(ProxyDirector proxyDirector)
@@ -65,8 +61,8 @@ abstract class PipedMessage
 
     this.bufferSize = proxyDirector.getBufferSize();
 
-    readBuffer = ByteBuffer.allocate(bufferSize);
-    readBuffer.compact();
+    bufferPool = ByteBufferPool.forSize(bufferSize);
+    writeQueue = new WriteQueue(bufferPool);
   }
 
   boolean readAndWriteBuffer() throws ProxiedIOException, IOException, HttpProtocolException, EndProxiedRequestException
@@ -78,7 +74,7 @@ abstract class PipedMessage
       reset();
     }
 
-    READ_STATE_LOOP: while (readBuffer.hasRemaining())
+    READ_STATE_LOOP: while (readBuffer.hasRemaining() && !isReadPaused())
     {
       switch (readState)
       {
@@ -112,6 +108,39 @@ abstract class PipedMessage
     return write();
   }
 
+  /**
+   * @return True while nothing more should be read for this message or the next. Bytes left in the read buffer are
+   * processed once it isn't paused anymore.
+   */
+  boolean isReadPaused()
+  {
+    return false;
+  }
+
+  /**
+   * @return False if the current message has no body whatever its headers say (responses to HEAD requests for example).
+   */
+  boolean hasBody()
+  {
+    return true;
+  }
+
+  /**
+   * @return The channel the fixed length body of the current message can be written to as it's read, or null if the body
+   * has to go through {@link #readAndWriteBuffer()} because something sees it on the way (or there's nowhere to write it yet).
+   */
+  SocketChannel bodyRelayChannel()
+  {
+    return null;
+  }
+
+  /**
+   * Called with each piece of the body as it's read, {@code readBuffer[start, start + length)}. The chunked coding has
+   * been taken off.
+   */
+  void onContent(int start, int length)
+  {}
+
   boolean isReadComplete()
   {
     return readState == ReadState.DONE;
@@ -119,18 +148,17 @@ abstract class PipedMessage
 
   boolean isMessageComplete()
   {
-    return isReadComplete() && (writeBuffer == null || writeBuffer.isEmpty());
+    return isReadComplete() && writeQueue.isEmpty();
   }
 
   void readHeaderLine() throws HttpProtocolException, IOException, EndProxiedRequestException
   {
-    byte[] headerLineBytes;
-    while ((headerLineBytes = readNextLine(true)) != null)
+    while (lineReader.readLine(readBuffer))
     {
       readBuffer.mark();
-      if (lineHasContent(headerLineBytes))
+      if (lineReader.lineEnd > lineReader.lineStart)
       {
-        HttpHeader header = currentMessage.addHeader(new String(headerLineBytes).trim());
+        HttpHeader header = currentMessage.addHeader(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
         if (header != null)
         {
           /*
@@ -144,14 +172,14 @@ abstract class PipedMessage
           {
             if (header.value.equalsIgnoreCase("chunked"))
             {
-              processChunkedState = ReadChunkedInputState.READ_BYTE_COUNT;
+              chunked = true;
             }
             else
             {
               throw new HttpProtocolException(currentMessage, "Don't know how to transfer encoding: " + header.value);
             }
           }
-          else if ((processChunkedState == null) && header.name.equalsIgnoreCase("Content-Length") && !header.value.isEmpty())
+          else if (!chunked && header.name.equalsIgnoreCase("Content-Length") && !header.value.isEmpty())
           {
             try
             {
@@ -166,9 +194,15 @@ abstract class PipedMessage
       }
       else
       {
+        currentMessage.onHeaderBlockEnd();
         onHeadersProcessed();
 
-        if ((processChunkedState != null))
+        if (!hasBody())
+        {
+          currentMessage.bodySize = 0l;
+          readState = ReadState.DONE;
+        }
+        else if (chunked)
         {
           currentMessage.bodySize = 0l;
           readState = ReadState.READING_CHUNKED_CONTENT;
@@ -183,15 +217,22 @@ abstract class PipedMessage
           currentMessage.bodySize = 0l;
           readState = ReadState.DONE;
         }
-        break;
+        return;
       }
     }
+
+    readBuffer.mark();
   }
 
   void readFixedWidthContent()
   {
-    contentRead += readBuffer.remaining();
-    readBuffer.position(readBuffer.limit());
+    /*
+     * Never consume past the end of the body. Anything after it belongs to the next message.
+     */
+    int read = (int)Math.min(readBuffer.remaining(), contentLength - contentRead);
+    contentRead += read;
+    onContent(readBuffer.position(), read);
+    readBuffer.position(readBuffer.position() + read);
     if (contentRead >= contentLength)
     {
       readState = ReadState.DONE;
@@ -200,127 +241,68 @@ abstract class PipedMessage
 
   void processChunkedData() throws HttpProtocolException
   {
-    byte[] bytes;
-    String line;
-    while (readBuffer.hasRemaining())
+    while (readBuffer.hasRemaining() && !chunkedDecoder.isDone())
     {
-      switch (processChunkedState)
+      int decoded = chunkedDecoder.decode(readBuffer, currentMessage);
+      if (decoded > 0)
       {
-        case READ_BYTE_COUNT:
-          bytes = readNextLine(false);
-          if (bytes != null)
-          {
-            line = new String(bytes);
-            try
-            {
-              currentMessage.bodySize += chunkedNextBytesTotal = Integer.parseInt(line.trim(), 16);
-              if (chunkedNextBytesTotal == 0)
-              {
-                processChunkedState = ReadChunkedInputState.READ_LAST_LINE;
-              }
-              else if (chunkedNextBytesTotal < 0)
-              {
-                throw new HttpProtocolException(currentMessage, "Invalid chunked encoding byte count: " + chunkedNextBytesTotal);
-              }
-              else
-              {
-                chunkedNextBytesRead = 0;
-                processChunkedState = ReadChunkedInputState.READ_BYTES;
-              }
-            }
-            catch (Exception e)
-            {
-              throw new HttpProtocolException(currentMessage, "Invalid chunked encoding byte count: " + line);
-            }
-          }
-          break;
-
-        case READ_BYTES:
-          int remainingBytesToRead = chunkedNextBytesTotal - chunkedNextBytesRead;
-          int readBufferPosition = readBuffer.position();
-          int remainingBytesInBuffer = readBuffer.limit() - readBufferPosition;
-
-          if (remainingBytesInBuffer >= remainingBytesToRead)
-          {
-            readBuffer.position(readBufferPosition + remainingBytesToRead);
-            chunkedNextBytesTotal = chunkedNextBytesRead = 0;
-            processChunkedState = ReadChunkedInputState.CLEAR_READ_BYTES_TERMINATOR;
-          }
-          else
-          {
-            readBuffer.position(readBufferPosition + remainingBytesInBuffer);
-            chunkedNextBytesRead += remainingBytesInBuffer;
-          }
-          break;
-
-        case CLEAR_READ_BYTES_TERMINATOR:
-          if (readNextLine(false) != null)
-          {
-            processChunkedState = ReadChunkedInputState.READ_BYTE_COUNT;
-          }
-          break;
-
-        case READ_LAST_LINE:
-          if (readNextLine(false) != null)
-          {
-            processChunkedState = null;
-            readState = ReadState.DONE;
-            return;
-          }
-          else
-          {
-            break;
-          }
+        currentMessage.bodySize += decoded;
+        onContent(readBuffer.position() - decoded, decoded);
       }
     }
-  }
 
+    if (chunkedDecoder.isDone())
+    {
+      readState = ReadState.DONE;
+    }
+  }
 
-  void reset()
+  /**
+   * Gives the read buffer back to the pool once every byte in it has been processed.
+   */
+  void releaseReadBuffer()
   {
-    readState = ReadState.READING_STATUS;
-    currentLine.clear();
-    if (writeBuffer != null)
+    if ((readBuffer != null) && !readBuffer.hasRemaining())
     {
-      writeBuffer.clear();
+      bufferPool.give(readBuffer);
+      readBuffer = null;
     }
-    contentLength = null;
-    contentRead = 0;
-    processChunkedState = null;
   }
 
-  protected byte[] readNextLine(boolean markReadBuffer)
+  /**
+   * Drops whatever is left unprocessed in the read buffer (bytes from a connection that's no longer read from) and gives
+   * the buffer back to the pool.
+   */
+  void discardReadBuffer()
   {
-    while (readBuffer.hasRemaining())
+    if (readBuffer != null)
     {
-      byte b = readBuffer.get();
-      currentLine.add(b);
-      if (markReadBuffer)
-      {
-        readBuffer.mark();
-      }
-      if (b == LF)
-      {
-        byte[] lineBytes = currentLine.toArray();
-        currentLine.clear();
-        return lineBytes;
-      }
+      bufferPool.give(readBuffer);
+      readBuffer = null;
     }
-
-    return null;
   }
 
-  static boolean lineHasContent(byte[] line)
+  /**
+   * Gives all pooled buffers back. Called when the exchange is closed.
+   */
+  void releaseBuffers()
   {
-    for (int i = 0; i < line.length; i++)
+    if (readBuffer != null)
     {
-      byte b = line[i];
-      if ((b != SPACE) && (b != CR) && (b != LF))
-      {
-        return true;
-      }
+      bufferPool.give(readBuffer);
+      readBuffer = null;
     }
-    return false;
+    writeQueue.clear();
+  }
+
+  void reset()
+  {
+    readState = ReadState.READING_STATUS;
+    lineReader.clear();
+    contentLength = null;
+    contentRead = 0;
+    chunked = false;
+    chunkedDecoder.reset();
   }
 
   enum ReadState
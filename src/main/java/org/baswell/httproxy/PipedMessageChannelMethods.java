@@ -15,22 +15,27 @@
  */
 package org.baswell.httproxy;
 
-import gnu.trove.list.TByteList;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 class PipedMessageChannelMethods
 {
-  static boolean doReadAndWriteAvailabe(PipedMessage messagePipe, ByteBuffer readBuffer, SocketChannel readChannel) throws ProxiedIOException, HttpProtocolException, EndProxiedRequestException
+  /*
+   * The read buffer is borrowed from the message's pool for the read and given back as soon as every byte in it has been
+   * processed, so idle connections don't hold one. Pooled buffers are direct so bodies go from one socket to the other
+   * without a copy through the heap (the JDK copies a heap buffer through a temporary direct buffer on every channel read
+   * and write). Nothing is read while the message is paused, what's left in the read buffer waits there.
+   */
+  static boolean doReadAndWriteAvailabe(PipedMessage messagePipe, SocketChannel readChannel) throws ProxiedIOException, HttpProtocolException, EndProxiedRequestException
   {
     try
     {
-      while (true)
+      while (!messagePipe.isReadPaused())
       {
         int read;
-        if (readBuffer.hasRemaining())
+        ByteBuffer readBuffer = messagePipe.readBuffer;
+        if ((readBuffer != null) && readBuffer.hasRemaining())
         {
           /*
            * If the previous readAndWriteAvailabe wasn't fully written don't ready anymore until it's fully written out.
@@ -39,7 +44,34 @@ class PipedMessageChannelMethods
         }
         else
         {
-          readBuffer.clear();
+          if (readBuffer == null)
+          {
+            readBuffer = messagePipe.readBuffer = messagePipe.bufferPool.take();
+          }
+          else
+          {
+            readBuffer.clear();
+          }
+
+          if (isRelayingBody(messagePipe))
+          {
+            read = relayBody(messagePipe, readChannel, readBuffer);
+            if (read == -1)
+            {
+              throw new ProxiedIOException(messagePipe.currentMessage, true, new IOException("Connection closed."));
+            }
+            else if (read == 0)
+            {
+              break;
+            }
+            else if (messagePipe.writeQueue.isBackedUp())
+            {
+              messagePipe.releaseReadBuffer();
+              return false;
+            }
+            continue;
+          }
+
           read = readChannel.read(readBuffer);
           readBuffer.flip();
         }
@@ -52,15 +84,17 @@ class PipedMessageChannelMethods
         {
           break;
         }
-        else
+        else if (!messagePipe.readAndWriteBuffer() && messagePipe.writeQueue.isBackedUp())
         {
-          if (!messagePipe.readAndWriteBuffer())
-          {
-            return false;
-          }
+          /*
+           * The other side isn't keeping up. Stop reading until its write queue drains.
+           */
+          messagePipe.releaseReadBuffer();
+          return false;
         }
       }
 
+      messagePipe.releaseReadBuffer();
       return true;
     }
     catch (IOException e)
@@ -69,79 +103,103 @@ class PipedMessageChannelMethods
     }
   }
 
-  static boolean doWrite(PipedMessage messagePipe, SocketChannel writeChannel, TByteList writeBuffer, ByteBuffer readBuffer, int maxWriteAttempts) throws ProxiedIOException
+  /*
+   * The body of a fixed length message is relayed while there's more than a buffer of it left, the write queue is empty
+   * and nothing needs to see the body on its way (see PipedMessage.bodyRelayChannel). Whatever is left of the body, and
+   * whatever comes after it, goes through readAndWriteBuffer so the end of the message is handled as always.
+   */
+  static boolean isRelayingBody(PipedMessage messagePipe)
   {
+    return (messagePipe.readState == PipedMessage.ReadState.READING_FIXED_LENGTH_CONTENT)
+        && (messagePipe.contentLength != null)
+        && ((messagePipe.contentLength - messagePipe.contentRead) > messagePipe.readBuffer.capacity())
+        && messagePipe.writeQueue.isEmpty()
+        && (messagePipe.bodyRelayChannel() != null);
+  }
+
+  /*
+   * Reads the next piece of the body into the (direct) read buffer and writes it out as is, skipping the read state
+   * machine. The read can't go past the end of the body because more than a buffer of it is left.
+   */
+  static int relayBody(PipedMessage messagePipe, SocketChannel readChannel, ByteBuffer readBuffer) throws ProxiedIOException, IOException
+  {
+    int read = readChannel.read(readBuffer);
+    if (read > 0)
+    {
+      messagePipe.contentRead += read;
+      readBuffer.flip();
+      readBuffer.mark();
+      readBuffer.position(readBuffer.limit());
+      messagePipe.write();
+    }
+    else
+    {
+      readBuffer.flip();
+    }
+    return read;
+  }
+
+  /**
+   * Writes the queued bytes of the given message followed by the bytes processed from the read buffer in the last
+   * {@link PipedMessage#readAndWriteBuffer()} (mark to position). Whatever the channel won't take is copied onto the
+   * message's write queue so the read buffer is always free for the next read. The read buffer is null when only the
+   * queue has bytes to write.
+   *
+   * @return True if everything has been written out.
+   */
+  static boolean doWrite(PipedMessage messagePipe, SocketChannel writeChannel, ByteBuffer readBuffer, int maxWriteAttempts) throws ProxiedIOException
+  {
+    WriteQueue writeQueue = messagePipe.writeQueue;
     try
     {
-      if (writeChannel != null)
+      int position = 0;
+      int limit = 0;
+      if (readBuffer != null)
       {
-        int remainingWriteAttempts = maxWriteAttempts;
-        /*
-         * Some types of channels, depending upon their readState, may write only some of the bytes or possibly none at all.
-         * A socket channel in non-blocking mode, for example, cannot write any more bytes than are free in the socket's output readAndWriteBuffer.
-         */
+        position = readBuffer.position();
+        limit = readBuffer.limit();
+        readBuffer.reset();
+        readBuffer.limit(position);
+      }
 
-        if (writeBuffer != null)
+      try
+      {
+        if (writeChannel != null)
         {
-          while ((remainingWriteAttempts-- > 0) && !writeBuffer.isEmpty())
+          /*
+           * Some types of channels, depending upon their readState, may write only some of the bytes or possibly none at all.
+           * A socket channel in non-blocking mode, for example, cannot write any more bytes than are free in the socket's output buffer.
+           */
+          for (int remainingWriteAttempts = maxWriteAttempts; remainingWriteAttempts > 0; remainingWriteAttempts--)
           {
-            int written = writeChannel.write(ByteBuffer.wrap(writeBuffer.toArray()));
+            long written = writeQueue.write(writeChannel, readBuffer);
             if (written < 0)
             {
-              return true;
-            }
-            else if (written < writeBuffer.size())
-            {
-              writeBuffer = writeBuffer.subList(written, writeBuffer.size());
+              throw new IOException("Connection closed.");
             }
-            else
+            else if ((written == 0) || writeQueue.isEmpty())
             {
-              writeBuffer.clear();
+              break;
             }
           }
-
-          if (!writeBuffer.isEmpty())
-          {
-            return false;
-          }
-          else
-          {
-            writeBuffer = null;
-            remainingWriteAttempts = maxWriteAttempts;
-          }
         }
 
-
-        if (readBuffer != null)
-        {
-          readBuffer.reset();
-          while ((remainingWriteAttempts-- > 0) && readBuffer.hasRemaining())
-          {
-            writeChannel.write(readBuffer);
-          }
-          readBuffer.mark();
-
-          return !readBuffer.hasRemaining();
-        }
-        else
+        if ((readBuffer != null) && readBuffer.hasRemaining())
         {
-          return true;
+          writeQueue.add(readBuffer);
         }
       }
-      else if (readBuffer != null)
+      finally
       {
-        readBuffer.reset();
-        while (readBuffer.hasRemaining())
+        if (readBuffer != null)
         {
-          writeBuffer.add(readBuffer.get());
+          readBuffer.limit(limit);
+          readBuffer.position(position);
+          readBuffer.mark();
         }
-        readBuffer.mark();
-        return true;
-      }
-      else
-      {
-        return true;
       }
+
+      return writeQueue.isEmpty();
     }
     catch (IOException e)
     {
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 class PipedMessageStreamMethods
 {
@@ -58,14 +59,28 @@ class PipedMessageStreamMethods
     }
   }
 
+  /**
+   * Copies what's read to the output stream, unparsed, until the input stream ends. Each read is counted in the given
+   * byte count.
+   */
+  static void doTunnel(InputStream inputStream, OutputStream outputStream, byte[] readBytes, AtomicLong bytes) throws IOException
+  {
+    int read;
+    while ((read = inputStream.read(readBytes)) != -1)
+    {
+      bytes.addAndGet(read);
+      outputStream.write(readBytes, 0, read);
+      outputStream.flush();
+    }
+  }
+
   static boolean doWrite(PipedMessage messagePipe, OutputStream outputStream, byte[] readBytes) throws ProxiedIOException
   {
     try
     {
-      if (messagePipe.writeBuffer != null && !messagePipe.writeBuffer.isEmpty()  && outputStream != null)
+      if (!messagePipe.writeQueue.isEmpty() && outputStream != null)
       {
-        outputStream.write(messagePipe.writeBuffer.toArray());
-        messagePipe.writeBuffer.clear();
+        messagePipe.writeQueue.writeTo(outputStream);
       }
 
       messagePipe.readBuffer.reset();
@@ -80,7 +95,7 @@ class PipedMessageStreamMethods
         }
         else
         {
-          messagePipe.writeBuffer.add(messagePipe.readBuffer.array(), position, read);
+          messagePipe.writeQueue.add(messagePipe.readBuffer);
         }
       }
       messagePipe.readBuffer.mark();
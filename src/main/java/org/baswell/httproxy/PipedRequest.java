@@ -39,11 +39,12 @@ abstract class PipedRequest extends PipedMessage
   @Override
   void readStatusLine() throws IOException
   {
-    byte[] statusLine = readNextLine(true);
-    if (statusLine != null)
+    boolean lineRead = lineReader.readLine(readBuffer);
+    readBuffer.mark();
+    if (lineRead)
     {
-      readBuffer.mark();
-      currentMessage = currentRequest = new HttpRequest(clientIp, firstInExchange, overSSL(), new String(statusLine).trim());
+      currentMessage = currentRequest = new HttpRequest(clientIp, firstInExchange, overSSL(), lineReader.lineToString());
+      currentRequest.captureStatusLine(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
       firstInExchange = false;
       readState = ReadState.READING_HEADER;
     }
@@ -69,7 +70,7 @@ abstract class PipedRequest extends PipedMessage
        * After a message exchange is complete, requests are always blocking on the socket for the next message. The previous
        * exchange may be the last in the sequence so if nothing has been read this request can be considered done here.
        */
-      return currentLine == null || currentLine.isEmpty();
+      return lineReader.isEmpty();
     }
     else
     {
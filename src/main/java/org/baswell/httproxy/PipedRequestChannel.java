@@ -40,27 +40,52 @@ class PipedRequestChannel extends PipedRequest
     this.readChannel = readChannel;
     this.maxWriteAttempts = proxyDirector.getMaxWriteAttempts();
 
+    writeQueue.highWaterMark = proxyDirector.getWriteQueueHighWaterMark();
+
     setClientIp(readChannel.socket());
 
-    overSSL = readChannel instanceof SSLSocketChannel; // TODO This isn't complete. How do we know for sure ?
+    overSSL = (readChannel instanceof SSLSocketChannel) || (readChannel instanceof Http2ClientStream); // TODO This isn't complete. How do we know for sure ?
   }
 
   boolean readAndWriteAvailabe() throws ProxiedIOException, HttpProtocolException, EndProxiedRequestException
   {
-    return doReadAndWriteAvailabe(this, readBuffer, readChannel);
+    return doReadAndWriteAvailabe(this, readChannel);
   }
 
+  /*
+   * The body of a request sent over HTTP/2 goes to its stream piece by piece (onContent), nothing is written raw.
+   */
   @Override
   boolean write() throws ProxiedIOException
   {
-    return doWrite(this, currentWriteChannel, writeBuffer, readBuffer, maxWriteAttempts);
+    return pipedExchangeChannel.isRequestOverHttp2() || doWrite(this, currentWriteChannel, readBuffer, maxWriteAttempts);
+  }
+
+  @Override
+  SocketChannel bodyRelayChannel()
+  {
+    return pipedExchangeChannel.isRequestOverHttp2() ? null : currentWriteChannel;
   }
 
   @Override
   void onRequest(HttpRequest request) throws EndProxiedRequestException, IOException
   {
-    writeBuffer.add(currentRequest.toBytes());
-    pipedExchangeChannel.onRequest();
+    if (pipedExchangeChannel.onRequest())
+    {
+      writeQueue.add(currentRequest.toBytes());
+    }
+  }
+
+  @Override
+  void onContent(int start, int length)
+  {
+    pipedExchangeChannel.onRequestContent(readBuffer, start, length);
+  }
+
+  @Override
+  boolean isReadPaused()
+  {
+    return pipedExchangeChannel.isRequestReadPaused();
   }
 
   @Override
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.baswell.httproxy.PipedMessageStreamMethods.*;
 
@@ -56,6 +57,14 @@ class PipedRequestStream extends PipedRequest
     doReadAndWriteMessage(this, inputStream, readBytes, sleepSecondsOnReadWait);
   }
 
+  /**
+   * Copies the client's bytes to the server until the client closes its output.
+   */
+  void tunnel(OutputStream outputStream, AtomicLong bytes) throws IOException
+  {
+    doTunnel(inputStream, outputStream, readBytes, bytes);
+  }
+
   @Override
   boolean write() throws ProxiedIOException
   {
@@ -65,9 +74,11 @@ class PipedRequestStream extends PipedRequest
   @Override
   void onRequest(HttpRequest request) throws EndProxiedRequestException, IOException
   {
-    exchangeStream.onRequest(request);
-    currentOutputStream.write(currentRequest.toBytes());
-    exchangeStream.onRequestHeaderWritten();
+    if (exchangeStream.onRequest(request))
+    {
+      currentOutputStream.write(currentRequest.toBytes());
+      exchangeStream.onRequestHeaderWritten();
+    }
   }
 
   @Override
@@ -37,11 +37,12 @@ abstract class PipedResponse extends PipedMessage
   @Override
   void readStatusLine() throws IOException
   {
-    byte[] statusLine = readNextLine(true);
-    if (statusLine != null)
+    boolean lineRead = lineReader.readLine(readBuffer);
+    readBuffer.mark();
+    if (lineRead)
     {
-      readBuffer.mark();
-      currentMessage = currentResponse = new HttpResponse(firstInExchange, overSSL(), currentConnectionParameters, new String(statusLine).trim());
+      currentMessage = currentResponse = new HttpResponse(firstInExchange, overSSL(), currentConnectionParameters, lineReader.lineToString());
+      currentResponse.captureStatusLine(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
       firstInExchange = false;
       readState = ReadState.READING_HEADER;
     }
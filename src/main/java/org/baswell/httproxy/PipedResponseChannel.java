@@ -16,7 +16,12 @@
 package org.baswell.httproxy;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.List;
+
+import static org.baswell.httproxy.Constants.*;
 
 import static org.baswell.httproxy.PipedMessageChannelMethods.*;
 
@@ -32,6 +37,24 @@ class PipedResponseChannel extends PipedResponse
 
   boolean overSSL;
 
+  /*
+   * Is the response read off an HTTP/2 stream sent on to the client with the chunked transfer coding.
+   */
+  private boolean streamChunked;
+
+  /*
+   * The client is HTTP/2. The response goes to its stream as it's read instead of being written.
+   */
+  private final Http2ClientStream clientStream;
+
+  /*
+   * A hit from the disk tier of the response cache whose body is being written to the client after the write queue, and
+   * how much of it has been written.
+   */
+  private CachedResponse fileResponse;
+
+  private long fileWritten;
+
   PipedResponseChannel(NIOProxyDirector proxyDirector, PipedExchangeChannel pipedExchangeChannel, SocketChannel writeChannel)
   {
     super(proxyDirector);
@@ -39,36 +62,237 @@ class PipedResponseChannel extends PipedResponse
     this.pipedExchangeChannel = pipedExchangeChannel;
     this.writeChannel = writeChannel;
     this.maxWriteAttempts = proxyDirector.getMaxWriteAttempts();
+    clientStream = (writeChannel instanceof Http2ClientStream) ? (Http2ClientStream)writeChannel : null;
+
+    writeQueue.highWaterMark = proxyDirector.getWriteQueueHighWaterMark();
   }
 
   boolean readAndWriteAvailabe() throws ProxiedIOException, HttpProtocolException, EndProxiedRequestException
   {
-    return doReadAndWriteAvailabe(this, readBuffer, currentReadChannel);
+    return doReadAndWriteAvailabe(this, currentReadChannel);
   }
 
   @Override
   boolean write() throws ProxiedIOException
   {
-    return doWrite(this, writeChannel, writeBuffer, readBuffer, maxWriteAttempts);
+    if (clientStream != null)
+    {
+      return true;
+    }
+
+    if (readBuffer != null)
+    {
+      pipedExchangeChannel.onResponseWrite(readBuffer);
+    }
+
+    if (!doWrite(this, writeChannel, readBuffer, maxWriteAttempts))
+    {
+      return false;
+    }
+    else
+    {
+      return (fileResponse == null) || writeFile();
+    }
+  }
+
+  /*
+   * Not while the body is cached, shared with collapsed requests or sent to an HTTP/2 client.
+   */
+  @Override
+  SocketChannel bodyRelayChannel()
+  {
+    return ((clientStream == null) && (fileResponse == null) && !pipedExchangeChannel.isResponseBodyObserved()) ? writeChannel : null;
+  }
+
+  @Override
+  void releaseBuffers()
+  {
+    super.releaseBuffers();
+    releaseFile();
+  }
+
+  /**
+   * Writes the body of a hit from the disk tier of the response cache once the write queue is written out. It goes from
+   * the segment file to the client's channel without a copy in the heap. The response is released when it's written.
+   */
+  void writeFile(CachedResponse response)
+  {
+    fileResponse = response;
+    fileWritten = 0;
+  }
+
+  boolean isWritingFile()
+  {
+    return fileResponse != null;
   }
 
   @Override
   void onResponse(HttpResponse response) throws IOException, EndProxiedRequestException
   {
     pipedExchangeChannel.onResponse();
-    writeBuffer.add(currentResponse.toBytes());
+    if (clientStream == null)
+    {
+      byte[] header = currentResponse.toBytes();
+      writeQueue.add(header);
+      pipedExchangeChannel.onResponseHeader(header);
+    }
+    else
+    {
+      clientStream.sendResponse(currentResponse, !hasBody() || (!chunked && ((contentLength == null) || (contentLength == 0))));
+    }
+  }
+
+  @Override
+  void onContent(int start, int length)
+  {
+    pipedExchangeChannel.onResponseContent(readBuffer, start, length);
+    if (clientStream != null)
+    {
+      clientStream.sendData(readBuffer, start, length);
+    }
   }
 
   @Override
   void onMessageDone()
   {
+    if ((clientStream != null) && (currentResponse.statusCode >= 200))
+    {
+      clientStream.endResponse(currentResponse.trailers);
+    }
     pipedExchangeChannel.onResponseDone();
   }
 
+  @Override
+  boolean isReadPaused()
+  {
+    return pipedExchangeChannel.isResponseReadPaused();
+  }
+
+  @Override
+  boolean hasBody()
+  {
+    return pipedExchangeChannel.responseHasBody();
+  }
+
   @Override
   boolean overSSL()
   {
     return overSSL;
   }
 
+  private boolean writeFile() throws ProxiedIOException
+  {
+    try
+    {
+      for (int remainingWriteAttempts = maxWriteAttempts; (remainingWriteAttempts > 0) && (fileWritten < fileResponse.bodyLength); remainingWriteAttempts--)
+      {
+        long written = fileResponse.writeBody(writeChannel, fileWritten);
+        if (written <= 0)
+        {
+          break;
+        }
+        fileWritten += written;
+      }
+    }
+    catch (IOException e)
+    {
+      releaseFile();
+      throw new ProxiedIOException(currentMessage, false, e);
+    }
+
+    if (fileWritten < fileResponse.bodyLength)
+    {
+      return false;
+    }
+
+    releaseFile();
+    return true;
+  }
+
+  private void releaseFile()
+  {
+    if (fileResponse != null)
+    {
+      fileResponse.release();
+      fileResponse = null;
+    }
+  }
+
+  /**
+   * Starts a response read off an HTTP/2 stream. Its header is queued once the director has seen it.
+   *
+   * @param chunked Send the body with the chunked transfer coding (the response has no Content-Length).
+   */
+  void startStreamResponse(HttpResponse response, boolean chunked)
+  {
+    discardReadBuffer();
+    reset();
+    currentMessage = currentResponse = response;
+    currentResponse.bodySize = 0l;
+    firstInExchange = false;
+    streamChunked = chunked;
+    readState = chunked ? ReadState.READING_CHUNKED_CONTENT : ReadState.READING_FIXED_LENGTH_CONTENT;
+  }
+
+  /**
+   * Queues the header of the response started with {@link #startStreamResponse(HttpResponse, boolean)} or, for an HTTP/2
+   * client, sends it to the client's stream.
+   *
+   * @param endStream The response has no body.
+   */
+  void writeStreamHeader(boolean endStream)
+  {
+    if (clientStream == null)
+    {
+      writeQueue.add(currentResponse.toBytes());
+    }
+    else
+    {
+      clientStream.sendResponse(currentResponse, endStream);
+    }
+  }
+
+  void writeStreamContent(ByteBuffer data)
+  {
+    int length = data.remaining();
+    if (clientStream != null)
+    {
+      clientStream.sendData(data, data.position(), length);
+      currentResponse.bodySize += length;
+      return;
+    }
+
+    if (streamChunked)
+    {
+      writeQueue.add((Integer.toHexString(length) + CRLF).getBytes(LineReader.ISO_8859_1));
+    }
+    writeQueue.add(data);
+    if (streamChunked)
+    {
+      writeQueue.add(CRLF.getBytes(LineReader.ISO_8859_1));
+    }
+    currentResponse.bodySize += length;
+  }
+
+  void endStreamResponse(List<HttpHeader> trailers)
+  {
+    currentResponse.trailers.addAll(trailers);
+    if ((clientStream != null) && (currentResponse.statusCode >= 200))
+    {
+      clientStream.endResponse(currentResponse.trailers);
+    }
+    else if (streamChunked)
+    {
+      StringBuilder lastChunk = new StringBuilder("0").append(CRLF);
+      for (HttpHeader trailer : trailers)
+      {
+        lastChunk.append(trailer.name).append(": ").append(trailer.value).append(CRLF);
+      }
+      writeQueue.add(lastChunk.append(CRLF).toString().getBytes(LineReader.ISO_8859_1));
+    }
+
+    readState = ReadState.DONE;
+    currentResponse.endedAt = new Date();
+  }
+
 }
@@ -18,6 +18,7 @@ package org.baswell.httproxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.baswell.httproxy.PipedMessageStreamMethods.*;
 
@@ -51,12 +52,29 @@ class PipedResponseStream extends PipedResponse
     doReadAndWriteMessage(this, currentInputStream, readBytes, sleepSecondsOnReadWait);
   }
 
+  /**
+   * Copies the server's bytes to the client until the server closes its output.
+   */
+  void tunnel(AtomicLong bytes) throws IOException
+  {
+    doTunnel(currentInputStream, outputStream, readBytes, bytes);
+  }
+
   @Override
   boolean write() throws ProxiedIOException
   {
     return doWrite(this, outputStream, readBytes);
   }
 
+  /**
+   * Writes the body of a hit from the disk tier of the response cache to the client. It's copied out of the segment's
+   * mapped buffer through the read bytes, which aren't used between responses.
+   */
+  void writeCachedBody(CachedResponse cachedResponse) throws IOException
+  {
+    cachedResponse.writeBody(outputStream, readBytes);
+  }
+
   @Override
   void onResponse(HttpResponse response) throws IOException, EndProxiedRequestException
   {
@@ -65,6 +83,12 @@ class PipedResponseStream extends PipedResponse
     exchangeStream.onResponseHeaderSent();
   }
 
+  @Override
+  void onContent(int start, int length)
+  {
+    exchangeStream.onResponseContent(readBuffer, start, length);
+  }
+
   @Override
   void onMessageDone() throws IOException
   {}
@@ -29,6 +29,68 @@ public interface ProxyDirector
    */
   int getBufferSize();
 
+  /**
+   * Server connections are pooled and shared by all clients. A request that needs a new connection to a server that already
+   * has this many open fails with {@link #onConnectionFailed(HttpRequest, ConnectionParameters, IOException)}.
+   *
+   * @return The max number of connections (in use and idle) open to a single server or 0 for no limit.
+   */
+  int getMaxConnectionsPerServer();
+
+  /**
+   * This should be less than the keep-alive timeout of the servers so the server never closes a pooled connection first.
+   *
+   * @return The number of seconds a pooled server connection can sit idle before it's closed.
+   */
+  int getServerConnectionIdleTimeoutSeconds();
+
+  /**
+   * Connections that take longer than this fail with {@link #onConnectionFailed(HttpRequest, ConnectionParameters, IOException)}.
+   *
+   * @return The max number of milliseconds to wait for a connection to a server to be established or 0 to wait forever.
+   */
+  int getConnectTimeoutMillis();
+
+  /**
+   * The cache is consulted for GET and HEAD requests after {@link #onRequestStart(HttpRequest)}. Responses served from it
+   * don't go to a server so {@link #onRequestEnd(HttpRequest, ConnectionParameters)}, {@link #onResponseStart(HttpRequest, HttpResponse)}
+   * and {@link #onResponseEnd(HttpRequest, HttpResponse)} aren't called for them. Responses are stored as modified by
+   * {@link #onResponseStart(HttpRequest, HttpResponse)}.
+   *
+   * @return The response cache shared by all clients or null to not cache responses.
+   */
+  ResponseCache getResponseCache();
+
+  /**
+   * With a response cache, a GET or HEAD request that misses while an identical GET is being sent to the server waits on
+   * that request's response instead of being sent too. The response is written to every waiting client as it's read.
+   * A waiting request is sent on its own if the response doesn't start within this time or can't be shared (it isn't
+   * cacheable or varies on something the requests differ in). Only the non-blocking IO proxy collapses requests.
+   *
+   * @return The max number of milliseconds a request waits on an identical request's response or 0 to never wait.
+   */
+  int getCollapsedRequestTimeoutMillis();
+
+  /**
+   * With a response cache, requests to this path purge stored responses instead of going to a server. They go through
+   * {@link #onRequestStart(HttpRequest)} first, throw {@link EndProxiedRequestException#FORBIDDEN} there for clients that
+   * aren't allowed to purge. A purge request is a POST or PURGE with one of these parameters in its query string:
+   *
+   * <ul>
+   *   <li><i>tag</i>: a surrogate key, see {@link ResponseCache#purgeTag(String, boolean)}.</li>
+   *   <li><i>url</i>: see {@link ResponseCache#purgeURL(String, boolean)}.</li>
+   *   <li><i>prefix</i>: a path prefix, for the <i>host</i> parameter or the request's host, see
+   *   {@link ResponseCache#purgePrefix(String, String, boolean)}.</li>
+   *   <li><i>host</i>: see {@link ResponseCache#purgeHost(String, boolean)}.</li>
+   * </ul>
+   *
+   * A <i>soft</i> parameter (other than <i>soft=false</i>) makes it a soft purge. The answer is a 200 with the number of
+   * URLs purged in a <i>Purged</i> header (and the connection is closed).
+   *
+   * @return The path (without a query string) purge requests are sent to or null to not take purge requests.
+   */
+  String getPurgePath();
+
   /**
    * Before the given HTTP request is sent to the server. The HTTP request (status line and headers) can be modified here55.
    *
@@ -40,7 +102,33 @@ public interface ProxyDirector
   ConnectionParameters onRequestStart(HttpRequest httpRequest) throws EndProxiedRequestException;
 
   /**
-   * Notification when a connection was unable to be established.
+   * A CONNECT request asks for a tunnel to the host and port in its path (<i>CONNECT example.com:443 HTTP/1.1</i>), the
+   * way HTTPS goes through a forward proxy. A new connection is made to the returned server (never a pooled one), the
+   * client is answered with 200 and from then on the bytes each side sends are passed to the other without being parsed.
+   * If the connection can't be made the client is answered with 502. CONNECT requests from HTTP/2 clients go to
+   * {@link #onRequestStart(HttpRequest)}.
+   *
+   * @param httpRequest The CONNECT request.
+   * @return The server to tunnel to ({@link ConnectionParameters#forConnect(HttpRequest)} for the one asked for) or
+   * <code>null</code> to refuse the tunnel with 403.
+   * @throws EndProxiedRequestException To return the provided HTTP status and message and end the proxied the httpRequest.
+   */
+  ConnectionParameters onConnectRequest(HttpRequest httpRequest) throws EndProxiedRequestException;
+
+  /**
+   * After a tunnel has closed. Tunnels are opened by CONNECT requests and by servers switching protocols (101) on an
+   * upgrade request (WebSocket for example).
+   *
+   * @param httpRequest The CONNECT or upgrade request that opened the tunnel.
+   * @param connectionParameters The server the tunnel was to.
+   * @param bytesFromClient The number of bytes passed from the client to the server through the tunnel.
+   * @param bytesFromServer The number of bytes passed from the server to the client through the tunnel.
+   */
+  void onTunnelClosed(HttpRequest httpRequest, ConnectionParameters connectionParameters, long bytesFromClient, long bytesFromServer);
+
+  /**
+   * Notification when a connection was unable to be established. The non-blocking IO proxy answers the client with 502
+   * (Bad Gateway).
    *
    * @param httpRequest The HTTP request this connection failed on.
    * @param connectionParameters The connection parameters previously return from {@link #onRequestStart(HttpRequest)}.
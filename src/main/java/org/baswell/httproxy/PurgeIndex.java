@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the {@link ResponseCache} purges by. An inverted index from surrogate key (the tags a response has in its
+ * <i>Surrogate-Key</i> and <i>Cache-Tag</i> headers) to the responses tagged with it, and a radix tree over the
+ * responses' URLs so the ones under a URL prefix (all of a host's for example) are found by walking the prefix and
+ * the subtree below it. A lookup only costs as much as what it finds, however many responses are stored.
+ * <p>
+ * Both tiers add every response they store and remove every response they drop, so a URL stored in memory and on disk
+ * has a response in the index for each.
+ * <p>
+ * Thread-safe.
+ */
+class PurgeIndex
+{
+  private final Map<String, Set<CachedResponse>> tagged = new HashMap<String, Set<CachedResponse>>();
+
+  private final Node root = new Node("");
+
+  synchronized void add(CachedResponse response)
+  {
+    for (String tag : response.tags)
+    {
+      Set<CachedResponse> responses = tagged.get(tag);
+      if (responses == null)
+      {
+        tagged.put(tag, responses = new HashSet<CachedResponse>());
+      }
+      responses.add(response);
+    }
+
+    String url = response.url;
+    Node node = root;
+    int position = 0;
+    while (position < url.length())
+    {
+      Node child = node.child(url.charAt(position));
+      if (child == null)
+      {
+        child = new Node(url.substring(position));
+        node.children.put(child.label.charAt(0), child);
+      }
+      else
+      {
+        int matched = child.match(url, position);
+        if (matched < child.label.length())
+        {
+          child.split(matched);
+        }
+      }
+      position += child.label.length();
+      node = child;
+    }
+    node.responses.add(response);
+  }
+
+  synchronized void remove(CachedResponse response)
+  {
+    for (String tag : response.tags)
+    {
+      Set<CachedResponse> responses = tagged.get(tag);
+      if ((responses != null) && responses.remove(response) && responses.isEmpty())
+      {
+        tagged.remove(tag);
+      }
+    }
+
+    List<Node> path = path(response.url);
+    if (path == null)
+    {
+      return;
+    }
+
+    Node node = path.get(path.size() - 1);
+    if (!node.responses.remove(response))
+    {
+      return;
+    }
+
+    /*
+     * Nodes left without responses are removed if they're leaves and merged with their child if they have only one.
+     */
+    for (int i = path.size() - 1; (i > 0) && node.responses.isEmpty(); node = path.get(--i))
+    {
+      if (node.children.isEmpty())
+      {
+        path.get(i - 1).children.remove(node.label.charAt(0));
+      }
+      else
+      {
+        if (node.children.size() == 1)
+        {
+          node.merge();
+        }
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return The responses stored for the given URL.
+   */
+  synchronized List<CachedResponse> get(String url)
+  {
+    List<Node> path = path(url);
+    return (path == null) ? Collections.<CachedResponse>emptyList() : new ArrayList<CachedResponse>(path.get(path.size() - 1).responses);
+  }
+
+  /**
+   * @return The URLs of the responses tagged with the given surrogate key.
+   */
+  synchronized Set<String> getTagged(String tag)
+  {
+    Set<String> urls = new LinkedHashSet<String>();
+    Set<CachedResponse> responses = tagged.get(tag);
+    if (responses != null)
+    {
+      for (CachedResponse response : responses)
+      {
+        urls.add(response.url);
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * @return The URLs stored that start with the given prefix.
+   */
+  synchronized Set<String> getUnder(String prefix)
+  {
+    Set<String> urls = new LinkedHashSet<String>();
+    Node node = root;
+    int position = 0;
+    while (position < prefix.length())
+    {
+      Node child = node.child(prefix.charAt(position));
+      if (child == null)
+      {
+        return urls;
+      }
+
+      int matched = child.match(prefix, position);
+      position += matched;
+      if ((matched < child.label.length()) && (position < prefix.length()))
+      {
+        return urls;
+      }
+      node = child;
+    }
+
+    Deque<Node> nodes = new ArrayDeque<Node>();
+    nodes.push(node);
+    while (!nodes.isEmpty())
+    {
+      node = nodes.pop();
+      if (!node.responses.isEmpty())
+      {
+        urls.add(node.responses.get(0).url);
+      }
+
+      for (Node child : node.children.values())
+      {
+        nodes.push(child);
+      }
+    }
+    return urls;
+  }
+
+  /*
+   * The nodes from the root to the one for the given URL or null if there isn't one.
+   */
+  private List<Node> path(String url)
+  {
+    List<Node> path = new ArrayList<Node>();
+    Node node = root;
+    path.add(node);
+    int position = 0;
+    while (position < url.length())
+    {
+      node = node.child(url.charAt(position));
+      if ((node == null) || (node.match(url, position) < node.label.length()))
+      {
+        return null;
+      }
+      position += node.label.length();
+      path.add(node);
+    }
+    return path;
+  }
+
+  /*
+   * The label is the part of the URL from the parent node to this one. Children are keyed by their label's first
+   * character, which never changes.
+   */
+  private static class Node
+  {
+    String label;
+
+    Map<Character, Node> children = new HashMap<Character, Node>(4);
+
+    List<CachedResponse> responses = new ArrayList<CachedResponse>(1);
+
+    Node(String label)
+    {
+      this.label = label;
+    }
+
+    Node child(char first)
+    {
+      return children.get(first);
+    }
+
+    /*
+     * How many characters of the label match the given string from its position.
+     */
+    int match(String value, int position)
+    {
+      int length = Math.min(label.length(), value.length() - position);
+      int matched = 0;
+      while ((matched < length) && (label.charAt(matched) == value.charAt(position + matched)))
+      {
+        matched++;
+      }
+      return matched;
+    }
+
+    /*
+     * Keeps the first part of the label, the rest (with the children and responses) moves to a new child.
+     */
+    void split(int length)
+    {
+      Node rest = new Node(label.substring(length));
+      rest.children = children;
+      rest.responses = responses;
+      label = label.substring(0, length);
+      children = new HashMap<Character, Node>(4);
+      children.put(rest.label.charAt(0), rest);
+      responses = new ArrayList<CachedResponse>(1);
+    }
+
+    /*
+     * Takes in the only child.
+     */
+    void merge()
+    {
+      Node child = children.values().iterator().next();
+      label += child.label;
+      children = child.children;
+      responses = child.responses;
+    }
+  }
+}
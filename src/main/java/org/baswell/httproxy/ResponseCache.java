@@ -0,0 +1,1225 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * <p>
+ * A shared in-memory cache of responses. Both proxies look up GET and HEAD requests here (after
+ * {@link ProxyDirector#onRequestStart(HttpRequest)}) and answer hits without going to a server. One instance is meant
+ * to be shared by every exchange and is thread-safe.
+ * </p>
+ *
+ * <p>
+ * The cache follows the rules of a shared cache (RFC 7234). A response to a GET is stored if it has an explicit freshness
+ * lifetime (<i>s-maxage</i>, <i>max-age</i> or <i>Expires</i>), isn't <i>no-store</i>, <i>no-cache</i> or <i>private</i>,
+ * doesn't set cookies and doesn't vary on everything (<i>Vary: *</i>). It's used while it's fresh, for requests with the
+ * same values of the request headers it varies on. Requests with unsafe methods (POST, PUT, DELETE ...) invalidate what's
+ * stored for their URL.
+ * </p>
+ *
+ * <p>
+ * The cache is bounded by bytes. Which entries stay is decided by W-TinyLFU: new entries go through a small LRU window
+ * and then have to be more popular lately than the entry they'd push out of the main space to be admitted. A burst of
+ * one-off requests can't flush out the entries that are requested all the time.
+ * </p>
+ *
+ * <p>
+ * A cache can have a second tier on disk, much larger than the heap allows. Every response stored is written to it as
+ * well (in the background) and requests that miss in memory are answered from it, the body going from the mapped file to
+ * the client without a copy in the heap. What's on disk survives a restart.
+ * </p>
+ *
+ * <p>
+ * A stale response isn't dropped. The next request for it revalidates it with the server, a conditional GET (with its
+ * <i>ETag</i> and <i>Last-Modified</i> values) sent on the proxy's own connection. A <i>304 Not Modified</i> refreshes the
+ * stored response and the request is answered from it. If the response allows it (RFC 5861) the stale response is sent
+ * right away while it's revalidated in the background (<i>stale-while-revalidate</i>) or when the server can't be reached
+ * or answers with an error (<i>stale-if-error</i>).
+ * </p>
+ *
+ * <p>
+ * Stored responses can be purged by surrogate key (the tags in their <i>Surrogate-Key</i> or <i>Cache-Tag</i> header), by
+ * URL prefix or by host, from here or with a request to the director's purge path. The responses are found through an
+ * index so a purge takes as long as the responses it purges, not the whole cache. A hard purge removes them, a soft purge
+ * only makes them stale so they're revalidated before they're used again (and can still be used stale as they allow).
+ * </p>
+ *
+ * @see ProxyDirector#getResponseCache()
+ */
+public class ResponseCache
+{
+  private final long maxBytes;
+
+  private final int maxEntryBytes;
+
+  private final long windowMaxBytes;
+
+  private final long mainMaxBytes;
+
+  private final long protectedMaxBytes;
+
+  private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<String, CachedResponse>();
+
+  /*
+   * The request header names the latest response stored for a URL varies on.
+   */
+  private final ConcurrentHashMap<String, String[]> varyNames = new ConcurrentHashMap<String, String[]>();
+
+  /*
+   * Guards the queues and the sketch. Hits only try for it, under contention a hit isn't counted toward its entry's
+   * popularity or recency rather than waiting.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final AccessQueue window = new AccessQueue();
+
+  private final AccessQueue probation = new AccessQueue();
+
+  private final AccessQueue protectedQueue = new AccessQueue();
+
+  private final FrequencySketch sketch;
+
+  /*
+   * Requests sent to a server that identical requests can wait on.
+   */
+  private final ConcurrentHashMap<String, CollapsedRequest> collapsing = new ConcurrentHashMap<String, CollapsedRequest>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong diskHits = new AtomicLong();
+
+  /*
+   * Updated by the revalidator too.
+   */
+  final AtomicLong staleHits = new AtomicLong();
+
+  final AtomicLong revalidations = new AtomicLong();
+
+  final AtomicLong notModified = new AtomicLong();
+
+  /*
+   * Created with the director of the first exchange that revalidates.
+   */
+  private volatile Revalidator revalidator;
+
+  /*
+   * Null without a disk tier.
+   */
+  private final DiskStore diskStore;
+
+  /*
+   * Every response stored in memory or on disk.
+   */
+  private final PurgeIndex purgeIndex;
+
+  /**
+   * Entries can take up to 1/64 of the cache.
+   *
+   * @param maxBytes The most bytes the stored responses (and their bookkeeping) can take.
+   */
+  public ResponseCache(long maxBytes)
+  {
+    this(maxBytes, (int)Math.min(Integer.MAX_VALUE, maxBytes / 64));
+  }
+
+  /**
+   * @param maxBytes The most bytes the stored responses (and their bookkeeping) can take.
+   * @param maxEntryBytes The largest response (header and body) that will be stored.
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes)
+  {
+    this(maxBytes, maxEntryBytes, new PurgeIndex(), null);
+  }
+
+  /**
+   * A cache with a disk tier. The directory holds the tier's segment files, the responses already in them are used.
+   * Responses too big for memory are only stored on disk, none can be bigger than a segment (1/16 of the disk bytes, at
+   * least 1 MB and at most 256 MB).
+   *
+   * @param maxBytes The most bytes the responses stored in memory (and their bookkeeping) can take.
+   * @param maxEntryBytes The largest response (header and body) that will be stored.
+   * @param diskDirectory Where the disk tier is kept. Created if it doesn't exist.
+   * @param maxDiskBytes The most bytes the disk tier's files can take.
+   * @throws IOException If the directory or its segments can't be opened.
+   * @see #close()
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes, File diskDirectory, long maxDiskBytes) throws IOException
+  {
+    this(maxBytes, maxEntryBytes, diskDirectory, maxDiskBytes, new PurgeIndex());
+  }
+
+  private ResponseCache(long maxBytes, int maxEntryBytes, File diskDirectory, long maxDiskBytes, PurgeIndex purgeIndex) throws IOException
+  {
+    this(maxBytes, maxEntryBytes, purgeIndex, new DiskStore(diskDirectory, maxDiskBytes, purgeIndex));
+  }
+
+  private ResponseCache(long maxBytes, int maxEntryBytes, PurgeIndex purgeIndex, DiskStore diskStore)
+  {
+    this.maxBytes = maxBytes;
+    this.purgeIndex = purgeIndex;
+    this.diskStore = diskStore;
+    windowMaxBytes = Math.max(1, maxBytes / 100);
+    mainMaxBytes = maxBytes - windowMaxBytes;
+    protectedMaxBytes = mainMaxBytes * 4 / 5;
+    this.maxEntryBytes = (int)Math.min(maxEntryBytes, (diskStore == null) ? mainMaxBytes : Math.max(mainMaxBytes, diskStore.segmentBytes));
+
+    sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE, maxBytes / 8192));
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * @return The bytes the stored responses take now.
+   */
+  public long getBytes()
+  {
+    lock.lock();
+    try
+    {
+      return window.bytes + probation.bytes + protectedQueue.bytes;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of responses stored (fresh or not).
+   */
+  public int getEntryCount()
+  {
+    return entries.size();
+  }
+
+  /**
+   * @return The number of requests answered from the cache.
+   */
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of requests that could have been answered from the cache but had no fresh response stored.
+   */
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return The bytes the disk tier's files take now, 0 without a disk tier.
+   */
+  public long getDiskBytes()
+  {
+    return (diskStore == null) ? 0 : diskStore.getUsedBytes();
+  }
+
+  /**
+   * @return The number of responses stored in the disk tier, 0 without a disk tier.
+   */
+  public int getDiskEntryCount()
+  {
+    return (diskStore == null) ? 0 : diskStore.getEntryCount();
+  }
+
+  /**
+   * @return The number of requests answered from the disk tier (counted in {@link #getHitCount()} too).
+   */
+  public long getDiskHitCount()
+  {
+    return diskHits.get();
+  }
+
+  /**
+   * @return The number of requests answered with a stale response, while it was revalidated or because revalidating it
+   * failed (counted in {@link #getMissCount()}).
+   */
+  public long getStaleHitCount()
+  {
+    return staleHits.get();
+  }
+
+  /**
+   * @return The number of conditional requests sent to servers to revalidate stale responses.
+   */
+  public long getRevalidationCount()
+  {
+    return revalidations.get();
+  }
+
+  /**
+   * @return The number of revalidations answered with <i>304 Not Modified</i>.
+   */
+  public long getNotModifiedCount()
+  {
+    return notModified.get();
+  }
+
+  /**
+   * Drops every stored response (in the disk tier too).
+   */
+  public void clear()
+  {
+    if (diskStore != null)
+    {
+      diskStore.clear();
+    }
+
+    lock.lock();
+    try
+    {
+      for (CachedResponse entry : entries.values())
+      {
+        entry.queue = AccessQueue.NONE;
+        purgeIndex.remove(entry);
+      }
+      entries.clear();
+      varyNames.clear();
+      window.clear();
+      probation.clear();
+      protectedQueue.clear();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the disk tier once the responses waiting to be written to it are written. Nothing is stored on disk after
+   * and no more stale responses are revalidated.
+   */
+  public void close()
+  {
+    synchronized (this)
+    {
+      if (revalidator != null)
+      {
+        revalidator.shutdown();
+      }
+    }
+
+    if (diskStore != null)
+    {
+      diskStore.close();
+    }
+  }
+
+  /**
+   * Purges the responses tagged with the given surrogate key.
+   *
+   * @param tag A key from a <i>Surrogate-Key</i> (keys separated by spaces) or <i>Cache-Tag</i> (separated by commas)
+   * response header.
+   * @param soft True to make the responses stale, false to remove them.
+   * @return The number of URLs purged.
+   */
+  public int purgeTag(String tag, boolean soft)
+  {
+    return purge(purgeIndex.getTagged(tag), soft);
+  }
+
+  /**
+   * Purges the responses stored for the given URL (every variant).
+   *
+   * @param url Ex. <i>http://example.com/index.html</i>.
+   * @param soft True to make the responses stale, false to remove them.
+   * @return The number of URLs purged (0 or 1).
+   */
+  public int purgeURL(String url, boolean soft)
+  {
+    return purge(purgeIndex.get(url).isEmpty() ? Collections.<String>emptySet() : Collections.singleton(url), soft);
+  }
+
+  /**
+   * Purges the responses for the given host (over HTTP and HTTPS) whose path starts with the given prefix.
+   *
+   * @param host The host as in the requests' <i>Host</i> header (with the port if it's there).
+   * @param pathPrefix Ex. <i>/images/</i>.
+   * @param soft True to make the responses stale, false to remove them.
+   * @return The number of URLs purged.
+   */
+  public int purgePrefix(String host, String pathPrefix, boolean soft)
+  {
+    Set<String> urls = purgeIndex.getUnder("http://" + host + pathPrefix);
+    urls.addAll(purgeIndex.getUnder("https://" + host + pathPrefix));
+    return purge(urls, soft);
+  }
+
+  /**
+   * Purges every response for the given host (over HTTP and HTTPS).
+   *
+   * @param host The host as in the requests' <i>Host</i> header (with the port if it's there).
+   * @param soft True to make the responses stale, false to remove them.
+   * @return The number of URLs purged.
+   */
+  public int purgeHost(String host, boolean soft)
+  {
+    return purgePrefix(host, "/", soft);
+  }
+
+  /**
+   * A request to the director's purge path (its path without the query string) is answered here instead of going to a
+   * server, after {@link ProxyDirector#onRequestStart(HttpRequest)}.
+   *
+   * @throws EndProxiedRequestException The answer to a purge request.
+   * @see ProxyDirector#getPurgePath()
+   */
+  void onPurgeRequest(HttpRequest request, String purgePath) throws EndProxiedRequestException
+  {
+    int queryStart = request.path.indexOf('?');
+    if ((purgePath == null) || !purgePath.equals((queryStart < 0) ? request.path : request.path.substring(0, queryStart)))
+    {
+      return;
+    }
+    else if (!"POST".equalsIgnoreCase(request.method) && !"PURGE".equalsIgnoreCase(request.method))
+    {
+      throw new EndProxiedRequestException(405, "Method Not Allowed", Arrays.asList(new HttpHeader("Allow", "POST, PURGE")));
+    }
+
+    Map<String, String> parameters = (queryStart < 0) ? new HashMap<String, String>() : parseQuery(request.path.substring(queryStart + 1));
+    if (parameters == null)
+    {
+      throw EndProxiedRequestException.BAD_REQUEST;
+    }
+
+    boolean soft = parameters.containsKey("soft") && !"false".equalsIgnoreCase(parameters.get("soft"));
+    String host = parameters.get("host");
+    int purged;
+    if (parameters.containsKey("tag"))
+    {
+      purged = purgeTag(parameters.get("tag"), soft);
+    }
+    else if (parameters.containsKey("url"))
+    {
+      purged = purgeURL(parameters.get("url"), soft);
+    }
+    else if (parameters.containsKey("prefix") && ((host != null) || (request.getHost() != null)))
+    {
+      purged = purgePrefix((host == null) ? request.getHost() : host, parameters.get("prefix"), soft);
+    }
+    else if (host != null)
+    {
+      purged = purgeHost(host, soft);
+    }
+    else
+    {
+      throw EndProxiedRequestException.BAD_REQUEST;
+    }
+
+    throw new EndProxiedRequestException(200, "OK", Arrays.asList(new HttpHeader("Purged", String.valueOf(purged)), new HttpHeader("Content-Length", "0")));
+  }
+
+  /**
+   * Every request the proxy is about to handle goes through here. One with an unsafe method invalidates the responses
+   * stored for its URL.
+   */
+  void onRequest(HttpRequest request)
+  {
+    if (!isCacheableMethod(request.method) && !"OPTIONS".equalsIgnoreCase(request.method) && !"TRACE".equalsIgnoreCase(request.method) && !request.isConnect())
+    {
+      invalidate(request.getURL());
+    }
+  }
+
+  /**
+   * A response from the disk tier has its segment retained, the exchange has to release it.
+   *
+   * @return A fresh response for the given request or null.
+   */
+  CachedResponse get(HttpRequest request)
+  {
+    if (!isCacheableMethod(request.method))
+    {
+      return null;
+    }
+
+    CacheControl cacheControl = CacheControl.parse(request);
+    if (!isLookup(request, cacheControl))
+    {
+      return null;
+    }
+
+    String url = request.getURL();
+    String[] names = varyNames.get(url);
+    String key = key(url, names, request);
+    CachedResponse entry = entries.get(key);
+    onAccess(key, entry);
+
+    long now = System.currentTimeMillis();
+    if ((entry != null) && (entry.varyNames == names) && isUsable(entry, cacheControl, now))
+    {
+      hits.incrementAndGet();
+      return entry;
+    }
+
+    if (diskStore != null)
+    {
+      entry = getFromDisk(url, request);
+      if ((entry != null) && isUsable(entry, cacheControl, now) && entry.segment.retain())
+      {
+        hits.incrementAndGet();
+        diskHits.incrementAndGet();
+        return entry;
+      }
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Called for a request that missed. The response isn't retained, see
+   * {@link #serveWhileRevalidating(HttpRequest, ConnectionParameters, CachedResponse, ProxyDirector)} and
+   * {@link #revalidate(HttpRequest, ConnectionParameters, CachedResponse, ProxyDirector, Revalidator.Listener)}.
+   *
+   * @return The response stored for the request that's too old to be used as it is or null.
+   */
+  CachedResponse getStale(HttpRequest request)
+  {
+    if (!isLookup(request, CacheControl.parse(request)))
+    {
+      return null;
+    }
+
+    String url = request.getURL();
+    String[] names = varyNames.get(url);
+    CachedResponse entry = entries.get(key(url, names, request));
+    if ((entry != null) && (entry.varyNames == names))
+    {
+      return entry;
+    }
+
+    return (diskStore == null) ? null : getFromDisk(url, request);
+  }
+
+  /**
+   * The stale response can be sent right away if it allows it (stale-while-revalidate) and the request doesn't ask for a
+   * response of a certain age. It's revalidated in the background.
+   *
+   * @return True if the caller sends the stale response, it's retained for it (if it's from the disk tier).
+   */
+  boolean serveWhileRevalidating(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale, ProxyDirector proxyDirector)
+  {
+    CacheControl cacheControl = CacheControl.parse(request);
+    if ((cacheControl.maxAge >= 0) || (cacheControl.minFresh >= 0) || !stale.canServeWhileRevalidating(System.currentTimeMillis()) || !stale.retain())
+    {
+      return false;
+    }
+
+    staleHits.incrementAndGet();
+    revalidator(proxyDirector).revalidate(request, connectionParameters, stale, null);
+    return true;
+  }
+
+  /**
+   * Revalidates the stale response with the server. The listener is called from a revalidation thread.
+   */
+  void revalidate(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale, ProxyDirector proxyDirector, Revalidator.Listener listener)
+  {
+    revalidator(proxyDirector).revalidate(request, connectionParameters, stale, listener);
+  }
+
+  /**
+   * Revalidates the stale response with the server and waits for the result.
+   *
+   * @return What to send for the request (retained if it's from the disk tier) or null if the request has to go to the
+   * server like a miss.
+   */
+  CachedResponse revalidate(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale, ProxyDirector proxyDirector)
+  {
+    return revalidator(proxyDirector).revalidateAndWait(request, connectionParameters, stale);
+  }
+
+  /**
+   * Called for a request that missed. Only requests that could have been answered from the cache wait.
+   *
+   * @return The waiter's place on an identical request sent to a server or null if there isn't one it can wait on.
+   */
+  CollapsedRequest.Attachment attach(HttpRequest request, CollapsedRequest.Waiter waiter)
+  {
+    if (!isLookup(request, CacheControl.parse(request)))
+    {
+      return null;
+    }
+
+    CollapsedRequest collapsedRequest = collapsing.get(collapseKey(request));
+    return (collapsedRequest == null) ? null : collapsedRequest.attach(request, waiter);
+  }
+
+  /**
+   * Called for a request that missed and had nothing to wait on, before it's sent to the server. Only GET requests lead
+   * (HEAD requests can wait on them).
+   *
+   * @return The request for identical requests to wait on or null if another one got there first.
+   */
+  CollapsedRequest lead(HttpRequest request)
+  {
+    if (!"GET".equalsIgnoreCase(request.method) || !isLookup(request, CacheControl.parse(request)))
+    {
+      return null;
+    }
+
+    String key = collapseKey(request);
+    CollapsedRequest collapsedRequest = new CollapsedRequest(this, key, request, maxEntryBytes);
+    return (collapsing.putIfAbsent(key, collapsedRequest) == null) ? collapsedRequest : null;
+  }
+
+  /**
+   * New requests can't wait on the given request anymore.
+   */
+  void collapsed(CollapsedRequest collapsedRequest)
+  {
+    collapsing.remove(collapsedRequest.key, collapsedRequest);
+  }
+
+  /**
+   * Called once the director has seen the response (its header won't change anymore).
+   *
+   * @return Where to put the response's body as it's read if the response can be stored, otherwise null.
+   */
+  CacheFill fill(HttpRequest request, HttpResponse response)
+  {
+    if (!"GET".equalsIgnoreCase(request.method) || !isCacheableStatus(response.statusCode) || request.hasHeader("Range"))
+    {
+      return null;
+    }
+
+    CacheControl responseCacheControl = CacheControl.parse(response);
+    if (responseCacheControl.noStore || responseCacheControl.noCache || responseCacheControl.isPrivate
+        || CacheControl.parse(request).noStore || response.hasHeader("Set-Cookie"))
+    {
+      return null;
+    }
+    else if (request.hasHeader("Authorization") && !responseCacheControl.isPublic && (responseCacheControl.sMaxAge < 0) && !responseCacheControl.mustRevalidate)
+    {
+      return null;
+    }
+
+    String[] names = varyNames(response);
+    if (names == VARY_ALL)
+    {
+      return null;
+    }
+
+    long requestTime = request.startedAt.getTime();
+    long responseTime = response.startedAt.getTime();
+    Long date = parseDate(response.getHeaderValue("Date"));
+    long dateValue = (date == null) ? responseTime : date;
+    long ageValue = CacheControl.seconds(trim(response.getHeaderValue("Age"))) * 1000;
+    long initialAge = Math.max(Math.max(0, responseTime - dateValue), ageValue + Math.max(0, responseTime - requestTime));
+
+    long freshnessLifetime;
+    if (responseCacheControl.sMaxAge >= 0)
+    {
+      freshnessLifetime = responseCacheControl.sMaxAge * 1000;
+    }
+    else if (responseCacheControl.maxAge >= 0)
+    {
+      freshnessLifetime = responseCacheControl.maxAge * 1000;
+    }
+    else if (response.hasHeader("Expires"))
+    {
+      Long expires = parseDate(response.getHeaderValue("Expires"));
+      freshnessLifetime = (expires == null) ? 0 : expires - dateValue;
+    }
+    else
+    {
+      return null;
+    }
+
+    if (freshnessLifetime <= initialAge)
+    {
+      return null;
+    }
+
+    String contentLength = trim(response.getHeaderValue("Content-Length"));
+    if ((contentLength != null) && (CacheControl.seconds(contentLength) > maxEntryBytes))
+    {
+      return null;
+    }
+
+    String url = request.getURL();
+    return new CacheFill(this, response, url, key(url, names, request), names, responseTime, initialAge, freshnessLifetime, maxEntryBytes);
+  }
+
+  /**
+   * Stores a response whose body has been read (and queues it for the disk tier).
+   *
+   * @return False if the response is too big to store.
+   */
+  boolean put(CacheFill fill, byte[] body)
+  {
+    byte[] header = encodeHeader(fill.response, body.length);
+    if (diskStore != null)
+    {
+      diskStore.append(fill, header, body);
+    }
+
+    lock.lock();
+    try
+    {
+      /*
+       * Entries stored under other names for the URL can't be looked up anymore once its names change.
+       */
+      String[] names = varyNames.get(fill.url);
+      if (fill.varyNames == null)
+      {
+        if (names != null)
+        {
+          varyNames.remove(fill.url);
+          names = null;
+        }
+      }
+      else if ((names == null) || !Arrays.equals(names, fill.varyNames))
+      {
+        varyNames.put(fill.url, names = fill.varyNames);
+      }
+
+      CachedResponse entry = new CachedResponse(fill.key, fill.url, fill.response.statusCode, header, body, fill.responseTime, fill.initialAge, fill.freshnessLifetime, names);
+      if (entry.weight > mainMaxBytes)
+      {
+        return diskStore != null;
+      }
+
+      CachedResponse replaced = entries.put(entry.key, entry);
+      if (replaced != null)
+      {
+        unlink(replaced);
+        purgeIndex.remove(replaced);
+      }
+      purgeIndex.add(entry);
+
+      if (entries.size() > sketch.tableLength())
+      {
+        sketch.ensureCapacity(entries.size() * 2);
+      }
+
+      window.addFirst(entry);
+      entry.queue = AccessQueue.WINDOW;
+      evict();
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the responses stored for the given URL (every variant).
+   */
+  void invalidate(String url)
+  {
+    if (diskStore != null)
+    {
+      diskStore.invalidate(url);
+    }
+
+    lock.lock();
+    try
+    {
+      varyNames.remove(url);
+      for (CachedResponse entry : purgeIndex.get(url))
+      {
+        if (entry.segment == null)
+        {
+          remove(entry);
+        }
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private int purge(Set<String> urls, boolean soft)
+  {
+    long now = System.currentTimeMillis();
+    for (String url : urls)
+    {
+      if (!soft)
+      {
+        invalidate(url);
+      }
+      else
+      {
+        for (CachedResponse response : purgeIndex.get(url))
+        {
+          response.purge(now);
+        }
+
+        if (diskStore != null)
+        {
+          diskStore.purge(url, now);
+        }
+      }
+    }
+    return urls.size();
+  }
+
+  /*
+   * Null if a parameter can't be decoded.
+   */
+  private static Map<String, String> parseQuery(String query)
+  {
+    Map<String, String> parameters = new HashMap<String, String>();
+    try
+    {
+      for (String parameter : query.split("&"))
+      {
+        int equals = parameter.indexOf('=');
+        String name = (equals < 0) ? parameter : parameter.substring(0, equals);
+        String value = (equals < 0) ? "" : parameter.substring(equals + 1);
+        if (!name.isEmpty())
+        {
+          parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+      }
+      return parameters;
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      return null;
+    }
+    catch (IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
+  private Revalidator revalidator(ProxyDirector proxyDirector)
+  {
+    Revalidator revalidator = this.revalidator;
+    if (revalidator == null)
+    {
+      synchronized (this)
+      {
+        revalidator = this.revalidator;
+        if (revalidator == null)
+        {
+          this.revalidator = revalidator = new Revalidator(this, proxyDirector, maxEntryBytes);
+        }
+      }
+    }
+    return revalidator;
+  }
+
+  /*
+   * The variant stored on disk for the request. All of a URL's variants on disk vary on the same names.
+   */
+  private CachedResponse getFromDisk(String url, HttpRequest request)
+  {
+    CachedResponse[] variants = diskStore.get(url);
+    if (variants == null)
+    {
+      return null;
+    }
+
+    String key = key(url, variants[0].varyNames, request);
+    for (CachedResponse variant : variants)
+    {
+      if (variant.key.equals(key))
+      {
+        return variant;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Requests are collapsed by the key they'd be looked up with (the response they wait on may turn out to vary on
+   * something else).
+   */
+  private String collapseKey(HttpRequest request)
+  {
+    String url = request.getURL();
+    return key(url, varyNames.get(url), request);
+  }
+
+  /*
+   * GET and HEAD requests are looked up unless they ask for a response from the server (no-cache), are authorized or ask
+   * for part of the response.
+   */
+  private static boolean isLookup(HttpRequest request, CacheControl cacheControl)
+  {
+    return isCacheableMethod(request.method) && !cacheControl.noCache && !cacheControl.noStore && !request.hasHeader("Authorization") && !request.hasHeader("Range");
+  }
+
+  /*
+   * Fresh and within what the request's max-age and min-fresh allow.
+   */
+  private static boolean isUsable(CachedResponse entry, CacheControl cacheControl, long now)
+  {
+    return entry.isFresh(now)
+        && ((cacheControl.maxAge < 0) || (entry.currentAge(now) <= cacheControl.maxAge * 1000))
+        && ((cacheControl.minFresh < 0) || (entry.freshnessLifetime - entry.currentAge(now) >= cacheControl.minFresh * 1000));
+  }
+
+  /*
+   * Counts the access in the sketch (hit or miss, TinyLFU needs the popularity of what isn't stored yet too) and moves a
+   * hit entry up: to the front of the window or protected space, from probation into protected.
+   */
+  private void onAccess(String key, CachedResponse entry)
+  {
+    if (!lock.tryLock())
+    {
+      return;
+    }
+
+    try
+    {
+      sketch.increment(key.hashCode());
+      if (entry == null)
+      {
+        return;
+      }
+
+      switch (entry.queue)
+      {
+        case AccessQueue.WINDOW:
+          window.remove(entry);
+          window.addFirst(entry);
+          break;
+
+        case AccessQueue.PROBATION:
+          probation.remove(entry);
+          protectedQueue.addFirst(entry);
+          entry.queue = AccessQueue.PROTECTED;
+          while (protectedQueue.bytes > protectedMaxBytes)
+          {
+            CachedResponse demoted = protectedQueue.last;
+            protectedQueue.remove(demoted);
+            probation.addFirst(demoted);
+            demoted.queue = AccessQueue.PROBATION;
+          }
+          break;
+
+        case AccessQueue.PROTECTED:
+          protectedQueue.remove(entry);
+          protectedQueue.addFirst(entry);
+          break;
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * The least recently used entries that overflow the window become candidates for the main space. A candidate gets in
+   * if there's room or if it's been more popular lately than the probation entries (least recently used first) it would
+   * push out, otherwise it's dropped.
+   */
+  private void evict()
+  {
+    while (window.bytes > windowMaxBytes)
+    {
+      CachedResponse candidate = window.last;
+      window.remove(candidate);
+      candidate.queue = AccessQueue.NONE;
+
+      int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+      boolean admitted = true;
+      while (probation.bytes + protectedQueue.bytes + candidate.weight > mainMaxBytes)
+      {
+        CachedResponse victim = (probation.last != null) ? probation.last : protectedQueue.last;
+        if (candidateFrequency > sketch.frequency(victim.key.hashCode()))
+        {
+          remove(victim);
+        }
+        else
+        {
+          admitted = false;
+          break;
+        }
+      }
+
+      if (admitted)
+      {
+        probation.addFirst(candidate);
+        candidate.queue = AccessQueue.PROBATION;
+      }
+      else
+      {
+        entries.remove(candidate.key, candidate);
+        purgeIndex.remove(candidate);
+      }
+    }
+  }
+
+  private void remove(CachedResponse entry)
+  {
+    entries.remove(entry.key, entry);
+    unlink(entry);
+    purgeIndex.remove(entry);
+  }
+
+  private void unlink(CachedResponse entry)
+  {
+    switch (entry.queue)
+    {
+      case AccessQueue.WINDOW:
+        window.remove(entry);
+        break;
+
+      case AccessQueue.PROBATION:
+        probation.remove(entry);
+        break;
+
+      case AccessQueue.PROTECTED:
+        protectedQueue.remove(entry);
+        break;
+    }
+    entry.queue = AccessQueue.NONE;
+  }
+
+  /*
+   * The status line and the headers the client gets on a hit. Hop-by-hop headers are left out and the body is always
+   * sent with a Content-Length.
+   */
+  static byte[] encodeHeader(HttpResponse response, int bodyLength)
+  {
+    Set<String> connectionHeaders = new HashSet<String>();
+    for (HttpHeader header : response.getHeaders("Connection"))
+    {
+      for (String name : header.value.split(","))
+      {
+        connectionHeaders.add(name.trim().toLowerCase());
+      }
+    }
+
+    TByteArrayList bytes = new TByteArrayList((response.headers.size() + 2) * AVERAGE_HEADER_LENGTH);
+    bytes.add(("HTTP/1.1 " + response.statusCode + " " + response.reasonPhrase + CRLF).getBytes(LineReader.ISO_8859_1));
+    for (HttpHeader header : response.headers)
+    {
+      String name = header.name.toLowerCase();
+      if (!HOP_BY_HOP_HEADERS.contains(name) && !connectionHeaders.contains(name))
+      {
+        header.addTo(bytes);
+      }
+    }
+    bytes.add(("Content-Length: " + bodyLength + CRLF).getBytes(LineReader.ISO_8859_1));
+    return bytes.toArray();
+  }
+
+  /*
+   * The Vary header names lowercased and sorted, null if there are none or VARY_ALL for Vary: *.
+   */
+  private static String[] varyNames(HttpResponse response)
+  {
+    List<String> names = null;
+    for (HttpHeader header : response.getHeaders("Vary"))
+    {
+      for (String name : header.value.split(","))
+      {
+        name = name.trim().toLowerCase();
+        if (name.equals("*"))
+        {
+          return VARY_ALL;
+        }
+        else if (!name.isEmpty())
+        {
+          if (names == null)
+          {
+            names = new ArrayList<String>();
+          }
+
+          if (!names.contains(name))
+          {
+            names.add(name);
+          }
+        }
+      }
+    }
+
+    if (names == null)
+    {
+      return null;
+    }
+
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  /*
+   * The URL, followed by the request's values of the names varied on.
+   */
+  static String key(String url, String[] names, HttpRequest request)
+  {
+    if (names == null)
+    {
+      return url;
+    }
+
+    StringBuilder key = new StringBuilder(url);
+    for (String name : names)
+    {
+      key.append('\n');
+      boolean first = true;
+      for (HttpHeader header : request.getHeaders(name))
+      {
+        if (!first)
+        {
+          key.append(',');
+        }
+        key.append(header.value.trim());
+        first = false;
+      }
+    }
+    return key.toString();
+  }
+
+  private static boolean isCacheableMethod(String method)
+  {
+    return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+  }
+
+  /*
+   * The status codes that are cacheable by default (RFC 7231 6.1) and 308.
+   */
+  private static boolean isCacheableStatus(int statusCode)
+  {
+    switch (statusCode)
+    {
+      case 200:
+      case 203:
+      case 204:
+      case 300:
+      case 301:
+      case 308:
+      case 404:
+      case 405:
+      case 410:
+      case 414:
+      case 501:
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  private static Long parseDate(String date)
+  {
+    return (date == null) ? null : HttpDate.parse(date.trim());
+  }
+
+  private static String trim(String value)
+  {
+    return (value == null) ? null : value.trim();
+  }
+
+  private static final String[] VARY_ALL = {"*"};
+
+  static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+      "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade",
+      "content-length", "age"));
+
+  /*
+   * Least recently used last. Only touched holding the lock.
+   */
+  private static class AccessQueue
+  {
+    static final int NONE = 0;
+
+    static final int WINDOW = 1;
+
+    static final int PROBATION = 2;
+
+    static final int PROTECTED = 3;
+
+    CachedResponse first;
+
+    CachedResponse last;
+
+    long bytes;
+
+    void addFirst(CachedResponse entry)
+    {
+      entry.previous = null;
+      entry.next = first;
+      if (first == null)
+      {
+        last = entry;
+      }
+      else
+      {
+        first.previous = entry;
+      }
+      first = entry;
+      bytes += entry.weight;
+    }
+
+    void remove(CachedResponse entry)
+    {
+      if (entry.previous == null)
+      {
+        first = entry.next;
+      }
+      else
+      {
+        entry.previous.next = entry.next;
+      }
+
+      if (entry.next == null)
+      {
+        last = entry.previous;
+      }
+      else
+      {
+        entry.next.previous = entry.previous;
+      }
+
+      entry.previous = entry.next = null;
+      bytes -= entry.weight;
+    }
+
+    void clear()
+    {
+      first = last = null;
+      bytes = 0;
+    }
+  }
+}
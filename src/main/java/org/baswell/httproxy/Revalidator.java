@@ -0,0 +1,697 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.baswell.httproxy.SharedMethods.*;
+
+/**
+ * Revalidates stale responses of the {@link ResponseCache} with the server. The request for the stale response is sent
+ * again as a GET with the stored validators (<i>If-None-Match</i> and <i>If-Modified-Since</i>) on the proxy's own
+ * connection to the server. A <i>304 Not Modified</i> refreshes the stored response (RFC 7234 4.3.4), any other response
+ * replaces it. The requests are sent from a few threads of the revalidator's over pooled blocking sockets, so neither
+ * proxy's client exchanges are tied up by them.
+ * <p>
+ * A stored response has one revalidation out at a time. Requests for it while it's out wait on its result, for up to
+ * {@link #WAIT_TIMEOUT_MILLIS} before they go to the server on their own. A server has a few revalidations out at most
+ * (running or queued) so a slow one can't hold up the others, past that the requests go to the server like misses.
+ */
+class Revalidator
+{
+  interface Listener
+  {
+    /**
+     * Called on a revalidation thread.
+     *
+     * @param response What to send for the request (retained if it's from the disk tier) or null if the request has to go
+     *                 to the server like a miss.
+     */
+    void onRevalidated(CachedResponse response);
+  }
+
+  private final ResponseCache cache;
+
+  private final ProxyDirector proxyDirector;
+
+  private final SocketPool socketPool;
+
+  private final int maxBodyBytes;
+
+  private final ThreadPoolExecutor threadPool;
+
+  private final ConcurrentHashMap<String, Revalidation> revalidations = new ConcurrentHashMap<String, Revalidation>();
+
+  private final ConcurrentHashMap<ConnectionParameters, AtomicInteger> serverRevalidations = new ConcurrentHashMap<ConnectionParameters, AtomicInteger>();
+
+  /**
+   * The director's connect timeout and server connection limits are used for the revalidator's connections.
+   *
+   * @param maxBodyBytes Responses with bigger bodies aren't read, the requests waiting on them go to the server.
+   */
+  Revalidator(ResponseCache cache, ProxyDirector proxyDirector, int maxBodyBytes)
+  {
+    this.cache = cache;
+    this.proxyDirector = proxyDirector;
+    this.maxBodyBytes = maxBodyBytes;
+    socketPool = new SocketPool(proxyDirector);
+
+    threadPool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "Revalidator-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    threadPool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Revalidates the stale response for the request unless it's already being revalidated, in which case the listener
+   * waits on that revalidation.
+   *
+   * @param listener Null for a revalidation in the background.
+   */
+  void revalidate(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale, Listener listener)
+  {
+    Revalidation revalidation = new Revalidation(request, connectionParameters, stale, listener);
+    while (true)
+    {
+      Revalidation inFlight = revalidations.putIfAbsent(stale.key, revalidation);
+      if (inFlight == null)
+      {
+        break;
+      }
+      else if (inFlight.join(listener))
+      {
+        return;
+      }
+    }
+
+    if (!stale.retain())
+    {
+      revalidation.finish(null, false);
+      return;
+    }
+    else if (!acquireServer(connectionParameters))
+    {
+      revalidation.finish(null, false);
+      stale.release();
+      return;
+    }
+
+    try
+    {
+      threadPool.execute(revalidation);
+    }
+    catch (RejectedExecutionException e)
+    {
+      releaseServer(connectionParameters);
+      revalidation.finish(null, false);
+      stale.release();
+    }
+  }
+
+  /**
+   * Revalidates the stale response for the request and waits for the result, up to {@link #WAIT_TIMEOUT_MILLIS}.
+   *
+   * @return What to send for the request (retained if it's from the disk tier) or null if the request has to go to the
+   * server like a miss.
+   */
+  CachedResponse revalidateAndWait(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale)
+  {
+    WaitingListener listener = new WaitingListener();
+    revalidate(request, connectionParameters, stale, listener);
+    try
+    {
+      listener.done.await(WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e)
+    {}
+    return listener.stopWaiting();
+  }
+
+  /**
+   * Stops the revalidation threads once the revalidations out are done and closes the idle connections.
+   */
+  void shutdown()
+  {
+    threadPool.shutdown();
+    socketPool.closeIdle();
+  }
+
+  private boolean acquireServer(ConnectionParameters connectionParameters)
+  {
+    AtomicInteger count = serverRevalidations.get(connectionParameters);
+    if (count == null)
+    {
+      AtomicInteger newCount = new AtomicInteger();
+      count = serverRevalidations.putIfAbsent(connectionParameters, newCount);
+      if (count == null)
+      {
+        count = newCount;
+      }
+    }
+
+    while (true)
+    {
+      int current = count.get();
+      if (current >= MAX_SERVER_REVALIDATIONS)
+      {
+        return false;
+      }
+      else if (count.compareAndSet(current, current + 1))
+      {
+        return true;
+      }
+    }
+  }
+
+  private void releaseServer(ConnectionParameters connectionParameters)
+  {
+    serverRevalidations.get(connectionParameters).decrementAndGet();
+  }
+
+  /*
+   * The client's request as a GET with its validators replaced by the stored response's. Hop-by-hop headers and what
+   * would ask for part of the response are left out.
+   */
+  static HttpRequest conditionalRequest(HttpRequest request, CachedResponse stale)
+  {
+    HttpRequest conditionalRequest = new HttpRequest(request.clientIp, false, request.overSSL, "GET", request.path, "HTTP/1.1");
+    for (HttpHeader header : request.headers)
+    {
+      if (!EXCLUDED_REQUEST_HEADERS.contains(header.name.toLowerCase()))
+      {
+        conditionalRequest.headers.add(new HttpHeader(header.name, header.value));
+      }
+    }
+
+    if (stale.etag != null)
+    {
+      conditionalRequest.headers.add(new HttpHeader("If-None-Match", stale.etag));
+    }
+    if (stale.lastModified != null)
+    {
+      conditionalRequest.headers.add(new HttpHeader("If-Modified-Since", stale.lastModified));
+    }
+    return conditionalRequest;
+  }
+
+  /*
+   * The stored response with the headers of the 304 replacing those with the same names (RFC 7234 4.3.4), dated when the
+   * 304 was received.
+   */
+  static HttpResponse merge(CachedResponse stale, HttpResponse notModified)
+  {
+    HttpResponse stored = stale.toHttpResponse(notModified.overSSL, notModified.connectionParameters);
+    Set<String> updated = new HashSet<String>();
+    for (HttpHeader header : notModified.headers)
+    {
+      String name = header.name.toLowerCase();
+      if (!ResponseCache.HOP_BY_HOP_HEADERS.contains(name) || name.equals("age"))
+      {
+        updated.add(name);
+      }
+    }
+
+    HttpResponse merged = new HttpResponse(false, notModified.overSSL, notModified.connectionParameters, "HTTP/1.1", stored.statusCode, stored.reasonPhrase);
+    for (HttpHeader header : stored.headers)
+    {
+      if (!updated.contains(header.name.toLowerCase()))
+      {
+        merged.headers.add(header);
+      }
+    }
+    for (HttpHeader header : notModified.headers)
+    {
+      if (updated.contains(header.name.toLowerCase()))
+      {
+        merged.headers.add(header);
+      }
+    }
+    return merged;
+  }
+
+  /*
+   * Sent once for a stale response, for any number of waiting requests.
+   */
+  private class Revalidation implements Runnable
+  {
+    final HttpRequest request;
+
+    final ConnectionParameters connectionParameters;
+
+    final CachedResponse stale;
+
+    /*
+     * The listener whose request is revalidated. A response that can't be stored is only for it.
+     */
+    final Listener owner;
+
+    /*
+     * Guarded by this revalidation's lock.
+     */
+    final List<Listener> listeners = new ArrayList<Listener>();
+
+    boolean finished;
+
+    /*
+     * The response read and its body, null if the body is too big.
+     */
+    HttpResponse response;
+
+    byte[] body;
+
+    Revalidation(HttpRequest request, ConnectionParameters connectionParameters, CachedResponse stale, Listener owner)
+    {
+      this.request = request;
+      this.connectionParameters = connectionParameters;
+      this.stale = stale;
+      this.owner = owner;
+
+      if (owner != null)
+      {
+        listeners.add(owner);
+      }
+    }
+
+    /**
+     * @return False if the revalidation is already finished.
+     */
+    synchronized boolean join(Listener listener)
+    {
+      if (finished)
+      {
+        return false;
+      }
+      else if (listener != null)
+      {
+        listeners.add(listener);
+      }
+      return true;
+    }
+
+    @Override
+    public void run()
+    {
+      CachedResponse result = null;
+      boolean shared = false;
+      try
+      {
+        HttpRequest conditionalRequest = conditionalRequest(request, stale);
+        cache.revalidations.incrementAndGet();
+        try
+        {
+          send(conditionalRequest);
+        }
+        catch (IOException e)
+        {
+          response = null;
+        }
+        catch (HttpProtocolException e)
+        {
+          response = null;
+        }
+
+        if (((response == null) || (response.statusCode >= 500)) && stale.canServeOnError(System.currentTimeMillis()))
+        {
+          cache.staleHits.incrementAndGet();
+          result = stale;
+          shared = true;
+        }
+        else if ((response == null) || (body == null))
+        {
+          result = null;
+        }
+        else if (response.statusCode == 304)
+        {
+          cache.notModified.incrementAndGet();
+          result = store(conditionalRequest, merge(stale, response), stale.readBody());
+          shared = result.freshnessLifetime > 0;
+        }
+        else if (modifiesContent(response))
+        {
+          cache.invalidate(stale.url);
+          result = null;
+        }
+        else
+        {
+          /*
+           * Like the response to a miss it goes by the director before it's stored. The director isn't told about each
+           * request it's sent for, onResponseEnd comes once it's ready to send.
+           */
+          proxyDirector.onResponseStart(request, response);
+          if (response.statusCode >= 500)
+          {
+            result = new CachedResponse(stale.key, stale.url, response.statusCode, ResponseCache.encodeHeader(response, body.length), body, response.startedAt.getTime(), 0, 0, null);
+          }
+          else
+          {
+            result = store(conditionalRequest, response, body);
+            shared = result.freshnessLifetime > 0;
+          }
+          proxyDirector.onResponseEnd(request, response);
+        }
+      }
+      catch (Exception e)
+      {
+        result = null;
+      }
+      finally
+      {
+        releaseServer(connectionParameters);
+      }
+
+      finish(result, shared);
+      stale.release();
+    }
+
+    /*
+     * The blocking IO proxy doesn't store bodies a content modifier changes, the requests go to the server for those.
+     */
+    boolean modifiesContent(HttpResponse response)
+    {
+      return (proxyDirector instanceof IOProxyDirector) && (body.length > 0) && (((IOProxyDirector)proxyDirector).getResponseModifier(request, response) != null);
+    }
+
+    /*
+     * Stores the response if it can be. One that can't be means what's stored for the URL is out of date, it's removed.
+     * The response returned for the waiting requests has no freshness if it wasn't stored.
+     */
+    CachedResponse store(HttpRequest conditionalRequest, HttpResponse response, byte[] body)
+    {
+      CacheFill fill = cache.fill(conditionalRequest, response);
+      if (fill == null)
+      {
+        cache.invalidate(stale.url);
+      }
+      else
+      {
+        fill.append(body, 0, body.length);
+        if (fill.complete())
+        {
+          return new CachedResponse(fill.key, fill.url, response.statusCode, ResponseCache.encodeHeader(response, body.length), body, fill.responseTime, fill.initialAge,
+              fill.freshnessLifetime, fill.varyNames);
+        }
+      }
+
+      return new CachedResponse(stale.key, stale.url, response.statusCode, ResponseCache.encodeHeader(response, body.length), body, response.startedAt.getTime(), 0, 0, null);
+    }
+
+    /*
+     * New requests for the stale response start another revalidation from here on. Every listener gets a shared result,
+     * one that isn't shared only goes to the owner.
+     */
+    void finish(CachedResponse result, boolean shared)
+    {
+      revalidations.remove(stale.key, this);
+
+      List<Listener> listeners;
+      synchronized (this)
+      {
+        finished = true;
+        listeners = new ArrayList<Listener>(this.listeners);
+      }
+
+      for (Listener listener : listeners)
+      {
+        if ((result != null) && (shared || (listener == owner)) && result.retain())
+        {
+          listener.onRevalidated(result);
+        }
+        else
+        {
+          listener.onRevalidated(null);
+        }
+      }
+    }
+
+    void send(HttpRequest conditionalRequest) throws IOException, HttpProtocolException
+    {
+      Socket socket = socketPool.checkout(connectionParameters);
+      boolean reusable = false;
+      try
+      {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(conditionalRequest.toBytes());
+        outputStream.flush();
+        reusable = read(socket.getInputStream());
+      }
+      finally
+      {
+        socketPool.release(connectionParameters, socket, reusable);
+      }
+    }
+
+    /*
+     * Reads the response (after any interim ones) and its body, unless the body is too big.
+     *
+     * @return True if the connection can be used for another request.
+     */
+    boolean read(InputStream inputStream) throws IOException, HttpProtocolException
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      buffer.flip();
+      LineReader lineReader = new LineReader();
+      do
+      {
+        response = null;
+        while (true)
+        {
+          while (!lineReader.readLine(buffer))
+          {
+            fill(inputStream, buffer);
+          }
+
+          if (response == null)
+          {
+            if (lineReader.lineEnd > lineReader.lineStart)
+            {
+              response = new HttpResponse(false, connectionParameters.ssl, connectionParameters, lineReader.lineToString());
+              if (response.statusCode < 100)
+              {
+                throw new HttpProtocolException(response, "Invalid status line: " + lineReader.lineToString());
+              }
+            }
+          }
+          else if (lineReader.lineEnd == lineReader.lineStart)
+          {
+            break;
+          }
+          else
+          {
+            HttpMessage.parseHeader(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd, response.headers);
+          }
+        }
+      }
+      while (response.statusCode < 200);
+
+      boolean keepsConnectionOpen = keepsConnectionOpen(response, response.version);
+      if ((response.statusCode == 204) || (response.statusCode == 304))
+      {
+        body = new byte[0];
+        return keepsConnectionOpen;
+      }
+
+      BodyOutputStream bodyStream = new BodyOutputStream();
+      String transferEncoding = response.getHeaderValue("Transfer-Encoding");
+      String contentLength = response.getHeaderValue("Content-Length");
+      if ((transferEncoding != null) && transferEncoding.toLowerCase().contains("chunked"))
+      {
+        ChunkedDecoder decoder = new ChunkedDecoder(false);
+        while (!decoder.isDone())
+        {
+          if (!buffer.hasRemaining())
+          {
+            fill(inputStream, buffer);
+          }
+
+          int data = decoder.decode(buffer, response);
+          if ((data > 0) && !bodyStream.append(buffer.array(), buffer.position() - data, data))
+          {
+            return false;
+          }
+        }
+      }
+      else if (contentLength != null)
+      {
+        long remaining;
+        try
+        {
+          remaining = Long.parseLong(contentLength.trim());
+        }
+        catch (NumberFormatException e)
+        {
+          throw new HttpProtocolException(response, "Invalid Content-Length: " + contentLength);
+        }
+
+        while (remaining > 0)
+        {
+          if (!buffer.hasRemaining())
+          {
+            fill(inputStream, buffer);
+          }
+
+          int data = (int)Math.min(remaining, buffer.remaining());
+          if (!bodyStream.append(buffer.array(), buffer.position(), data))
+          {
+            return false;
+          }
+          buffer.position(buffer.position() + data);
+          remaining -= data;
+        }
+      }
+      else
+      {
+        /*
+         * The body ends with the connection.
+         */
+        keepsConnectionOpen = false;
+        while (true)
+        {
+          if (!buffer.hasRemaining())
+          {
+            buffer.clear();
+            int read = inputStream.read(buffer.array());
+            if (read == -1)
+            {
+              break;
+            }
+            buffer.limit(read);
+          }
+
+          if (!bodyStream.append(buffer.array(), buffer.position(), buffer.remaining()))
+          {
+            return false;
+          }
+          buffer.position(buffer.limit());
+        }
+      }
+
+      body = bodyStream.toByteArray();
+      return keepsConnectionOpen && !buffer.hasRemaining();
+    }
+
+    void fill(InputStream inputStream, ByteBuffer buffer) throws IOException
+    {
+      buffer.clear();
+      int read = inputStream.read(buffer.array());
+      if (read == -1)
+      {
+        throw new EOFException("Connection closed by the server.");
+      }
+      buffer.limit(read);
+    }
+  }
+
+  /*
+   * Gives up once the body is bigger than the revalidator reads.
+   */
+  private class BodyOutputStream extends ByteArrayOutputStream
+  {
+    boolean append(byte[] bytes, int start, int length)
+    {
+      if ((long)count + length > maxBodyBytes)
+      {
+        return false;
+      }
+
+      write(bytes, start, length);
+      return true;
+    }
+  }
+
+  private static class WaitingListener implements Listener
+  {
+    final CountDownLatch done = new CountDownLatch(1);
+
+    CachedResponse response;
+
+    boolean stoppedWaiting;
+
+    @Override
+    public synchronized void onRevalidated(CachedResponse response)
+    {
+      if (stoppedWaiting)
+      {
+        if (response != null)
+        {
+          response.release();
+        }
+      }
+      else
+      {
+        this.response = response;
+        done.countDown();
+      }
+    }
+
+    /*
+     * @return The response if it came in time, a later one is released.
+     */
+    synchronized CachedResponse stopWaiting()
+    {
+      stoppedWaiting = true;
+      return response;
+    }
+  }
+
+  /**
+   * How long a request waits on a revalidation before it goes to the server on its own.
+   */
+  static final int WAIT_TIMEOUT_MILLIS = 5000;
+
+  private static final int MAX_THREADS = 16;
+
+  private static final int MAX_SERVER_REVALIDATIONS = 4;
+
+  private static final int MAX_QUEUED = 1024;
+
+  /*
+   * How long a revalidation waits on the server to send something.
+   */
+  private static final int READ_TIMEOUT_MILLIS = 10000;
+
+  private static final Set<String> EXCLUDED_REQUEST_HEADERS = new HashSet<String>(Arrays.asList("connection", "keep-alive", "proxy-connection",
+      "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "content-length", "expect", "range", "if-range", "if-match",
+      "if-none-match", "if-modified-since", "if-unmodified-since"));
+
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+}
@@ -41,6 +41,12 @@ class SSLEngineBuffer
 
   private final ByteBuffer wrapBuffer;
 
+  private final ByteBufferPool networkBufferPool;
+
+  private final ByteBufferPool applicationBufferPool;
+
+  private boolean closed;
+
   private final ProxyLogger log;
 
   private final boolean logDebug;
@@ -57,9 +63,13 @@ class SSLEngineBuffer
     SSLSession session = sslEngine.getSession();
     int networkBufferSize = session.getPacketBufferSize();
 
-    networkInboundBuffer = ByteBuffer.allocate(networkBufferSize);
+    /*
+     * The network and unwrap buffers come from the shared pools and are given back in close.
+     */
+    networkBufferPool = ByteBufferPool.forSize(networkBufferSize);
+    networkInboundBuffer = networkBufferPool.take();
 
-    networkOutboundBuffer = ByteBuffer.allocate(networkBufferSize);
+    networkOutboundBuffer = networkBufferPool.take();
     networkOutboundBuffer.flip();
 
 
@@ -81,13 +91,19 @@ class SSLEngineBuffer
      */
 
     applicationBufferSize = session.getApplicationBufferSize();
-    unwrapBuffer = ByteBuffer.allocate(applicationBufferSize);
-    wrapBuffer = ByteBuffer.allocate(applicationBufferSize);
-    wrapBuffer.flip();
+    applicationBufferPool = ByteBufferPool.forSize(applicationBufferSize);
+    unwrapBuffer = applicationBufferPool.take();
+
+    /*
+     * Only ever used as an empty source for handshake wraps.
+     */
+    wrapBuffer = ByteBuffer.allocate(0);
   }
 
-  int unwrap(ByteBuffer applicationInputBuffer) throws IOException
+  synchronized int unwrap(ByteBuffer applicationInputBuffer) throws IOException
   {
+    checkOpen();
+
     if (applicationInputBuffer.capacity() < applicationBufferSize)
     {
       throw new IOException("Buffer size must be at least: " + applicationBufferSize + " for non-blocking IO over SSL.");
@@ -116,15 +132,34 @@ class SSLEngineBuffer
     return totalUnwrapped;
   }
 
-  int wrap(ByteBuffer applicationOutboundBuffer) throws IOException
+  synchronized int wrap(ByteBuffer applicationOutboundBuffer) throws IOException
   {
+    checkOpen();
     int wrapped = doWrap(applicationOutboundBuffer);
     doUnwrap(unwrapBuffer);
     return wrapped;
   }
 
-  int flushNetworkOutbound() throws IOException
+  /**
+   * @return True if bytes from the peer were taken off the socket (while wrapping) but haven't been read. The socket
+   * won't be selected as readable for them.
+   */
+  synchronized boolean hasBufferedInput()
+  {
+    return !closed && ((unwrapBuffer.position() != 0) || (networkInboundBuffer.position() != 0));
+  }
+
+  /**
+   * @see Alpn#negotiated(SSLEngine)
+   */
+  String applicationProtocol()
   {
+    return Alpn.negotiated(sslEngine);
+  }
+
+  synchronized int flushNetworkOutbound() throws IOException
+  {
+    checkOpen();
     return send(socketChannel, networkOutboundBuffer);
   }
 
@@ -149,8 +184,14 @@ class SSLEngineBuffer
     return totalWritten;
   }
 
-  void close()
+  synchronized void close()
   {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+
     try
     {
       sslEngine.closeInbound();
@@ -164,6 +205,18 @@ class SSLEngineBuffer
     }
     catch (Exception e)
     {}
+
+    networkBufferPool.give(networkInboundBuffer);
+    networkBufferPool.give(networkOutboundBuffer);
+    applicationBufferPool.give(unwrapBuffer);
+  }
+
+  private void checkOpen() throws IOException
+  {
+    if (closed)
+    {
+      throw new IOException("SSL channel closed.");
+    }
   }
 
   private int doUnwrap(ByteBuffer applicationInputBuffer) throws IOException
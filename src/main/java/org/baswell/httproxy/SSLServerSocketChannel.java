@@ -71,6 +71,12 @@ public class SSLServerSocketChannel extends ServerSocketChannel
    */
   public List<String> excludedCipherSuites;
 
+  /**
+   * Should HTTP/2 be offered to clients through ALPN. Clients that take it have their requests multiplexed over the one
+   * connection. Needs a JVM with ALPN support (Java 9+ or 8u252+), ignored otherwise. Default is {@code false}.
+   */
+  public boolean http2;
+
   private final ServerSocketChannel serverSocketChannel;
 
   private final SSLContext sslContext;
@@ -139,7 +145,11 @@ public class SSLServerSocketChannel extends ServerSocketChannel
     sslEngine.setEnabledProtocols(filterArray(sslEngine.getEnabledProtocols(), includedProtocols, excludedProtocols));
     sslEngine.setEnabledCipherSuites(filterArray(sslEngine.getEnabledCipherSuites(), includedCipherSuites, excludedCipherSuites));
 
-    return new SSLSocketChannel(channel, sslEngine, proxyDirector.getSSLThreadPool(), proxyDirector.getLogger());
+    boolean http2Offered = http2 && Alpn.offer(sslEngine, "h2", "http/1.1");
+
+    SSLSocketChannel sslSocketChannel = new SSLSocketChannel(channel, sslEngine, proxyDirector.getSSLThreadPool(), proxyDirector.getLogger());
+    sslSocketChannel.http2Offered = http2Offered;
+    return sslSocketChannel;
   }
 
   @Override
@@ -38,6 +38,11 @@ class SSLSocketChannel extends SocketChannel implements WrappedSocketChannel
   
   private final boolean logDebug;
 
+  /*
+   * Was HTTP/2 offered to the client through ALPN.
+   */
+  boolean http2Offered;
+
   /**
    *
    * @param socketChannel The real SocketChannel.
@@ -64,6 +69,22 @@ class SSLSocketChannel extends SocketChannel implements WrappedSocketChannel
     return socketChannel;
   }
 
+  /**
+   * @return The protocol the client picked through ALPN, null until the handshake is done.
+   */
+  String getApplicationProtocol()
+  {
+    return sslEngineBuffer.applicationProtocol();
+  }
+
+  /**
+   * @see SSLEngineBuffer#hasBufferedInput()
+   */
+  boolean hasBufferedInput()
+  {
+    return sslEngineBuffer.hasBufferedInput();
+  }
+
   @Override
   synchronized public int read(ByteBuffer applicationBuffer) throws IOException
   {
@@ -112,7 +133,7 @@ class SSLSocketChannel extends SocketChannel implements WrappedSocketChannel
   public long read(ByteBuffer[] byteBuffers, int offset, int length) throws IOException
   {
     long totalRead = 0;
-    for (int i = offset; i < length; i++)
+    for (int i = offset; i < (offset + length); i++)
     {
       ByteBuffer byteBuffer = byteBuffers[i];
       if (byteBuffer.hasRemaining())
@@ -143,7 +164,7 @@ class SSLSocketChannel extends SocketChannel implements WrappedSocketChannel
   public long write(ByteBuffer[] byteBuffers, int offset, int length) throws IOException
   {
     long totalWritten = 0;
-    for (int i = offset; i < length; i++)
+    for (int i = offset; i < (offset + length); i++)
     {
       ByteBuffer byteBuffer = byteBuffers[i];
       if (byteBuffer.hasRemaining())
@@ -16,9 +16,16 @@
 package org.baswell.httproxy;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 class SelectorDispatcher
 {
@@ -26,14 +33,27 @@ class SelectorDispatcher
 
   private final int numSelectorThreads;
 
-  private int selectorIndex;
+  private final SocketChannelPool socketChannelPool;
+
+  private final SelectorPlacement selectorPlacement;
+
+  private final AtomicLong dispatchCount = new AtomicLong();
 
   private List<SelectorLoop> selectorLoops;
 
+  /*
+   * Replaced (never modified) on start and stop so dispatch can read it without locking.
+   */
+  private volatile SelectorLoops dispatchLoops;
+
   SelectorDispatcher(NIOProxyDirector proxyDirector, int numSelectorThreads)
   {
     this.proxyDirector = proxyDirector;
     this.numSelectorThreads = numSelectorThreads;
+    socketChannelPool = new SocketChannelPool(proxyDirector);
+
+    SelectorPlacement selectorPlacement = proxyDirector.getSelectorPlacement();
+    this.selectorPlacement = (selectorPlacement == null) ? SelectorPlacement.ROUND_ROBIN : selectorPlacement;
   }
 
   synchronized boolean isStarted()
@@ -47,11 +67,21 @@ class SelectorDispatcher
     selectorLoops = new ArrayList<SelectorLoop>();
     for (int i = 0; i < numSelectorThreads; i++)
     {
-      SelectorLoop selectorLoop = new SelectorLoop(proxyDirector);
+      SelectorLoop selectorLoop = new SelectorLoop(proxyDirector, socketChannelPool, new SelectorLoad(i));
       selectorLoop.start();
 
       selectorLoops.add(selectorLoop);
     }
+    dispatchLoops = new SelectorLoops(selectorLoops);
+  }
+
+  /**
+   * @return The load of each selector thread (empty if not started).
+   */
+  List<SelectorLoad> getSelectorLoads()
+  {
+    SelectorLoops dispatchLoops = this.dispatchLoops;
+    return (dispatchLoops == null) ? Collections.<SelectorLoad>emptyList() : dispatchLoops.loads;
   }
 
   synchronized void stop()
@@ -68,16 +98,129 @@ class SelectorDispatcher
         {}
       }
       selectorLoops = null;
+      dispatchLoops = null;
+    }
+
+    socketChannelPool.closeIdle();
+  }
+
+  /**
+   * Binds to the given address and accepts on every selector thread. Each selector thread gets its own server channel bound
+   * with SO_REUSEPORT if the JVM and platform support it (Java 9+ on Linux and BSDs) so the kernel balances incoming
+   * connections between them. Otherwise one server channel is shared by all the selector threads.
+   *
+   * @return The server channels opened.
+   */
+  synchronized List<ServerSocketChannel> listen(SocketAddress bindAddress, int backlog) throws IOException
+  {
+    List<ServerSocketChannel> serverSocketChannels = new ArrayList<ServerSocketChannel>();
+    try
+    {
+      SocketOption<Boolean> reusePort = reusePortOption();
+      for (SelectorLoop selectorLoop : selectorLoops)
+      {
+        if (serverSocketChannels.isEmpty() || (reusePort != null))
+        {
+          ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+          serverSocketChannels.add(serverSocketChannel);
+
+          if ((reusePort != null) && !serverSocketChannel.supportedOptions().contains(reusePort))
+          {
+            reusePort = null;
+          }
+
+          if (reusePort != null)
+          {
+            serverSocketChannel.setOption(reusePort, true);
+          }
+
+          serverSocketChannel.bind(bindAddress, backlog);
+
+          /*
+           * An ephemeral port (0) gets resolved on the first bind. The rest have to bind to that same port.
+           */
+          bindAddress = serverSocketChannel.getLocalAddress();
+        }
+
+        selectorLoop.listen(serverSocketChannels.get(serverSocketChannels.size() - 1));
+      }
+
+      return serverSocketChannels;
+    }
+    catch (IOException e)
+    {
+      for (ServerSocketChannel serverSocketChannel : serverSocketChannels)
+      {
+        try
+        {
+          serverSocketChannel.close();
+        }
+        catch (IOException ie)
+        {}
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Wakes up every selector thread. A closed channel isn't released until its selector selects again.
+   */
+  synchronized void wakeup()
+  {
+    if (selectorLoops != null)
+    {
+      for (SelectorLoop selectorLoop : selectorLoops)
+      {
+        selectorLoop.selector.wakeup();
+      }
+    }
+  }
+
+  void dispatch(SocketChannel socketChannel) throws IOException
+  {
+    SelectorLoops dispatchLoops = this.dispatchLoops;
+    if (dispatchLoops == null)
+    {
+      throw new IOException("Selector threads are not running.");
     }
+
+    int index = selectorPlacement.place(dispatchLoops.loads, dispatchCount.getAndIncrement());
+    dispatchLoops.selectorLoops.get(index).add(socketChannel);
   }
 
-  synchronized void dispatch(SocketChannel socketChannel) throws IOException
+  /*
+   * StandardSocketOptions.SO_REUSEPORT was added in Java 9.
+   */
+  @SuppressWarnings("unchecked")
+  static SocketOption<Boolean> reusePortOption()
   {
-    ++selectorIndex;
-    if (selectorIndex < 0)
+    try
+    {
+      Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+      return (SocketOption<Boolean>)field.get(null);
+    }
+    catch (Exception e)
     {
-      selectorIndex = 0;
+      return null;
+    }
+  }
+
+  private static class SelectorLoops
+  {
+    final List<SelectorLoop> selectorLoops;
+
+    final List<SelectorLoad> loads;
+
+    SelectorLoops(List<SelectorLoop> selectorLoops)
+    {
+      this.selectorLoops = Collections.unmodifiableList(new ArrayList<SelectorLoop>(selectorLoops));
+
+      List<SelectorLoad> loads = new ArrayList<SelectorLoad>();
+      for (SelectorLoop selectorLoop : selectorLoops)
+      {
+        loads.add(selectorLoop.load);
+      }
+      this.loads = Collections.unmodifiableList(loads);
     }
-    selectorLoops.get(selectorIndex % selectorLoops.size()).add(socketChannel);
   }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * The attachment of the selection keys registered with a {@link SelectorLoop}. Called on the selector thread for the
+ * operations the key is ready for.
+ */
+interface SelectorHandler
+{
+  void onConnectReady(SelectionKey selectionKey);
+
+  void onWriteReady(SelectionKey selectionKey);
+
+  void onReadReady(SelectionKey selectionKey);
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live load counters of one selector thread. Used by {@link SelectorPlacement} to decide where new client connections go.
+ *
+ * @see ServerSocketChannelAcceptLoop#getSelectorLoads()
+ */
+public class SelectorLoad
+{
+  /**
+   * The index of the selector thread (0 to the number of selector threads - 1).
+   */
+  public final int index;
+
+  final AtomicInteger activeExchanges = new AtomicInteger();
+
+  final AtomicLong totalExchanges = new AtomicLong();
+
+  /*
+   * The average as of the last sample (System.nanoTime()).
+   */
+  private volatile long recentLatencyNanos;
+
+  private volatile long latencyRecordedAt = System.nanoTime();
+
+  SelectorLoad(int index)
+  {
+    this.index = index;
+  }
+
+  /**
+   * @return The number of client connections currently being serviced by this selector thread.
+   */
+  public int getActiveExchanges()
+  {
+    return activeExchanges.get();
+  }
+
+  /**
+   * @return The number of client connections this selector thread has serviced since it was started.
+   */
+  public long getTotalExchanges()
+  {
+    return totalExchanges.get();
+  }
+
+  /**
+   * @return A moving average of how long this selector thread takes to work through the events of one select, in
+   * microseconds. Connections placed on a selector thread wait this long (on average) for their events to be handled.
+   * It's halved for every 100 milliseconds the selector thread goes without events.
+   */
+  public long getRecentLatencyMicros()
+  {
+    return recentLatencyNanos(System.nanoTime()) / 1000;
+  }
+
+  /*
+   * A selector thread that's idle blocks in select and records nothing, so the average is halved for every
+   * LATENCY_HALF_LIFE_NANOS since the last sample. Otherwise a thread that went quiet after a busy spell would look slow
+   * for as long as it stays quiet.
+   */
+  long recentLatencyNanos(long now)
+  {
+    long halvings = (now - latencyRecordedAt) / LATENCY_HALF_LIFE_NANOS;
+    return (halvings >= 63) ? 0 : recentLatencyNanos >> halvings;
+  }
+
+  /*
+   * Only called from the selector thread. Weighs the newest sample at 1/8.
+   */
+  void recordLatency(long nanos)
+  {
+    long now = System.nanoTime();
+    long recentLatencyNanos = recentLatencyNanos(now);
+    this.recentLatencyNanos = recentLatencyNanos + ((nanos - recentLatencyNanos) >> 3);
+    latencyRecordedAt = now;
+  }
+
+  static final long LATENCY_HALF_LIFE_NANOS = 100000000l;
+
+  @Override
+  public String toString()
+  {
+    return "SelectorLoop-" + index + " active: " + getActiveExchanges() + " total: " + getTotalExchanges() + " recent latency: " + getRecentLatencyMicros() + "us";
+  }
+}
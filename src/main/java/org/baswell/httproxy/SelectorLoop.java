@@ -18,10 +18,14 @@ package org.baswell.httproxy;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class SelectorLoop implements Runnable
@@ -34,11 +38,41 @@ class SelectorLoop implements Runnable
 
   private volatile Thread selectorThread;
 
-  private List<SocketChannel> socketChannelQueue = new ArrayList<SocketChannel>();
+  private final MpscQueue<SocketChannel> socketChannelQueue = new MpscQueue<SocketChannel>();
 
-  SelectorLoop(NIOProxyDirector proxyDirector)
+  private final SocketChannelPool socketChannelPool;
+
+  private final MpscQueue<Runnable> tasks = new MpscQueue<Runnable>();
+
+  /*
+   * Set by the first thread to queue something since the selector thread last woke up so a burst of adds costs one
+   * selector wakeup instead of one each.
+   */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  /*
+   * Only touched by the selector thread.
+   */
+  private final List<ServerConnector> connectors = new ArrayList<ServerConnector>();
+
+  /*
+   * Exchanges waiting on a collapsed request or a revalidation. Only touched by the selector thread.
+   */
+  private final List<PipedExchangeChannel> waiters = new ArrayList<PipedExchangeChannel>();
+
+  /*
+   * The HTTP/2 connections the exchanges on this selector thread share, one per server. Only touched by the selector
+   * thread so the connections need no locking.
+   */
+  private final Map<ConnectionParameters, Http2Connection> http2Connections = new HashMap<ConnectionParameters, Http2Connection>();
+
+  final SelectorLoad load;
+
+  SelectorLoop(NIOProxyDirector proxyDirector, SocketChannelPool socketChannelPool, SelectorLoad load)
   {
     this.proxyDirector = proxyDirector;
+    this.socketChannelPool = socketChannelPool;
+    this.load = load;
     this.log = new WrappedLogger(proxyDirector.getLogger());
   }
 
@@ -49,10 +83,114 @@ class SelectorLoop implements Runnable
     selectorThread.start();
   }
 
+  /**
+   * Can be called from any thread.
+   */
   void add(SocketChannel socketChannel)
   {
-    socketChannelQueue.add(socketChannel);
-    selector.wakeup();
+    /*
+     * Counted now rather than once the selector thread gets to it, so a burst of connections isn't all placed on the
+     * same selector thread.
+     */
+    load.activeExchanges.incrementAndGet();
+    socketChannelQueue.offer(socketChannel);
+    wakeup();
+  }
+
+  /**
+   * Accepts client connections from the given (bound) server channel on this selector thread.
+   */
+  void listen(final ServerSocketChannel serverSocketChannel) throws IOException
+  {
+    serverSocketChannel.configureBlocking(false);
+    execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+          log.error("Unable to register server socket channel.", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs the given task on the selector thread after the current select.
+   */
+  void execute(Runnable task)
+  {
+    tasks.offer(task);
+    wakeup();
+  }
+
+  private void wakeup()
+  {
+    if (wakeupPending.compareAndSet(false, true))
+    {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Must be called from the selector thread. {@link ServerConnector#onServerConnectTimeout()} is called if the connector
+   * is still connecting at its deadline.
+   */
+  void watchConnect(ServerConnector connector)
+  {
+    connectors.add(connector);
+  }
+
+  /**
+   * Must be called from the selector thread. {@link PipedExchangeChannel#onWaitTimeout()} is called if the exchange is
+   * still waiting on a collapsed request or a revalidation at its deadline.
+   */
+  void watchWaiting(PipedExchangeChannel exchange)
+  {
+    waiters.add(exchange);
+
+    /*
+     * So the next select is timed for the deadline.
+     */
+    wakeup();
+  }
+
+  /**
+   * Must be called from the selector thread.
+   *
+   * @return The HTTP/2 connection to the given server new streams should be opened on. A new connection is made if there
+   * isn't one or the current one won't take more streams.
+   * @throws IOException If the server already has the max number of connections open.
+   */
+  Http2Connection http2Connection(ConnectionParameters connectionParameters) throws IOException
+  {
+    Http2Connection connection = http2Connections.get(connectionParameters);
+    if ((connection == null) || !connection.isOpenForStreams())
+    {
+      if (connection != null)
+      {
+        connection.closeIfIdle();
+      }
+      connection = new Http2Connection(this, connectionParameters, proxyDirector, socketChannelPool);
+      http2Connections.put(connectionParameters, connection);
+    }
+    return connection;
+  }
+
+  /**
+   * Called from the selector thread when the given connection is closed.
+   */
+  void onHttp2ConnectionClosed(Http2Connection connection)
+  {
+    if (http2Connections.get(connection.connectionParameters) == connection)
+    {
+      http2Connections.remove(connection.connectionParameters);
+    }
   }
 
   void stop() throws IOException
@@ -67,25 +205,57 @@ class SelectorLoop implements Runnable
   @Override
   public void run()
   {
+    boolean moreQueued = false;
     while (Thread.currentThread() == selectorThread)
     {
       try
       {
-        int numberSelected = selector.select();
+        long selectTimeout = checkTimeouts();
+        int numberSelected;
+        if (moreQueued)
+        {
+          numberSelected = selector.selectNow();
+        }
+        else
+        {
+          numberSelected = (selectTimeout > 0) ? selector.select(selectTimeout) : selector.select();
+        }
+
+        /*
+         * Cleared before draining the queues so anything queued from here on wakes up the next select.
+         */
+        wakeupPending.set(false);
+        long selectedAt = System.nanoTime();
+
         if (numberSelected > 0)
         {
           Iterator<SelectionKey> selectionKeys = selector.selectedKeys().iterator();
           while (selectionKeys.hasNext())
           {
             SelectionKey selectionKey = selectionKeys.next();
-            PipedExchangeChannel connection = (PipedExchangeChannel)selectionKey.attachment();
+            if (selectionKey.isValid() && selectionKey.isAcceptable())
+            {
+              accept((ServerSocketChannel)selectionKey.channel());
+              selectionKeys.remove();
+              continue;
+            }
 
-            if (selectionKey.isValid() && selectionKey.isWritable() && ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0))
+            SelectorHandler connection = (SelectorHandler)selectionKey.attachment();
+
+            if ((connection != null) && selectionKey.isValid() && selectionKey.isConnectable())
+            {
+              connection.onConnectReady(selectionKey);
+            }
+
+            if ((connection != null) && selectionKey.isValid() && selectionKey.isWritable() && ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0))
             {
               connection.onWriteReady(selectionKey);
             }
 
-            if (selectionKey.isValid() && selectionKey.isReadable())
+            /*
+             * The write may have given a server channel back to the pool (which detaches it).
+             */
+            if ((connection != null) && (selectionKey.attachment() == connection) && selectionKey.isValid() && selectionKey.isReadable())
             {
               connection.onReadReady(selectionKey);
             }
@@ -94,17 +264,43 @@ class SelectorLoop implements Runnable
           }
         }
 
-        while (!socketChannelQueue.isEmpty())
+        Runnable task;
+        for (int i = 0; (i < MAX_DRAIN) && ((task = tasks.poll()) != null); i++)
         {
           try
           {
-            new PipedExchangeChannel(this, socketChannelQueue.remove(0), proxyDirector);
+            task.run();
           }
           catch (Exception e)
           {
+            log.error("Selector task failed.", e);
+          }
+        }
+
+        SocketChannel socketChannel;
+        for (int i = 0; (i < MAX_DRAIN) && ((socketChannel = socketChannelQueue.poll()) != null); i++)
+        {
+          try
+          {
+            new PipedExchangeChannel(this, socketChannel, proxyDirector, socketChannelPool);
+          }
+          catch (Exception e)
+          {
+            load.activeExchanges.decrementAndGet();
             log.error("Unable to create proxied exchange channel.", e);
           }
         }
+
+        /*
+         * During an accept storm only a batch is taken each time around so the channels already registered keep getting
+         * serviced. The rest are picked up after a selectNow.
+         */
+        moreQueued = !tasks.isEmpty() || !socketChannelQueue.isEmpty();
+
+        if (numberSelected > 0)
+        {
+          load.recordLatency(System.nanoTime() - selectedAt);
+        }
       }
       catch (IOException e)
       {
@@ -113,5 +309,97 @@ class SelectorLoop implements Runnable
     }
   }
 
+  /*
+   * Client channels accepted here are registered with this selector directly, no handoff to another thread. When the
+   * server channel is shared with other selector threads they'll race for the same connections and the losers get null.
+   */
+  private void accept(ServerSocketChannel serverSocketChannel)
+  {
+    for (int i = 0; i < MAX_DRAIN; i++)
+    {
+      SocketChannel socketChannel;
+      try
+      {
+        socketChannel = serverSocketChannel.accept();
+      }
+      catch (IOException e)
+      {
+        log.error("Unable to accept client connection.", e);
+        return;
+      }
+
+      if (socketChannel == null)
+      {
+        return;
+      }
+
+      load.activeExchanges.incrementAndGet();
+      try
+      {
+        new PipedExchangeChannel(this, socketChannel, proxyDirector, socketChannelPool);
+      }
+      catch (Exception e)
+      {
+        load.activeExchanges.decrementAndGet();
+        log.error("Unable to create proxied exchange channel.", e);
+      }
+    }
+  }
+
+  /*
+   * Times out the connectors that are past their connect deadline and the exchanges past their deadline for waiting on a
+   * collapsed request or a revalidation.
+   *
+   * @return Milliseconds until the next deadline or 0 if nothing is connecting or waiting.
+   */
+  private long checkTimeouts()
+  {
+    long selectTimeout = 0;
+    long now = System.currentTimeMillis();
+    for (int i = connectors.size() - 1; i >= 0; i--)
+    {
+      ServerConnector connector = connectors.get(i);
+      if (!connector.isConnecting())
+      {
+        connectors.remove(i);
+      }
+      else if (connector.getConnectDeadline() > 0)
+      {
+        long remaining = connector.getConnectDeadline() - now;
+        if (remaining <= 0)
+        {
+          connectors.remove(i);
+          connector.onServerConnectTimeout();
+        }
+        else if ((selectTimeout == 0) || (remaining < selectTimeout))
+        {
+          selectTimeout = remaining;
+        }
+      }
+    }
+
+    for (int i = waiters.size() - 1; i >= 0; i--)
+    {
+      PipedExchangeChannel exchange = waiters.get(i);
+      long deadline = exchange.getWaitDeadline();
+      if (deadline == 0)
+      {
+        waiters.remove(i);
+      }
+      else if (deadline <= now)
+      {
+        waiters.remove(i);
+        exchange.onWaitTimeout();
+      }
+      else if ((selectTimeout == 0) || (deadline - now < selectTimeout))
+      {
+        selectTimeout = deadline - now;
+      }
+    }
+    return selectTimeout;
+  }
+
+  private static final int MAX_DRAIN = 256;
+
   private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.List;
+
+/**
+ * Decides which selector thread services a newly accepted client connection.
+ *
+ * @see NIOProxyDirector#getSelectorPlacement()
+ */
+public interface SelectorPlacement
+{
+  /**
+   * Spread connections evenly in turn regardless of load.
+   */
+  SelectorPlacement ROUND_ROBIN = new SelectorPlacement()
+  {
+    @Override
+    public int place(List<SelectorLoad> loads, long dispatchCount)
+    {
+      return (int)(dispatchCount % loads.size());
+    }
+  };
+
+  /**
+   * The selector thread with the fewest active client connections. Best when connections are long lived (streaming,
+   * long polling) since round robin lets them pile up on a few threads.
+   */
+  SelectorPlacement LEAST_CONNECTIONS = new SelectorPlacement()
+  {
+    @Override
+    public int place(List<SelectorLoad> loads, long dispatchCount)
+    {
+      int size = loads.size();
+      int start = (int)(dispatchCount % size);
+      int best = start;
+      for (int i = 1; i < size; i++)
+      {
+        int index = (start + i) % size;
+        if (loads.get(index).getActiveExchanges() < loads.get(best).getActiveExchanges())
+        {
+          best = index;
+        }
+      }
+      return best;
+    }
+  };
+
+  /**
+   * The selector thread that has been getting through its events the fastest recently. Best when some connections cost a
+   * lot more than others to service (large bodies, SSL).
+   */
+  SelectorPlacement LEAST_RECENT_LATENCY = new SelectorPlacement()
+  {
+    @Override
+    public int place(List<SelectorLoad> loads, long dispatchCount)
+    {
+      long now = System.nanoTime();
+      int size = loads.size();
+      int start = (int)(dispatchCount % size);
+      int best = start;
+      long bestLatency = loads.get(start).recentLatencyNanos(now);
+      for (int i = 1; i < size; i++)
+      {
+        int index = (start + i) % size;
+        long latency = loads.get(index).recentLatencyNanos(now);
+        if (latency < bestLatency)
+        {
+          best = index;
+          bestLatency = latency;
+        }
+      }
+      return best;
+    }
+  };
+
+  /**
+   * Called from the accept thread (concurrently if there's more than one) so implementations must be thread safe.
+   *
+   * @param loads The current load of each selector thread.
+   * @param dispatchCount The number of connections placed before this one. Ties should be broken with this so
+   *                      connections don't all land on the first selector thread.
+   * @return The index in loads of the selector thread to service the connection.
+   */
+  int place(List<SelectorLoad> loads, long dispatchCount);
+}
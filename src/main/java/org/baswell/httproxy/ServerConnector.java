@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Opens a connection to a server from a selector thread. The server's address is looked up with
+ * {@link SocketChannelPool#resolve(ConnectionParameters, SelectorLoop, ServerConnector)} and the connect is timed out
+ * by the {@link SelectorLoop} (see {@link SelectorLoop#watchConnect(ServerConnector)}). All methods are called on the
+ * selector thread.
+ */
+interface ServerConnector
+{
+  void onServerAddressResolved(InetSocketAddress address);
+
+  void onServerConnectFailed(IOException e);
+
+  void onServerConnectTimeout();
+
+  boolean isConnecting();
+
+  /**
+   * @return Counts the connects started, so an address looked up for an earlier one isn't used.
+   */
+  int getConnectAttempt();
+
+  /**
+   * @return When the connect in progress times out (milliseconds since the epoch) or 0 if it never does.
+   */
+  long getConnectDeadline();
+}
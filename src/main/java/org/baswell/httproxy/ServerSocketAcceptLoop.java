@@ -33,10 +33,33 @@ public class ServerSocketAcceptLoop
 
   private ServerSocket serverSocket;
 
+  /**
+   * @return True if this JVM has virtual threads (Java 21+).
+   * @see #ServerSocketAcceptLoop(IOProxyDirector, boolean)
+   */
+  public static boolean supportsVirtualThreads()
+  {
+    return VirtualThreads.isSupported();
+  }
+
   public ServerSocketAcceptLoop(IOProxyDirector proxyDirector)
+  {
+    this(proxyDirector, false);
+  }
+
+  /**
+   * Each client connection uses two threads for its lifetime (one reading requests, one reading responses). With
+   * {@code virtualThreads} these are virtual threads, one new pair per connection, and {@link IOProxyDirector#getIOThreadPool()}
+   * isn't used. This lets idle keep-alive clients cost a few kilobytes of heap instead of two platform threads each.
+   *
+   * @param proxyDirector The director.
+   * @param virtualThreads Run exchanges on virtual threads instead of the director's IO thread pool.
+   * @throws UnsupportedOperationException If {@code virtualThreads} is true and this JVM doesn't have virtual threads.
+   */
+  public ServerSocketAcceptLoop(IOProxyDirector proxyDirector, boolean virtualThreads) throws UnsupportedOperationException
   {
     this.proxyDirector = proxyDirector;
-    this.exchangeStreamDispatcher = new ExchangeStreamDispatcher(proxyDirector);
+    this.exchangeStreamDispatcher = new ExchangeStreamDispatcher(proxyDirector, virtualThreads);
   }
 
   /**
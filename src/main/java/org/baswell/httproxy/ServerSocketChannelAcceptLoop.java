@@ -17,6 +17,7 @@ package org.baswell.httproxy;
 
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.channels.NotYetBoundException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -35,6 +36,8 @@ public class ServerSocketChannelAcceptLoop
 
   private ServerSocketChannel serverSocketChannel;
 
+  private List<ServerSocketChannel> listeningChannels;
+
   /**
    * Uses {@code Runtime.getRuntime().availableProcessors()} for the number of selector threads (in most circumstances
    * this will be the best option).
@@ -101,6 +104,70 @@ public class ServerSocketChannelAcceptLoop
     }
   }
 
+  /**
+   * <p>
+   * Accepts incoming non-SSL requests on every selector thread instead of a single accept thread. Each selector thread binds
+   * its own channel to {@code bindAddress} with SO_REUSEPORT (Java 9+ on platforms that support it) so the kernel spreads
+   * incoming connections across them. Without SO_REUSEPORT a single channel is bound and every selector thread accepts from
+   * it when it becomes acceptable. Either way accepted channels are serviced by the selector thread that accepted them.
+   * </p>
+   *
+   * <p>
+   * This method blocks the calling thread until {@link #stop()} is called by another thread.
+   * </p>
+   *
+   * @param bindAddress The address to bind to.
+   * @param backlog The maximum number of pending connections (per bound channel).
+   * @throws IOException If the address could not be bound.
+   */
+  public void start(SocketAddress bindAddress, int backlog) throws IOException
+  {
+    try
+    {
+      started = true;
+
+      if (!selectorDispatcher.isStarted())
+      {
+        selectorDispatcher.start();
+      }
+
+      /*
+       * stop() clears started before it takes this lock, so if it ran before the channels are bound it's seen here and
+       * nothing is bound that it would miss closing.
+       */
+      synchronized (this)
+      {
+        if (!started)
+        {
+          return;
+        }
+
+        listeningChannels = selectorDispatcher.listen(bindAddress, backlog);
+        while (started)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {}
+        }
+      }
+    }
+    finally
+    {
+      started = false;
+    }
+  }
+
+  /**
+   * @return The current load of each selector thread (empty if the selector threads aren't running).
+   */
+  public List<SelectorLoad> getSelectorLoads()
+  {
+    return selectorDispatcher.getSelectorLoads();
+  }
+
   /**
    * Stops the accept loop. The thread blocked on {@link #start(java.nio.channels.ServerSocketChannel)} will be released. No new
    * incoming connections will be made but sockets that have already been accepted will gracefully finish up.
@@ -117,5 +184,24 @@ public class ServerSocketChannelAcceptLoop
       catch (IOException e)
       {}
     }
+
+    synchronized (this)
+    {
+      if (listeningChannels != null)
+      {
+        for (ServerSocketChannel listeningChannel : listeningChannels)
+        {
+          try
+          {
+            listeningChannel.close();
+          }
+          catch (IOException e)
+          {}
+        }
+        listeningChannels = null;
+        selectorDispatcher.wakeup();
+      }
+      notifyAll();
+    }
   }
 }
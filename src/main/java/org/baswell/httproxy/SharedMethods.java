@@ -12,4 +12,25 @@ class SharedMethods
     return !nullEmpty(charSequence);
   }
 
+  /**
+   * @return False if the connection closes after the given message (<i>Connection: close</i> or HTTP/1.0 without
+   * <i>Connection: keep-alive</i>).
+   */
+  static boolean keepsConnectionOpen(HttpMessage message, String version)
+  {
+    String connection = message.getHeaderValue("Connection");
+    if ("close".equalsIgnoreCase(connection))
+    {
+      return false;
+    }
+    else if ("HTTP/1.0".equalsIgnoreCase(version))
+    {
+      return "keep-alive".equalsIgnoreCase(connection);
+    }
+    else
+    {
+      return true;
+    }
+  }
+
 }
@@ -31,6 +31,21 @@ public class SimpleNIOProxyDirector extends SimpleProxyDirector implements NIOPr
    */
   public int maxWriteAttempts = 5;
 
+  /**
+   * @see #getWriteQueueHighWaterMark()
+   */
+  public int writeQueueHighWaterMark = 256 * 1024;
+
+  /**
+   * @see #getMaxPipelinedRequests()
+   */
+  public int maxPipelinedRequests = 16;
+
+  /**
+   * @see #getSelectorPlacement()
+   */
+  public SelectorPlacement selectorPlacement = SelectorPlacement.ROUND_ROBIN;
+
   private final ExecutorService sslThreadPool;
 
   public SimpleNIOProxyDirector(String proxiedHost, int proxiedPort)
@@ -51,9 +66,27 @@ public class SimpleNIOProxyDirector extends SimpleProxyDirector implements NIOPr
     return maxWriteAttempts;
   }
 
+  @Override
+  public int getWriteQueueHighWaterMark()
+  {
+    return writeQueueHighWaterMark;
+  }
+
+  @Override
+  public int getMaxPipelinedRequests()
+  {
+    return maxPipelinedRequests;
+  }
+
   @Override
   public ExecutorService getSSLThreadPool()
   {
     return sslThreadPool;
   }
+
+  @Override
+  public SelectorPlacement getSelectorPlacement()
+  {
+    return selectorPlacement;
+  }
 }
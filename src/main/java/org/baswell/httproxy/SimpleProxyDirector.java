@@ -29,6 +29,45 @@ abstract public class SimpleProxyDirector implements ProxyDirector
    */
   public int bufferSize = 16916;
 
+  /**
+   * @see #getMaxConnectionsPerServer()
+   */
+  public int maxConnectionsPerServer = 0;
+
+  /**
+   * @see #getServerConnectionIdleTimeoutSeconds()
+   */
+  public int serverConnectionIdleTimeoutSeconds = 30;
+
+  /**
+   * @see #getConnectTimeoutMillis()
+   */
+  public int connectTimeoutMillis = 10000;
+
+  /**
+   * Open CONNECT tunnels to whatever host and port clients ask for. Off by default.
+   *
+   * @see #onConnectRequest(HttpRequest)
+   */
+  public boolean allowConnect = false;
+
+  /**
+   * No caching by default.
+   *
+   * @see #getResponseCache()
+   */
+  public ResponseCache responseCache;
+
+  /**
+   * @see #getCollapsedRequestTimeoutMillis()
+   */
+  public int collapsedRequestTimeoutMillis = 5000;
+
+  /**
+   * @see #getPurgePath()
+   */
+  public String purgePath;
+
   public int logLevel =  SimpleProxyLogger.INFO_LEVEL;
 
   protected final String proxiedHost;
@@ -59,6 +98,42 @@ abstract public class SimpleProxyDirector implements ProxyDirector
     return bufferSize;
   }
 
+  @Override
+  public int getMaxConnectionsPerServer()
+  {
+    return maxConnectionsPerServer;
+  }
+
+  @Override
+  public int getServerConnectionIdleTimeoutSeconds()
+  {
+    return serverConnectionIdleTimeoutSeconds;
+  }
+
+  @Override
+  public int getConnectTimeoutMillis()
+  {
+    return connectTimeoutMillis;
+  }
+
+  @Override
+  public ResponseCache getResponseCache()
+  {
+    return responseCache;
+  }
+
+  @Override
+  public int getCollapsedRequestTimeoutMillis()
+  {
+    return collapsedRequestTimeoutMillis;
+  }
+
+  @Override
+  public String getPurgePath()
+  {
+    return purgePath;
+  }
+
   @Override
   public ConnectionParameters onRequestStart(HttpRequest httpRequest) throws EndProxiedRequestException
   {
@@ -66,6 +141,29 @@ abstract public class SimpleProxyDirector implements ProxyDirector
     return connectionParameters;
   }
 
+  @Override
+  public ConnectionParameters onConnectRequest(HttpRequest httpRequest) throws EndProxiedRequestException
+  {
+    System.out.println("--> " + httpRequest.getStatusLine());
+    if (!allowConnect)
+    {
+      return null;
+    }
+
+    ConnectionParameters tunnelParameters = ConnectionParameters.forConnect(httpRequest);
+    if (tunnelParameters == null)
+    {
+      throw EndProxiedRequestException.BAD_REQUEST;
+    }
+    return tunnelParameters;
+  }
+
+  @Override
+  public void onTunnelClosed(HttpRequest httpRequest, ConnectionParameters connectionParameters, long bytesFromClient, long bytesFromServer)
+  {
+    System.out.println(" <-> " + httpRequest.getStatusLine() + " " + bytesFromClient + " bytes sent, " + bytesFromServer + " bytes received");
+  }
+
   @Override
   public void onConnectionFailed(HttpRequest httpRequest, ConnectionParameters connectionParameters, IOException e)
   {
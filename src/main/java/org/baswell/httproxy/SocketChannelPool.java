@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SocketChannelPool extends ConnectionPool<SocketChannel>
+{
+  private final ExecutorService executorService;
+
+  private final ProxyLogger logger;
+
+  private final ThreadPoolExecutor resolverThreadPool;
+
+  SocketChannelPool(NIOProxyDirector proxyDirector)
+  {
+    super(proxyDirector);
+    this.executorService = proxyDirector.getSSLThreadPool();
+    this.logger = new WrappedLogger(proxyDirector.getLogger());
+
+    resolverThreadPool = new ThreadPoolExecutor(MAX_RESOLVER_THREADS, MAX_RESOLVER_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_RESOLVES), new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "AddressResolver-" + RESOLVER_THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    resolverThreadPool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Looks up the server's address on a resolver thread (DNS lookups block) and hands the result back to the connector on
+   * its selector thread. Must be called from the selector thread. The result is dropped if the connector has started
+   * another connect since (see {@link ServerConnector#getConnectAttempt()}). With too many lookups waiting the connect
+   * fails right away.
+   */
+  void resolve(final ConnectionParameters connectionParameters, final SelectorLoop selectorLoop, final ServerConnector serverConnector)
+  {
+    final int connectAttempt = serverConnector.getConnectAttempt();
+    try
+    {
+      resolverThreadPool.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          InetSocketAddress address = null;
+          IOException exception = null;
+          try
+          {
+            address = new InetSocketAddress(InetAddress.getByName(connectionParameters.ipOrHost), connectionParameters.port);
+          }
+          catch (IOException e)
+          {
+            exception = e;
+          }
+          onResolved(selectorLoop, serverConnector, connectAttempt, address, exception);
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      onResolved(selectorLoop, serverConnector, connectAttempt, null, new IOException("Too many server addresses waiting to be looked up."));
+    }
+  }
+
+  private static void onResolved(SelectorLoop selectorLoop, final ServerConnector serverConnector, final int connectAttempt, final InetSocketAddress address, final IOException e)
+  {
+    selectorLoop.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (serverConnector.getConnectAttempt() != connectAttempt)
+        {
+          return;
+        }
+        else if (address != null)
+        {
+          serverConnector.onServerAddressResolved(address);
+        }
+        else
+        {
+          serverConnector.onServerConnectFailed(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param socketChannel A channel that has finished connecting to the server.
+   * @return The channel to use for the exchange (wrapped for SSL if needed).
+   */
+  SocketChannel onConnected(ConnectionParameters connectionParameters, SocketChannel socketChannel)
+  {
+    if (connectionParameters.ssl)
+    {
+      InetSocketAddress address = (InetSocketAddress)socketChannel.socket().getRemoteSocketAddress();
+      SSLEngine sslEngine = connectionParameters.sslContext.createSSLEngine(connectionParameters.ipOrHost, address.getPort());
+      sslEngine.setUseClientMode(true);
+      socketChannel = new SSLSocketChannel(socketChannel, sslEngine, executorService, logger);
+    }
+
+    return socketChannel;
+  }
+
+  /*
+   * Nothing should be readable on an idle connection. A read of -1 means the server closed it and anything else that
+   * shows up (a TLS close notify for example) means it's not usable either. SSL channels are checked on the underlying
+   * channel so nothing gets unwrapped.
+   */
+  @Override
+  boolean isHealthy(SocketChannel socketChannel)
+  {
+    SocketChannel realSocketChannel = (socketChannel instanceof WrappedSocketChannel) ? ((WrappedSocketChannel)socketChannel).getWrappedSocketChannel() : socketChannel;
+    if (!socketChannel.isOpen() || !realSocketChannel.isConnected())
+    {
+      return false;
+    }
+
+    try
+    {
+      return realSocketChannel.read(ByteBuffer.allocate(1)) == 0;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  @Override
+  void closeQuitely(SocketChannel socketChannel)
+  {
+    try
+    {
+      if (socketChannel.isOpen())
+      {
+        socketChannel.close();
+      }
+    }
+    catch (IOException e)
+    {}
+  }
+
+  private static final int MAX_RESOLVER_THREADS = 8;
+
+  private static final int MAX_QUEUED_RESOLVES = 4096;
+
+  private static final AtomicInteger RESOLVER_THREAD_COUNTER = new AtomicInteger(0);
+}
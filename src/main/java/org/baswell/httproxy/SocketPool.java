@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+class SocketPool extends ConnectionPool<Socket>
+{
+  private final int connectTimeoutMillis;
+
+  /*
+   * The plain socket under each SSL socket, for the health check. Weak so sockets closed outside of the pool aren't held.
+   */
+  private final Map<Socket, Socket> plainSockets = Collections.synchronizedMap(new WeakHashMap<Socket, Socket>());
+
+  SocketPool(ProxyDirector proxyDirector)
+  {
+    super(proxyDirector);
+    connectTimeoutMillis = proxyDirector.getConnectTimeoutMillis();
+  }
+
+  /**
+   * @return An idle connection to the given server or a new one if none are idle.
+   * @throws IOException If the connection could not be made or the server already has the max number of connections open.
+   */
+  Socket checkout(ConnectionParameters connectionParameters) throws IOException
+  {
+    Socket socket = checkoutIdle(connectionParameters);
+    return (socket == null) ? checkoutNew(connectionParameters) : socket;
+  }
+
+  /**
+   * @return A new connection to the given server, never an idle one (for a tunnel).
+   * @throws IOException If the connection could not be made or the server already has the max number of connections open.
+   */
+  Socket checkoutNew(ConnectionParameters connectionParameters) throws IOException
+  {
+    reserve(connectionParameters);
+    try
+    {
+      return connect(connectionParameters);
+    }
+    catch (IOException e)
+    {
+      cancelReservation(connectionParameters);
+      throw e;
+    }
+  }
+
+  /*
+   * Sockets are made from channels (still blocking) so they can be polled by isHealthy.
+   */
+  Socket connect(ConnectionParameters connectionParameters) throws IOException
+  {
+    Socket socket = SocketChannel.open().socket();
+    try
+    {
+      socket.connect(new InetSocketAddress(connectionParameters.ipOrHost, connectionParameters.port), connectTimeoutMillis);
+      if (connectionParameters.ssl)
+      {
+        Socket sslSocket = connectionParameters.sslContext.getSocketFactory().createSocket(socket, connectionParameters.ipOrHost, connectionParameters.port, true);
+        plainSockets.put(sslSocket, socket);
+        return sslSocket;
+      }
+      return socket;
+    }
+    catch (IOException e)
+    {
+      closeQuitely(socket);
+      throw e;
+    }
+  }
+
+  /*
+   * Nothing should be readable on an idle connection. Its channel is switched to non-blocking for a read so this never
+   * waits: -1 means the server closed it and anything else that shows up (a TLS close notify for example) means it's not
+   * usable either. SSL sockets are read on the plain socket under them so nothing gets unwrapped.
+   */
+  @Override
+  boolean isHealthy(Socket socket)
+  {
+    if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown())
+    {
+      return false;
+    }
+
+    try
+    {
+      if (socket.getInputStream().available() > 0)
+      {
+        return false;
+      }
+
+      Socket plainSocket = plainSockets.get(socket);
+      SocketChannel socketChannel = ((plainSocket == null) ? socket : plainSocket).getChannel();
+      if (socketChannel == null)
+      {
+        return true;
+      }
+
+      synchronized (socketChannel.blockingLock())
+      {
+        socketChannel.configureBlocking(false);
+        try
+        {
+          return socketChannel.read(ByteBuffer.allocate(1)) == 0;
+        }
+        finally
+        {
+          socketChannel.configureBlocking(true);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  @Override
+  void closeQuitely(Socket socket)
+  {
+    try
+    {
+      if (!socket.isClosed())
+      {
+        socket.close();
+      }
+    }
+    catch (IOException e)
+    {}
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads (Java 21+) looked up by reflection so the library still builds and runs on older JVMs.
+ */
+class VirtualThreads
+{
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newVirtualThreadPerTaskExecutorMethod();
+
+  static boolean isSupported()
+  {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * @return An executor that starts a new virtual thread for each task.
+   * @throws UnsupportedOperationException If this JVM doesn't have virtual threads.
+   */
+  static ExecutorService newThreadPerTaskExecutor() throws UnsupportedOperationException
+  {
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null)
+    {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later (running " + System.getProperty("java.version") + ").");
+    }
+
+    try
+    {
+      return (ExecutorService)NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+    }
+    catch (Exception e)
+    {
+      throw new UnsupportedOperationException("Unable to create virtual thread executor.", e);
+    }
+  }
+
+  private static Method newVirtualThreadPerTaskExecutorMethod()
+  {
+    try
+    {
+      return Class.forName("java.util.concurrent.Executors").getMethod("newVirtualThreadPerTaskExecutor");
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+}
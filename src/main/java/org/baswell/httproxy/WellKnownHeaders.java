@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared String instances for the header names seen on nearly every message. Parsed header names that match one of these
+ * byte for byte reuse the shared instance instead of allocating a new String.
+ */
+class WellKnownHeaders
+{
+  static final String[] NAMES = {"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+      "Access-Control-Allow-Origin", "Age", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+      "Content-Encoding", "Content-Language", "Content-Length", "Content-Range", "Content-Type", "Cookie", "Date", "DNT",
+      "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+      "Keep-Alive", "Last-Modified", "Location", "Origin", "Pragma", "Proxy-Connection", "Range", "Referer", "Server",
+      "Set-Cookie", "Strict-Transport-Security", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests",
+      "User-Agent", "Vary", "Via", "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto",
+      "X-Powered-By", "X-Requested-With"};
+
+  private static final Map<String, String> BY_LOWERCASE = new HashMap<String, String>();
+
+  private static final int TABLE_SIZE = 512;
+
+  private static final String[] TABLE = new String[TABLE_SIZE];
+
+  /*
+   * The caseInsensitiveHash of each name in TABLE.
+   */
+  private static final int[] CASE_INSENSITIVE_HASHES = new int[TABLE_SIZE];
+
+  static
+  {
+    for (String name : NAMES)
+    {
+      add(name);
+      add(name.toLowerCase());
+      BY_LOWERCASE.put(name.toLowerCase(), name);
+    }
+  }
+
+  /**
+   * @return The shared name instance in its usual case if the given lowercase name (as header names are sent over HTTP/2)
+   * is well known, otherwise the given name.
+   */
+  static String forLowercase(String name)
+  {
+    String wellKnown = BY_LOWERCASE.get(name);
+    return (wellKnown == null) ? name : wellKnown;
+  }
+
+  /**
+   * @return The hash of the lowercase form of the given name. Precomputed for the well known names (the shared instances
+   * and the header name literals used throughout the proxy). 0 for null.
+   */
+  static int caseInsensitiveHash(String name)
+  {
+    if (name == null)
+    {
+      return 0;
+    }
+
+    for (int index = name.hashCode() & (TABLE_SIZE - 1); TABLE[index] != null; index = (index + 1) & (TABLE_SIZE - 1))
+    {
+      if (TABLE[index] == name)
+      {
+        return CASE_INSENSITIVE_HASHES[index];
+      }
+    }
+
+    return computeCaseInsensitiveHash(name);
+  }
+
+  private static int computeCaseInsensitiveHash(String name)
+  {
+    int hash = 0;
+    for (int i = 0; i < name.length(); i++)
+    {
+      char c = name.charAt(i);
+      if ((c >= 'A') && (c <= 'Z'))
+      {
+        c += 'a' - 'A';
+      }
+      else if (c >= 128)
+      {
+        c = Character.toLowerCase(Character.toUpperCase(c));
+      }
+      hash = 31 * hash + c;
+    }
+    return hash;
+  }
+
+  /**
+   * @return The shared name instance if {@code bytes[start, end)} is a well known header name (exact case), otherwise
+   * a new String of those bytes.
+   */
+  static String name(byte[] bytes, int start, int end)
+  {
+    int hash = 0;
+    for (int i = start; i < end; i++)
+    {
+      hash = 31 * hash + (bytes[i] & 0xff);
+    }
+
+    int length = end - start;
+    for (int index = hash & (TABLE_SIZE - 1); TABLE[index] != null; index = (index + 1) & (TABLE_SIZE - 1))
+    {
+      String name = TABLE[index];
+      if ((name.hashCode() == hash) && (name.length() == length) && matches(name, bytes, start))
+      {
+        return name;
+      }
+    }
+
+    return new String(bytes, start, length, LineReader.ISO_8859_1);
+  }
+
+  private static boolean matches(String name, byte[] bytes, int start)
+  {
+    for (int i = 0; i < name.length(); i++)
+    {
+      if (name.charAt(i) != (bytes[start + i] & 0xff))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void add(String name)
+  {
+    int index = name.hashCode() & (TABLE_SIZE - 1);
+    while (TABLE[index] != null)
+    {
+      if (TABLE[index].equals(name))
+      {
+        return;
+      }
+      index = (index + 1) & (TABLE_SIZE - 1);
+    }
+    TABLE[index] = name;
+    CASE_INSENSITIVE_HASHES[index] = computeCaseInsensitiveHash(name);
+  }
+}
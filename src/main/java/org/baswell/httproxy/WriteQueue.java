@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.httproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Bytes waiting to be written to a channel that could not take them all. Wrapped byte arrays (serialized headers) are
+ * queued as is and bytes copied out of a read buffer go into buffers borrowed from a {@link ByteBufferPool}. The queue is
+ * drained with gathering writes and the pooled buffers are given back as soon as they are written out.
+ */
+class WriteQueue
+{
+  /**
+   * When this many bytes are queued the queue is backed up and reading from the other side of the exchange should stop.
+   */
+  int highWaterMark = Integer.MAX_VALUE;
+
+  private final ByteBufferPool pool;
+
+  private ByteBuffer[] buffers = new ByteBuffer[8];
+
+  private boolean[] pooled = new boolean[8];
+
+  private int head;
+
+  private int tail;
+
+  private long queued;
+
+  private boolean backedUp;
+
+  WriteQueue(ByteBufferPool pool)
+  {
+    this.pool = pool;
+  }
+
+  boolean isEmpty()
+  {
+    return queued == 0;
+  }
+
+  long size()
+  {
+    return queued;
+  }
+
+  /**
+   * @return True once {@link #highWaterMark} bytes are queued. Stays true until the queue has been written down to half
+   * the high water mark.
+   */
+  boolean isBackedUp()
+  {
+    return backedUp;
+  }
+
+  /**
+   * Queues the given bytes without copying them.
+   */
+  void add(byte[] bytes)
+  {
+    if (bytes.length > 0)
+    {
+      push(ByteBuffer.wrap(bytes), false);
+      queued += bytes.length;
+      updateBackedUp();
+    }
+  }
+
+  /**
+   * Copies the remaining bytes of the given buffer into pooled buffers.
+   */
+  void add(ByteBuffer source)
+  {
+    int sourceLimit = source.limit();
+    queued += source.remaining();
+
+    if ((tail > head) && pooled[tail - 1])
+    {
+      ByteBuffer last = buffers[tail - 1];
+      if (last.limit() < last.capacity())
+      {
+        int position = last.position();
+        last.position(last.limit());
+        last.limit(last.capacity());
+        copy(source, last, sourceLimit);
+        last.flip();
+        last.position(position);
+      }
+    }
+
+    while (source.hasRemaining())
+    {
+      ByteBuffer buffer = pool.take();
+      copy(source, buffer, sourceLimit);
+      buffer.flip();
+      push(buffer, true);
+    }
+
+    updateBackedUp();
+  }
+
+  /**
+   * Gathering write of the queued bytes followed by {@code next} (which may be null). Any bytes of {@code next} that
+   * don't get written are copied onto the queue.
+   *
+   * @return The number of bytes written or -1 if the channel is closed.
+   */
+  long write(GatheringByteChannel channel, ByteBuffer next) throws IOException
+  {
+    long written;
+    if (head == tail)
+    {
+      written = (next == null || !next.hasRemaining()) ? 0 : channel.write(next);
+    }
+    else
+    {
+      int length = tail - head;
+      boolean gatherNext = (next != null) && next.hasRemaining();
+      if (gatherNext)
+      {
+        ensureCapacity();
+        buffers[tail] = next;
+        length++;
+      }
+
+      try
+      {
+        written = channel.write(buffers, head, length);
+      }
+      finally
+      {
+        if (gatherNext)
+        {
+          buffers[tail] = null;
+        }
+      }
+
+      if (written > 0)
+      {
+        long fromQueue = Math.min(written, queued);
+        queued -= fromQueue;
+        release();
+      }
+    }
+
+    if ((next != null) && next.hasRemaining())
+    {
+      add(next);
+    }
+
+    updateBackedUp();
+    return written;
+  }
+
+  /**
+   * Blocking write of all queued bytes.
+   */
+  void writeTo(OutputStream outputStream) throws IOException
+  {
+    for (int i = head; i < tail; i++)
+    {
+      ByteBuffer buffer = buffers[i];
+      if (buffer.hasArray())
+      {
+        outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+      }
+      else
+      {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        outputStream.write(bytes);
+      }
+    }
+    queued = 0;
+    release();
+    updateBackedUp();
+  }
+
+  /**
+   * Drops everything queued and gives the pooled buffers back.
+   */
+  void clear()
+  {
+    for (int i = head; i < tail; i++)
+    {
+      if (pooled[i])
+      {
+        pool.give(buffers[i]);
+      }
+      buffers[i] = null;
+    }
+    head = tail = 0;
+    queued = 0;
+    backedUp = false;
+  }
+
+  private void release()
+  {
+    while ((head < tail) && !buffers[head].hasRemaining())
+    {
+      if (pooled[head])
+      {
+        pool.give(buffers[head]);
+      }
+      buffers[head++] = null;
+    }
+
+    if (head == tail)
+    {
+      head = tail = 0;
+    }
+  }
+
+  private void push(ByteBuffer buffer, boolean fromPool)
+  {
+    ensureCapacity();
+    pooled[tail] = fromPool;
+    buffers[tail++] = buffer;
+  }
+
+  private void ensureCapacity()
+  {
+    if (tail == buffers.length)
+    {
+      if (head > 0)
+      {
+        System.arraycopy(buffers, head, buffers, 0, tail - head);
+        System.arraycopy(pooled, head, pooled, 0, tail - head);
+        for (int i = tail - head; i < tail; i++)
+        {
+          buffers[i] = null;
+        }
+        tail -= head;
+        head = 0;
+      }
+      else
+      {
+        ByteBuffer[] newBuffers = new ByteBuffer[buffers.length * 2];
+        boolean[] newPooled = new boolean[pooled.length * 2];
+        System.arraycopy(buffers, 0, newBuffers, 0, tail);
+        System.arraycopy(pooled, 0, newPooled, 0, tail);
+        buffers = newBuffers;
+        pooled = newPooled;
+      }
+    }
+  }
+
+  private void updateBackedUp()
+  {
+    if (queued >= highWaterMark)
+    {
+      backedUp = true;
+    }
+    else if (queued <= (highWaterMark / 2))
+    {
+      backedUp = false;
+    }
+  }
+
+  private static void copy(ByteBuffer source, ByteBuffer destination, int sourceLimit)
+  {
+    int length = Math.min(source.remaining(), destination.remaining());
+    source.limit(source.position() + length);
+    destination.put(source);
+    source.limit(sourceLimit);
+  }
+}
@@ -0,0 +1,143 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class BodyRelayTest
+{
+  static final int DOWNLOAD_LENGTH = 5 * 1024 * 1024 + 123;
+
+  static final int UPLOAD_LENGTH = 3 * 1024 * 1024 + 45;
+
+  /*
+   * Bodies many buffers long go through the proxy unchanged in both directions, and the messages after them on the same
+   * connections are read where the bodies end.
+   */
+  @Test
+  public void largeFixedLengthBodies() throws Exception
+  {
+    final AtomicInteger accepted = new AtomicInteger();
+    final ServerSocket backend = new ServerSocket(0);
+    Thread serve = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Socket socket = backend.accept();
+          accepted.incrementAndGet();
+          DataInputStream in = new DataInputStream(socket.getInputStream());
+          OutputStream out = socket.getOutputStream();
+          while (true)
+          {
+            String header = readHeader(in);
+            if (header.startsWith("GET /download"))
+            {
+              out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + DOWNLOAD_LENGTH + "\r\n\r\n").getBytes());
+              byte[] body = body(DOWNLOAD_LENGTH);
+              for (int offset = 0; offset < body.length; offset += 7777)
+              {
+                out.write(body, offset, Math.min(7777, body.length - offset));
+              }
+            }
+            else if (header.startsWith("POST /upload"))
+            {
+              byte[] body = new byte[UPLOAD_LENGTH];
+              in.readFully(body);
+              out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n" + (Arrays.equals(body(UPLOAD_LENGTH), body) ? "ok" : "no")).getBytes());
+            }
+            else
+            {
+              out.write("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nnext".getBytes());
+            }
+          }
+        }
+        catch (IOException e)
+        {}
+      }
+    };
+    serve.setDaemon(true);
+    serve.start();
+
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", backend.getLocalPort());
+    proxyDirector.bufferSize = 5000;
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    final ServerSocketChannelAcceptLoop acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    try
+    {
+      Socket socket = connect(serverSocketChannel.socket().getLocalPort());
+      OutputStream out = socket.getOutputStream();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+
+      out.write("GET /download HTTP/1.1\r\nHost: example.com\r\n\r\nGET /next HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes());
+      assertTrue(readHeader(in).contains("Content-Length: " + DOWNLOAD_LENGTH));
+      byte[] download = new byte[DOWNLOAD_LENGTH];
+      in.readFully(download);
+      assertArrayEquals(body(DOWNLOAD_LENGTH), download);
+      assertNext(in);
+
+      out.write(("POST /upload HTTP/1.1\r\nHost: example.com\r\nContent-Length: " + UPLOAD_LENGTH + "\r\n\r\n").getBytes());
+      out.write(body(UPLOAD_LENGTH));
+      out.write("GET /next HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes());
+      readHeader(in);
+      assertEquals("ok", read(in, 2));
+      assertNext(in);
+
+      assertEquals(1, accepted.get());
+      socket.close();
+    }
+    finally
+    {
+      acceptLoop.stop();
+      backend.close();
+    }
+  }
+
+  static void assertNext(InputStream in) throws IOException
+  {
+    assertTrue(readHeader(in).startsWith("HTTP/1.1 200"));
+    assertEquals("next", read(in, 4));
+  }
+
+  /*
+   * Doesn't repeat with the buffer size so a piece of the body out of place shows.
+   */
+  static byte[] body(int length)
+  {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++)
+    {
+      body[i] = (byte)((i * 31) ^ (i >> 11));
+    }
+    return body;
+  }
+}
@@ -0,0 +1,104 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest
+{
+  /*
+   * The first take allocates a slab (a miss) and the rest of the slab is handed out before another is allocated.
+   */
+  @Test
+  public void takeAndGive()
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(300 * 1024);
+    assertSame(pool, ByteBufferPool.forSize(300 * 1024));
+    assertTrue(ByteBufferPool.getPools().contains(pool));
+
+    ByteBuffer first = pool.take();
+    assertTrue(first.isDirect());
+    assertEquals(300 * 1024, first.capacity());
+    assertEquals(300 * 1024, first.remaining());
+    assertEquals(1, pool.getMisses());
+    assertEquals(0, pool.getHits());
+    assertEquals(1, pool.getOutstanding());
+
+    ByteBuffer second = pool.take();
+    ByteBuffer third = pool.take();
+    assertEquals(1, pool.getMisses());
+    assertEquals(2, pool.getHits());
+    assertEquals(3, pool.getOutstanding());
+    assertEquals(3 * 300 * 1024, pool.getAllocatedBytes());
+
+    ByteBuffer fourth = pool.take();
+    assertEquals(2, pool.getMisses());
+    assertEquals(6 * 300 * 1024, pool.getAllocatedBytes());
+
+    pool.give(first);
+    pool.give(second);
+    pool.give(third);
+    pool.give(fourth);
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(6 * 300 * 1024, pool.getAllocatedBytes());
+  }
+
+  /*
+   * The buffer given back last is taken first, cleared, and its bytes don't overlap the other buffers from its slab.
+   */
+  @Test
+  public void reuse()
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(100 * 1024);
+    ByteBuffer first = pool.take();
+    ByteBuffer second = pool.take();
+    first.put((byte)1).flip();
+    while (second.hasRemaining())
+    {
+      second.put((byte)2);
+    }
+    assertEquals(1, first.get(0));
+
+    pool.give(second);
+    pool.give(first);
+    long hits = pool.getHits();
+    ByteBuffer taken = pool.take();
+    assertSame(first, taken);
+    assertEquals(0, taken.position());
+    assertEquals(taken.capacity(), taken.limit());
+    assertSame(second, pool.take());
+    assertEquals(hits + 2, pool.getHits());
+
+    pool.give(first);
+    pool.give(second);
+  }
+
+  @Test
+  public void givenBackTwice()
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(200 * 1024);
+    ByteBuffer buffer = pool.take();
+    pool.give(buffer);
+    try
+    {
+      pool.give(buffer);
+      fail();
+    }
+    catch (IllegalStateException e)
+    {}
+    assertEquals(0, pool.getOutstanding());
+
+    try
+    {
+      pool.give(ByteBuffer.allocateDirect(100));
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {}
+    assertEquals(0, pool.getOutstanding());
+    assertSame(buffer, pool.take());
+    pool.give(buffer);
+  }
+}
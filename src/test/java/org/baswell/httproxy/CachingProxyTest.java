@@ -0,0 +1,532 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.baswell.httproxy.DiskStoreTest.*;
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class CachingProxyTest
+{
+  static ServerSocket server;
+
+  static ServerSocketChannelAcceptLoop nioAcceptLoop;
+
+  static ServerSocketAcceptLoop ioAcceptLoop;
+
+  static int nioPort;
+
+  static int ioPort;
+
+  static File nioCacheDirectory;
+
+  static File ioCacheDirectory;
+
+  static ResponseCache nioCache;
+
+  static ResponseCache ioCache;
+
+  static final String LARGE = repeat('x', 300 * 1024);
+
+  static final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /*
+   * Answers each request with the number of times its path has been requested. Paths ending in /cached can be cached
+   * for a minute (/chunked too, with a chunked body, and /large, too big for the caches' memory), anything else can't be
+   * stored. Paths under /slow are answered after half a second. Paths ending in /validated, /swr and /sie are fresh for a
+   * second: /validated has an ETag and answers If-None-Match with 304, /swr can be used stale while it's revalidated and
+   * /sie when revalidating it fails (every request after the first gets a 503). Paths ending in /tagged can be cached for
+   * a minute and are tagged with the surrogate key "tagged". The directors add X-Director to every response they see.
+   */
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    server = new ServerSocket(0);
+    Thread accept = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        while (!server.isClosed())
+        {
+          try
+          {
+            final Socket socket = server.accept();
+            new Thread()
+            {
+              @Override
+              public void run()
+              {
+                try
+                {
+                  InputStream in = socket.getInputStream();
+                  OutputStream out = socket.getOutputStream();
+                  while (true)
+                  {
+                    String header = readHeader(in);
+                    String[] requestLine = header.substring(0, header.indexOf('\r')).split(" ");
+                    int contentLength = header.indexOf("Content-Length: ");
+                    if (contentLength != -1)
+                    {
+                      read(in, Integer.parseInt(header.substring(contentLength + 16, header.indexOf('\r', contentLength))));
+                    }
+
+                    String path = requestLine[1];
+                    if (path.contains("/slow/"))
+                    {
+                      try
+                      {
+                        Thread.sleep(500);
+                      }
+                      catch (InterruptedException e)
+                      {}
+                    }
+                    requests.putIfAbsent(path, new AtomicInteger());
+                    String body = requestLine[0] + " " + requests.get(path).incrementAndGet();
+                    if (path.endsWith("/large"))
+                    {
+                      body += LARGE;
+                    }
+
+                    int count = requests.get(path).get();
+                    if (path.endsWith("/validated") && header.contains("If-None-Match: \"v1\"\r\n"))
+                    {
+                      out.write("HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=1\r\nETag: \"v1\"\r\n\r\n".getBytes());
+                    }
+                    else if (path.endsWith("/validated"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=1\r\nETag: \"v1\"\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    else if (path.endsWith("/swr"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=1, stale-while-revalidate=60\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    else if (path.endsWith("/sie") && (count > 1))
+                    {
+                      out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes());
+                    }
+                    else if (path.endsWith("/sie"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=1, stale-if-error=60\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    else if (path.endsWith("/tagged"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nSurrogate-Key: tagged\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    else if (path.endsWith("/cached") || path.endsWith("/large"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    else if (path.endsWith("/chunked"))
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nTransfer-Encoding: chunked\r\n\r\n3\r\n" + body.substring(0, 3) + "\r\n"
+                          + Integer.toHexString(body.length() - 3) + "\r\n" + body.substring(3) + "\r\n0\r\n\r\n").getBytes());
+                    }
+                    else
+                    {
+                      out.write(("HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+                    }
+                    out.flush();
+                  }
+                }
+                catch (IOException e)
+                {}
+              }
+            }.start();
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+
+    SimpleNIOProxyDirector nioProxyDirector = new SimpleNIOProxyDirector("localhost", server.getLocalPort())
+    {
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {
+        httpResponse.headers.add(new HttpHeader("X-Director", "seen"));
+      }
+    };
+    nioCacheDirectory = Files.createTempDirectory("httproxy-cache").toFile();
+    nioProxyDirector.responseCache = nioCache = new ResponseCache(256 * 1024, 1024 * 1024, nioCacheDirectory, 16 * 1024 * 1024);
+    nioProxyDirector.purgePath = "/purge";
+
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    nioPort = serverSocketChannel.socket().getLocalPort();
+    nioAcceptLoop = new ServerSocketChannelAcceptLoop(nioProxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          nioAcceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    SimpleIODirector ioProxyDirector = new SimpleIODirector("localhost", server.getLocalPort(), Executors.newCachedThreadPool())
+    {
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {
+        httpResponse.headers.add(new HttpHeader("X-Director", "seen"));
+      }
+
+      @Override
+      public RequestContentModifier getRequestModifier(HttpRequest httpRequest)
+      {
+        return null;
+      }
+
+      @Override
+      public ResponseContentModifier getResponseModifier(HttpRequest httpRequest, HttpResponse httpResponse)
+      {
+        return null;
+      }
+    };
+    ioCacheDirectory = Files.createTempDirectory("httproxy-cache").toFile();
+    ioProxyDirector.responseCache = ioCache = new ResponseCache(256 * 1024, 1024 * 1024, ioCacheDirectory, 16 * 1024 * 1024);
+    ioProxyDirector.purgePath = "/purge";
+
+    final ServerSocket serverSocket = new ServerSocket(0);
+    ioPort = serverSocket.getLocalPort();
+    ioAcceptLoop = new ServerSocketAcceptLoop(ioProxyDirector);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          ioAcceptLoop.start(serverSocket);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    nioAcceptLoop.stop();
+    ioAcceptLoop.stop();
+    server.close();
+
+    nioCache.close();
+    ioCache.close();
+    deleteAll(nioCacheDirectory);
+    deleteAll(ioCacheDirectory);
+  }
+
+  @Test
+  public void nioHits() throws Exception
+  {
+    hits(nioPort, "/nio");
+  }
+
+  @Test
+  public void ioHits() throws Exception
+  {
+    hits(ioPort, "/io");
+  }
+
+  @Test
+  public void nioDiskHits() throws Exception
+  {
+    diskHits(nioPort, "/nio", nioCache, true);
+  }
+
+  @Test
+  public void ioDiskHits() throws Exception
+  {
+    diskHits(ioPort, "/io", ioCache, false);
+  }
+
+  @Test
+  public void nioRevalidation() throws Exception
+  {
+    revalidation(nioPort, "/nio", nioCache);
+  }
+
+  @Test
+  public void ioRevalidation() throws Exception
+  {
+    revalidation(ioPort, "/io", ioCache);
+  }
+
+  @Test
+  public void nioPurges() throws Exception
+  {
+    purges(nioPort, "/nio");
+  }
+
+  @Test
+  public void ioPurges() throws Exception
+  {
+    purges(ioPort, "/io");
+  }
+
+  /*
+   * Clients asking for the same URL while the first request for it is out get the one response (only the NIO proxy
+   * collapses requests). When the response can't be stored they each go to the server.
+   */
+  @Test
+  public void nioCollapsed() throws Exception
+  {
+    String[] bodies = getConcurrently(nioPort, "/nio/slow/cached", 6);
+    for (String body : bodies)
+    {
+      assertEquals("GET 1", body);
+    }
+    assertEquals(1, requests.get("/nio/slow/cached").get());
+
+    bodies = getConcurrently(nioPort, "/nio/slow/nostore", 4);
+    for (int i = 0; i < bodies.length; i++)
+    {
+      for (int j = 0; j < i; j++)
+      {
+        assertFalse(bodies[i].equals(bodies[j]));
+      }
+    }
+    assertEquals(4, requests.get("/nio/slow/nostore").get());
+  }
+
+  static void hits(int port, String prefix) throws Exception
+  {
+    Socket socket = UpgradeTunnelTest.connect(port);
+    Http2ConnectionTest.Response response = get(socket, "GET", prefix + "/cached");
+    assertEquals("GET 1", new String(response.body));
+    assertNull(response.headers.get("age"));
+
+    /*
+     * Hits never reach the server.
+     */
+    for (int i = 0; i < 3; i++)
+    {
+      response = get(socket, "GET", prefix + "/cached");
+      assertEquals(200, response.status);
+      assertEquals("GET 1", new String(response.body));
+      assertEquals("0", response.headers.get("age"));
+    }
+
+    response = get(socket, "HEAD", prefix + "/cached");
+    assertEquals("5", response.headers.get("content-length"));
+    assertEquals(0, response.body.length);
+
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/chunked").body));
+    response = get(socket, "GET", prefix + "/chunked");
+    assertEquals("GET 1", new String(response.body));
+    assertEquals("5", response.headers.get("content-length"));
+    assertNull(response.headers.get("transfer-encoding"));
+
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/nostore").body));
+    assertEquals("GET 2", new String(get(socket, "GET", prefix + "/nostore").body));
+
+    /*
+     * A POST to the URL invalidates the stored response.
+     */
+    assertEquals("POST 2", new String(get(socket, "POST", prefix + "/cached").body));
+    assertEquals("GET 3", new String(get(socket, "GET", prefix + "/cached").body));
+    assertEquals("GET 3", new String(get(socket, "GET", prefix + "/cached").body));
+    socket.close();
+
+    /*
+     * Shared by every client.
+     */
+    socket = UpgradeTunnelTest.connect(port);
+    assertEquals("GET 3", new String(get(socket, "GET", prefix + "/cached").body));
+    assertEquals(3, requests.get(prefix + "/cached").get());
+    socket.close();
+  }
+
+  /*
+   * Once the responses are stale: /validated is answered with the stored body after a 304, /swr is answered stale and
+   * refreshed in the background and /sie is answered stale when the server fails.
+   */
+  static void revalidation(int port, String prefix, ResponseCache cache) throws Exception
+  {
+    long notModified = cache.getNotModifiedCount();
+    long staleHits = cache.getStaleHitCount();
+    long revalidations = cache.getRevalidationCount();
+    Socket socket = UpgradeTunnelTest.connect(port);
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/validated").body));
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/swr").body));
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/sie").body));
+    Thread.sleep(1100);
+
+    Http2ConnectionTest.Response response = get(socket, "GET", prefix + "/validated");
+    assertEquals(200, response.status);
+    assertEquals("GET 1", new String(response.body));
+    assertEquals("0", response.headers.get("age"));
+    assertEquals(2, requests.get(prefix + "/validated").get());
+    assertEquals(notModified + 1, cache.getNotModifiedCount());
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/validated").body));
+    assertEquals(2, requests.get(prefix + "/validated").get());
+
+    response = get(socket, "GET", prefix + "/swr");
+    assertEquals("GET 1", new String(response.body));
+    assertFalse("0".equals(response.headers.get("age")));
+    for (int i = 0; (i < 100) && (requests.get(prefix + "/swr").get() < 2); i++)
+    {
+      Thread.sleep(50);
+    }
+    Thread.sleep(100);
+    response = get(socket, "GET", prefix + "/swr");
+    assertEquals("GET 2", new String(response.body));
+    assertEquals("seen", response.headers.get("x-director"));
+
+    response = get(socket, "GET", prefix + "/sie");
+    assertEquals(200, response.status);
+    assertEquals("GET 1", new String(response.body));
+    assertEquals(2, requests.get(prefix + "/sie").get());
+
+    assertEquals(staleHits + 2, cache.getStaleHitCount());
+    assertEquals(revalidations + 3, cache.getRevalidationCount());
+    socket.close();
+  }
+
+  /*
+   * Purge requests are answered by the proxy. After a hard purge the next request goes to the server, after a soft purge
+   * the stored response is revalidated (with a full response, /tagged has no validators).
+   */
+  static void purges(int port, String prefix) throws Exception
+  {
+    Socket socket = UpgradeTunnelTest.connect(port);
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/tagged").body));
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/images/a/tagged").body));
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/images/b/tagged").body));
+
+    Http2ConnectionTest.Response response = purge(port, "POST", "prefix=" + prefix + "/images/");
+    assertEquals(200, response.status);
+    assertEquals("2", response.headers.get("purged"));
+    assertEquals("GET 2", new String(get(socket, "GET", prefix + "/images/a/tagged").body));
+    assertEquals("GET 1", new String(get(socket, "GET", prefix + "/tagged").body));
+
+    response = purge(port, "PURGE", "tag=tagged&soft");
+    assertEquals("2", response.headers.get("purged"));
+    assertEquals("GET 2", new String(get(socket, "GET", prefix + "/tagged").body));
+    assertEquals("GET 2", new String(get(socket, "GET", prefix + "/tagged").body));
+    assertEquals(2, requests.get(prefix + "/tagged").get());
+
+    assertEquals(405, purge(port, "GET", "tag=tagged").status);
+    assertEquals(400, purge(port, "POST", "").status);
+    socket.close();
+  }
+
+  /*
+   * The large response is only stored on disk (once the cache's writer gets to it), hits are written from the segment
+   * file. The NIO proxy gets the hits pipelined.
+   */
+  static void diskHits(int port, String prefix, ResponseCache cache, boolean pipelined) throws Exception
+  {
+    Socket socket = UpgradeTunnelTest.connect(port);
+    assertEquals("GET 1" + LARGE, new String(get(socket, "GET", prefix + "/large").body));
+    for (int i = 0; (i < 100) && (cache.getDiskEntryCount() == 0); i++)
+    {
+      Thread.sleep(50);
+    }
+
+    if (pipelined)
+    {
+      String request = "GET " + prefix + "/large HTTP/1.1\r\nHost: localhost\r\n\r\n";
+      socket.getOutputStream().write((request + request).getBytes());
+    }
+
+    Http2ConnectionTest.Response response;
+    for (int i = 0; i < 2; i++)
+    {
+      response = pipelined ? Http2ConnectionTest.read(socket, false) : get(socket, "GET", prefix + "/large");
+      assertEquals(200, response.status);
+      assertEquals("0", response.headers.get("age"));
+      assertEquals("GET 1" + LARGE, new String(response.body));
+    }
+
+    response = get(socket, "HEAD", prefix + "/large");
+    assertEquals(String.valueOf(("GET 1" + LARGE).length()), response.headers.get("content-length"));
+    socket.close();
+
+    assertEquals(1, requests.get(prefix + "/large").get());
+    assertEquals(3, cache.getDiskHitCount());
+  }
+
+  /*
+   * The first request goes out before the others so they find it in flight.
+   */
+  static String[] getConcurrently(final int port, final String path, int count) throws Exception
+  {
+    final String[] bodies = new String[count];
+    Thread[] threads = new Thread[count];
+    for (int i = 0; i < count; i++)
+    {
+      final int index = i;
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            Socket socket = UpgradeTunnelTest.connect(port);
+            bodies[index] = new String(get(socket, "GET", path).body);
+            socket.close();
+          }
+          catch (IOException e)
+          {}
+        }
+      };
+      threads[i].start();
+      if (i == 0)
+      {
+        Thread.sleep(100);
+      }
+    }
+
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    return bodies;
+  }
+
+  /*
+   * The proxy closes the connection after answering a purge request.
+   */
+  static Http2ConnectionTest.Response purge(int port, String method, String query) throws IOException
+  {
+    Socket socket = UpgradeTunnelTest.connect(port);
+    Http2ConnectionTest.Response response = get(socket, method, "/purge?" + query);
+    socket.close();
+    return response;
+  }
+
+  static Http2ConnectionTest.Response get(Socket socket, String method, String path) throws IOException
+  {
+    String body = method.equals("POST") ? "Content-Length: 4\r\n\r\nbody" : "\r\n";
+    socket.getOutputStream().write((method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n" + body).getBytes());
+    return Http2ConnectionTest.read(socket, method.equals("HEAD"));
+  }
+}
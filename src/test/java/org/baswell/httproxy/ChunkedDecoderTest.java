@@ -0,0 +1,274 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkedDecoderTest
+{
+  @Test
+  public void decodesChunks()
+  {
+    Decoded decoded = decode("5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n", 1024);
+    assertEquals("hello, world", decoded.data);
+    assertTrue(decoded.done);
+    assertEquals(0, decoded.remaining);
+  }
+
+  @Test
+  public void extensionsAndWhitespace()
+  {
+    Decoded decoded = decode("5;name=value\r\nhello\r\n1 ; a=\"b;c\" ;d\r\n!\r\nA\t\r\n0123456789\r\n0;last\r\n\r\n", 1024);
+    assertEquals("hello!0123456789", decoded.data);
+    assertTrue(decoded.done);
+  }
+
+  @Test
+  public void trailers()
+  {
+    Decoded decoded = decode("3\r\nabc\r\n0\r\nChecksum: 1234\r\nX-Trailer:  done \r\n\r\n", 1024);
+    assertEquals("abc", decoded.data);
+    assertTrue(decoded.done);
+    assertEquals(2, decoded.message.trailers.size());
+    assertEquals("1234", decoded.message.getTrailerValue("checksum"));
+    assertEquals("done", decoded.message.getTrailerValue("X-Trailer"));
+    assertFalse(decoded.message.hasHeader("Checksum"));
+  }
+
+  @Test
+  public void bareLineFeeds()
+  {
+    Decoded decoded = decode("2\nab\n0\n\n", 1024);
+    assertEquals("ab", decoded.data);
+    assertTrue(decoded.done);
+  }
+
+  @Test
+  public void stopsAtEndOfBody()
+  {
+    Decoded decoded = decode("1\r\na\r\n0\r\n\r\nGET / HTTP/1.1\r\n", 1024);
+    assertTrue(decoded.done);
+    assertEquals("a", decoded.data);
+    assertEquals("GET / HTTP/1.1\r\n".length(), decoded.remaining);
+  }
+
+  @Test
+  public void largeChunkSize()
+  {
+    ChunkedDecoder decoder = new ChunkedDecoder(true);
+    HttpMessage message = HeaderIndexTest.request();
+    ByteBuffer buffer = ByteBuffer.wrap("7fffffffffffffff\r\n0123".getBytes());
+    int data = 0;
+    try
+    {
+      while (buffer.hasRemaining())
+      {
+        data += decoder.decode(buffer, message);
+      }
+    }
+    catch (HttpProtocolException e)
+    {
+      fail(e.getMessage());
+    }
+    assertEquals(4, data);
+    assertFalse(decoder.isDone());
+  }
+
+  /*
+   * A trailer line that never ends is refused once it's past the limit, without waiting for its line feed.
+   */
+  @Test
+  public void unterminatedTrailerLine() throws HttpProtocolException
+  {
+    ChunkedDecoder decoder = new ChunkedDecoder(true);
+    HttpResponse response = new HttpResponse(false, false, null, "HTTP/1.1 200 OK");
+    decoder.decode(ByteBuffer.wrap("0\r\nX-Long: ".getBytes()), response);
+
+    byte[] piece = new byte[1024];
+    Arrays.fill(piece, (byte)'a');
+    try
+    {
+      for (int i = 0; i < 65; i++)
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(piece);
+        while (buffer.hasRemaining())
+        {
+          decoder.decode(buffer, response);
+        }
+      }
+      fail();
+    }
+    catch (HttpProtocolException e)
+    {
+      assertTrue(e.getMessage().startsWith("Trailer section longer"));
+    }
+  }
+
+  @Test
+  public void invalid()
+  {
+    String[] invalid = {"x\r\n", "\r\n", "5x\r\nhello\r\n", "5\r\nhelloX\r\n", "5\r\nhello\rX", "5\rX", "10000000000000000\r\n",
+        "1 2\r\n", ";ext\r\n"};
+    for (String body : invalid)
+    {
+      try
+      {
+        decode(body, 1024);
+        fail("Expected protocol error for: " + body);
+      }
+      catch (AssertionError e)
+      {
+        assertTrue(body + ": " + e.getMessage(), e.getMessage().startsWith("protocol error"));
+      }
+    }
+  }
+
+  /**
+   * Random chunked bodies (sizes, extensions, trailers, line endings) decoded in random pieces must give the same data
+   * and trailers as the whole body decoded at once.
+   */
+  @Test
+  public void fuzzSplits()
+  {
+    Random random = new Random(42);
+    for (int run = 0; run < 2000; run++)
+    {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      String body = randomBody(random, data);
+
+      Decoded whole = decode(body, Integer.MAX_VALUE);
+      assertTrue(whole.done);
+      assertEquals(new String(data.toByteArray(), LineReader.ISO_8859_1), whole.data);
+
+      Decoded split = decode(body, 1 + random.nextInt(16));
+      assertTrue(split.done);
+      assertEquals(whole.data, split.data);
+      assertEquals(whole.message.trailers.toString(), split.message.trailers.toString());
+    }
+  }
+
+  /**
+   * Random garbage (and random corruptions of valid bodies) must only ever end in a protocol error, an incomplete body or
+   * a complete body. Never any other exception and never data past the end of the buffer.
+   */
+  @Test
+  public void fuzzGarbage()
+  {
+    Random random = new Random(7);
+    for (int run = 0; run < 5000; run++)
+    {
+      byte[] bytes;
+      if (random.nextBoolean())
+      {
+        bytes = new byte[random.nextInt(64)];
+        random.nextBytes(bytes);
+      }
+      else
+      {
+        bytes = randomBody(random, new ByteArrayOutputStream()).getBytes(LineReader.ISO_8859_1);
+        for (int i = random.nextInt(4); i >= 0; i--)
+        {
+          bytes[random.nextInt(bytes.length)] = (byte)random.nextInt(256);
+        }
+      }
+
+      ChunkedDecoder decoder = new ChunkedDecoder(true);
+      HttpMessage message = HeaderIndexTest.request();
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      try
+      {
+        while (buffer.hasRemaining() && !decoder.isDone())
+        {
+          int position = buffer.position();
+          int data = decoder.decode(buffer, message);
+          assertTrue(data >= 0);
+          assertTrue(buffer.position() >= position + data);
+          assertTrue(buffer.position() <= buffer.limit());
+        }
+      }
+      catch (HttpProtocolException e)
+      {
+        assertNotNull(e.getMessage());
+      }
+    }
+  }
+
+  static String randomBody(Random random, ByteArrayOutputStream data)
+  {
+    String lineEnd = random.nextInt(10) == 0 ? "\n" : "\r\n";
+    StringBuilder body = new StringBuilder();
+    for (int chunks = random.nextInt(6); chunks > 0; chunks--)
+    {
+      int size = 1 + random.nextInt(random.nextBoolean() ? 8 : 300);
+      String hex = Integer.toHexString(size);
+      body.append(random.nextBoolean() ? hex : hex.toUpperCase());
+      if (random.nextInt(4) == 0)
+      {
+        body.append(";ext").append(random.nextInt(100)).append("=\"v;").append(random.nextInt(100)).append('"');
+      }
+      body.append(lineEnd);
+      for (int i = 0; i < size; i++)
+      {
+        char c = (char)random.nextInt(256);
+        body.append(c);
+        data.write(c);
+      }
+      body.append(lineEnd);
+    }
+
+    body.append("0").append(lineEnd);
+    for (int trailers = random.nextInt(3); trailers > 0; trailers--)
+    {
+      body.append("X-Trailer-").append(random.nextInt(1000)).append(": ").append(random.nextInt()).append(lineEnd);
+    }
+    body.append(lineEnd);
+    return body.toString();
+  }
+
+  static Decoded decode(String body, int pieceSize)
+  {
+    byte[] bytes = body.getBytes(LineReader.ISO_8859_1);
+    ChunkedDecoder decoder = new ChunkedDecoder(true);
+    Decoded decoded = new Decoded();
+    decoded.message = HeaderIndexTest.request();
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    try
+    {
+      for (int offset = 0; offset < bytes.length && !decoder.isDone(); offset += pieceSize)
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, Math.min(pieceSize, bytes.length - offset));
+        while (buffer.hasRemaining() && !decoder.isDone())
+        {
+          int length = decoder.decode(buffer, decoded.message);
+          data.write(bytes, buffer.position() - length, length);
+        }
+        decoded.remaining = buffer.remaining() + Math.max(0, bytes.length - offset - pieceSize);
+      }
+    }
+    catch (HttpProtocolException e)
+    {
+      throw new AssertionError("protocol error: " + e.getMessage());
+    }
+
+    decoded.data = new String(data.toByteArray(), LineReader.ISO_8859_1);
+    decoded.done = decoder.isDone();
+    return decoded;
+  }
+
+  static class Decoded
+  {
+    HttpMessage message;
+
+    String data;
+
+    boolean done;
+
+    int remaining;
+  }
+}
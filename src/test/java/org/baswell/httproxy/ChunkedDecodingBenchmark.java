@@ -0,0 +1,141 @@
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * Decoding a chunked body of 1000 chunks read 16 KB at a time with {@link ChunkedDecoder} against the previous chunk
+ * size line copy and {@code Integer.parseInt}. Small chunks are the streaming case (server-sent events, streamed JSON).
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=ChunkedDecodingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedDecodingBenchmark
+{
+  static final int CHUNKS = 1000;
+
+  static final int READ_SIZE = 16 * 1024;
+
+  @Param({"16", "256", "4096"})
+  public int chunkSize;
+
+  private byte[] body;
+
+  private final ChunkedDecoder decoder = new ChunkedDecoder(true);
+
+  private final HttpMessage message = new HttpResponse(true, false, null, "HTTP/1.1 200 OK");
+
+  private final TByteArrayList currentLine = new TByteArrayList(AVERAGE_HEADER_LENGTH);
+
+  @Setup
+  public void setup()
+  {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < CHUNKS; i++)
+    {
+      builder.append(Integer.toHexString(chunkSize)).append("\r\n");
+      for (int j = 0; j < chunkSize; j++)
+      {
+        builder.append((char)('a' + (j % 26)));
+      }
+      builder.append("\r\n");
+    }
+    builder.append("0\r\n\r\n");
+    body = builder.toString().getBytes();
+  }
+
+  @Benchmark
+  public long decoder() throws HttpProtocolException
+  {
+    decoder.reset();
+    long data = 0;
+    for (int offset = 0; offset < body.length; offset += READ_SIZE)
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(body, offset, Math.min(READ_SIZE, body.length - offset));
+      while (buffer.hasRemaining() && !decoder.isDone())
+      {
+        data += decoder.decode(buffer, message);
+      }
+    }
+    return data;
+  }
+
+  @Benchmark
+  public long lineCopyAndParseInt()
+  {
+    currentLine.clear();
+    long data = 0;
+    int state = 0;
+    int remaining = 0;
+    for (int offset = 0; offset < body.length; offset += READ_SIZE)
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(body, offset, Math.min(READ_SIZE, body.length - offset));
+      while (buffer.hasRemaining())
+      {
+        if (state == 0)
+        {
+          byte[] line = readNextLine(buffer);
+          if (line != null)
+          {
+            remaining = Integer.parseInt(new String(line).trim(), 16);
+            data += remaining;
+            state = remaining == 0 ? 3 : 1;
+          }
+        }
+        else if (state == 1)
+        {
+          int read = Math.min(remaining, buffer.remaining());
+          buffer.position(buffer.position() + read);
+          remaining -= read;
+          if (remaining == 0)
+          {
+            state = 2;
+          }
+        }
+        else if (readNextLine(buffer) != null)
+        {
+          state = (state == 2) ? 0 : 4;
+        }
+      }
+    }
+    return data;
+  }
+
+  private byte[] readNextLine(ByteBuffer buffer)
+  {
+    while (buffer.hasRemaining())
+    {
+      byte b = buffer.get();
+      currentLine.add(b);
+      if (b == LF)
+      {
+        byte[] lineBytes = currentLine.toArray();
+        currentLine.clear();
+        return lineBytes;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,128 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.baswell.httproxy.ResponseCacheTest.*;
+import static org.junit.Assert.*;
+
+public class CollapsedRequestTest
+{
+  @Test
+  public void waitersShareTheResponse()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    CollapsedRequest leader = cache.lead(request("GET", "/a"));
+    assertNotNull(leader);
+    assertNull(cache.lead(request("GET", "/a")));
+    assertNull(cache.lead(request("HEAD", "/b")));
+    assertNull(cache.lead(request("GET", "/b", "Cache-Control: no-cache")));
+
+    Waiter get = new Waiter();
+    Waiter head = new Waiter();
+    CollapsedRequest.Attachment getAttachment = cache.attach(request("GET", "/a"), get);
+    CollapsedRequest.Attachment headAttachment = cache.attach(request("HEAD", "/a"), head);
+    assertNull(cache.attach(request("GET", "/b"), new Waiter()));
+    assertNull(cache.attach(request("GET", "/a", "Authorization: Basic x"), new Waiter()));
+    assertEquals(CollapsedRequest.WAITING, getAttachment.take(new ArrayList<byte[]>()));
+
+    byte[] header = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n".getBytes();
+    byte[] body = "hello".getBytes();
+    leader.start(header, null);
+    leader.publish(body);
+
+    List<byte[]> taken = new ArrayList<byte[]>();
+    assertEquals(CollapsedRequest.STREAMING, getAttachment.take(taken));
+    assertEquals(2, taken.size());
+    assertSame(header, taken.get(0));
+    assertSame(body, taken.get(1));
+    assertTrue(get.signals > 0);
+
+    taken.clear();
+    assertEquals(CollapsedRequest.COMPLETE, headAttachment.take(taken));
+    assertEquals(1, taken.size());
+    assertSame(header, taken.get(0));
+
+    /*
+     * Late waiters get what's been published so far.
+     */
+    CollapsedRequest.Attachment late = cache.attach(request("GET", "/a"), new Waiter());
+    taken.clear();
+    assertEquals(CollapsedRequest.STREAMING, late.take(taken));
+    assertEquals(2, taken.size());
+    assertSame(body, taken.get(1));
+
+    leader.complete();
+    taken.clear();
+    assertEquals(CollapsedRequest.COMPLETE, getAttachment.take(taken));
+    assertEquals(0, taken.size());
+    assertNull(cache.attach(request("GET", "/a"), new Waiter()));
+    assertNotNull(cache.lead(request("GET", "/a")));
+  }
+
+  @Test
+  public void fallbacks()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    CollapsedRequest leader = cache.lead(request("GET", "/a", "Accept-Encoding: gzip"));
+    CollapsedRequest.Attachment gzip = cache.attach(request("GET", "/a", "Accept-Encoding: gzip"), new Waiter());
+    CollapsedRequest.Attachment identity = cache.attach(request("GET", "/a"), new Waiter());
+
+    /*
+     * The response varies on a header the second waiter has a different value for.
+     */
+    leader.start("HTTP/1.1 200 OK\r\nVary: Accept-Encoding\r\n\r\n".getBytes(), new String[] {"accept-encoding"});
+    assertEquals(CollapsedRequest.STREAMING, gzip.take(new ArrayList<byte[]>()));
+    assertEquals(CollapsedRequest.FALLBACK, identity.take(new ArrayList<byte[]>()));
+    assertNull(cache.attach(request("GET", "/a"), new Waiter()));
+
+    /*
+     * A leader that fails after a waiter took part of the response fails the waiter.
+     */
+    leader.abandon();
+    assertEquals(CollapsedRequest.FAILED, gzip.take(new ArrayList<byte[]>()));
+
+    leader = cache.lead(request("GET", "/b"));
+    CollapsedRequest.Attachment waiting = cache.attach(request("GET", "/b"), new Waiter());
+    leader.abandon();
+    assertEquals(CollapsedRequest.FALLBACK, waiting.take(new ArrayList<byte[]>()));
+
+    leader = cache.lead(request("GET", "/c"));
+    waiting = cache.attach(request("GET", "/c"), new Waiter());
+    assertTrue(waiting.timeout());
+    assertEquals(CollapsedRequest.FALLBACK, waiting.take(new ArrayList<byte[]>()));
+    leader.start("HTTP/1.1 200 OK\r\n\r\n".getBytes(), null);
+    waiting = cache.attach(request("GET", "/c"), new Waiter());
+    assertFalse(waiting.timeout());
+  }
+
+  @Test
+  public void lateWaitersLimitedToReplayBytes()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024, 100);
+    CollapsedRequest leader = cache.lead(request("GET", "/a"));
+    CollapsedRequest.Attachment early = cache.attach(request("GET", "/a"), new Waiter());
+    leader.start("HTTP/1.1 200 OK\r\n\r\n".getBytes(), null);
+    leader.publish(new byte[200]);
+    assertNull(cache.attach(request("GET", "/a"), new Waiter()));
+
+    leader.publish(new byte[200]);
+    leader.complete();
+    List<byte[]> taken = new ArrayList<byte[]>();
+    assertEquals(CollapsedRequest.COMPLETE, early.take(taken));
+    assertEquals(3, taken.size());
+  }
+
+  static class Waiter implements CollapsedRequest.Waiter
+  {
+    int signals;
+
+    @Override
+    public void onCollapsedResponse()
+    {
+      signals++;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class ConnectTunnelTest
+{
+  static ServerSocket server;
+
+  static ServerSocketChannelAcceptLoop nioAcceptLoop;
+
+  static ServerSocketAcceptLoop ioAcceptLoop;
+
+  static int nioPort;
+
+  static int ioPort;
+
+  static final BlockingQueue<long[]> tunnelsClosed = new LinkedBlockingQueue<long[]>();
+
+  /*
+   * Echoes back what it reads until the client closes its output and says bye.
+   */
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    server = new ServerSocket(0);
+    Thread accept = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        while (!server.isClosed())
+        {
+          try
+          {
+            final Socket socket = server.accept();
+            new Thread()
+            {
+              @Override
+              public void run()
+              {
+                try
+                {
+                  InputStream in = socket.getInputStream();
+                  OutputStream out = socket.getOutputStream();
+                  byte[] buffer = new byte[8192];
+                  int read;
+                  while ((read = in.read(buffer)) != -1)
+                  {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                  }
+                  out.write("bye".getBytes());
+                  socket.close();
+                }
+                catch (IOException e)
+                {}
+              }
+            }.start();
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+
+    SimpleNIOProxyDirector nioProxyDirector = new SimpleNIOProxyDirector("localhost", server.getLocalPort())
+    {
+      @Override
+      public ConnectionParameters onConnectRequest(HttpRequest httpRequest) throws EndProxiedRequestException
+      {
+        return connectTo(httpRequest);
+      }
+
+      @Override
+      public void onTunnelClosed(HttpRequest httpRequest, ConnectionParameters connectionParameters, long bytesFromClient, long bytesFromServer)
+      {
+        tunnelsClosed.add(new long[] {bytesFromClient, bytesFromServer});
+      }
+
+      @Override
+      public void onConnectionFailed(HttpRequest httpRequest, ConnectionParameters connectionParameters, IOException e)
+      {}
+    };
+
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    nioPort = serverSocketChannel.socket().getLocalPort();
+    nioAcceptLoop = new ServerSocketChannelAcceptLoop(nioProxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          nioAcceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    SimpleIODirector ioProxyDirector = new SimpleIODirector("localhost", server.getLocalPort(), Executors.newCachedThreadPool())
+    {
+      @Override
+      public ConnectionParameters onConnectRequest(HttpRequest httpRequest) throws EndProxiedRequestException
+      {
+        return connectTo(httpRequest);
+      }
+
+      @Override
+      public void onTunnelClosed(HttpRequest httpRequest, ConnectionParameters connectionParameters, long bytesFromClient, long bytesFromServer)
+      {
+        tunnelsClosed.add(new long[] {bytesFromClient, bytesFromServer});
+      }
+
+      @Override
+      public void onConnectionFailed(HttpRequest httpRequest, ConnectionParameters connectionParameters, IOException e)
+      {}
+    };
+
+    final ServerSocket serverSocket = new ServerSocket(0);
+    ioPort = serverSocket.getLocalPort();
+    ioAcceptLoop = new ServerSocketAcceptLoop(ioProxyDirector);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          ioAcceptLoop.start(serverSocket);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    nioAcceptLoop.stop();
+    ioAcceptLoop.stop();
+    server.close();
+  }
+
+  static ConnectionParameters connectTo(HttpRequest httpRequest)
+  {
+    return httpRequest.path.startsWith("forbidden.example:") ? null : ConnectionParameters.forConnect(httpRequest);
+  }
+
+  @Test
+  public void nioConnect() throws Exception
+  {
+    connect(nioPort);
+  }
+
+  @Test
+  public void ioConnect() throws Exception
+  {
+    connect(ioPort);
+  }
+
+  @Test
+  public void nioRefused() throws Exception
+  {
+    refused(nioPort);
+  }
+
+  @Test
+  public void ioRefused() throws Exception
+  {
+    refused(ioPort);
+  }
+
+  @Test
+  public void forConnect() throws Exception
+  {
+    ConnectionParameters connectionParameters = ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT example.com:443 HTTP/1.1"));
+    assertEquals("example.com", connectionParameters.ipOrHost);
+    assertEquals(443, connectionParameters.port);
+    assertFalse(connectionParameters.ssl);
+
+    connectionParameters = ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT [::1]:8443 HTTP/1.1"));
+    assertEquals("::1", connectionParameters.ipOrHost);
+    assertEquals(8443, connectionParameters.port);
+
+    assertNull(ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT example.com HTTP/1.1")));
+    assertNull(ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT example.com: HTTP/1.1")));
+    assertNull(ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT :443 HTTP/1.1")));
+    assertNull(ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT example.com:https HTTP/1.1")));
+    assertNull(ConnectionParameters.forConnect(new HttpRequest(null, true, false, "CONNECT example.com:70000 HTTP/1.1")));
+  }
+
+  static void connect(int port) throws Exception
+  {
+    tunnelsClosed.clear();
+    Socket socket = UpgradeTunnelTest.connect(port);
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+
+    /*
+     * Bytes sent right behind the request (a TLS client hello for example) are the first through the tunnel.
+     */
+    String authority = "localhost:" + server.getLocalPort();
+    out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\nearly").getBytes());
+    assertTrue(readHeader(in).startsWith("HTTP/1.1 200"));
+    assertEquals("early", read(in, 5));
+
+    String notHttp = "\u0016\u0003\u0001 not http\r\n\r\n";
+    out.write(notHttp.getBytes());
+    assertEquals(notHttp, read(in, notHttp.length()));
+
+    socket.shutdownOutput();
+    assertEquals("bye", read(in, 3));
+    assertEquals(-1, in.read());
+    socket.close();
+
+    long[] bytes = tunnelsClosed.poll(5, TimeUnit.SECONDS);
+    assertNotNull(bytes);
+    assertEquals(5 + notHttp.length(), bytes[0]);
+    assertEquals(5 + notHttp.length() + 3, bytes[1]);
+  }
+
+  static void refused(int port) throws Exception
+  {
+    Socket socket = UpgradeTunnelTest.connect(port);
+    socket.getOutputStream().write("CONNECT forbidden.example:443 HTTP/1.1\r\nHost: forbidden.example:443\r\n\r\n".getBytes());
+    assertTrue(readHeader(socket.getInputStream()).startsWith("HTTP/1.1 403"));
+    socket.close();
+
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    String authority = "localhost:" + closed.getLocalPort();
+    socket = UpgradeTunnelTest.connect(port);
+    socket.getOutputStream().write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes());
+    assertTrue(readHeader(socket.getInputStream()).startsWith("HTTP/1.1 502"));
+    socket.close();
+  }
+}
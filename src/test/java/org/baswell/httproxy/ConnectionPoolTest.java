@@ -0,0 +1,98 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest
+{
+  /*
+   * Connections made with one SSL context aren't handed out for another to the same server.
+   */
+  @Test
+  public void keyedBySSLContext() throws Exception
+  {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, null, null);
+    SSLContext otherSSLContext = SSLContext.getInstance("TLS");
+    otherSSLContext.init(null, null, null);
+
+    ConnectionParameters connectionParameters = new ConnectionParameters("localhost", 443, sslContext);
+    ConnectionParameters otherConnectionParameters = new ConnectionParameters("localhost", 443, otherSSLContext);
+    assertEquals(connectionParameters, new ConnectionParameters("localhost", 443, sslContext));
+    assertEquals(connectionParameters.hashCode(), new ConnectionParameters("localhost", 443, sslContext).hashCode());
+    assertFalse(connectionParameters.equals(otherConnectionParameters));
+
+    TestPool pool = new TestPool(new SimpleNIOProxyDirector("localhost", 443));
+    Object connection = new Object();
+    pool.reserve(connectionParameters);
+    pool.release(connectionParameters, connection, true);
+    assertNull(pool.checkoutIdle(otherConnectionParameters));
+    assertSame(connection, pool.checkoutIdle(connectionParameters));
+  }
+
+  /*
+   * A server is dropped once it has no connections open and counting starts over if it's connected to again.
+   */
+  @Test
+  public void emptyServersDropped() throws IOException
+  {
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", 80);
+    proxyDirector.maxConnectionsPerServer = 1;
+    TestPool pool = new TestPool(proxyDirector);
+    ConnectionParameters first = new ConnectionParameters("first", 80);
+    ConnectionParameters second = new ConnectionParameters("second", 80);
+
+    Object connection = new Object();
+    pool.reserve(first);
+    pool.release(first, connection, true);
+    pool.reserve(second);
+    assertEquals(2, pool.getServerCount());
+
+    pool.closeIdle();
+    assertEquals(1, pool.getServerCount());
+    assertEquals(1, pool.closed.size());
+    assertSame(connection, pool.closed.get(0));
+
+    pool.reserve(first);
+    try
+    {
+      pool.reserve(first);
+      fail();
+    }
+    catch (IOException e)
+    {}
+
+    pool.release(first, new Object(), false);
+    pool.release(second, new Object(), false);
+    pool.closeIdle();
+    assertEquals(0, pool.getServerCount());
+  }
+
+  static class TestPool extends ConnectionPool<Object>
+  {
+    final List<Object> closed = new ArrayList<Object>();
+
+    TestPool(ProxyDirector proxyDirector)
+    {
+      super(proxyDirector);
+    }
+
+    @Override
+    boolean isHealthy(Object connection)
+    {
+      return true;
+    }
+
+    @Override
+    void closeQuitely(Object connection)
+    {
+      closed.add(connection);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.baswell.httproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a sticky session director does per exchange: look up the route cookie of a request with a typical browser Cookie
+ * header (a few times, as directors tend to), and parse and rewrite a Set-Cookie with an Expires date. Compared against
+ * splitting the Cookie header on every lookup and SimpleDateFormat for the dates (as before).
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=CookieBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark
+{
+  static final String COOKIE = "_ga=GA1.2.1234567890.1234567890; _gid=GA1.2.987654321.1234567890; JSESSIONID=8A6C2A1F9B3E4D5C6B7A8F9E0D1C2B3A; "
+      + "theme=dark; lang=en-US; consent=analytics%2Cmarketing; route=backend-2";
+
+  static final String SET_COOKIE = "route=backend-2; Expires=Tue, 15 Jan 2013 21:47:38 GMT; Path=/; Domain=.example.com; HttpOnly";
+
+  private HttpRequest request;
+
+  @Setup
+  public void setup()
+  {
+    request = new HttpRequest("127.0.0.1", true, false, "GET / HTTP/1.1");
+    request.headers.add(new HttpHeader("Host", "www.example.com"));
+    request.headers.add(new HttpHeader("Cookie", COOKIE));
+  }
+
+  @Benchmark
+  public String cookieView()
+  {
+    String route = null;
+    for (int i = 0; i < 3; i++)
+    {
+      route = request.getCookieValue("route");
+    }
+    return route;
+  }
+
+  @Benchmark
+  public String splitEachLookup()
+  {
+    String route = null;
+    for (int i = 0; i < 3; i++)
+    {
+      for (String pair : request.getHeaderValue("Cookie").split(";"))
+      {
+        String[] nameValue = pair.trim().split("=");
+        if (nameValue[0].trim().equals("route"))
+        {
+          route = nameValue[1].trim();
+          break;
+        }
+      }
+    }
+    return route;
+  }
+
+  @Benchmark
+  public String setCookieRewrite()
+  {
+    HttpCookie cookie = new HttpCookie(SET_COOKIE);
+    return new HttpCookie(cookie.name, "backend-3", cookie.domain, cookie.path, cookie.expiresAt, cookie.secure, cookie.httpOnly).toString();
+  }
+
+  @Benchmark
+  public String setCookieRewriteSimpleDateFormat() throws Exception
+  {
+    String[] attributes = SET_COOKIE.split(";");
+    long expiresAt = new SimpleDateFormat(HttpDate.PATTERN_RFC1123).parse(attributes[1].split("=")[1].trim()).getTime();
+    return "route=backend-3; Domain=.example.com; Path=/; Expires=" + new SimpleDateFormat(HttpDate.PATTERN_RFC1036).format(new Date(expiresAt)) + "; HttpOnly";
+  }
+}
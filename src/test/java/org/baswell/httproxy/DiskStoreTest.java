@@ -0,0 +1,193 @@
+package org.baswell.httproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+
+import static org.baswell.httproxy.ResponseCacheTest.*;
+import static org.junit.Assert.*;
+
+public class DiskStoreTest
+{
+  File directory;
+
+  @Before
+  public void createDirectory() throws Exception
+  {
+    directory = Files.createTempDirectory("httproxy-cache").toFile();
+  }
+
+  @After
+  public void deleteDirectory()
+  {
+    deleteAll(directory);
+  }
+
+  @Test
+  public void restartRebuildsIndex() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 16 * 1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "X-Server: test"), "first"));
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "X-Server: test"), "second"));
+    assertTrue(store(cache, request("GET", "/b"), response(200, "Cache-Control: max-age=60"), "invalidated"));
+    assertTrue(store(cache, request("GET", "/v", "Accept-Encoding: gzip"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Encoding"), "gzip"));
+    assertTrue(store(cache, request("GET", "/v"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Encoding"), "identity"));
+    cache.onRequest(request("POST", "/b"));
+    cache.close();
+
+    cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 16 * 1024 * 1024);
+    assertEquals(3, cache.getDiskEntryCount());
+    assertEquals(0, cache.getEntryCount());
+
+    CachedResponse cachedResponse = cache.get(request("GET", "/a"));
+    assertNotNull(cachedResponse);
+    assertNull(cachedResponse.body);
+    assertTrue(new String(cachedResponse.header).contains("X-Server: test\r\n"));
+    assertEquals("second", body(cachedResponse));
+    assertNull(cache.get(request("GET", "/b")));
+    assertEquals("gzip", body(cache.get(request("GET", "/v", "Accept-Encoding: gzip"))));
+    assertEquals("identity", body(cache.get(request("GET", "/v"))));
+    assertNull(cache.get(request("GET", "/v", "Accept-Encoding: br")));
+    assertEquals(3, cache.getDiskHitCount());
+    cache.close();
+  }
+
+  @Test
+  public void largeResponsesOnlyOnDisk() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 16 * 1024 * 1024);
+    String large = repeat('x', 200 * 1024);
+    assertTrue(store(cache, request("GET", "/large"), response(200, "Cache-Control: max-age=60"), large));
+    assertEquals(0, cache.getEntryCount());
+    cache.close();
+
+    cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 16 * 1024 * 1024);
+    CachedResponse cachedResponse = cache.get(request("GET", "/large"));
+    assertEquals(large.length(), cachedResponse.bodyLength);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(out);
+    long written = 0;
+    while (written < cachedResponse.bodyLength)
+    {
+      written += cachedResponse.writeBody(channel, written);
+    }
+    cachedResponse.release();
+    assertEquals(large, out.toString());
+    cache.close();
+  }
+
+  /*
+   * Rewriting most of the first segment's responses leaves it mostly dead records. The live ones are copied forward and
+   * its file is deleted.
+   */
+  @Test
+  public void compaction() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 16 * 1024 * 1024);
+    for (int i = 0; i < 10; i++)
+    {
+      assertTrue(store(cache, request("GET", "/" + i), response(200, "Cache-Control: max-age=60"), i + repeat('a', 100 * 1024)));
+    }
+    for (int i = 0; i < 6; i++)
+    {
+      assertTrue(store(cache, request("GET", "/" + i), response(200, "Cache-Control: max-age=60"), i + repeat('b', 100 * 1024)));
+    }
+    cache.close();
+    assertFalse(new File(directory, "segment-0").exists());
+
+    cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 16 * 1024 * 1024);
+    assertEquals(10, cache.getDiskEntryCount());
+    for (int i = 0; i < 10; i++)
+    {
+      assertEquals(i + repeat((i < 6) ? 'b' : 'a', 100 * 1024), body(cache.get(request("GET", "/" + i))));
+    }
+    assertTrue(cache.getDiskBytes() < 17 * 100 * 1024);
+    cache.close();
+  }
+
+  @Test
+  public void oldestSegmentsDropped() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 4 * 1024 * 1024);
+    for (int i = 0; i < 100; i++)
+    {
+      store(cache, request("GET", "/" + i), response(200, "Cache-Control: max-age=60"), repeat('c', 100 * 1024));
+    }
+    cache.close();
+
+    cache = new ResponseCache(64 * 1024, 512 * 1024, directory, 4 * 1024 * 1024);
+    assertTrue(cache.getDiskBytes() <= 4 * 1024 * 1024);
+    assertNull(cache.get(request("GET", "/0")));
+    assertNotNull(cache.get(request("GET", "/99")));
+    cache.close();
+  }
+
+  /*
+   * Purges find the responses rebuilt from the segments. A soft purge leaves them stale until a restart, which drops
+   * them.
+   */
+  @Test
+  public void purges() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 16 * 1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Cache-Tag: t"), "a"));
+    assertTrue(store(cache, request("GET", "/b"), response(200, "Cache-Control: max-age=60", "Cache-Tag: t"), "b"));
+    assertTrue(store(cache, request("GET", "/c"), response(200, "Cache-Control: max-age=60"), "c"));
+    cache.close();
+
+    cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 16 * 1024 * 1024);
+    assertEquals(3, cache.getDiskEntryCount());
+    assertEquals(2, cache.purgeTag("t", true));
+    assertNull(cache.get(request("GET", "/a")));
+    CachedResponse stale = cache.getStale(request("GET", "/a"));
+    assertTrue(stale.retain());
+    assertEquals("a", body(stale));
+    assertEquals(1, cache.purgePrefix("example.com", "/c", false));
+    assertNull(cache.getStale(request("GET", "/c")));
+    cache.close();
+
+    cache = new ResponseCache(1024 * 1024, 64 * 1024, directory, 16 * 1024 * 1024);
+    assertEquals(0, cache.getDiskEntryCount());
+    assertNull(cache.getStale(request("GET", "/a")));
+    assertEquals(0, cache.purgeTag("t", false));
+    cache.close();
+  }
+
+  static String body(CachedResponse cachedResponse) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cachedResponse.writeBody(out, new byte[1000]);
+    cachedResponse.release();
+    return out.toString();
+  }
+
+  static String repeat(char c, int count)
+  {
+    StringBuilder repeated = new StringBuilder(count);
+    for (int i = 0; i < count; i++)
+    {
+      repeated.append(c);
+    }
+    return repeated.toString();
+  }
+
+  static void deleteAll(File directory)
+  {
+    File[] files = directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+}
@@ -0,0 +1,440 @@
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.baswell.httproxy.Http2Connection.*;
+
+/**
+ * A minimal blocking h2c (prior knowledge) server to stand in for an HTTP/2 backend. A reader thread per connection and a
+ * thread per response so response DATA can wait on the client's WINDOW_UPDATEs. Run with no arguments to try it with
+ * {@code curl --http2-prior-knowledge}.
+ */
+class H2cServer
+{
+  interface Handler
+  {
+    Response respond(Request request) throws IOException;
+  }
+
+  static class Request
+  {
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    final List<HttpHeader> trailers = new ArrayList<HttpHeader>();
+
+    String method()
+    {
+      return headers.get(":method");
+    }
+
+    String path()
+    {
+      return headers.get(":path");
+    }
+  }
+
+  static class Response
+  {
+    final int status;
+
+    final List<HttpHeader> headers = new ArrayList<HttpHeader>();
+
+    final byte[] body;
+
+    final List<HttpHeader> trailers = new ArrayList<HttpHeader>();
+
+    /*
+     * Send RST_STREAM with this error code instead of a response if not -1.
+     */
+    int resetCode = -1;
+
+    Response(int status, byte[] body)
+    {
+      this.status = status;
+      this.body = body;
+    }
+
+    Response header(String name, String value)
+    {
+      headers.add(new HttpHeader(name, value));
+      return this;
+    }
+
+    Response trailer(String name, String value)
+    {
+      trailers.add(new HttpHeader(name, value));
+      return this;
+    }
+  }
+
+  final AtomicInteger connections = new AtomicInteger();
+
+  final AtomicInteger streams = new AtomicInteger();
+
+  final AtomicInteger maxActiveStreams = new AtomicInteger();
+
+  private final ServerSocket serverSocket;
+
+  private final Handler handler;
+
+  private final int maxConcurrentStreams;
+
+  H2cServer(Handler handler, int maxConcurrentStreams) throws IOException
+  {
+    this.handler = handler;
+    this.maxConcurrentStreams = maxConcurrentStreams;
+    serverSocket = new ServerSocket(0);
+
+    Thread thread = new Thread("h2c-accept")
+    {
+      @Override
+      public void run()
+      {
+        while (!serverSocket.isClosed())
+        {
+          try
+          {
+            final Socket socket = serverSocket.accept();
+            connections.incrementAndGet();
+            new Thread("h2c-connection")
+            {
+              @Override
+              public void run()
+              {
+                new ServerConnection(socket).run();
+              }
+            }.start();
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  void close() throws IOException
+  {
+    serverSocket.close();
+  }
+
+  private class ServerConnection
+  {
+    final Socket socket;
+
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    final HpackEncoder encoder = new HpackEncoder();
+
+    final Map<Integer, Request> requests = new HashMap<Integer, Request>();
+
+    final Map<Integer, int[]> sendWindows = new HashMap<Integer, int[]>();
+
+    final int[] connectionSendWindow = {DEFAULT_WINDOW_SIZE};
+
+    int initialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    int activeStreams;
+
+    OutputStream out;
+
+    ServerConnection(Socket socket)
+    {
+      this.socket = socket;
+    }
+
+    void run()
+    {
+      try
+      {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE))
+        {
+          throw new IOException("Bad preface.");
+        }
+
+        byte[] settings = new byte[6];
+        settings[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        Http2Connection.putInt(settings, 2, maxConcurrentStreams);
+        writeFrame(SETTINGS, 0, 0, settings);
+
+        int continuationStream = 0;
+        boolean continuationEndStream = false;
+        TByteArrayList block = new TByteArrayList();
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        while (true)
+        {
+          in.readFully(header);
+          int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+          int type = header[3] & 0xff;
+          int flags = header[4] & 0xff;
+          int streamId = Http2Connection.getInt(header, 5) & 0x7fffffff;
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+
+          switch (type)
+          {
+            case HEADERS:
+            case CONTINUATION:
+              int offset = 0;
+              int padding = 0;
+              if (type == HEADERS)
+              {
+                continuationStream = streamId;
+                continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+                block.resetQuick();
+                if ((flags & FLAG_PADDED) != 0) padding = payload[offset++] & 0xff;
+                if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+              }
+              block.add(payload, offset, length - offset - padding);
+              if ((flags & FLAG_END_HEADERS) != 0)
+              {
+                onHeaderBlock(continuationStream, continuationEndStream, block.toArray());
+              }
+              break;
+
+            case DATA:
+              offset = 0;
+              padding = 0;
+              if ((flags & FLAG_PADDED) != 0) padding = payload[offset++] & 0xff;
+              Request request = requests.get(streamId);
+              request.body.write(payload, offset, length - offset - padding);
+              if (length > 0)
+              {
+                byte[] increment = new byte[4];
+                Http2Connection.putInt(increment, 0, length);
+                writeFrame(WINDOW_UPDATE, 0, 0, increment);
+                if ((flags & FLAG_END_STREAM) == 0) writeFrame(WINDOW_UPDATE, 0, streamId, increment);
+              }
+              if ((flags & FLAG_END_STREAM) != 0) respond(streamId);
+              break;
+
+            case SETTINGS:
+              if ((flags & FLAG_ACK) == 0)
+              {
+                for (int i = 0; i + 6 <= length; i += 6)
+                {
+                  int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                  int value = Http2Connection.getInt(payload, i + 2);
+                  if (id == SETTINGS_INITIAL_WINDOW_SIZE)
+                  {
+                    synchronized (this)
+                    {
+                      for (int[] window : sendWindows.values()) window[0] += value - initialWindowSize;
+                      initialWindowSize = value;
+                      notifyAll();
+                    }
+                  }
+                }
+                writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+              }
+              break;
+
+            case WINDOW_UPDATE:
+              synchronized (this)
+              {
+                int[] window = (streamId == 0) ? connectionSendWindow : sendWindows.get(streamId);
+                if (window != null) window[0] += Http2Connection.getInt(payload, 0) & 0x7fffffff;
+                notifyAll();
+              }
+              break;
+
+            case PING:
+              if ((flags & FLAG_ACK) == 0) writeFrame(PING, FLAG_ACK, 0, payload);
+              break;
+
+            case RST_STREAM:
+              synchronized (this)
+              {
+                requests.remove(streamId);
+                sendWindows.remove(streamId);
+                notifyAll();
+              }
+              break;
+
+            case GOAWAY:
+              return;
+          }
+        }
+      }
+      catch (IOException e)
+      {}
+      finally
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e)
+        {}
+      }
+    }
+
+    void onHeaderBlock(int streamId, boolean endStream, byte[] block) throws IOException
+    {
+      List<HttpHeader> fields = new ArrayList<HttpHeader>();
+      decoder.decode(block, 0, block.length, fields);
+      Request request = requests.get(streamId);
+      if (request == null)
+      {
+        request = new Request();
+        for (HttpHeader field : fields) request.headers.put(field.name, field.value);
+        synchronized (this)
+        {
+          requests.put(streamId, request);
+          sendWindows.put(streamId, new int[] {initialWindowSize});
+          streams.incrementAndGet();
+          maxActiveStreams.set(Math.max(maxActiveStreams.get(), ++activeStreams));
+        }
+      }
+      else
+      {
+        request.trailers.addAll(fields);
+      }
+      if (endStream) respond(streamId);
+    }
+
+    void respond(final int streamId)
+    {
+      final Request request = requests.get(streamId);
+      new Thread("h2c-stream-" + streamId)
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            Response response = handler.respond(request);
+            if (response.resetCode != -1)
+            {
+              byte[] code = new byte[4];
+              Http2Connection.putInt(code, 0, response.resetCode);
+              writeFrame(RST_STREAM, 0, streamId, code);
+            }
+            else
+            {
+              boolean headOnly = "HEAD".equals(request.method());
+              boolean noBody = headOnly || (response.body.length == 0 && response.trailers.isEmpty());
+              writeHeaders(streamId, noBody, response.status, response.headers);
+              if (!headOnly) writeBody(streamId, response.body, response.trailers.isEmpty());
+              if (!headOnly && !response.trailers.isEmpty()) writeHeaders(streamId, true, -1, response.trailers);
+            }
+          }
+          catch (IOException e)
+          {}
+          finally
+          {
+            synchronized (ServerConnection.this)
+            {
+              requests.remove(streamId);
+              sendWindows.remove(streamId);
+              activeStreams--;
+            }
+          }
+        }
+      }.start();
+    }
+
+    void writeHeaders(int streamId, boolean endStream, int status, List<HttpHeader> headers) throws IOException
+    {
+      synchronized (out)
+      {
+        TByteArrayList block = new TByteArrayList();
+        encoder.beginBlock(block);
+        if (status != -1) encoder.encode(":status", String.valueOf(status), block);
+        for (HttpHeader header : headers) encoder.encode(header.name.toLowerCase(), header.value, block);
+        writeFrame(HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId, block.toArray());
+      }
+    }
+
+    void writeBody(int streamId, byte[] body, boolean endStream) throws IOException
+    {
+      int position = 0;
+      while (position < body.length)
+      {
+        int length;
+        synchronized (this)
+        {
+          int[] window = sendWindows.get(streamId);
+          while (window != null && (window[0] <= 0 || connectionSendWindow[0] <= 0))
+          {
+            try
+            {
+              wait();
+            }
+            catch (InterruptedException e)
+            {
+              throw new IOException(e);
+            }
+            window = sendWindows.get(streamId);
+          }
+          if (window == null)
+          {
+            return;
+          }
+          length = Math.min(Math.min(window[0], connectionSendWindow[0]), Math.min(DEFAULT_MAX_FRAME_SIZE, body.length - position));
+          window[0] -= length;
+          connectionSendWindow[0] -= length;
+        }
+        boolean last = position + length == body.length;
+        writeFrame(DATA, (last && endStream) ? FLAG_END_STREAM : 0, streamId, Arrays.copyOfRange(body, position, position + length));
+        position += length;
+      }
+      if (body.length == 0 && endStream)
+      {
+        writeFrame(DATA, FLAG_END_STREAM, streamId, new byte[0]);
+      }
+    }
+
+    void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException
+    {
+      synchronized (out)
+      {
+        byte[] frame = Http2Connection.frame(payload.length, type, flags, streamId);
+        System.arraycopy(payload, 0, frame, FRAME_HEADER_LENGTH, payload.length);
+        out.write(frame);
+        out.flush();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    H2cServer server = new H2cServer(new Handler()
+    {
+      @Override
+      public Response respond(Request request) throws IOException
+      {
+        String body = request.method() + " " + request.path() + " " + request.body.size() + "\n";
+        return new Response(200, body.getBytes()).header("Content-Type", "text/plain");
+      }
+    }, 100);
+    System.out.println("Listening on " + server.getPort());
+    Thread.sleep(Long.MAX_VALUE);
+  }
+}
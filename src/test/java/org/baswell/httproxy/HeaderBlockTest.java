@@ -0,0 +1,120 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class HeaderBlockTest
+{
+  static final String REQUEST = "GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\nX-Custom:no-space\r\nConnection: keep-alive\r\n\r\n";
+
+  @Test
+  public void unmodifiedPassesThrough()
+  {
+    HttpMessage message = read(REQUEST);
+    byte[] bytes = message.toBytes();
+    assertEquals(REQUEST, new String(bytes));
+    assertSame(bytes, message.toBytes());
+  }
+
+  @Test
+  public void modifiedHeaderReencoded()
+  {
+    HttpMessage message = read(REQUEST);
+    message.setOrAddHeader("Accept", "text/html");
+    assertEquals("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: text/html\r\nX-Custom:no-space\r\nConnection: keep-alive\r\n\r\n", new String(message.toBytes()));
+  }
+
+  @Test
+  public void addedRemovedAndReordered()
+  {
+    HttpMessage message = read(REQUEST);
+    message.removeHeader("Accept");
+    message.headers.add(new HttpHeader("Via", "1.1 proxy"));
+    message.headers.add(0, message.headers.remove(2));
+    assertEquals("GET /index.html HTTP/1.1\r\nConnection: keep-alive\r\nHost: www.example.com\r\nX-Custom:no-space\r\nVia: 1.1 proxy\r\n\r\n", new String(message.toBytes()));
+  }
+
+  @Test
+  public void renamedHeaderReencoded()
+  {
+    HttpMessage message = read(REQUEST);
+    message.headers.get(2).name = "X-Other";
+    assertEquals("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\nX-Other: no-space\r\nConnection: keep-alive\r\n\r\n", new String(message.toBytes()));
+  }
+
+  @Test
+  public void statusLineChanges()
+  {
+    HttpRequest request = (HttpRequest)read(REQUEST);
+    request.path = "/other.html";
+    assertEquals("GET /other.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\nX-Custom:no-space\r\nConnection: keep-alive\r\n\r\n", new String(request.toBytes()));
+
+    HttpResponse response = (HttpResponse)read("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n", new String(response.toBytes()));
+    response.statusCode = 404;
+    response.reasonPhrase = "Not Found";
+    assertEquals("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n", new String(response.toBytes()));
+  }
+
+  @Test
+  public void irregularLinesNormalized()
+  {
+    HttpMessage message = read("GET  /  HTTP/1.1\nHost : localhost\n  Accept:  */*  \nbad line\n\n");
+    assertEquals("GET / HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n", new String(message.toBytes()));
+  }
+
+  @Test
+  public void rawBytesKept()
+  {
+    byte[] raw = "GET / HTTP/1.1\r\nX-Name: caf\u00e9\r\n\r\n".getBytes(LineReader.ISO_8859_1);
+    HttpMessage message = read(new String(raw, LineReader.ISO_8859_1));
+    assertArrayEquals(raw, message.toBytes());
+  }
+
+  /*
+   * Header values are decoded byte for byte so a changed header written back keeps the bytes it was read with (UTF-8 here).
+   */
+  @Test
+  public void modifiedHeaderBytesKept() throws Exception
+  {
+    byte[] raw = "HTTP/1.1 200 OK\r\nContent-Disposition: attachment; filename=\"caf\u00e9.txt\"\r\n\r\n".getBytes("UTF-8");
+    HttpMessage message = read(new String(raw, LineReader.ISO_8859_1));
+    message.setOrAddHeader("Content-Disposition", message.getHeaderValue("Content-Disposition") + "; size=4");
+    byte[] expected = "HTTP/1.1 200 OK\r\nContent-Disposition: attachment; filename=\"caf\u00e9.txt\"; size=4\r\n\r\n".getBytes("UTF-8");
+    assertArrayEquals(expected, message.toBytes());
+    assertEquals(new String(expected, LineReader.ISO_8859_1), message.toString());
+
+    HttpResponse response = (HttpResponse)message;
+    response.reasonPhrase = "\u00c9tat";
+    assertTrue(new String(response.toBytes(), LineReader.ISO_8859_1).startsWith("HTTP/1.1 200 \u00c9tat\r\n"));
+  }
+
+  static HttpMessage read(String header)
+  {
+    byte[] bytes = header.getBytes(LineReader.ISO_8859_1);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    LineReader lineReader = new LineReader();
+
+    assertTrue(lineReader.readLine(buffer));
+    HttpMessage message;
+    if (header.startsWith("HTTP/"))
+    {
+      message = new HttpResponse(true, false, null, lineReader.lineToString());
+    }
+    else
+    {
+      message = new HttpRequest("127.0.0.1", true, false, lineReader.lineToString());
+    }
+    message.captureStatusLine(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
+
+    while (lineReader.readLine(buffer) && (lineReader.lineEnd > lineReader.lineStart))
+    {
+      message.addHeader(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
+    }
+    message.onHeaderBlockEnd();
+    return message;
+  }
+}
@@ -0,0 +1,90 @@
+package org.baswell.httproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a header block read off the wire to be forwarded: passed through as read, with one header changed by the
+ * director (only that line encoded) and fully re-encoded (a message without the raw header block, as before).
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=HeaderEncodingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderEncodingBenchmark
+{
+  @Param({"request", "response"})
+  public String headerSet;
+
+  private HttpMessage unchanged;
+
+  private HttpMessage oneHeaderChanged;
+
+  private HttpMessage withoutRaw;
+
+  @Setup
+  public void setup()
+  {
+    byte[] bytes = (headerSet.equals("request") ? HeaderParsingBenchmark.BROWSER_REQUEST : HeaderParsingBenchmark.API_RESPONSE).getBytes();
+    unchanged = read(bytes, true);
+    oneHeaderChanged = read(bytes, true);
+    oneHeaderChanged.setOrAddHeader("Connection", "close");
+    withoutRaw = read(bytes, false);
+  }
+
+  @Benchmark
+  public byte[] passThrough()
+  {
+    return unchanged.toBytes();
+  }
+
+  @Benchmark
+  public byte[] oneHeaderChanged()
+  {
+    return oneHeaderChanged.toBytes();
+  }
+
+  @Benchmark
+  public byte[] reencoded()
+  {
+    return withoutRaw.toBytes();
+  }
+
+  static HttpMessage read(byte[] bytes, boolean keepRaw)
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    LineReader lineReader = new LineReader();
+    lineReader.readLine(buffer);
+    String statusLine = lineReader.lineToString();
+    HttpMessage message = statusLine.startsWith("HTTP/") ? new HttpResponse(true, false, null, statusLine) : new HttpRequest("127.0.0.1", true, false, statusLine);
+    if (keepRaw)
+    {
+      message.captureStatusLine(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
+    }
+
+    while (lineReader.readLine(buffer) && (lineReader.lineEnd > lineReader.lineStart))
+    {
+      message.addHeader(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
+    }
+    message.onHeaderBlockEnd();
+    return message;
+  }
+}
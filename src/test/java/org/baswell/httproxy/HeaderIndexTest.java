@@ -0,0 +1,190 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderIndexTest
+{
+  @Test
+  public void caseInsensitiveLookup()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Content-Length", "10"));
+    message.headers.add(new HttpHeader("x-custom-header", "a"));
+
+    assertEquals("10", message.getHeaderValue("content-length"));
+    assertEquals("10", message.getHeaderValue("CONTENT-LENGTH"));
+    assertEquals("a", message.getHeaderValue("X-Custom-Header"));
+    assertTrue(message.hasHeader("Content-Length"));
+    assertTrue(message.hasContent());
+    assertFalse(message.hasHeader("Transfer-Encoding"));
+    assertNull(message.getHeaderValue("X-Missing"));
+  }
+
+  @Test
+  public void duplicatesInListOrder()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Set-Cookie", "a=1"));
+    message.headers.add(new HttpHeader("Host", "localhost"));
+    message.headers.add(new HttpHeader("set-cookie", "b=2"));
+    message.headers.add(new HttpHeader("SET-COOKIE", "c=3"));
+
+    List<HttpHeader> cookies = message.getHeaders("Set-Cookie");
+    assertEquals(3, cookies.size());
+    assertEquals("a=1", cookies.get(0).value);
+    assertEquals("b=2", cookies.get(1).value);
+    assertEquals("c=3", cookies.get(2).value);
+    assertEquals("a=1", message.getHeaderValue("set-cookie"));
+  }
+
+  @Test
+  public void followsListChanges()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Host", "one"));
+    message.headers.add(new HttpHeader("Connection", "keep-alive"));
+    assertEquals("one", message.getHeaderValue("Host"));
+
+    message.headers.add(0, new HttpHeader("Host", "zero"));
+    assertEquals("zero", message.getHeaderValue("Host"));
+
+    message.headers.remove(0);
+    assertEquals("one", message.getHeaderValue("Host"));
+
+    message.headers.set(0, new HttpHeader("Via", "proxy"));
+    assertNull(message.getHeaderValue("Host"));
+    assertEquals("proxy", message.getHeaderValue("Via"));
+
+    Iterator<HttpHeader> iterator = message.headers.iterator();
+    iterator.next();
+    iterator.remove();
+    assertNull(message.getHeaderValue("Via"));
+    assertEquals("keep-alive", message.getHeaderValue("Connection"));
+
+    Collections.reverse(message.headers);
+    message.headers.add(new HttpHeader("Host", "two"));
+    assertEquals("two", message.getHeaderValue("Host"));
+
+    message.headers.clear();
+    assertFalse(message.hasHeader("Host"));
+    assertFalse(message.hasHeader("Connection"));
+  }
+
+  @Test
+  public void renamedInPlace()
+  {
+    HttpMessage message = request();
+    HttpHeader header = new HttpHeader("X-Old", "value");
+    message.headers.add(header);
+    assertTrue(message.hasHeader("X-Old"));
+
+    header.name = "X-New";
+    assertFalse(message.hasHeader("X-Old"));
+    assertEquals("value", message.getHeaderValue("X-New"));
+  }
+
+  /*
+   * Renamed to a name that's looked up for the first time after, the old name is never asked for.
+   */
+  @Test
+  public void renamedToLookedUpName()
+  {
+    HttpMessage message = request();
+    HttpHeader header = new HttpHeader("X-Old", "10");
+    message.headers.add(header);
+    assertTrue(message.hasHeader("X-Old"));
+
+    header.setName("Content-Length");
+    assertTrue(message.hasHeader("Content-Length"));
+    assertEquals("10", message.getHeaderValue("content-length"));
+    assertTrue(message.hasContent());
+  }
+
+  @Test
+  public void replacedThroughSubList()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Host", "localhost"));
+    message.headers.add(new HttpHeader("Via", "proxy"));
+    assertEquals("proxy", message.getHeaderValue("Via"));
+
+    message.headers.subList(1, 2).set(0, new HttpHeader("Transfer-Encoding", "chunked"));
+    assertNull(message.getHeaderValue("Via"));
+    assertEquals("chunked", message.getHeaderValue("Transfer-Encoding"));
+
+    message.headers.subList(0, 2).set(0, new HttpHeader("Content-Length", "10"));
+    assertEquals("10", message.getHeaderValue("Content-Length"));
+    assertNull(message.getHeaderValue("Host"));
+
+    List<HttpHeader> subList = message.headers.subList(1, 2);
+    subList.add(new HttpHeader("Via", "proxy"));
+    assertEquals("proxy", message.getHeaderValue("Via"));
+    subList.clear();
+    assertEquals(1, message.headers.size());
+    assertNull(message.getHeaderValue("Via"));
+    assertNull(message.getHeaderValue("Transfer-Encoding"));
+  }
+
+  @Test
+  public void setOrAddAndRemove()
+  {
+    HttpMessage message = request();
+    message.setOrAddHeader("Connection", "keep-alive");
+    message.setOrAddHeader("connection", "close");
+    assertEquals(1, message.headers.size());
+    assertEquals("close", message.getHeaderValue("Connection"));
+
+    message.removeHeader("CONNECTION");
+    assertFalse(message.hasHeader("Connection"));
+  }
+
+  @Test
+  public void manyHeaders()
+  {
+    HttpMessage message = request();
+    for (int i = 0; i < 200; i++)
+    {
+      message.headers.add(new HttpHeader("X-Header-" + i, "" + i));
+      assertEquals("" + (i / 2), message.getHeaderValue("x-header-" + (i / 2)));
+    }
+
+    for (int i = 0; i < 200; i++)
+    {
+      assertEquals("" + i, message.getHeaderValue("X-HEADER-" + i));
+    }
+    assertNull(message.getHeaderValue("X-Header-200"));
+  }
+
+  @Test
+  public void keepAliveTimeout()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Keep-Alive", "max=99"));
+    message.headers.add(new HttpHeader("keep-alive", "timeout=5, max=99"));
+    assertEquals(Integer.valueOf(5), message.getKeepAliveTimeoutSeconds());
+  }
+
+  @Test
+  public void serialized()
+  {
+    HttpMessage message = request();
+    message.headers.add(new HttpHeader("Host", "localhost"));
+    assertEquals("localhost", message.getHeaderValue("Host"));
+
+    HttpMessage decoded = HttpMessage.decode(message.encode());
+    assertEquals("localhost", decoded.getHeaderValue("host"));
+    decoded.headers.add(new HttpHeader("Via", "proxy"));
+    assertEquals("proxy", decoded.getHeaderValue("via"));
+  }
+
+  static HttpMessage request()
+  {
+    return new HttpRequest("127.0.0.1", true, false, "GET / HTTP/1.1");
+  }
+}
@@ -0,0 +1,103 @@
+package org.baswell.httproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The header lookups the proxy makes on every message (plus a custom header a director might look for) through the
+ * {@link HeaderIndex} against the previous linear scan with equalsIgnoreCase. The looked up headers are at the end of the
+ * list, the worst case for the scan.
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=HeaderLookupBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderLookupBenchmark
+{
+  static final String[] LOOKUPS = {"Content-Length", "Transfer-Encoding", "Connection", "Content-Encoding", "Content-Type", "X-Request-Id"};
+
+  @Param({"10", "30", "80"})
+  public int headerCount;
+
+  private HttpMessage message;
+
+  @Setup
+  public void setup()
+  {
+    message = new HttpResponse(true, false, null, "HTTP/1.1 200 OK");
+    for (int i = 0; message.headers.size() < (headerCount - LOOKUPS.length); i++)
+    {
+      message.headers.add(new HttpHeader("X-Filler-" + i, "value " + i));
+    }
+
+    message.headers.add(new HttpHeader("Content-Type", "application/json"));
+    message.headers.add(new HttpHeader("Connection", "keep-alive"));
+    message.headers.add(new HttpHeader("Content-Length", "1843"));
+    message.headers.add(new HttpHeader("Vary", "Accept-Encoding"));
+    message.headers.add(new HttpHeader("Server", "nginx"));
+    message.headers.add(new HttpHeader("x-request-id", "2b9c6f6e"));
+  }
+
+  @Benchmark
+  public void indexed(Blackhole blackhole)
+  {
+    for (String name : LOOKUPS)
+    {
+      blackhole.consume(message.getHeaderValue(name));
+    }
+  }
+
+  @Benchmark
+  public void linearScan(Blackhole blackhole)
+  {
+    for (String name : LOOKUPS)
+    {
+      blackhole.consume(scan(message.headers, name));
+    }
+  }
+
+  /**
+   * A lookup after each header a director adds, so the index is extended each time.
+   */
+  @Benchmark
+  public HttpMessage indexedWithAppends()
+  {
+    message.setOrAddHeader("Via", "1.1 httproxy");
+    message.setOrAddHeader("X-Forwarded-For", "203.0.113.195");
+    message.getHeaderValue("Host");
+    message.removeHeader("Via");
+    message.removeHeader("X-Forwarded-For");
+    return message;
+  }
+
+  static String scan(List<HttpHeader> headers, String name)
+  {
+    for (HttpHeader header : headers)
+    {
+      if (header.name.equalsIgnoreCase(name))
+      {
+        return header.value;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,143 @@
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.baswell.httproxy.Constants.*;
+
+/**
+ * Header block parsing with {@link LineReader} against the previous byte at a time line copy.
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=HeaderParsingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParsingBenchmark
+{
+  static final String BROWSER_REQUEST = "GET /app/dashboard/summary?range=7d&tz=America%2FNew_York HTTP/1.1\r\n" +
+      "Host: www.example.com\r\n" +
+      "Connection: keep-alive\r\n" +
+      "Cache-Control: max-age=0\r\n" +
+      "Upgrade-Insecure-Requests: 1\r\n" +
+      "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n" +
+      "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n" +
+      "Sec-Fetch-Site: same-origin\r\n" +
+      "Sec-Fetch-Mode: navigate\r\n" +
+      "Sec-Fetch-User: ?1\r\n" +
+      "Sec-Fetch-Dest: document\r\n" +
+      "Referer: https://www.example.com/app/login\r\n" +
+      "Accept-Encoding: gzip, deflate, br\r\n" +
+      "Accept-Language: en-US,en;q=0.9\r\n" +
+      "Cookie: JSESSIONID=7F3A1C0E9B2D44A6B1E8C5D3F0A9B7C2; _ga=GA1.2.1234567890.1697040000; theme=dark\r\n" +
+      "If-None-Match: W/\"5d41402abc4b2a76b9719d911017c592\"\r\n" +
+      "If-Modified-Since: Tue, 10 Oct 2023 08:12:31 GMT\r\n" +
+      "X-Forwarded-For: 203.0.113.195\r\n" +
+      "X-Forwarded-Proto: https\r\n" +
+      "X-Request-Id: 2b9c6f6e-8d1a-4c53-9d8e-7f0a6b2c1d34\r\n" +
+      "\r\n";
+
+  static final String API_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+      "Date: Wed, 11 Oct 2023 14:28:02 GMT\r\n" +
+      "Content-Type: application/json; charset=utf-8\r\n" +
+      "Content-Length: 1843\r\n" +
+      "Connection: keep-alive\r\n" +
+      "Keep-Alive: timeout=5, max=100\r\n" +
+      "Server: nginx/1.25.2\r\n" +
+      "Vary: Accept-Encoding, Origin\r\n" +
+      "Cache-Control: private, no-cache, no-store, must-revalidate\r\n" +
+      "Pragma: no-cache\r\n" +
+      "Expires: 0\r\n" +
+      "ETag: W/\"733-Zx1b6QhK0aWq3Ztl5m4n2Q\"\r\n" +
+      "Access-Control-Allow-Origin: https://www.example.com\r\n" +
+      "Access-Control-Allow-Credentials: true\r\n" +
+      "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n" +
+      "X-Content-Type-Options: nosniff\r\n" +
+      "X-Frame-Options: SAMEORIGIN\r\n" +
+      "X-XSS-Protection: 1; mode=block\r\n" +
+      "X-Request-Id: 2b9c6f6e-8d1a-4c53-9d8e-7f0a6b2c1d34\r\n" +
+      "X-Response-Time: 12ms\r\n" +
+      "Set-Cookie: JSESSIONID=7F3A1C0E9B2D44A6B1E8C5D3F0A9B7C2; Path=/; Secure; HttpOnly\r\n" +
+      "\r\n";
+
+  @Param({"request", "response"})
+  public String headerSet;
+
+  private ByteBuffer buffer;
+
+  private final LineReader lineReader = new LineReader();
+
+  private final TByteArrayList currentLine = new TByteArrayList(AVERAGE_HEADER_LENGTH);
+
+  @Setup
+  public void setup()
+  {
+    buffer = ByteBuffer.wrap((headerSet.equals("request") ? BROWSER_REQUEST : API_RESPONSE).getBytes());
+  }
+
+  @Benchmark
+  public HttpMessage lineReader()
+  {
+    buffer.clear();
+    lineReader.readLine(buffer);
+    HttpMessage message = new HttpRequest("127.0.0.1", true, false, lineReader.lineToString());
+    while (lineReader.readLine(buffer) && (lineReader.lineEnd > lineReader.lineStart))
+    {
+      message.addHeader(lineReader.lineBytes, lineReader.lineStart, lineReader.lineEnd);
+    }
+    return message;
+  }
+
+  @Benchmark
+  public HttpMessage byteAtATime()
+  {
+    buffer.clear();
+    HttpMessage message = new HttpRequest("127.0.0.1", true, false, new String(readNextLine()).trim());
+    byte[] line;
+    while ((line = readNextLine()) != null && (line.length > 2))
+    {
+      String headerLine = new String(line).trim();
+      int index = headerLine.indexOf(':');
+      if ((index > 0) && (index < (headerLine.length() - 1)))
+      {
+        message.headers.add(new HttpHeader(headerLine.substring(0, index).trim(), headerLine.substring(index + 1, headerLine.length()).trim()));
+      }
+    }
+    return message;
+  }
+
+  private byte[] readNextLine()
+  {
+    while (buffer.hasRemaining())
+    {
+      byte b = buffer.get();
+      currentLine.add(b);
+      buffer.mark();
+      if (b == LF)
+      {
+        byte[] lineBytes = currentLine.toArray();
+        currentLine.clear();
+        return lineBytes;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,165 @@
+package org.baswell.httproxy;
+
+import gnu.trove.list.array.TByteArrayList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HpackTest
+{
+  /**
+   * RFC 7541 C.4, requests with Huffman coding.
+   */
+  @Test
+  public void decodesRequestExamples() throws Http2Exception
+  {
+    HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    assertEquals("[:method: GET, :scheme: http, :path: /, :authority: www.example.com]", decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+    assertEquals(57, decoder.size());
+    assertEquals("[:method: GET, :scheme: http, :path: /, :authority: www.example.com, cache-control: no-cache]", decode(decoder, "828684be5886a8eb10649cbf"));
+    assertEquals(110, decoder.size());
+    assertEquals("[:method: GET, :scheme: https, :path: /index.html, :authority: www.example.com, custom-key: custom-value]",
+        decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    assertEquals(164, decoder.size());
+  }
+
+  /**
+   * RFC 7541 C.6, responses with Huffman coding and a 256 byte table so entries get evicted.
+   */
+  @Test
+  public void decodesResponseExamples() throws Http2Exception
+  {
+    HpackDecoder decoder = new HpackDecoder(256);
+    assertEquals("[:status: 302, cache-control: private, date: Mon, 21 Oct 2013 20:13:21 GMT, location: https://www.example.com]",
+        decode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3"));
+    assertEquals(222, decoder.size());
+    assertEquals("[:status: 307, cache-control: private, date: Mon, 21 Oct 2013 20:13:21 GMT, location: https://www.example.com]",
+        decode(decoder, "4883640effc1c0bf"));
+    assertEquals(222, decoder.size());
+    assertEquals("[:status: 200, cache-control: private, date: Mon, 21 Oct 2013 20:13:22 GMT, location: https://www.example.com, "
+        + "content-encoding: gzip, set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1]",
+        decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"));
+    assertEquals(215, decoder.size());
+  }
+
+  @Test
+  public void huffmanCode() throws Http2Exception
+  {
+    TByteArrayList out = new TByteArrayList();
+    Hpack.huffmanEncode("www.example.com", out);
+    assertEquals("f1e3c2e5f23a6ba0ab90f4ff", hex(out.toArray()));
+
+    StringBuilder all = new StringBuilder();
+    for (char c = 0; c < 256; c++)
+    {
+      all.append(c);
+    }
+    out.resetQuick();
+    Hpack.huffmanEncode(all.toString(), out);
+    assertEquals(all.toString(), Hpack.huffmanDecode(out.toArray(), 0, out.size()));
+  }
+
+  @Test
+  public void invalidBlocks()
+  {
+    String[] invalid = {"80", "ff00", "bf", "3fe21f", "8220", "7f80808080808080", "418cf1e3c2e5f23a6ba0ab90f4fe", "4185f1e3c2e5ff", "4101"};
+    for (String block : invalid)
+    {
+      try
+      {
+        decode(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), block);
+        fail("Expected compression error for: " + block);
+      }
+      catch (Http2Exception e)
+      {
+        assertEquals(block, Http2Exception.COMPRESSION_ERROR, e.errorCode);
+      }
+    }
+  }
+
+  /**
+   * Random requests over the same connection must decode to what was encoded, through table evictions and size changes.
+   */
+  @Test
+  public void roundTrip() throws Http2Exception
+  {
+    Random random = new Random(11);
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    for (int run = 0; run < 2000; run++)
+    {
+      if (random.nextInt(100) == 0)
+      {
+        encoder.setMaxTableSize(random.nextInt(5000));
+      }
+
+      List<HttpHeader> headers = new ArrayList<HttpHeader>();
+      headers.add(new HttpHeader(":method", random.nextBoolean() ? "GET" : "POST"));
+      headers.add(new HttpHeader(":path", "/items/" + random.nextInt(1000)));
+      headers.add(new HttpHeader(":authority", "backend-" + random.nextInt(3) + ".local"));
+      for (int i = random.nextInt(10); i > 0; i--)
+      {
+        StringBuilder value = new StringBuilder();
+        for (int j = random.nextInt(random.nextBoolean() ? 10 : 3000); j > 0; j--)
+        {
+          value.append((char)random.nextInt(256));
+        }
+        headers.add(new HttpHeader("x-header-" + random.nextInt(20), value.toString()));
+      }
+      headers.add(new HttpHeader("cookie", "session=" + random.nextInt()));
+
+      TByteArrayList out = new TByteArrayList();
+      encoder.beginBlock(out);
+      for (HttpHeader header : headers)
+      {
+        encoder.encode(header.name, header.value, out);
+      }
+
+      List<HttpHeader> decoded = new ArrayList<HttpHeader>();
+      decoder.decode(out.toArray(), 0, out.size(), decoded);
+      assertEquals(headers.toString(), decoded.toString());
+      assertEquals(encoder.size(), decoder.size());
+    }
+  }
+
+  @Test
+  public void repeatedFieldsIndexed()
+  {
+    HpackEncoder encoder = new HpackEncoder();
+    TByteArrayList first = new TByteArrayList();
+    encoder.encode("user-agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0", first);
+    TByteArrayList second = new TByteArrayList();
+    encoder.encode("user-agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0", second);
+    assertEquals(1, second.size());
+
+    TByteArrayList credentials = new TByteArrayList();
+    encoder.encode("authorization", "Basic dXNlcjpwYXNz", credentials);
+    assertEquals(0x10, credentials.get(0) & 0xf0);
+  }
+
+  static String decode(HpackDecoder decoder, String hex) throws Http2Exception
+  {
+    byte[] block = new byte[hex.length() / 2];
+    for (int i = 0; i < block.length; i++)
+    {
+      block[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    List<HttpHeader> headers = new ArrayList<HttpHeader>();
+    decoder.decode(block, 0, block.length, headers);
+    return headers.toString();
+  }
+
+  static String hex(byte[] bytes)
+  {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes)
+    {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,406 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Http2ConnectionTest
+{
+  static H2cServer server;
+
+  static ServerSocketChannelAcceptLoop acceptLoop;
+
+  static int proxyPort;
+
+  static final byte[] BIG = new byte[1024 * 1024];
+
+  static final AtomicInteger refusals = new AtomicInteger();
+
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    for (int i = 0; i < BIG.length; i++)
+    {
+      BIG[i] = (byte)('a' + (i % 26));
+    }
+
+    server = new H2cServer(new H2cServer.Handler()
+    {
+      @Override
+      public H2cServer.Response respond(H2cServer.Request request) throws IOException
+      {
+        String path = request.path();
+        if (path.equals("/big"))
+        {
+          return new H2cServer.Response(200, BIG);
+        }
+        else if (path.equals("/length"))
+        {
+          return new H2cServer.Response(200, "fixed".getBytes()).header("Content-Length", "5");
+        }
+        else if (path.equals("/trailers"))
+        {
+          return new H2cServer.Response(200, "body".getBytes()).trailer("X-Checksum", "42");
+        }
+        else if (path.equals("/empty"))
+        {
+          return new H2cServer.Response(204, new byte[0]);
+        }
+        else if (path.equals("/refused") || (path.equals("/refused-once") && (refusals.get() == 0)))
+        {
+          refusals.incrementAndGet();
+          H2cServer.Response response = new H2cServer.Response(200, new byte[0]);
+          response.resetCode = Http2Exception.REFUSED_STREAM;
+          return response;
+        }
+        else if (path.equals("/reset"))
+        {
+          H2cServer.Response response = new H2cServer.Response(200, new byte[0]);
+          response.resetCode = Http2Exception.INTERNAL_ERROR;
+          return response;
+        }
+        else
+        {
+          ByteArrayOutputStream body = new ByteArrayOutputStream();
+          body.write((request.method() + " " + path + " " + request.headers.get(":authority") + "\n").getBytes());
+          request.body.writeTo(body);
+          H2cServer.Response response = new H2cServer.Response(200, body.toByteArray());
+          response.header("X-Connection", String.valueOf(request.headers.containsKey("connection")));
+          for (HttpHeader trailer : request.trailers)
+          {
+            response.header("X-Trailer-" + trailer.name, trailer.value);
+          }
+          return response;
+        }
+      }
+    }, 100);
+
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", server.getPort())
+    {
+      @Override
+      public ConnectionParameters onRequestStart(HttpRequest httpRequest)
+      {
+        return new ConnectionParameters("localhost", server.getPort(), true);
+      }
+
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+
+      @Override
+      public void onPrematureResponseClosed(HttpRequest httpRequest, ConnectionParameters connectionParameters, IOException e)
+      {}
+    };
+
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    proxyPort = serverSocketChannel.socket().getLocalPort();
+    acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    acceptLoop.stop();
+    server.close();
+  }
+
+  @Test
+  public void get() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "GET /echo?a=1 HTTP/1.1\r\nHost: example.com\r\nConnection: keep-alive\r\n\r\n");
+    Response response = read(socket, false);
+    assertEquals(200, response.status);
+    assertEquals("chunked", response.headers.get("transfer-encoding"));
+    assertEquals("false", response.headers.get("x-connection"));
+    assertEquals("GET /echo?a=1 example.com\n", new String(response.body));
+
+    send(socket, "GET /length HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    response = read(socket, false);
+    assertEquals("5", response.headers.get("content-length"));
+    assertEquals("fixed", new String(response.body));
+    socket.close();
+  }
+
+  @Test
+  public void postBodies() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "POST /echo HTTP/1.1\r\nHost: example.com\r\nContent-Length: 5\r\n\r\nhello");
+    assertEquals("POST /echo example.com\nhello", new String(read(socket, false).body));
+
+    send(socket, "POST /echo HTTP/1.1\r\nHost: example.com\r\nTransfer-Encoding: chunked\r\nTE: trailers\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\nX-Sum: 9\r\n\r\n");
+    Response response = read(socket, false);
+    assertEquals("POST /echo example.com\nabcde", new String(response.body));
+    assertEquals("9", response.headers.get("x-trailer-x-sum"));
+
+    byte[] big = new byte[600 * 1024];
+    for (int i = 0; i < big.length; i++)
+    {
+      big[i] = (byte)('0' + (i % 10));
+    }
+    OutputStream out = socket.getOutputStream();
+    out.write(("PUT /echo HTTP/1.1\r\nHost: example.com\r\nContent-Length: " + big.length + "\r\n\r\n").getBytes());
+    out.write(big);
+    response = read(socket, false);
+    assertEquals("PUT /echo example.com\n".length() + big.length, response.body.length);
+    socket.close();
+  }
+
+  @Test
+  public void largeResponse() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "GET /big HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    Thread.sleep(200);
+    Response response = read(socket, false);
+    assertArrayEquals(BIG, response.body);
+
+    send(socket, "GET /echo HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    assertEquals(200, read(socket, false).status);
+    socket.close();
+  }
+
+  @Test
+  public void headAndNoContent() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "HEAD /echo HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    Response response = read(socket, true);
+    assertEquals(200, response.status);
+    assertEquals(0, response.body.length);
+
+    send(socket, "GET /empty HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    response = read(socket, false);
+    assertEquals(204, response.status);
+    assertEquals(0, response.body.length);
+
+    send(socket, "GET /trailers HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    response = read(socket, false);
+    assertEquals("body", new String(response.body));
+    assertEquals("42", response.trailers.get("x-checksum"));
+    socket.close();
+  }
+
+  @Test
+  public void http10Client() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "GET /echo HTTP/1.0\r\nHost: example.com\r\n\r\n");
+    Response response = read(socket, false);
+    assertEquals("close", response.headers.get("connection"));
+    assertEquals("GET /echo example.com\n", new String(response.body));
+    assertEquals(-1, socket.getInputStream().read());
+    socket.close();
+  }
+
+  @Test
+  public void resetStreamClosesClient() throws Exception
+  {
+    Socket socket = connect();
+    send(socket, "GET /reset HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    assertEquals(-1, socket.getInputStream().read());
+    socket.close();
+
+    socket = connect();
+    send(socket, "GET /echo HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    assertEquals(200, read(socket, false).status);
+    socket.close();
+  }
+
+  @Test
+  public void refusedStreamsSentAgain() throws Exception
+  {
+    refusals.set(0);
+    Socket socket = connect();
+    send(socket, "GET /refused-once HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    Response response = read(socket, false);
+    assertEquals(200, response.status);
+    assertEquals("GET /refused-once example.com\n", new String(response.body));
+    assertEquals(1, refusals.get());
+    socket.close();
+
+    refusals.set(0);
+    socket = connect();
+    send(socket, "GET /refused HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    assertEquals(-1, socket.getInputStream().read());
+    assertEquals(Http2Connection.MAX_STREAM_REFUSALS + 1, refusals.get());
+    socket.close();
+  }
+
+  @Test
+  public void clientsShareOneConnection() throws Exception
+  {
+    final AtomicInteger failures = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 20; i++)
+    {
+      final int client = i;
+      Thread thread = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            Socket socket = connect();
+            for (int j = 0; j < 10; j++)
+            {
+              String path = "/echo/" + client + "/" + j;
+              send(socket, "GET " + path + " HTTP/1.1\r\nHost: example.com\r\n\r\n");
+              if (!new String(read(socket, false).body).equals("GET " + path + " example.com\n"))
+              {
+                failures.incrementAndGet();
+              }
+            }
+            socket.close();
+          }
+          catch (IOException e)
+          {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+
+    assertEquals(0, failures.get());
+    assertEquals(1, server.connections.get());
+  }
+
+  static Socket connect() throws IOException
+  {
+    Socket socket = new Socket("localhost", proxyPort);
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  static void send(Socket socket, String request) throws IOException
+  {
+    socket.getOutputStream().write(request.getBytes());
+  }
+
+  static class Response
+  {
+    int status;
+
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    final Map<String, String> trailers = new HashMap<String, String>();
+
+    byte[] body;
+  }
+
+  static Response read(Socket socket, boolean head) throws IOException
+  {
+    InputStream in = socket.getInputStream();
+    Response response = new Response();
+    response.status = Integer.parseInt(readLine(in).split(" ")[1]);
+    readFields(in, response.headers);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if (head || response.status == 204 || response.status == 304)
+    {}
+    else if ("chunked".equals(response.headers.get("transfer-encoding")))
+    {
+      int size;
+      while ((size = Integer.parseInt(readLine(in), 16)) > 0)
+      {
+        readFully(in, body, size);
+        readLine(in);
+      }
+      readFields(in, response.trailers);
+    }
+    else if (response.headers.containsKey("content-length"))
+    {
+      readFully(in, body, Integer.parseInt(response.headers.get("content-length")));
+    }
+    else
+    {
+      int b;
+      while ((b = in.read()) != -1)
+      {
+        body.write(b);
+      }
+    }
+    response.body = body.toByteArray();
+    return response;
+  }
+
+  static void readFields(InputStream in, Map<String, String> fields) throws IOException
+  {
+    String line;
+    while (!(line = readLine(in)).isEmpty())
+    {
+      int colon = line.indexOf(':');
+      fields.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+    }
+  }
+
+  static void readFully(InputStream in, ByteArrayOutputStream out, int length) throws IOException
+  {
+    byte[] buffer = new byte[8192];
+    while (length > 0)
+    {
+      int read = in.read(buffer, 0, Math.min(buffer.length, length));
+      if (read == -1)
+      {
+        throw new IOException("Premature end of body.");
+      }
+      out.write(buffer, 0, read);
+      length -= read;
+    }
+  }
+
+  static String readLine(InputStream in) throws IOException
+  {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n')
+    {
+      if (b == -1)
+      {
+        throw new IOException("Premature end of message.");
+      }
+      if (b != '\r')
+      {
+        line.append((char)b);
+      }
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,425 @@
+package org.baswell.httproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import gnu.trove.list.array.TByteArrayList;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import static org.baswell.httproxy.Http2Connection.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class Http2FrontendTest
+{
+  static HttpServer server;
+
+  static ServerSocketChannelAcceptLoop acceptLoop;
+
+  static SSLContext clientContext;
+
+  static int proxyPort;
+
+  static final byte[] BIG = new byte[1024 * 1024];
+
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    assumeTrue(Alpn.isSupported());
+
+    for (int i = 0; i < BIG.length; i++)
+    {
+      BIG[i] = (byte)('a' + (i % 26));
+    }
+
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+          body.write(buffer, 0, read);
+        }
+
+        String path = exchange.getRequestURI().toString();
+        byte[] response;
+        if (path.equals("/big"))
+        {
+          response = BIG;
+        }
+        else
+        {
+          response = (exchange.getRequestMethod() + " " + path + " " + exchange.getRequestHeaders().getFirst("Host") + " "
+              + exchange.getRequestHeaders().getFirst("Cookie") + " " + body.size() + "\n").getBytes();
+        }
+        exchange.getResponseHeaders().add("Connection", "keep-alive");
+        exchange.sendResponseHeaders(200, path.equals("/chunked") ? 0 : response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+      }
+    });
+    server.start();
+
+    File keyStoreFile = File.createTempFile("httproxy", ".jks");
+    keyStoreFile.delete();
+    keyStoreFile.deleteOnExit();
+    Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool", "-genkeypair",
+        "-alias", "proxy", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+        "-keystore", keyStoreFile.getPath(), "-storepass", "changeit", "-keypass", "changeit").redirectErrorStream(true).start();
+    assumeTrue(keytool.waitFor() == 0);
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(new FileInputStream(keyStoreFile), "changeit".toCharArray());
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, "changeit".toCharArray());
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+    clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, new TrustManager[] {new X509TrustManager()
+    {
+      @Override
+      public void checkClientTrusted(X509Certificate[] certificates, String authType)
+      {}
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] certificates, String authType)
+      {}
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers()
+      {
+        return new X509Certificate[0];
+      }
+    }}, null);
+
+    final ConnectionParameters connectionParameters = new ConnectionParameters("localhost", server.getAddress().getPort());
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", server.getAddress().getPort(), null, Executors.newCachedThreadPool())
+    {
+      @Override
+      public ConnectionParameters onRequestStart(HttpRequest httpRequest)
+      {
+        return connectionParameters;
+      }
+
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+
+      @Override
+      public void onPrematureRequestClosed(HttpRequest httpRequest, IOException e)
+      {}
+    };
+
+    ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    proxyPort = serverSocketChannel.socket().getLocalPort();
+    final SSLServerSocketChannel sslServerSocketChannel = new SSLServerSocketChannel(serverSocketChannel, serverContext, proxyDirector);
+    sslServerSocketChannel.http2 = true;
+
+    acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(sslServerSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    if (acceptLoop != null)
+    {
+      acceptLoop.stop();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void get() throws Exception
+  {
+    Client client = new Client();
+    client.request(1, "GET", "/echo?a=1", true, new HttpHeader("cookie", "a=1"), new HttpHeader("cookie", "b=2"));
+    Response response = client.read(1);
+    assertEquals("200", response.headers.get(":status"));
+    assertFalse(response.headers.containsKey("connection"));
+    assertEquals("GET /echo?a=1 localhost a=1; b=2 0\n", new String(response.body.toByteArray()));
+
+    client.request(3, "GET", "/chunked", true);
+    assertEquals("GET /chunked localhost null 0\n", new String(client.read(3).body.toByteArray()));
+    client.close();
+  }
+
+  @Test
+  public void postBodies() throws Exception
+  {
+    Client client = new Client();
+    client.request(1, "POST", "/fixed", false, new HttpHeader("content-length", "5"));
+    client.data(1, "hello".getBytes(), true);
+    assertEquals("POST /fixed localhost null 5\n", new String(client.read(1).body.toByteArray()));
+
+    byte[] big = new byte[600 * 1024];
+    client.request(3, "PUT", "/unsized", false);
+    for (int i = 0; i < big.length; i += DEFAULT_MAX_FRAME_SIZE)
+    {
+      byte[] data = new byte[Math.min(DEFAULT_MAX_FRAME_SIZE, big.length - i)];
+      client.data(3, data, (i + data.length) == big.length);
+    }
+    assertEquals("PUT /unsized localhost null " + big.length + "\n", new String(client.read(3).body.toByteArray()));
+    client.close();
+  }
+
+  @Test
+  public void concurrentStreams() throws Exception
+  {
+    Client client = new Client();
+    for (int i = 0; i < 20; i++)
+    {
+      client.request(1 + (i * 2), "GET", "/stream/" + i, true);
+    }
+    client.request(41, "GET", "/big", true);
+    for (int i = 0; i < 20; i++)
+    {
+      assertEquals("GET /stream/" + i + " localhost null 0\n", new String(client.read(1 + (i * 2)).body.toByteArray()));
+    }
+    assertArrayEquals(BIG, client.read(41).body.toByteArray());
+    client.close();
+  }
+
+  @Test
+  public void http11ClientsStillServed() throws Exception
+  {
+    SSLSocket socket = (SSLSocket)clientContext.getSocketFactory().createSocket("localhost", proxyPort);
+    socket.setSoTimeout(10000);
+    socket.getOutputStream().write("GET /echo HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+    InputStream in = socket.getInputStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    while (!response.toString().endsWith("GET /echo localhost null 0\n"))
+    {
+      int b = in.read();
+      assertTrue(b != -1);
+      response.write(b);
+    }
+    assertTrue(response.toString().startsWith("HTTP/1.1 200"));
+    socket.close();
+  }
+
+  static class Response
+  {
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    boolean ended;
+  }
+
+  /*
+   * A blocking HTTP/2 client that gives back all the window it's sent and waits on the proxy's window to send request
+   * data.
+   */
+  static class Client
+  {
+    final SSLSocket socket;
+
+    final DataInputStream in;
+
+    final OutputStream out;
+
+    final HpackEncoder encoder = new HpackEncoder();
+
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    final Map<Integer, Response> responses = new HashMap<Integer, Response>();
+
+    final Map<Integer, int[]> sendWindows = new HashMap<Integer, int[]>();
+
+    int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+    int initialWindowSize = -1;
+
+    Client() throws Exception
+    {
+      socket = (SSLSocket)clientContext.getSocketFactory().createSocket("localhost", proxyPort);
+      socket.setSoTimeout(10000);
+      SSLParameters sslParameters = socket.getSSLParameters();
+      SSLParameters.class.getMethod("setApplicationProtocols", String[].class).invoke(sslParameters, (Object)new String[] {"h2"});
+      socket.setSSLParameters(sslParameters);
+      socket.startHandshake();
+      assertEquals("h2", SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket));
+
+      in = new DataInputStream(socket.getInputStream());
+      out = socket.getOutputStream();
+      out.write(PREFACE);
+      writeFrame(SETTINGS, 0, 0, new byte[0]);
+      while (initialWindowSize == -1)
+      {
+        readFrame();
+      }
+    }
+
+    void request(int streamId, String method, String path, boolean endStream, HttpHeader... headers) throws IOException
+    {
+      TByteArrayList block = new TByteArrayList();
+      encoder.beginBlock(block);
+      encoder.encode(":method", method, block);
+      encoder.encode(":scheme", "https", block);
+      encoder.encode(":authority", "localhost", block);
+      encoder.encode(":path", path, block);
+      for (HttpHeader header : headers)
+      {
+        encoder.encode(header.name, header.value, block);
+      }
+      writeFrame(HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId, block.toArray());
+      responses.put(streamId, new Response());
+      sendWindows.put(streamId, new int[] {initialWindowSize});
+    }
+
+    void data(int streamId, byte[] data, boolean endStream) throws IOException
+    {
+      int[] window = sendWindows.get(streamId);
+      while ((window[0] < data.length) || (connectionSendWindow < data.length))
+      {
+        readFrame();
+      }
+      window[0] -= data.length;
+      connectionSendWindow -= data.length;
+      writeFrame(DATA, endStream ? FLAG_END_STREAM : 0, streamId, data);
+    }
+
+    Response read(int streamId) throws IOException
+    {
+      Response response = responses.get(streamId);
+      while (!response.ended)
+      {
+        readFrame();
+      }
+      return response;
+    }
+
+    void readFrame() throws IOException
+    {
+      byte[] header = new byte[FRAME_HEADER_LENGTH];
+      in.readFully(header);
+      int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+      int type = header[3] & 0xff;
+      int flags = header[4] & 0xff;
+      int streamId = Http2Connection.getInt(header, 5) & 0x7fffffff;
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+
+      Response response = responses.get(streamId);
+      switch (type)
+      {
+        case HEADERS:
+          assertTrue((flags & FLAG_END_HEADERS) != 0);
+          List<HttpHeader> fields = new ArrayList<HttpHeader>();
+          decoder.decode(payload, 0, length, fields);
+          for (HttpHeader field : fields)
+          {
+            response.headers.put(field.name, field.value);
+          }
+          response.ended |= (flags & FLAG_END_STREAM) != 0;
+          break;
+
+        case DATA:
+          response.body.write(payload);
+          response.ended |= (flags & FLAG_END_STREAM) != 0;
+          if (length > 0)
+          {
+            byte[] increment = new byte[4];
+            Http2Connection.putInt(increment, 0, length);
+            writeFrame(WINDOW_UPDATE, 0, 0, increment);
+            writeFrame(WINDOW_UPDATE, 0, streamId, increment);
+          }
+          break;
+
+        case SETTINGS:
+          if ((flags & FLAG_ACK) == 0)
+          {
+            initialWindowSize = DEFAULT_WINDOW_SIZE;
+            for (int i = 0; i + 6 <= length; i += 6)
+            {
+              if ((((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff)) == SETTINGS_INITIAL_WINDOW_SIZE)
+              {
+                initialWindowSize = Http2Connection.getInt(payload, i + 2);
+              }
+            }
+            writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+          }
+          break;
+
+        case WINDOW_UPDATE:
+          int increment = Http2Connection.getInt(payload, 0);
+          if (streamId == 0)
+          {
+            connectionSendWindow += increment;
+          }
+          else if (sendWindows.containsKey(streamId))
+          {
+            sendWindows.get(streamId)[0] += increment;
+          }
+          break;
+
+        case RST_STREAM:
+          assertEquals(Http2Exception.NO_ERROR, Http2Connection.getInt(payload, 0));
+          break;
+
+        case GOAWAY:
+          fail("GOAWAY " + Http2Connection.getInt(payload, 4));
+      }
+    }
+
+    void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException
+    {
+      byte[] frame = Http2Connection.frame(payload.length, type, flags, streamId);
+      System.arraycopy(payload, 0, frame, FRAME_HEADER_LENGTH, payload.length);
+      out.write(frame);
+      out.flush();
+    }
+
+    void close() throws IOException
+    {
+      socket.close();
+    }
+  }
+}
@@ -46,4 +46,75 @@ public class HttpCookieTest
     assertEquals(cookie.secure, encodedCookie.secure);
     assertEquals(cookie.expiresAt, encodedCookie.expiresAt);
   }
+
+  @Test
+  public void parseWithoutSplitting()
+  {
+    HttpCookie cookie = new HttpCookie(" sid = YWJjZA== ;Secure; Path=/app ;Max-Age=60; HttpOnly ");
+    assertEquals("sid", cookie.name);
+    assertEquals("YWJjZA==", cookie.value);
+    assertEquals("/app", cookie.path);
+    assertTrue(cookie.secure);
+    assertTrue(cookie.httpOnly);
+    assertNull(cookie.domain);
+    assertNull(cookie.expiresAt);
+
+    List<HttpCookie> cookies = HttpCookie.decodeHeaderValue("a=1; b = x=y ;;novalue; =empty; c=");
+    assertEquals(3, cookies.size());
+    assertEquals("b", cookies.get(1).name);
+    assertEquals("x=y", cookies.get(1).value);
+    assertEquals("", cookies.get(2).value);
+  }
+
+  @Test
+  public void requestCookies()
+  {
+    HttpRequest request = new HttpRequest("127.0.0.1", true, false, "GET / HTTP/1.1");
+    request.headers.add(new HttpHeader("Cookie", "JSESSIONID=abc123; route=backend-2"));
+    request.headers.add(new HttpHeader("cookie", "theme=dark"));
+
+    assertEquals("backend-2", request.getCookieValue("route"));
+    assertEquals("dark", request.getCookieValue("theme"));
+    assertNull(request.getCookieValue("ROUTE"));
+    assertNull(request.getCookie("missing"));
+    assertEquals("abc123", request.getCookie("JSESSIONID").value);
+    assertEquals(3, request.getCookies().size());
+    assertSame(request.cookieView(), request.cookieView());
+
+    request.headers.get(0).value = "route=backend-3";
+    assertEquals("backend-3", request.getCookieValue("route"));
+    assertNull(request.getCookieValue("JSESSIONID"));
+
+    HttpHeader renamed = new HttpHeader("X-Cookie", "lang=en");
+    request.headers.add(renamed);
+    assertNull(request.getCookieValue("lang"));
+    renamed.setName("Cookie");
+    assertEquals("en", request.getCookieValue("lang"));
+    request.headers.remove(renamed);
+
+    request.removeHeader("Cookie");
+    assertNull(request.getCookieValue("route"));
+    assertTrue(request.getCookies().isEmpty());
+
+    request.addCookie(new HttpCookie("route", "backend-1"));
+    request.addCookie(new HttpCookie("lang", "en"));
+    assertEquals("backend-1", request.getCookieValue("route"));
+    assertEquals("en", request.getCookieValue("lang"));
+    assertEquals("route=backend-1; lang=en", request.getHeaderValue("Cookie"));
+  }
+
+  @Test
+  public void responseSetCookie()
+  {
+    HttpResponse response = new HttpResponse(true, false, null, "HTTP/1.1 200 OK");
+    response.setCookie(new HttpCookie("routeX", "1"));
+    response.setCookie(new HttpCookie("route", "backend-2", null, "/", 1358286458000l, true, false));
+
+    HttpCookie cookie = response.getSetCookie("route");
+    assertEquals("backend-2", cookie.value);
+    assertEquals(1358286458000l, cookie.expiresAt.longValue());
+    assertEquals("route=backend-2; Path=/; Expires=Tue, 15 Jan 2013 21:47:38 GMT; Secure", response.getHeaders("Set-Cookie").get(1).value);
+    assertNull(response.getSetCookie("rout"));
+    assertEquals(2, response.getSetCookies().size());
+  }
 }
@@ -0,0 +1,59 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class HttpDateTest
+{
+  @Test
+  public void parse()
+  {
+    assertEquals(1358286458000l, HttpDate.parse("Tue, 15 Jan 2013 21:47:38 GMT").longValue());
+    assertEquals(1358286458000l, HttpDate.parse("Tuesday, 15-Jan-13 21:47:38 GMT").longValue());
+    assertEquals(1358286458000l, HttpDate.parse("Tue, 15-Jan-2013 21:47:38 GMT").longValue());
+    assertEquals(1358286458000l, HttpDate.parse("tue, 15 jan 2013 21:47:38 utc").longValue());
+    assertEquals(784111777000l, HttpDate.parse("Sunday, 06-Nov-94 08:49:37 GMT").longValue());
+    assertEquals(0l, HttpDate.parse("Thu, 01 Jan 1970 00:00:00 GMT").longValue());
+    assertEquals(951782400000l, HttpDate.parse("Tue, 29 Feb 2000 00:00:00 GMT").longValue());
+    assertEquals(1358257658000l, HttpDate.parse("Tue, 15 Jan 2013 21:47:38 +0800").longValue());
+
+    assertNull(HttpDate.parse(""));
+    assertNull(HttpDate.parse("tomorrow"));
+    assertNull(HttpDate.parse("Tue, 15 Foo 2013 21:47:38 GMT"));
+    assertNull(HttpDate.parse("Tue, 15 Jan 2013 21:47"));
+    assertEquals(Long.MIN_VALUE, HttpDate.parseGmt("Tue, 15 Jan 2013 25:47:38 GMT"));
+  }
+
+  @Test
+  public void formatSameAsSimpleDateFormat()
+  {
+    SimpleDateFormat dateFormat = new SimpleDateFormat(HttpDate.PATTERN_RFC1123, Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    Random random = new Random(3);
+    for (int i = 0; i < 10000; i++)
+    {
+      long time = random.nextLong() % 8000000000000l;
+      String formatted = HttpDate.format(time);
+      assertEquals(dateFormat.format(new Date(time)), formatted);
+      assertEquals(Math.floorDiv(time, 1000l) * 1000, HttpDate.parse(formatted).longValue());
+      assertEquals(Math.floorDiv(time, 86400l), HttpDate.floorDiv(time, 86400l));
+      assertEquals(Math.floorMod(time, 7l), HttpDate.floorMod(time, 7l));
+    }
+  }
+
+  @Test
+  public void formatCachedBySecond()
+  {
+    String formatted = HttpDate.format(1358286458000l);
+    assertSame(formatted, HttpDate.format(1358286458999l));
+    assertEquals("Tue, 15 Jan 2013 21:47:39 GMT", HttpDate.format(1358286459000l));
+  }
+}
@@ -0,0 +1,115 @@
+package org.baswell.httproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a browser request and an API response with {@link HttpMessageCodec} against Java serialization
+ * (what {@link HttpMessage#encode()} used before). The {@code stream} benchmarks write into and read out of a reused
+ * ByteBuffer with a {@link HttpMessageCodec.Writer} and {@link HttpMessageCodec.Reader} whose dynamic name tables have
+ * already seen the custom header names. The encoded sizes are printed in setup.
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=HttpMessageCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpMessageCodecBenchmark
+{
+  @Param({"request", "response"})
+  public String headerSet;
+
+  private HttpMessage message;
+
+  private byte[] codecBytes;
+
+  private byte[] serializedBytes;
+
+  private final HttpMessageCodec.Writer writer = new HttpMessageCodec.Writer();
+
+  private final HttpMessageCodec.Reader reader = new HttpMessageCodec.Reader();
+
+  private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+  @Setup
+  public void setup() throws IOException
+  {
+    byte[] bytes = (headerSet.equals("request") ? HeaderParsingBenchmark.BROWSER_REQUEST : HeaderParsingBenchmark.API_RESPONSE).getBytes();
+    message = HeaderEncodingBenchmark.read(bytes, false);
+    message.bodySize = 1843l;
+    codecBytes = message.encode();
+    serializedBytes = serialize(message);
+
+    buffer.clear();
+    writer.write(message, buffer);
+    buffer.flip();
+    reader.read(buffer);
+
+    System.out.println();
+    System.out.println(headerSet + " encoded: " + codecBytes.length + " bytes, serialized: " + serializedBytes.length + " bytes");
+  }
+
+  @Benchmark
+  public byte[] codecEncode()
+  {
+    return HttpMessageCodec.encode(message);
+  }
+
+  @Benchmark
+  public HttpMessage codecDecode() throws IOException
+  {
+    return HttpMessageCodec.decode(codecBytes);
+  }
+
+  @Benchmark
+  public HttpMessage codecStream() throws IOException
+  {
+    buffer.clear();
+    writer.write(message, buffer);
+    buffer.flip();
+    return reader.read(buffer);
+  }
+
+  @Benchmark
+  public byte[] serializationEncode() throws IOException
+  {
+    return serialize(message);
+  }
+
+  @Benchmark
+  public HttpMessage serializationDecode() throws IOException, ClassNotFoundException
+  {
+    return (HttpMessage)new ObjectInputStream(new ByteArrayInputStream(serializedBytes)).readObject();
+  }
+
+  static byte[] serialize(HttpMessage message) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(message);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,281 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class HttpMessageCodecTest
+{
+  @Test
+  public void requestRoundTrip()
+  {
+    HttpRequest request = request();
+    HttpRequest decoded = (HttpRequest)HttpMessage.decode(request.encode());
+    assertRequestEquals(request, decoded);
+  }
+
+  @Test
+  public void responseRoundTrip()
+  {
+    HttpResponse response = response();
+    HttpResponse decoded = (HttpResponse)HttpMessage.decode(response.encode());
+    assertResponseEquals(response, decoded);
+    assertNull(decoded.connectionParameters.sslContext);
+
+    HttpResponse withoutConnection = new HttpResponse(false, false, null, "HTTP/1.0", -1, null);
+    HttpResponse decodedWithoutConnection = (HttpResponse)HttpMessage.decode(withoutConnection.encode());
+    assertNull(decodedWithoutConnection.connectionParameters);
+    assertEquals(-1, decodedWithoutConnection.statusCode);
+    assertNull(decodedWithoutConnection.reasonPhrase);
+    assertNull(decodedWithoutConnection.endedAt);
+    assertNull(decodedWithoutConnection.bodySize);
+
+    HttpResponse overHttp2 = new HttpResponse(false, false, new ConnectionParameters("backend.local", 8080, true), "HTTP/1.1 200 OK");
+    assertTrue(((HttpResponse)HttpMessage.decode(overHttp2.encode())).connectionParameters.http2);
+  }
+
+  @Test
+  public void javaSerializationStillDecoded() throws IOException
+  {
+    HttpRequest request = request();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(request);
+    out.close();
+
+    assertRequestEquals(request, (HttpRequest)HttpMessage.decode(bytes.toByteArray()));
+  }
+
+  /*
+   * Serialized by the classes from before the codec (and the fields added since), see src/test/resources.
+   */
+  @Test
+  public void legacySerializationDecoded() throws IOException
+  {
+    HttpRequest request = (HttpRequest)HttpMessage.decode(resource("/legacy-request.ser"));
+    assertEquals("GET /index.html?a=b HTTP/1.1", request.getStatusLine());
+    assertEquals("10.0.0.1", request.clientIp);
+    assertEquals("example.com", request.getHeaderValue("host"));
+    assertTrue(request.hasContent());
+    assertEquals("backend-2", request.getCookieValue("route"));
+    assertEquals(Long.valueOf(4), request.bodySize);
+    assertTrue(request.trailers.isEmpty());
+    request.attachements.put("a", "b");
+    request.headers.add(new HttpHeader("Via", "proxy"));
+    assertEquals("proxy", request.getHeaderValue("VIA"));
+
+    HttpResponse response = (HttpResponse)HttpMessage.decode(resource("/legacy-response.ser"));
+    assertEquals(200, response.statusCode);
+    assertEquals("chunked", response.getHeaderValue("transfer-encoding"));
+    assertEquals("example.com", response.connectionParameters.ipOrHost);
+    assertEquals(8080, response.connectionParameters.port);
+    assertFalse(response.connectionParameters.http2);
+    assertRequestEquals(request, (HttpRequest)HttpMessage.decode(request.encode()));
+  }
+
+  @Test
+  public void smallerThanJavaSerialization() throws IOException
+  {
+    HttpRequest request = request();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(request);
+    out.close();
+
+    assertTrue(request.encode().length < bytes.size() / 2);
+  }
+
+  @Test
+  public void streamOfMessages() throws IOException
+  {
+    HttpMessageCodec.Writer writer = new HttpMessageCodec.Writer();
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    writer.write(request(), buffer);
+    int first = buffer.position();
+    writer.write(response(), buffer);
+    writer.write(request(), buffer);
+    assertTrue("Custom names written once", buffer.position() - first * 2 < response().encode().length);
+
+    buffer.flip();
+    HttpMessageCodec.Reader reader = new HttpMessageCodec.Reader();
+    assertRequestEquals(request(), (HttpRequest)reader.read(buffer));
+    assertResponseEquals(response(), (HttpResponse)reader.read(buffer));
+    assertRequestEquals(request(), (HttpRequest)reader.read(buffer));
+    assertNull(reader.read(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void overflowWritesNothing() throws IOException
+  {
+    HttpMessageCodec.Writer writer = new HttpMessageCodec.Writer();
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    try
+    {
+      writer.write(request(), buffer);
+      fail();
+    }
+    catch (BufferOverflowException e)
+    {
+      assertEquals(0, buffer.position());
+    }
+
+    ByteBuffer larger = ByteBuffer.allocate(4096);
+    writer.write(request(), larger);
+    larger.flip();
+    assertRequestEquals(request(), (HttpRequest)new HttpMessageCodec.Reader().read(larger));
+  }
+
+  @Test
+  public void partialReads() throws IOException
+  {
+    byte[] bytes = response().encode();
+    HttpMessageCodec.Reader reader = new HttpMessageCodec.Reader();
+    for (int length = 0; length < bytes.length; length++)
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+      assertNull(reader.read(buffer));
+      assertEquals(0, buffer.position());
+    }
+    assertResponseEquals(response(), (HttpResponse)reader.read(ByteBuffer.wrap(bytes)));
+  }
+
+  @Test
+  public void streams() throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpMessageCodec.Writer writer = new HttpMessageCodec.Writer();
+    writer.write(request(), out);
+    writer.write(response(), out);
+
+    HttpMessageCodec.Reader reader = new HttpMessageCodec.Reader();
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertRequestEquals(request(), (HttpRequest)reader.read(in));
+    assertResponseEquals(response(), (HttpResponse)reader.read(in));
+    assertNull(reader.read(in));
+
+    try
+    {
+      new HttpMessageCodec.Reader().read(new ByteArrayInputStream(Arrays.copyOf(out.toByteArray(), 10)));
+      fail();
+    }
+    catch (IOException e)
+    {}
+  }
+
+  @Test
+  public void invalid()
+  {
+    byte[] bytes = request().encode();
+    byte[][] invalid = {{'X', 1, 0, 0, 0, 0}, {'H', 9, 0, 0, 0, 0}, {'H', 1, 0, 0, 0, 1, 7}, Arrays.copyOf(bytes, bytes.length - 1)};
+    invalid[3][5]--;
+    for (byte[] encoded : invalid)
+    {
+      try
+      {
+        HttpMessageCodec.decode(encoded);
+        fail(Arrays.toString(encoded));
+      }
+      catch (IOException e)
+      {}
+    }
+  }
+
+  @Test
+  public void varLongs()
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    for (long value : new long[]{0, 1, -1, 63, -64, 127, 128, 300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE})
+    {
+      buffer.clear();
+      HttpMessageCodec.writeVarLong(HttpMessageCodec.zigzag(value), buffer);
+      buffer.flip();
+      assertEquals(value, HttpMessageCodec.unzigzag(HttpMessageCodec.readVarLong(buffer)));
+      assertFalse(buffer.hasRemaining());
+    }
+  }
+
+  static byte[] resource(String name) throws IOException
+  {
+    InputStream in = HttpMessageCodecTest.class.getResourceAsStream(name);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1)
+    {
+      bytes.write(buffer, 0, read);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  static HttpRequest request()
+  {
+    HttpRequest request = new HttpRequest("192.168.1.20", true, true, "GET /search?q=caf\u00e9 HTTP/1.1");
+    request.headers.add(new HttpHeader("Host", "www.example.com"));
+    request.headers.add(new HttpHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0"));
+    request.headers.add(new HttpHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"));
+    request.headers.add(new HttpHeader("Accept-Language", "en-US,en;q=0.5"));
+    request.headers.add(new HttpHeader("X-Request-Id", "2b9c6f6e-\u20ac-\ud83d\ude00"));
+    request.headers.add(new HttpHeader("x-custom", null));
+    request.endedAt = new Date(request.startedAt.getTime() + 12);
+    request.bodySize = 0l;
+    return request;
+  }
+
+  static HttpResponse response()
+  {
+    HttpResponse response = new HttpResponse(false, false, new ConnectionParameters("backend.local", 8080), "HTTP/1.1 200 OK");
+    response.headers.add(new HttpHeader("Content-Type", "application/json"));
+    response.headers.add(new HttpHeader("Transfer-Encoding", "chunked"));
+    response.headers.add(new HttpHeader("X-Request-Id", "2b9c6f6e"));
+    response.trailers.add(new HttpHeader("X-Checksum", "1234"));
+    response.bodySize = 1843l;
+    return response;
+  }
+
+  static void assertRequestEquals(HttpRequest expected, HttpRequest actual)
+  {
+    assertEquals(expected.clientIp, actual.clientIp);
+    assertEquals(expected.firstInExchange, actual.firstInExchange);
+    assertEquals(expected.overSSL, actual.overSSL);
+    assertEquals(expected.method, actual.method);
+    assertEquals(expected.path, actual.path);
+    assertEquals(expected.version, actual.version);
+    assertMessageEquals(expected, actual);
+  }
+
+  static void assertResponseEquals(HttpResponse expected, HttpResponse actual)
+  {
+    assertEquals(expected.firstInExchange, actual.firstInExchange);
+    assertEquals(expected.overSSL, actual.overSSL);
+    assertEquals(expected.version, actual.version);
+    assertEquals(expected.statusCode, actual.statusCode);
+    assertEquals(expected.reasonPhrase, actual.reasonPhrase);
+    assertEquals(expected.connectionParameters.ipOrHost, actual.connectionParameters.ipOrHost);
+    assertEquals(expected.connectionParameters.port, actual.connectionParameters.port);
+    assertEquals(expected.connectionParameters.ssl, actual.connectionParameters.ssl);
+    assertEquals(expected.connectionParameters.http2, actual.connectionParameters.http2);
+    assertMessageEquals(expected, actual);
+  }
+
+  static void assertMessageEquals(HttpMessage expected, HttpMessage actual)
+  {
+    assertEquals(expected.startedAt.getTime(), actual.startedAt.getTime(), 1000);
+    assertEquals(expected.endedAt == null, actual.endedAt == null);
+    assertEquals(expected.bodySize, actual.bodySize);
+    assertEquals(expected.headers.toString(), actual.headers.toString());
+    assertEquals(expected.trailers.toString(), actual.trailers.toString());
+    assertEquals(expected.getHeaderValue("x-request-id"), actual.getHeaderValue("X-Request-Id"));
+  }
+}
@@ -0,0 +1,103 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LineReaderTest
+{
+  @Test
+  public void testReadLines()
+  {
+    LineReader lineReader = new LineReader();
+    ByteBuffer buffer = ByteBuffer.wrap("GET / HTTP/1.1\r\nHost: localhost\nX-Long-Header-Name: value\r\n\r\n".getBytes());
+
+    assertTrue(lineReader.readLine(buffer));
+    assertEquals("GET / HTTP/1.1", lineReader.lineToString());
+    assertTrue(lineReader.readLine(buffer));
+    assertEquals("Host: localhost", lineReader.lineToString());
+    assertTrue(lineReader.readLine(buffer));
+    assertEquals("X-Long-Header-Name: value", lineReader.lineToString());
+    assertTrue(lineReader.readLine(buffer));
+    assertEquals(lineReader.lineStart, lineReader.lineEnd);
+    assertFalse(buffer.hasRemaining());
+    assertFalse(lineReader.readLine(buffer));
+    assertTrue(lineReader.isEmpty());
+  }
+
+  @Test
+  public void testLineSplitAcrossBuffers()
+  {
+    byte[] line = "Content-Type: text/html; charset=utf-8\r\n".getBytes();
+    for (int split = 0; split <= line.length; split++)
+    {
+      for (boolean direct : new boolean[]{false, true})
+      {
+        LineReader lineReader = new LineReader();
+        ByteBuffer first = buffer(line, 0, split, direct);
+        ByteBuffer second = buffer(line, split, line.length, direct);
+
+        if (split < line.length)
+        {
+          assertFalse(lineReader.readLine(first));
+          assertFalse(first.hasRemaining());
+          assertEquals(split == 0, lineReader.isEmpty());
+          assertTrue(lineReader.readLine(second));
+        }
+        else
+        {
+          assertTrue(lineReader.readLine(first));
+        }
+
+        assertEquals("Content-Type: text/html; charset=utf-8", lineReader.lineToString());
+        assertTrue(lineReader.isEmpty());
+      }
+    }
+  }
+
+  @Test
+  public void testIndexOfLF()
+  {
+    for (int length = 0; length < 40; length++)
+    {
+      for (int lfAt = -1; lfAt < length; lfAt++)
+      {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+          bytes[i] = (byte)(i == lfAt ? '\n' : 0x0B + (i % 0x70));
+        }
+        assertEquals(lfAt, LineReader.indexOfLF(ByteBuffer.wrap(bytes), 0, length));
+      }
+    }
+  }
+
+  @Test
+  public void testAddHeader()
+  {
+    HttpRequest request = new HttpRequest("127.0.0.1", true, false, "GET / HTTP/1.1");
+    byte[] line = "  Content-Length :  42 ".getBytes();
+
+    HttpHeader header = request.addHeader(line, 0, line.length);
+    assertEquals("Content-Length", header.name);
+    assertEquals("42", header.value);
+
+    line = "Host: localhost".getBytes();
+    assertSame(request.addHeader(line, 0, line.length).name, request.addHeader(line, 0, line.length).name);
+
+    line = "No colon".getBytes();
+    assertNull(request.addHeader(line, 0, line.length));
+
+    assertEquals(3, request.headers.size());
+  }
+
+  static ByteBuffer buffer(byte[] bytes, int from, int to, boolean direct)
+  {
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(to - from) : ByteBuffer.allocate(to - from);
+    buffer.put(bytes, from, to - from);
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,84 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest
+{
+  @Test
+  public void testOfferAndPoll()
+  {
+    MpscQueue<String> queue = new MpscQueue<String>();
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+
+    queue.offer("one");
+    queue.offer("two");
+    assertFalse(queue.isEmpty());
+    assertEquals("one", queue.poll());
+    assertEquals("two", queue.poll());
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testManyProducers() throws InterruptedException
+  {
+    final int producers = 4;
+    final int perProducer = 100000;
+    final MpscQueue<Integer> queue = new MpscQueue<Integer>();
+    final CountDownLatch start = new CountDownLatch(1);
+
+    for (int p = 0; p < producers; p++)
+    {
+      final int producer = p;
+      new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            start.await();
+          }
+          catch (InterruptedException e)
+          {}
+
+          for (int i = 0; i < perProducer; i++)
+          {
+            queue.offer(producer * perProducer + i);
+          }
+        }
+      }.start();
+    }
+
+    start.countDown();
+
+    int[] lastSeen = new int[producers];
+    for (int p = 0; p < producers; p++)
+    {
+      lastSeen[p] = -1;
+    }
+
+    int received = 0;
+    long deadline = System.currentTimeMillis() + 30000;
+    while ((received < producers * perProducer) && (System.currentTimeMillis() < deadline))
+    {
+      Integer value = queue.poll();
+      if (value != null)
+      {
+        int producer = value / perProducer;
+        int sequence = value % perProducer;
+        assertEquals(lastSeen[producer] + 1, sequence);
+        lastSeen[producer] = sequence;
+        received++;
+      }
+    }
+
+    assertEquals(producers * perProducer, received);
+    assertNull(queue.poll());
+  }
+}
@@ -0,0 +1,294 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class PipeliningTest
+{
+  static Backend backendA;
+
+  static Backend backendB;
+
+  static ServerSocketChannelAcceptLoop acceptLoop;
+
+  static int proxyPort;
+
+  /*
+   * Paths starting with /a go to backend A, the rest to backend B. At most two requests are sent on before their
+   * responses are done.
+   */
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    backendA = new Backend("A");
+    backendB = new Backend("B");
+
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", backendA.port())
+    {
+      @Override
+      public ConnectionParameters onRequestStart(HttpRequest httpRequest)
+      {
+        return new ConnectionParameters("localhost", httpRequest.path.startsWith("/a") ? backendA.port() : backendB.port());
+      }
+
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+    };
+    proxyDirector.maxPipelinedRequests = 2;
+
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    proxyPort = serverSocketChannel.socket().getLocalPort();
+    acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    acceptLoop.stop();
+    backendA.close();
+    backendB.close();
+  }
+
+  /*
+   * A request for another server waits until the responses before it are done, then the responses come back in the
+   * order of the requests.
+   */
+  @Test
+  public void inOrderAcrossBackends() throws Exception
+  {
+    backendA.received.clear();
+    backendB.received.clear();
+    Socket socket = connect(proxyPort);
+    send(socket, "GET /a/hold/1", "GET /b/2", "GET /a/3");
+
+    assertEquals("GET /a/hold/1", backendA.received.take());
+    Thread.sleep(300);
+    assertTrue("Held for backend B", backendB.received.isEmpty());
+
+    backendA.holds.release();
+    InputStream in = socket.getInputStream();
+    assertResponse(in, "200", "A /a/hold/1");
+    assertResponse(in, "200", "B /b/2");
+    assertResponse(in, "200", "A /a/3");
+    assertEquals("GET /b/2", backendB.received.take());
+    socket.close();
+  }
+
+  /*
+   * Responses without bodies (to HEAD, 204 and 304) don't hold up the ones after them.
+   */
+  @Test
+  public void bodilessResponses() throws Exception
+  {
+    Socket socket = connect(proxyPort);
+    send(socket, "HEAD /a/head", "GET /a/no-content", "GET /a/not-modified", "GET /a/4");
+
+    InputStream in = socket.getInputStream();
+    String header = readHeader(in);
+    assertTrue(header, header.startsWith("HTTP/1.1 200") && header.contains("Content-Length: 5"));
+    assertTrue(readHeader(in).startsWith("HTTP/1.1 204"));
+    header = readHeader(in);
+    assertTrue(header, header.startsWith("HTTP/1.1 304") && header.contains("Content-Length: 5"));
+    assertResponse(in, "200", "A /a/4");
+    socket.close();
+  }
+
+  /*
+   * With two requests waiting on responses the next isn't read from the client until the oldest is done.
+   */
+  @Test
+  public void maxDepth() throws Exception
+  {
+    backendA.received.clear();
+    Socket socket = connect(proxyPort);
+    send(socket, "GET /a/hold/1", "GET /a/hold/2", "GET /a/hold/3", "GET /a/hold/4");
+
+    assertEquals("GET /a/hold/1", backendA.received.take());
+    assertEquals("GET /a/hold/2", backendA.received.take());
+    Thread.sleep(300);
+    assertTrue(backendA.received.isEmpty());
+
+    backendA.holds.release();
+    InputStream in = socket.getInputStream();
+    assertResponse(in, "200", "A /a/hold/1");
+    assertEquals("GET /a/hold/3", backendA.received.take());
+    Thread.sleep(300);
+    assertTrue(backendA.received.isEmpty());
+
+    backendA.holds.release(3);
+    assertResponse(in, "200", "A /a/hold/2");
+    assertResponse(in, "200", "A /a/hold/3");
+    assertResponse(in, "200", "A /a/hold/4");
+    assertEquals("GET /a/hold/4", backendA.received.take());
+    socket.close();
+  }
+
+  static void send(Socket socket, String... requestLines) throws IOException
+  {
+    StringBuilder requests = new StringBuilder();
+    for (String requestLine : requestLines)
+    {
+      requests.append(requestLine).append(" HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    }
+    socket.getOutputStream().write(requests.toString().getBytes());
+  }
+
+  static void assertResponse(InputStream in, String status, String body) throws IOException
+  {
+    String header = readHeader(in);
+    assertTrue(header, header.startsWith("HTTP/1.1 " + status));
+    assertTrue(header, header.contains("Content-Length: " + body.length() + "\r\n"));
+    assertEquals(body, read(in, body.length()));
+  }
+
+  /*
+   * Reads requests as they come in (so what's been sent can be checked) and answers them in order with the backend's
+   * name and the path. Paths under /hold are answered once a hold is released. /head, /no-content and /not-modified
+   * are answered without bodies.
+   */
+  static class Backend
+  {
+    final String name;
+
+    final ServerSocket serverSocket;
+
+    final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+    final Semaphore holds = new Semaphore(0);
+
+    Backend(String name) throws IOException
+    {
+      this.name = name;
+      serverSocket = new ServerSocket(0);
+      Thread accept = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          while (!serverSocket.isClosed())
+          {
+            try
+            {
+              serve(serverSocket.accept());
+            }
+            catch (IOException e)
+            {}
+          }
+        }
+      };
+      accept.setDaemon(true);
+      accept.start();
+    }
+
+    int port()
+    {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException
+    {
+      serverSocket.close();
+    }
+
+    void serve(final Socket socket) throws IOException
+    {
+      final InputStream in = socket.getInputStream();
+      final OutputStream out = socket.getOutputStream();
+      final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+
+      Thread reader = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            while (true)
+            {
+              String header = readHeader(in);
+              String requestLine = header.substring(0, header.indexOf(" HTTP/1.1"));
+              received.add(requestLine);
+              pending.add(requestLine);
+            }
+          }
+          catch (IOException e)
+          {}
+        }
+      };
+      reader.setDaemon(true);
+      reader.start();
+
+      Thread writer = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            while (true)
+            {
+              String requestLine = pending.take();
+              String path = requestLine.substring(requestLine.indexOf(' ') + 1);
+              if (path.contains("/hold/"))
+              {
+                holds.acquire();
+              }
+
+              String body = name + " " + path;
+              if (path.endsWith("/head"))
+              {
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n".getBytes());
+              }
+              else if (path.endsWith("/no-content"))
+              {
+                out.write("HTTP/1.1 204 No Content\r\n\r\n".getBytes());
+              }
+              else if (path.endsWith("/not-modified"))
+              {
+                out.write("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nContent-Length: 5\r\n\r\n".getBytes());
+              }
+              else
+              {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+              }
+              out.flush();
+            }
+          }
+          catch (Exception e)
+          {}
+        }
+      };
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.baswell.httproxy.ResponseCacheTest.*;
+import static org.junit.Assert.*;
+
+public class PurgeIndexTest
+{
+  @Test
+  public void prefixes()
+  {
+    PurgeIndex index = new PurgeIndex();
+    CachedResponse images = cachedResponse("http://example.com/images");
+    CachedResponse logo = cachedResponse("http://example.com/images/logo.png");
+    CachedResponse icon = cachedResponse("http://example.com/images/icon.png");
+    CachedResponse index1 = cachedResponse("http://example.com/index.html");
+    CachedResponse other = cachedResponse("http://example.org/index.html");
+    for (CachedResponse response : Arrays.asList(logo, icon, index1, images, other))
+    {
+      index.add(response);
+    }
+
+    assertEquals(urls("http://example.com/images", "http://example.com/images/logo.png", "http://example.com/images/icon.png", "http://example.com/index.html"),
+        index.getUnder("http://example.com/"));
+    assertEquals(urls("http://example.com/images", "http://example.com/images/logo.png", "http://example.com/images/icon.png"), index.getUnder("http://example.com/im"));
+    assertEquals(urls("http://example.com/images/logo.png", "http://example.com/images/icon.png"), index.getUnder("http://example.com/images/"));
+    assertEquals(urls("http://example.com/images/icon.png"), index.getUnder("http://example.com/images/icon.png"));
+    assertEquals(urls(), index.getUnder("http://example.com/images/icon.png.gz"));
+    assertEquals(urls(), index.getUnder("http://example.com/video"));
+    assertEquals(5, index.getUnder("").size());
+
+    assertEquals(Arrays.asList(logo), index.get("http://example.com/images/logo.png"));
+    assertTrue(index.get("http://example.com/images/").isEmpty());
+    assertTrue(index.get("http://example.com/images/logo").isEmpty());
+
+    /*
+     * Removing responses merges the nodes left with one child, what's left is still found.
+     */
+    index.remove(images);
+    index.remove(logo);
+    index.remove(logo);
+    assertEquals(urls("http://example.com/images/icon.png"), index.getUnder("http://example.com/im"));
+    assertEquals(urls("http://example.com/images/icon.png", "http://example.com/index.html"), index.getUnder("http://example.com/i"));
+    assertTrue(index.get("http://example.com/images").isEmpty());
+
+    index.add(logo);
+    assertEquals(urls("http://example.com/images/logo.png", "http://example.com/images/icon.png"), index.getUnder("http://example.com/images/"));
+    index.remove(icon);
+    index.remove(index1);
+    index.remove(logo);
+    assertEquals(urls("http://example.org/index.html"), index.getUnder("http://"));
+  }
+
+  @Test
+  public void tags()
+  {
+    PurgeIndex index = new PurgeIndex();
+    CachedResponse a = cachedResponse("http://example.com/a", "Surrogate-Key: product-1  catalog", "Cache-Tag: red,blue");
+    CachedResponse b = cachedResponse("http://example.com/b", "Surrogate-Key: product-2 catalog");
+    assertEquals(Arrays.asList("product-1", "catalog", "red", "blue"), Arrays.asList(a.tags));
+    assertEquals(0, cachedResponse("http://example.com/c").tags.length);
+
+    index.add(a);
+    index.add(b);
+    assertEquals(urls("http://example.com/a", "http://example.com/b"), index.getTagged("catalog"));
+    assertEquals(urls("http://example.com/a"), index.getTagged("blue"));
+    assertEquals(urls(), index.getTagged("product-3"));
+
+    index.remove(a);
+    assertEquals(urls("http://example.com/b"), index.getTagged("catalog"));
+    assertEquals(urls(), index.getTagged("blue"));
+  }
+
+  @Test
+  public void purges()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Surrogate-Key: shared a"), "a"));
+    assertTrue(store(cache, request("GET", "/b"), response(200, "Cache-Control: max-age=60, stale-while-revalidate=60", "Surrogate-Key: shared"), "b"));
+    assertTrue(store(cache, request("GET", "/v", "Accept-Encoding: gzip"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Encoding"), "gzip"));
+    assertTrue(store(cache, request("GET", "/v"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Encoding"), "identity"));
+
+    assertEquals(1, cache.purgeTag("a", false));
+    assertNull(cache.get(request("GET", "/a")));
+    assertNull(cache.getStale(request("GET", "/a")));
+    assertEquals(0, cache.purgeTag("a", false));
+
+    /*
+     * A soft purge leaves the response stale, it can still be used while it's revalidated (as long as it allows from the
+     * time it was purged).
+     */
+    assertEquals(1, cache.purgeTag("shared", true));
+    assertNull(cache.get(request("GET", "/b")));
+    CachedResponse stale = cache.getStale(request("GET", "/b"));
+    assertNotNull(stale);
+    assertTrue(stale.canServeWhileRevalidating(System.currentTimeMillis()));
+    assertFalse(stale.canServeWhileRevalidating(System.currentTimeMillis() + 61000));
+
+    /*
+     * Every variant goes with a hard purge, soft purged responses too.
+     */
+    assertEquals(2, cache.purgeHost("example.com", false));
+    assertNull(cache.getStale(request("GET", "/v", "Accept-Encoding: gzip")));
+    assertNull(cache.getStale(request("GET", "/v")));
+    assertNull(cache.getStale(request("GET", "/b")));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.purgePrefix("example.com", "/", false));
+  }
+
+  @Test
+  public void purgeRequests() throws Exception
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertTrue(store(cache, request("GET", "/images/a"), response(200, "Cache-Control: max-age=60"), "a"));
+    assertTrue(store(cache, request("GET", "/images/b"), response(200, "Cache-Control: max-age=60"), "b"));
+
+    cache.onPurgeRequest(request("POST", "/purged?prefix=/images/"), "/purge");
+    cache.onPurgeRequest(request("POST", "/images/a"), "/purge");
+    cache.onPurgeRequest(request("POST", "/purge?prefix=/images/"), null);
+    assertEquals(2, cache.getEntryCount());
+
+    assertEquals(405, purgeRequest(cache, request("GET", "/purge?prefix=/images/")).code);
+    assertEquals(400, purgeRequest(cache, request("POST", "/purge")).code);
+    assertEquals(400, purgeRequest(cache, request("POST", "/purge?url=%zz")).code);
+
+    EndProxiedRequestException answer = purgeRequest(cache, request("PURGE", "/purge?prefix=%2Fimages%2F&soft"));
+    assertEquals(200, answer.code);
+    assertEquals("2", answer.headers.get(0).value);
+    assertNull(cache.get(request("GET", "/images/a")));
+    assertEquals(2, cache.getEntryCount());
+
+    answer = purgeRequest(cache, request("POST", "/purge?url=http://example.com/images/a"));
+    assertEquals("1", answer.headers.get(0).value);
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  static EndProxiedRequestException purgeRequest(ResponseCache cache, HttpRequest request)
+  {
+    try
+    {
+      cache.onPurgeRequest(request, "/purge");
+      fail();
+      return null;
+    }
+    catch (EndProxiedRequestException e)
+    {
+      return e;
+    }
+  }
+
+  static CachedResponse cachedResponse(String url, String... headers)
+  {
+    byte[] header = ResponseCache.encodeHeader(response(200, headers), 5);
+    return new CachedResponse(url, url, 200, header, "hello".getBytes(), System.currentTimeMillis(), 0, 60000, null);
+  }
+
+  static Set<String> urls(String... urls)
+  {
+    return new HashSet<String>(Arrays.asList(urls));
+  }
+}
@@ -0,0 +1,89 @@
+package org.baswell.httproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in a {@link ResponseCache} from four threads at once, with the requested URLs skewed (Zipf-like) over four
+ * times as many URLs as fit in the cache. Misses are stored as they would be by the proxies. Hits only try for the
+ * cache's lock so the threads shouldn't queue up behind each other.
+ *
+ * <pre>
+ * gradle jmh -Pbenchmarks=ResponseCacheBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ResponseCacheBenchmark
+{
+  static final int URLS = 4096;
+
+  static final byte[] BODY = new byte[4096];
+
+  private ResponseCache cache;
+
+  private HttpRequest[] requests;
+
+  @Setup
+  public void setup()
+  {
+    cache = new ResponseCache((URLS / 4) * (BODY.length + 300));
+    requests = new HttpRequest[URLS];
+    for (int i = 0; i < URLS; i++)
+    {
+      requests[i] = new HttpRequest(null, true, false, "GET /resource/" + i + " HTTP/1.1");
+      requests[i].headers.add(new HttpHeader("Host", "example.com"));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Lookups
+  {
+    final int[] indexes = new int[1 << 16];
+
+    int next;
+
+    @Setup
+    public void setup()
+    {
+      Random random = new Random();
+      for (int i = 0; i < indexes.length; i++)
+      {
+        indexes[i] = (int)Math.min(URLS - 1, Math.floor(Math.pow(URLS, random.nextDouble())) - 1);
+      }
+    }
+  }
+
+  @Benchmark
+  public CachedResponse lookup(Lookups lookups)
+  {
+    HttpRequest request = requests[lookups.indexes[lookups.next++ & (lookups.indexes.length - 1)]];
+    CachedResponse cachedResponse = cache.get(request);
+    if (cachedResponse == null)
+    {
+      HttpResponse response = new HttpResponse(true, false, null, "HTTP/1.1 200 OK");
+      response.headers.add(new HttpHeader("Cache-Control", "max-age=3600"));
+      CacheFill fill = cache.fill(request, response);
+      fill.append(BODY, 0, BODY.length);
+      fill.complete();
+    }
+    return cachedResponse;
+  }
+}
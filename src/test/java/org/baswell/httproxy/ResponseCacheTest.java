@@ -0,0 +1,203 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest
+{
+  @Test
+  public void storesFreshResponses()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    HttpResponse response = response(200, "Cache-Control: max-age=60", "Connection: keep-alive", "Transfer-Encoding: chunked", "X-Server: test");
+    assertTrue(store(cache, request("GET", "/a"), response, "hello"));
+
+    CachedResponse cachedResponse = cache.get(request("GET", "/a"));
+    assertNotNull(cachedResponse);
+    assertEquals("hello", new String(cachedResponse.body));
+
+    String header = new String(cachedResponse.header);
+    assertTrue(header.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(header.contains("X-Server: test\r\n"));
+    assertTrue(header.contains("Content-Length: 5\r\n"));
+    assertFalse(header.contains("Connection"));
+    assertFalse(header.contains("Transfer-Encoding"));
+    assertTrue(new String(cachedResponse.ageLine(System.currentTimeMillis())).matches("Age: \\d+\r\n\r\n"));
+
+    assertNotNull(cache.get(request("HEAD", "/a")));
+    assertNull(cache.get(request("GET", "/b")));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  @Test
+  public void freshness()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertFalse(store(cache, request("GET", "/a"), response(200), "no freshness"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=0"), "stale"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Age: 120"), "stale"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Expires: " + HttpDate.format(System.currentTimeMillis() - 60000)), "stale"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Expires: 0"), "stale"));
+
+    long now = System.currentTimeMillis();
+    assertTrue(store(cache, request("GET", "/b"), response(200, "Date: " + HttpDate.format(now), "Expires: " + HttpDate.format(now + 60000)), "fresh"));
+    assertTrue(store(cache, request("GET", "/c"), response(200, "Cache-Control: max-age=0, s-maxage=60"), "shared"));
+    assertNotNull(cache.get(request("GET", "/b")));
+    assertNotNull(cache.get(request("GET", "/c")));
+
+    assertNull(cache.get(request("GET", "/b", "Cache-Control: no-cache")));
+    assertNull(cache.get(request("GET", "/b", "Pragma: no-cache")));
+    assertNull(cache.get(request("GET", "/b", "Cache-Control: min-fresh=120")));
+    assertNull(cache.get(request("GET", "/b", "Range: bytes=0-1")));
+    assertNotNull(cache.get(request("GET", "/b", "Cache-Control: min-fresh=10")));
+  }
+
+  @Test
+  public void notStored()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60, no-store"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: private, max-age=60"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: no-cache, max-age=60"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Set-Cookie: a=b"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Vary: *"), "x"));
+    assertFalse(store(cache, request("GET", "/a", "Cache-Control: no-store"), response(200, "Cache-Control: max-age=60"), "x"));
+    assertFalse(store(cache, request("GET", "/a", "Authorization: Basic eDp5"), response(200, "Cache-Control: max-age=60"), "x"));
+    assertFalse(store(cache, request("POST", "/a"), response(200, "Cache-Control: max-age=60"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(500, "Cache-Control: max-age=60"), "x"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Content-Length: 10"), "short"));
+    assertEquals(0, cache.getEntryCount());
+
+    assertTrue(store(cache, request("GET", "/a", "Authorization: Basic eDp5"), response(200, "Cache-Control: public, max-age=60"), "x"));
+    assertTrue(store(cache, request("GET", "/b"), response(404, "Cache-Control: max-age=60", "Content-Length: 1"), "x"));
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  @Test
+  public void largeResponsesNotStored()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024, 10);
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60", "Content-Length: 11"), "01234567890"));
+    assertFalse(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60"), "01234567890"));
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60"), "0123456789"));
+  }
+
+  @Test
+  public void vary()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a", "Accept-Encoding: gzip"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Encoding"), "gzip"));
+    assertEquals("gzip", new String(cache.get(request("GET", "/a", "Accept-Encoding: gzip")).body));
+    assertNull(cache.get(request("GET", "/a", "Accept-Encoding: br")));
+    assertNull(cache.get(request("GET", "/a")));
+
+    assertTrue(store(cache, request("GET", "/a", "Accept-Encoding: br"), response(200, "Cache-Control: max-age=60", "Vary: accept-encoding"), "br"));
+    assertEquals("gzip", new String(cache.get(request("GET", "/a", "Accept-Encoding: gzip")).body));
+    assertEquals("br", new String(cache.get(request("GET", "/a", "Accept-Encoding: br")).body));
+
+    /*
+     * The URL now varies on something else, the variants stored before can't be used.
+     */
+    assertTrue(store(cache, request("GET", "/a", "Accept-Language: en"), response(200, "Cache-Control: max-age=60", "Vary: Accept-Language"), "en"));
+    assertNull(cache.get(request("GET", "/a", "Accept-Encoding: gzip")));
+    assertEquals("en", new String(cache.get(request("GET", "/a", "Accept-Encoding: gzip", "Accept-Language: en")).body));
+
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60"), "plain"));
+    assertEquals("plain", new String(cache.get(request("GET", "/a", "Accept-Language: en")).body));
+  }
+
+  @Test
+  public void unsafeMethodsInvalidate()
+  {
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60"), "x"));
+    cache.onRequest(request("OPTIONS", "/a"));
+    assertNotNull(cache.get(request("GET", "/a")));
+    cache.onRequest(request("POST", "/a"));
+    assertNull(cache.get(request("GET", "/a")));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getBytes());
+  }
+
+  /*
+   * A scan of one-off requests doesn't push out the entries that are requested all the time, and the cache never holds
+   * more than its bytes.
+   */
+  @Test
+  public void popularEntriesSurviveScans()
+  {
+    String body = new String(new byte[1000]);
+    ResponseCache cache = new ResponseCache(50 * 1300);
+    for (int i = 0; i < 10; i++)
+    {
+      for (int j = 0; j < 10; j++)
+      {
+        getOrStore(cache, "/hot/" + j, body);
+      }
+    }
+
+    for (int i = 0; i < 1000; i++)
+    {
+      getOrStore(cache, "/cold/" + i, body);
+      assertTrue(cache.getBytes() <= cache.getMaxBytes());
+    }
+
+    for (int j = 0; j < 10; j++)
+    {
+      assertNotNull(cache.get(request("GET", "/hot/" + j)));
+    }
+    assertTrue(cache.getEntryCount() > 10);
+    assertTrue(cache.getEntryCount() <= 50);
+
+    cache.clear();
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getBytes());
+  }
+
+  static void getOrStore(ResponseCache cache, String path, String body)
+  {
+    if (cache.get(request("GET", path)) == null)
+    {
+      store(cache, request("GET", path), response(200, "Cache-Control: max-age=60"), body);
+    }
+  }
+
+  static boolean store(ResponseCache cache, HttpRequest request, HttpResponse response, String body)
+  {
+    CacheFill fill = cache.fill(request, response);
+    if (fill == null)
+    {
+      return false;
+    }
+
+    byte[] bytes = body.getBytes();
+    fill.append(bytes, 0, bytes.length);
+    return fill.complete();
+  }
+
+  static HttpRequest request(String method, String path, String... headers)
+  {
+    HttpRequest request = new HttpRequest(null, true, false, method + " " + path + " HTTP/1.1");
+    request.headers.add(new HttpHeader("Host", "example.com"));
+    for (String header : headers)
+    {
+      int colon = header.indexOf(':');
+      request.headers.add(new HttpHeader(header.substring(0, colon), header.substring(colon + 1).trim()));
+    }
+    return request;
+  }
+
+  static HttpResponse response(int statusCode, String... headers)
+  {
+    HttpResponse response = new HttpResponse(true, false, null, "HTTP/1.1", statusCode, statusCode == 200 ? "OK" : "Other");
+    for (String header : headers)
+    {
+      int colon = header.indexOf(':');
+      response.headers.add(new HttpHeader(header.substring(0, colon), header.substring(colon + 1).trim()));
+    }
+    return response;
+  }
+}
@@ -0,0 +1,78 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import static org.baswell.httproxy.ResponseCacheTest.*;
+import static org.junit.Assert.*;
+
+public class RevalidatorTest
+{
+  @Test
+  public void staleResponses()
+  {
+    long now = System.currentTimeMillis();
+    CachedResponse stale = cachedResponse(now - 90000, "Cache-Control: max-age=60, stale-while-revalidate=60, stale-if-error=20");
+    assertFalse(stale.isFresh(now));
+    assertTrue(stale.canServeWhileRevalidating(now));
+    assertFalse(stale.canServeOnError(now));
+    assertNull(stale.etag);
+    assertNull(stale.lastModified);
+
+    CachedResponse mustRevalidate = cachedResponse(now - 90000, "Cache-Control: max-age=60, stale-while-revalidate=60, must-revalidate");
+    assertFalse(mustRevalidate.canServeWhileRevalidating(now));
+
+    ResponseCache cache = new ResponseCache(1024 * 1024);
+    assertTrue(store(cache, request("GET", "/a"), response(200, "Cache-Control: max-age=60, stale-while-revalidate=60", "ETag: \"v1\""), "hello"));
+    assertNull(cache.getStale(request("GET", "/b")));
+
+    /*
+     * Fresh but not for as long as the request asks, it can't be sent while it's revalidated.
+     */
+    HttpRequest request = request("GET", "/a", "Cache-Control: min-fresh=120");
+    assertNull(cache.get(request));
+    CachedResponse cachedResponse = cache.getStale(request);
+    assertEquals("\"v1\"", cachedResponse.etag);
+    assertFalse(cache.serveWhileRevalidating(request, new ConnectionParameters("localhost", 1), cachedResponse, new SimpleIODirector("localhost", 1, null)));
+    assertEquals(0, cache.getStaleHitCount());
+  }
+
+  @Test
+  public void conditionalRequest()
+  {
+    CachedResponse stale = cachedResponse(System.currentTimeMillis(), "Cache-Control: max-age=60", "ETag: \"v1\"", "Last-Modified: Sat, 01 Jan 2000 00:00:00 GMT");
+    HttpRequest request = request("HEAD", "/a?b=c", "Accept: text/html", "Connection: keep-alive", "If-None-Match: \"v0\"", "Range: bytes=0-1");
+    HttpRequest conditionalRequest = Revalidator.conditionalRequest(request, stale);
+
+    assertEquals("GET /a?b=c HTTP/1.1", conditionalRequest.getStatusLine());
+    assertEquals(request.getURL(), conditionalRequest.getURL());
+    assertEquals("text/html", conditionalRequest.getHeaderValue("Accept"));
+    assertEquals("\"v1\"", conditionalRequest.getHeaderValue("If-None-Match"));
+    assertEquals(1, conditionalRequest.getHeaders("If-None-Match").size());
+    assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", conditionalRequest.getHeaderValue("If-Modified-Since"));
+    assertFalse(conditionalRequest.hasHeader("Connection"));
+    assertFalse(conditionalRequest.hasHeader("Range"));
+  }
+
+  @Test
+  public void merge()
+  {
+    CachedResponse stale = cachedResponse(System.currentTimeMillis(), "Cache-Control: max-age=60", "ETag: \"v1\"", "X-Server: test");
+    HttpResponse notModified = response(304, "Cache-Control: max-age=120", "Age: 5", "Connection: close", "Content-Length: 0");
+    HttpResponse merged = Revalidator.merge(stale, notModified);
+
+    assertEquals(200, merged.statusCode);
+    assertEquals("max-age=120", merged.getHeaderValue("Cache-Control"));
+    assertEquals(1, merged.getHeaders("Cache-Control").size());
+    assertEquals("5", merged.getHeaderValue("Age"));
+    assertEquals("\"v1\"", merged.getHeaderValue("ETag"));
+    assertEquals("test", merged.getHeaderValue("X-Server"));
+    assertEquals("5", merged.getHeaderValue("Content-Length"));
+    assertFalse(merged.hasHeader("Connection"));
+  }
+
+  static CachedResponse cachedResponse(long responseTime, String... headers)
+  {
+    byte[] header = ResponseCache.encodeHeader(response(200, headers), 5);
+    return new CachedResponse("http://example.com/a", "http://example.com/a", 200, header, "hello".getBytes(), responseTime, 0, 60000, null);
+  }
+}
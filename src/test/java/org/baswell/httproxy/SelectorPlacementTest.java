@@ -0,0 +1,125 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SelectorPlacementTest
+{
+  @Test
+  public void testRoundRobin()
+  {
+    List<SelectorLoad> loads = loads(3);
+    assertEquals(0, SelectorPlacement.ROUND_ROBIN.place(loads, 0));
+    assertEquals(1, SelectorPlacement.ROUND_ROBIN.place(loads, 1));
+    assertEquals(2, SelectorPlacement.ROUND_ROBIN.place(loads, 2));
+    assertEquals(0, SelectorPlacement.ROUND_ROBIN.place(loads, 3));
+  }
+
+  @Test
+  public void testLeastConnections()
+  {
+    List<SelectorLoad> loads = loads(3);
+    loads.get(0).activeExchanges.set(5);
+    loads.get(1).activeExchanges.set(2);
+    loads.get(2).activeExchanges.set(7);
+
+    for (long dispatchCount = 0; dispatchCount < 3; dispatchCount++)
+    {
+      assertEquals(1, SelectorPlacement.LEAST_CONNECTIONS.place(loads, dispatchCount));
+    }
+
+    /*
+     * Ties are spread out.
+     */
+    loads.get(0).activeExchanges.set(2);
+    assertEquals(0, SelectorPlacement.LEAST_CONNECTIONS.place(loads, 0));
+    assertEquals(1, SelectorPlacement.LEAST_CONNECTIONS.place(loads, 1));
+  }
+
+  @Test
+  public void testLeastRecentLatency()
+  {
+    List<SelectorLoad> loads = loads(3);
+    for (int i = 0; i < 50; i++)
+    {
+      loads.get(0).recordLatency(80000);
+      loads.get(1).recordLatency(90000);
+      loads.get(2).recordLatency(20000);
+    }
+
+    assertEquals(2, SelectorPlacement.LEAST_RECENT_LATENCY.place(loads, 0));
+    assertEquals(2, SelectorPlacement.LEAST_RECENT_LATENCY.place(loads, 1));
+    assertTrue(loads.get(2).getRecentLatencyMicros() > 15);
+  }
+
+  @Test
+  public void idleLatencyDecays()
+  {
+    List<SelectorLoad> loads = loads(2);
+    for (int i = 0; i < 50; i++)
+    {
+      loads.get(0).recordLatency(80000);
+      loads.get(1).recordLatency(20000);
+    }
+
+    long now = System.nanoTime();
+    long busy = loads.get(0).recentLatencyNanos(now);
+    assertTrue(busy > 50000);
+    assertEquals(busy / 4, loads.get(0).recentLatencyNanos(now + 2 * SelectorLoad.LATENCY_HALF_LIFE_NANOS), busy / 100);
+    assertEquals(0, loads.get(0).recentLatencyNanos(now + 100 * SelectorLoad.LATENCY_HALF_LIFE_NANOS));
+    assertEquals(1, SelectorPlacement.LEAST_RECENT_LATENCY.place(loads, 0));
+  }
+
+  /*
+   * Connections are counted when they're dispatched, not when their selector thread gets to them, so a burst is spread.
+   */
+  @Test
+  public void countedWhenDispatched() throws Exception
+  {
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", 8080);
+    proxyDirector.selectorPlacement = SelectorPlacement.LEAST_CONNECTIONS;
+    SelectorDispatcher dispatcher = new SelectorDispatcher(proxyDirector, 2);
+    ServerSocket serverSocket = new ServerSocket(0);
+    List<SocketChannel> socketChannels = new ArrayList<SocketChannel>();
+    dispatcher.start();
+    try
+    {
+      for (int i = 0; i < 6; i++)
+      {
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+        socketChannels.add(socketChannel);
+        dispatcher.dispatch(socketChannel);
+      }
+
+      List<SelectorLoad> loads = dispatcher.getSelectorLoads();
+      assertEquals(3, loads.get(0).getActiveExchanges());
+      assertEquals(3, loads.get(1).getActiveExchanges());
+    }
+    finally
+    {
+      dispatcher.stop();
+      for (SocketChannel socketChannel : socketChannels)
+      {
+        socketChannel.close();
+      }
+      serverSocket.close();
+    }
+  }
+
+  static List<SelectorLoad> loads(int count)
+  {
+    List<SelectorLoad> loads = new ArrayList<SelectorLoad>();
+    for (int i = 0; i < count; i++)
+    {
+      loads.add(new SelectorLoad(i));
+    }
+    return loads;
+  }
+}
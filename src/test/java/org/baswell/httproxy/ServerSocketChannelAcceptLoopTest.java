@@ -0,0 +1,192 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class ServerSocketChannelAcceptLoopTest
+{
+  static ServerSocket backend;
+
+  @BeforeClass
+  public static void startBackend() throws IOException
+  {
+    backend = new ServerSocket(0);
+    Thread accept = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        while (!backend.isClosed())
+        {
+          try
+          {
+            final Socket socket = backend.accept();
+            Thread serve = new Thread()
+            {
+              @Override
+              public void run()
+              {
+                try
+                {
+                  while (true)
+                  {
+                    readHeader(socket.getInputStream());
+                    socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+                  }
+                }
+                catch (IOException e)
+                {}
+              }
+            };
+            serve.setDaemon(true);
+            serve.start();
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+  }
+
+  @AfterClass
+  public static void stopBackend() throws IOException
+  {
+    backend.close();
+  }
+
+  /*
+   * Every selector thread accepts on the bound address, and stopping releases the address.
+   */
+  @Test
+  public void acceptsOnSelectorThreads() throws Exception
+  {
+    InetSocketAddress address = freeAddress();
+    ServerSocketChannelAcceptLoop acceptLoop = new ServerSocketChannelAcceptLoop(new SimpleNIOProxyDirector("localhost", backend.getLocalPort()), 2);
+    Thread startThread = start(acceptLoop, address);
+
+    for (int i = 0; i < 4; i++)
+    {
+      Socket socket = connectWhenBound(address);
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes());
+      InputStream in = socket.getInputStream();
+      assertTrue(readHeader(in).startsWith("HTTP/1.1 200"));
+      assertEquals("ok", read(in, 2));
+      socket.close();
+    }
+
+    acceptLoop.stop();
+    startThread.join(5000);
+    assertFalse(startThread.isAlive());
+    assertBindable(address);
+  }
+
+  /*
+   * A stop that comes while start is still getting going (before the address is bound) leaves nothing bound.
+   */
+  @Test
+  public void stopWhileStarting() throws Exception
+  {
+    for (int i = 0; i < 20; i++)
+    {
+      InetSocketAddress address = freeAddress();
+      ServerSocketChannelAcceptLoop acceptLoop = new ServerSocketChannelAcceptLoop(new SimpleNIOProxyDirector("localhost", backend.getLocalPort()), 1);
+      Thread startThread = start(acceptLoop, address);
+      while (startThread.isAlive())
+      {
+        acceptLoop.stop();
+        startThread.join(10);
+      }
+      assertBindable(address);
+    }
+  }
+
+  static Thread start(final ServerSocketChannelAcceptLoop acceptLoop, final InetSocketAddress address)
+  {
+    Thread startThread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(address, 16);
+        }
+        catch (IOException e)
+        {}
+      }
+    };
+    startThread.setDaemon(true);
+    startThread.start();
+    return startThread;
+  }
+
+  static InetSocketAddress freeAddress() throws IOException
+  {
+    ServerSocket serverSocket = new ServerSocket(0);
+    int port = serverSocket.getLocalPort();
+    serverSocket.close();
+    return new InetSocketAddress("localhost", port);
+  }
+
+  static Socket connectWhenBound(InetSocketAddress address) throws Exception
+  {
+    for (int i = 0; ; i++)
+    {
+      try
+      {
+        return connect(address.getPort());
+      }
+      catch (ConnectException e)
+      {
+        if (i == 50)
+        {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /*
+   * A closed channel stays bound until its selector thread selects again, so this gives it a moment.
+   */
+  static void assertBindable(InetSocketAddress address) throws Exception
+  {
+    for (int i = 0; ; i++)
+    {
+      ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+      try
+      {
+        serverSocketChannel.bind(address);
+        return;
+      }
+      catch (BindException e)
+      {
+        if (i == 50)
+        {
+          throw e;
+        }
+        Thread.sleep(20);
+      }
+      finally
+      {
+        serverSocketChannel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class SocketChannelPoolTest
+{
+  /*
+   * The result of a lookup for a connect the connector has moved on from isn't handed to it.
+   */
+  @Test
+  public void staleResolveDropped() throws Exception
+  {
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", 8080);
+    SocketChannelPool socketChannelPool = new SocketChannelPool(proxyDirector);
+    SelectorLoop selectorLoop = new SelectorLoop(proxyDirector, socketChannelPool, new SelectorLoad(0));
+    selectorLoop.start();
+    try
+    {
+      TestConnector connector = new TestConnector();
+      final CountDownLatch resolved = new CountDownLatch(1);
+      selectorLoop.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            resolved.await(5, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException e)
+          {}
+        }
+      });
+
+      connector.connectAttempt = 1;
+      socketChannelPool.resolve(new ConnectionParameters("localhost", 8080), selectorLoop, connector);
+      connector.connectAttempt = 2;
+      Thread.sleep(200);
+      resolved.countDown();
+      socketChannelPool.resolve(new ConnectionParameters("localhost", 8081), selectorLoop, connector);
+
+      Object result = connector.results.poll(5, TimeUnit.SECONDS);
+      assertTrue(result instanceof InetSocketAddress);
+      assertEquals(8081, ((InetSocketAddress)result).getPort());
+      assertNull(connector.results.poll(200, TimeUnit.MILLISECONDS));
+
+      socketChannelPool.resolve(new ConnectionParameters("no-such-host.invalid", 8080), selectorLoop, connector);
+      assertTrue(connector.results.poll(10, TimeUnit.SECONDS) instanceof IOException);
+    }
+    finally
+    {
+      selectorLoop.stop();
+    }
+  }
+
+  @Test
+  public void connectFailureAnsweredWith502() throws Exception
+  {
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", closed.getLocalPort());
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    final ServerSocketChannelAcceptLoop acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    try
+    {
+      Socket socket = connect(serverSocketChannel.socket().getLocalPort());
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes());
+      String header = readHeader(socket.getInputStream());
+      assertTrue(header, header.startsWith("HTTP/1.1 502"));
+      assertEquals(-1, socket.getInputStream().read());
+      socket.close();
+    }
+    finally
+    {
+      acceptLoop.stop();
+    }
+  }
+
+  static class TestConnector implements ServerConnector
+  {
+    final LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+
+    volatile int connectAttempt;
+
+    @Override
+    public void onServerAddressResolved(InetSocketAddress address)
+    {
+      results.add(address);
+    }
+
+    @Override
+    public void onServerConnectFailed(IOException e)
+    {
+      results.add(e);
+    }
+
+    @Override
+    public void onServerConnectTimeout()
+    {}
+
+    @Override
+    public boolean isConnecting()
+    {
+      return true;
+    }
+
+    @Override
+    public int getConnectAttempt()
+    {
+      return connectAttempt;
+    }
+
+    @Override
+    public long getConnectDeadline()
+    {
+      return 0;
+    }
+  }
+}
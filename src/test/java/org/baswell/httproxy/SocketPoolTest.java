@@ -0,0 +1,173 @@
+package org.baswell.httproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SocketPoolTest
+{
+  ServerSocket serverSocket;
+
+  LinkedBlockingQueue<Socket> accepted;
+
+  ConnectionParameters connectionParameters;
+
+  SimpleNIOProxyDirector proxyDirector;
+
+  @Before
+  public void startServer() throws IOException
+  {
+    serverSocket = new ServerSocket(0);
+    accepted = new LinkedBlockingQueue<Socket>();
+    Thread accept = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        while (!serverSocket.isClosed())
+        {
+          try
+          {
+            accepted.add(serverSocket.accept());
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+
+    connectionParameters = new ConnectionParameters("localhost", serverSocket.getLocalPort());
+    proxyDirector = new SimpleNIOProxyDirector("localhost", serverSocket.getLocalPort());
+  }
+
+  @After
+  public void stopServer() throws IOException
+  {
+    serverSocket.close();
+  }
+
+  /*
+   * The connection released last is handed out first.
+   */
+  @Test
+  public void reused() throws IOException
+  {
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket first = socketPool.checkout(connectionParameters);
+    Socket second = socketPool.checkout(connectionParameters);
+    assertNotSame(first, second);
+
+    socketPool.release(connectionParameters, first, true);
+    socketPool.release(connectionParameters, second, true);
+    assertSame(second, socketPool.checkout(connectionParameters));
+    assertSame(first, socketPool.checkout(connectionParameters));
+
+    socketPool.release(connectionParameters, first, false);
+    assertTrue(first.isClosed());
+    Socket third = socketPool.checkout(connectionParameters);
+    assertNotSame(first, third);
+    assertNotSame(second, third);
+  }
+
+  @Test
+  public void maxConnectionsPerServer() throws IOException
+  {
+    proxyDirector.maxConnectionsPerServer = 1;
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket socket = socketPool.checkout(connectionParameters);
+    try
+    {
+      socketPool.checkoutNew(connectionParameters);
+      fail();
+    }
+    catch (IOException e)
+    {}
+
+    socketPool.release(connectionParameters, socket, true);
+    assertSame(socket, socketPool.checkout(connectionParameters));
+    socketPool.release(connectionParameters, socket, false);
+    socketPool.release(connectionParameters, socketPool.checkoutNew(connectionParameters), false);
+  }
+
+  @Test
+  public void idleTimeout() throws IOException
+  {
+    proxyDirector.serverConnectionIdleTimeoutSeconds = 0;
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket socket = socketPool.checkout(connectionParameters);
+    socketPool.release(connectionParameters, socket, true);
+    assertTrue(socket.isClosed());
+    assertNotSame(socket, socketPool.checkout(connectionParameters));
+  }
+
+  /*
+   * The check doesn't wait on a healthy connection and leaves it blocking and usable.
+   */
+  @Test
+  public void health() throws Exception
+  {
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket socket = socketPool.checkout(connectionParameters);
+    Socket serverSide = accepted.poll(5, TimeUnit.SECONDS);
+    socket.setSoTimeout(5000);
+    assertTrue(socketPool.isHealthy(socket));
+
+    socket.getOutputStream().write('a');
+    assertEquals('a', serverSide.getInputStream().read());
+    serverSide.getOutputStream().write('b');
+    assertEquals('b', socket.getInputStream().read());
+    assertTrue(socketPool.isHealthy(socket));
+
+    serverSide.getOutputStream().write('x');
+    serverSide.getOutputStream().flush();
+    Thread.sleep(100);
+    assertFalse(socketPool.isHealthy(socket));
+
+    Socket closed = socketPool.checkout(connectionParameters);
+    accepted.poll(5, TimeUnit.SECONDS).close();
+    Thread.sleep(100);
+    assertFalse(socketPool.isHealthy(closed));
+  }
+
+  /*
+   * A connection the server closes right after it's released isn't handed out again.
+   */
+  @Test
+  public void closedAfterReleaseDropped() throws Exception
+  {
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket socket = socketPool.checkout(connectionParameters);
+    Socket serverSide = accepted.poll(5, TimeUnit.SECONDS);
+
+    socketPool.release(connectionParameters, socket, true);
+    serverSide.close();
+    Thread.sleep(100);
+    Socket next = socketPool.checkout(connectionParameters);
+    assertNotSame(socket, next);
+    assertTrue(socket.isClosed());
+  }
+
+  @Test
+  public void unhealthyDropped() throws Exception
+  {
+    SocketPool socketPool = new SocketPool(proxyDirector);
+    Socket socket = socketPool.checkout(connectionParameters);
+    accepted.poll(5, TimeUnit.SECONDS).getOutputStream().write('x');
+    Thread.sleep(100);
+
+    socketPool.release(connectionParameters, socket, true);
+    Socket next = socketPool.checkout(connectionParameters);
+    assertNotSame(socket, next);
+    assertTrue(socket.isClosed());
+  }
+}
@@ -0,0 +1,282 @@
+package org.baswell.httproxy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class UpgradeTunnelTest
+{
+  static ServerSocket server;
+
+  static ServerSocketChannelAcceptLoop nioAcceptLoop;
+
+  static ServerSocketAcceptLoop ioAcceptLoop;
+
+  static int nioPort;
+
+  static int ioPort;
+
+  static final String SWITCHING = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: echo\r\nConnection: Upgrade\r\n\r\n";
+
+  /*
+   * Answers upgrade requests with 101 and a greeting, then echoes back what it reads until the client closes its output
+   * and says bye. Anything else gets a 200.
+   */
+  @BeforeClass
+  public static void startServers() throws Exception
+  {
+    server = new ServerSocket(0);
+    Thread accept = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        while (!server.isClosed())
+        {
+          try
+          {
+            final Socket socket = server.accept();
+            new Thread()
+            {
+              @Override
+              public void run()
+              {
+                try
+                {
+                  InputStream in = socket.getInputStream();
+                  OutputStream out = socket.getOutputStream();
+                  while (true)
+                  {
+                    String header = readHeader(in);
+                    if (header.contains("Upgrade: echo"))
+                    {
+                      out.write((SWITCHING + "hello").getBytes());
+                      out.flush();
+                      byte[] buffer = new byte[8192];
+                      int read;
+                      while ((read = in.read(buffer)) != -1)
+                      {
+                        out.write(buffer, 0, read);
+                        out.flush();
+                      }
+                      out.write("bye".getBytes());
+                      socket.close();
+                      return;
+                    }
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+                    out.flush();
+                  }
+                }
+                catch (IOException e)
+                {}
+              }
+            }.start();
+          }
+          catch (IOException e)
+          {}
+        }
+      }
+    };
+    accept.setDaemon(true);
+    accept.start();
+
+    SimpleNIOProxyDirector nioProxyDirector = new SimpleNIOProxyDirector("localhost", server.getLocalPort())
+    {
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+    };
+
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    nioPort = serverSocketChannel.socket().getLocalPort();
+    nioAcceptLoop = new ServerSocketChannelAcceptLoop(nioProxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          nioAcceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    SimpleIODirector ioProxyDirector = new SimpleIODirector("localhost", server.getLocalPort(), Executors.newCachedThreadPool())
+    {
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+    };
+
+    final ServerSocket serverSocket = new ServerSocket(0);
+    ioPort = serverSocket.getLocalPort();
+    ioAcceptLoop = new ServerSocketAcceptLoop(ioProxyDirector);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          ioAcceptLoop.start(serverSocket);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception
+  {
+    nioAcceptLoop.stop();
+    ioAcceptLoop.stop();
+    server.close();
+  }
+
+  @Test
+  public void nioTunnel() throws Exception
+  {
+    tunnel(nioPort);
+  }
+
+  @Test
+  public void ioTunnel() throws Exception
+  {
+    tunnel(ioPort);
+  }
+
+  @Test
+  public void nioLargeTunnel() throws Exception
+  {
+    largeTunnel(nioPort);
+  }
+
+  @Test
+  public void ioLargeTunnel() throws Exception
+  {
+    largeTunnel(ioPort);
+  }
+
+  static void tunnel(int port) throws Exception
+  {
+    Socket socket = connect(port);
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+
+    out.write("GET /plain HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+    assertEquals("ok", new String(Http2ConnectionTest.read(socket, false).body));
+
+    out.write("GET /echo HTTP/1.1\r\nHost: localhost\r\nUpgrade: echo\r\nConnection: Upgrade\r\n\r\n".getBytes());
+    assertTrue(readHeader(in).startsWith("HTTP/1.1 101"));
+    assertEquals("hello", read(in, 5));
+
+    /*
+     * Not HTTP, would fail to parse as a request or response.
+     */
+    String notHttp = "\u0000\u0001 not http\r\n\r\n";
+    out.write(notHttp.getBytes());
+    assertEquals(notHttp, read(in, notHttp.length()));
+
+    socket.shutdownOutput();
+    assertEquals("bye", read(in, 3));
+    assertEquals(-1, in.read());
+    socket.close();
+  }
+
+  static void largeTunnel(int port) throws Exception
+  {
+    Socket socket = connect(port);
+    final OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+
+    out.write("GET /echo HTTP/1.1\r\nHost: localhost\r\nUpgrade: echo\r\nConnection: Upgrade\r\n\r\n".getBytes());
+    assertTrue(readHeader(in).startsWith("HTTP/1.1 101"));
+    assertEquals("hello", read(in, 5));
+
+    final byte[] big = new byte[4 * 1024 * 1024];
+    for (int i = 0; i < big.length; i++)
+    {
+      big[i] = (byte)i;
+    }
+    Thread writer = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          out.write(big);
+        }
+        catch (IOException e)
+        {}
+      }
+    };
+    writer.start();
+
+    ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (echoed.size() < big.length)
+    {
+      int read = in.read(buffer);
+      assertTrue(read != -1);
+      echoed.write(buffer, 0, read);
+    }
+    writer.join();
+    assertArrayEquals(big, echoed.toByteArray());
+    socket.close();
+  }
+
+  static Socket connect(int port) throws IOException
+  {
+    Socket socket = new Socket("localhost", port);
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  static String readHeader(InputStream in) throws IOException
+  {
+    StringBuilder header = new StringBuilder();
+    while (!header.toString().endsWith("\r\n\r\n"))
+    {
+      int b = in.read();
+      if (b == -1)
+      {
+        throw new IOException("Premature end of header.");
+      }
+      header.append((char)b);
+    }
+    return header.toString();
+  }
+
+  static String read(InputStream in, int length) throws IOException
+  {
+    StringBuilder read = new StringBuilder();
+    while (read.length() < length)
+    {
+      int b = in.read();
+      if (b == -1)
+      {
+        throw new IOException("Premature end of stream.");
+      }
+      read.append((char)b);
+    }
+    return read.toString();
+  }
+}
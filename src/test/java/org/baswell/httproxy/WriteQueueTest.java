@@ -0,0 +1,283 @@
+package org.baswell.httproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.baswell.httproxy.UpgradeTunnelTest.*;
+import static org.junit.Assert.*;
+
+public class WriteQueueTest
+{
+  /*
+   * Backed up at the high water mark and stays that way until written down to half of it.
+   */
+  @Test
+  public void waterMarks() throws IOException
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(64);
+    WriteQueue writeQueue = new WriteQueue(pool);
+    writeQueue.highWaterMark = 100;
+
+    writeQueue.add(ByteBuffer.wrap(bytes(99, 0)));
+    assertFalse(writeQueue.isBackedUp());
+    writeQueue.add(new byte[]{99});
+    assertTrue(writeQueue.isBackedUp());
+    assertEquals(100, writeQueue.size());
+
+    TestChannel channel = new TestChannel();
+    channel.accepts = 49;
+    assertEquals(49, writeQueue.write(channel, null));
+    assertTrue("Above the low water mark", writeQueue.isBackedUp());
+
+    channel.accepts = 1;
+    assertEquals(1, writeQueue.write(channel, null));
+    assertFalse(writeQueue.isBackedUp());
+
+    writeQueue.add(ByteBuffer.wrap(bytes(49, 0)));
+    assertFalse("Below the high water mark", writeQueue.isBackedUp());
+    writeQueue.add(ByteBuffer.wrap(bytes(1, 0)));
+    assertTrue(writeQueue.isBackedUp());
+
+    channel.accepts = 100;
+    assertEquals(100, writeQueue.write(channel, null));
+    assertTrue(writeQueue.isEmpty());
+    assertFalse(writeQueue.isBackedUp());
+  }
+
+  /*
+   * Copied bytes fill up the last pooled buffer before another is taken, and the buffers are given back as they're
+   * written out.
+   */
+  @Test
+  public void pooledBuffers() throws IOException
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(48);
+    long outstanding = pool.getOutstanding();
+    WriteQueue writeQueue = new WriteQueue(pool);
+
+    writeQueue.add(ByteBuffer.wrap(bytes(40, 0)));
+    assertEquals(outstanding + 1, pool.getOutstanding());
+    writeQueue.add(ByteBuffer.wrap(bytes(40, 40)));
+    assertEquals(outstanding + 2, pool.getOutstanding());
+    writeQueue.add("header".getBytes());
+    writeQueue.add(ByteBuffer.wrap(bytes(10, 80)));
+    assertEquals(outstanding + 3, pool.getOutstanding());
+    assertEquals(96, writeQueue.size());
+
+    TestChannel channel = new TestChannel();
+    channel.accepts = 50;
+    assertEquals(50, writeQueue.write(channel, null));
+    assertEquals(outstanding + 2, pool.getOutstanding());
+
+    channel.accepts = 1000;
+    assertEquals(46, writeQueue.write(channel, null));
+    assertEquals(outstanding, pool.getOutstanding());
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(bytes(80, 0));
+    expected.write("header".getBytes());
+    expected.write(bytes(10, 80));
+    assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+
+    writeQueue.add(ByteBuffer.wrap(bytes(100, 0)));
+    assertEquals(outstanding + 3, pool.getOutstanding());
+    writeQueue.clear();
+    assertTrue(writeQueue.isEmpty());
+    assertEquals(outstanding, pool.getOutstanding());
+  }
+
+  /*
+   * The next buffer is gathered with the queued bytes and what's left of it is queued.
+   */
+  @Test
+  public void writeNext() throws IOException
+  {
+    ByteBufferPool pool = ByteBufferPool.forSize(32);
+    long outstanding = pool.getOutstanding();
+    WriteQueue writeQueue = new WriteQueue(pool);
+    TestChannel channel = new TestChannel();
+
+    channel.accepts = 1000;
+    ByteBuffer next = ByteBuffer.wrap(bytes(20, 0));
+    assertEquals(20, writeQueue.write(channel, next));
+    assertTrue(writeQueue.isEmpty());
+
+    writeQueue.add(ByteBuffer.wrap(bytes(10, 20)));
+    channel.accepts = 15;
+    next = ByteBuffer.wrap(bytes(20, 30));
+    assertEquals(15, writeQueue.write(channel, next));
+    assertFalse(next.hasRemaining());
+    assertEquals(15, writeQueue.size());
+
+    channel.accepts = 1000;
+    assertEquals(15, writeQueue.write(channel, null));
+    assertArrayEquals(bytes(50, 0), channel.written.toByteArray());
+    assertEquals(outstanding, pool.getOutstanding());
+
+    writeQueue.add("abc".getBytes());
+    writeQueue.add(ByteBuffer.wrap(bytes(40, 0)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeQueue.writeTo(out);
+    assertEquals(43, out.size());
+    assertTrue(writeQueue.isEmpty());
+    assertEquals(outstanding, pool.getOutstanding());
+  }
+
+  /*
+   * While a client isn't reading, the response queued for it backs up and the proxy stops reading from the server, so
+   * the server can only write as much as the socket buffers and the high water mark hold. Once the client reads again
+   * the server is read from again.
+   */
+  @Test
+  public void serverReadsPausedForSlowClient() throws Exception
+  {
+    final int bodyLength = 64 * 1024 * 1024;
+    final AtomicLong serverWritten = new AtomicLong();
+    final ServerSocket backend = new ServerSocket(0);
+    Thread serve = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Socket socket = backend.accept();
+          socket.setSendBufferSize(16 * 1024);
+          readHeader(socket.getInputStream());
+          OutputStream out = socket.getOutputStream();
+          out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + bodyLength + "\r\n\r\n").getBytes());
+          byte[] chunk = new byte[16 * 1024];
+          for (int i = 0; i < bodyLength / chunk.length; i++)
+          {
+            out.write(chunk);
+            serverWritten.addAndGet(chunk.length);
+          }
+          out.flush();
+        }
+        catch (IOException e)
+        {}
+      }
+    };
+    serve.setDaemon(true);
+    serve.start();
+
+    SimpleNIOProxyDirector proxyDirector = new SimpleNIOProxyDirector("localhost", backend.getLocalPort());
+    proxyDirector.writeQueueHighWaterMark = 64 * 1024;
+    final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    final ServerSocketChannelAcceptLoop acceptLoop = new ServerSocketChannelAcceptLoop(proxyDirector, 1);
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(serverSocketChannel);
+        }
+        catch (IOException e)
+        {}
+      }
+    }.start();
+
+    try
+    {
+      Socket socket = new Socket();
+      socket.setReceiveBufferSize(16 * 1024);
+      socket.connect(serverSocketChannel.socket().getLocalSocketAddress());
+      socket.setSoTimeout(10000);
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes());
+
+      Thread.sleep(1000);
+      assertTrue("Server wrote " + serverWritten.get(), serverWritten.get() < bodyLength / 2);
+
+      InputStream in = socket.getInputStream();
+      assertTrue(readHeader(in).startsWith("HTTP/1.1 200"));
+      byte[] buffer = new byte[64 * 1024];
+      long read = 0;
+      while (read < bodyLength)
+      {
+        int length = in.read(buffer);
+        assertTrue(length > 0);
+        read += length;
+      }
+      assertEquals(bodyLength, read);
+      serve.join(5000);
+      assertEquals(bodyLength, serverWritten.get());
+      socket.close();
+    }
+    finally
+    {
+      acceptLoop.stop();
+      backend.close();
+    }
+  }
+
+  static byte[] bytes(int length, int first)
+  {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++)
+    {
+      bytes[i] = (byte)(first + i);
+    }
+    return bytes;
+  }
+
+  /*
+   * Takes up to the given number of bytes per write.
+   */
+  static class TestChannel implements GatheringByteChannel
+  {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    int accepts;
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length)
+    {
+      int left = accepts;
+      for (int i = offset; (i < offset + length) && (left > 0); i++)
+      {
+        while (sources[i].hasRemaining() && (left > 0))
+        {
+          written.write(sources[i].get());
+          left--;
+        }
+      }
+      return accepts - left;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources)
+    {
+      return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public int write(ByteBuffer source)
+    {
+      return (int)write(new ByteBuffer[]{source});
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close()
+    {}
+  }
+}
@@ -0,0 +1,249 @@
+package org.baswell.httproxy.servers;
+
+import org.baswell.httproxy.ConnectionParameters;
+import org.baswell.httproxy.EndProxiedRequestException;
+import org.baswell.httproxy.HttpRequest;
+import org.baswell.httproxy.HttpResponse;
+import org.baswell.httproxy.ServerSocketAcceptLoop;
+import org.baswell.httproxy.SimpleIODirector;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the given number of keep-alive clients open through the blocking IO proxy and sends a request on every client
+ * each round. Compares the IO thread pool (two platform threads per client) with virtual threads (Java 21+).
+ *
+ * <pre>
+ * java -Xss256k org.baswell.httproxy.servers.IOLoadBenchmark pool 10000 5
+ * java org.baswell.httproxy.servers.IOLoadBenchmark virtual 100000 5
+ * </pre>
+ *
+ * Each client uses three file descriptors (client, proxy side of the client and a share of the proxy to server
+ * connections) so {@code ulimit -n} must be raised well above three times the client count. The clients and the backend
+ * server run on two selector threads in this JVM so they don't skew the thread count.
+ */
+public class IOLoadBenchmark
+{
+  static final byte[] REQUEST = "GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n".getBytes();
+
+  static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\nConnection: keep-alive\r\n\r\nOK".getBytes();
+
+  public static void main(String[] args) throws Exception
+  {
+    boolean virtualThreads = args.length > 0 && args[0].equals("virtual");
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    ServerSocketChannel backendChannel = ServerSocketChannel.open();
+    backendChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+    startBackend(backendChannel);
+
+    ExecutorService ioThreadPool = virtualThreads ? null : Executors.newCachedThreadPool();
+    SimpleIODirector proxyDirector = new SimpleIODirector("127.0.0.1", backendChannel.socket().getLocalPort(), ioThreadPool)
+    {
+      @Override
+      public ConnectionParameters onRequestStart(HttpRequest httpRequest) throws EndProxiedRequestException
+      {
+        return connectionParameters;
+      }
+
+      @Override
+      public void onResponseStart(HttpRequest httpRequest, HttpResponse httpResponse)
+      {}
+    };
+
+    final ServerSocket proxySocket = new ServerSocket();
+    proxySocket.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+    final ServerSocketAcceptLoop acceptLoop = new ServerSocketAcceptLoop(proxyDirector, virtualThreads);
+    Thread acceptThread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          acceptLoop.start(proxySocket);
+        }
+        catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+    });
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    System.out.println((virtualThreads ? "virtual threads" : "IO thread pool") + ", " + clients + " clients, " + rounds + " rounds");
+
+    long start = System.nanoTime();
+    Selector selector = Selector.open();
+    List<SocketChannel> channels = new ArrayList<SocketChannel>(clients);
+    for (int i = 0; i < clients; i++)
+    {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", proxySocket.getLocalPort()));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, new int[1]);
+      channels.add(channel);
+    }
+    System.out.println("connected in " + millis(start) + " ms");
+
+    long[] roundMillis = new long[rounds];
+    for (int round = 0; round < rounds; round++)
+    {
+      long roundStart = System.nanoTime();
+      for (SocketChannel channel : channels)
+      {
+        ByteBuffer request = ByteBuffer.wrap(REQUEST);
+        while (request.hasRemaining())
+        {
+          channel.write(request);
+        }
+      }
+
+      int outstanding = clients;
+      ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+      while (outstanding > 0)
+      {
+        if (selector.select(30000) == 0)
+        {
+          throw new IOException(outstanding + " responses not received in round " + round + ".");
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+          readBuffer.clear();
+          int read = ((SocketChannel)key.channel()).read(readBuffer);
+          if (read < 0)
+          {
+            throw new IOException("Proxy closed client connection.");
+          }
+
+          int[] received = (int[])key.attachment();
+          received[0] += read;
+          if (received[0] >= RESPONSE.length)
+          {
+            received[0] -= RESPONSE.length;
+            outstanding--;
+          }
+        }
+      }
+      roundMillis[round] = millis(roundStart);
+    }
+
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    System.out.println("round times (ms): " + Arrays.toString(roundMillis));
+    System.out.println("requests/s (last round): " + (clients * 1000l / Math.max(1, roundMillis[rounds - 1])));
+    System.out.println("live threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+    System.out.println("heap used (MB): " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+
+    for (SocketChannel channel : channels)
+    {
+      channel.close();
+    }
+    acceptLoop.stop();
+    System.exit(0);
+  }
+
+  /*
+   * Answers every request it reads with RESPONSE. Requests are all the same length so counting bytes is enough.
+   */
+  static void startBackend(final ServerSocketChannel serverChannel) throws IOException
+  {
+    final Selector selector = Selector.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+    Thread backendThread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        try
+        {
+          while (true)
+          {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+              SelectionKey key = keys.next();
+              keys.remove();
+              if (key.isAcceptable())
+              {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null)
+                {
+                  channel.configureBlocking(false);
+                  channel.register(selector, SelectionKey.OP_READ, new int[1]);
+                }
+              }
+              else if (key.isReadable())
+              {
+                SocketChannel channel = (SocketChannel)key.channel();
+                readBuffer.clear();
+                int read;
+                try
+                {
+                  read = channel.read(readBuffer);
+                }
+                catch (IOException e)
+                {
+                  read = -1;
+                }
+
+                if (read < 0)
+                {
+                  key.cancel();
+                  channel.close();
+                  continue;
+                }
+
+                int[] received = (int[])key.attachment();
+                received[0] += read;
+                while (received[0] >= REQUEST.length)
+                {
+                  received[0] -= REQUEST.length;
+                  ByteBuffer response = ByteBuffer.wrap(RESPONSE);
+                  while (response.hasRemaining())
+                  {
+                    channel.write(response);
+                  }
+                }
+              }
+            }
+          }
+        }
+        catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+    }, "LoadBackend");
+    backendThread.setDaemon(true);
+    backendThread.start();
+  }
+
+  static long millis(long startNanos)
+  {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+}